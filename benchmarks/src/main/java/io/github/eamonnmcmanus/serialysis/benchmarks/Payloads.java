@@ -0,0 +1,192 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * The payloads that the benchmarks scan. Each payload is one or more
+ * objects, which are serialized into a single stream. The contents are
+ * made from a fixed seed, so every run scans the same bytes.
+ *
+ * <p>The RMI payloads are stubs for objects exported in this JVM, like
+ * those in {@code AnonymousRegistryTest} and {@code JmxSslTest}. They stay
+ * exported until {@link #close}, because deserializing a stub with
+ * {@code ObjectInputStream} tells the exporting JVM about it.</p>
+ */
+final class Payloads implements AutoCloseable {
+    /**
+     * Make the payload with the given name.
+     */
+    Payloads(String name) throws IOException {
+        Random random = new Random(SEED);
+        switch (name) {
+            case "rmiStub":
+                registry = LocateRegistry.createRegistry(0);
+                objects = new Object[] {RemoteObject.toStub(registry)};
+                break;
+            case "jmxConnector":
+                connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(
+                        new JMXServiceURL("service:jmx:rmi://localhost"), null,
+                        ManagementFactory.getPlatformMBeanServer());
+                connectorServer.start();
+                objects = new Object[] {connectorServer.toJMXConnector(null)};
+                break;
+            case "hashMap":
+                objects = new Object[] {hashMap(random, 10000)};
+                break;
+            case "arrayList":
+                objects = new Object[] {arrayList(random, 10000)};
+                break;
+            case "deepChain":
+                objects = new Object[] {chain(random, 300)};
+                break;
+            case "longString":
+                objects = new Object[] {string(random, 1 << 20)};
+                break;
+            case "intArray":
+                objects = new Object[] {intArray(random, 1 << 18)};
+                break;
+            case "resets":
+                objects = new Object[1000];
+                for (int i = 0; i < objects.length; i++)
+                    objects[i] = hashMap(random, 10);
+                resets = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown payload: " + name);
+        }
+        bytes = serialize(objects, resets);
+    }
+
+    /**
+     * The objects in the stream.
+     */
+    Object[] objects() {
+        return objects;
+    }
+
+    /**
+     * The serial stream.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (registry != null)
+            UnicastRemoteObject.unexportObject(registry, true);
+        if (connectorServer != null)
+            connectorServer.stop();
+    }
+
+    /**
+     * A node in a linked structure that is serialized recursively, one
+     * level of the stream per node, unlike {@code LinkedList}, which writes
+     * its elements flat.
+     */
+    static class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        Node(int value, String label, Node next) {
+            this.value = value;
+            this.label = label;
+            this.next = next;
+        }
+
+        final int value;
+        final String label;
+        final Node next;
+    }
+
+    private static Map<String, Object> hashMap(Random random, int size) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < size; i++) {
+            Object value;
+            switch (i % 3) {
+                case 0: value = random.nextInt(); break;
+                case 1: value = string(random, 12); break;
+                default: value = Arrays.asList(random.nextLong(), random.nextDouble());
+            }
+            map.put("key" + i, value);
+        }
+        return map;
+    }
+
+    private static List<Object> arrayList(Random random, int size) {
+        List<Object> list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++)
+            list.add((i % 2 == 0) ? (Object) random.nextLong() : string(random, 8));
+        return list;
+    }
+
+    private static Node chain(Random random, int length) {
+        Node node = null;
+        for (int i = 0; i < length; i++)
+            node = new Node(random.nextInt(), "node" + i, node);
+        return node;
+    }
+
+    private static String string(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) ('a' + random.nextInt(26));
+        return new String(chars);
+    }
+
+    private static int[] intArray(Random random, int length) {
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++)
+            array[i] = random.nextInt();
+        return array;
+    }
+
+    private static byte[] serialize(Object[] objects, boolean resets) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : objects) {
+            oout.writeObject(x);
+            if (resets)
+                oout.reset();
+        }
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static final long SEED = 20070612L;
+
+    private final Object[] objects;
+    private final byte[] bytes;
+    private boolean resets;
+    private Registry registry;
+    private JMXConnectorServer connectorServer;
+}
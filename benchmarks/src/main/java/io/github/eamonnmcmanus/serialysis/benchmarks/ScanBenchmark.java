@@ -0,0 +1,123 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import io.github.eamonnmcmanus.serialysis.SEntity;
+import io.github.eamonnmcmanus.serialysis.SerialScan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>Throughput of scanning each {@linkplain Payloads payload}, compared
+ * with deserializing it with {@code ObjectInputStream}. Each benchmark
+ * reads every object in the payload's stream. Run with {@code -prof gc}
+ * to see {@code gc.alloc.rate.norm}, the bytes allocated per
+ * operation.</p>
+ *
+ * <ul>
+ * <li>{@code readObject}: a new {@code SerialScan} for each stream.</li>
+ * <li>{@code readObjectReused}: one {@code SerialScan}, reset for each
+ *     stream.</li>
+ * <li>{@code examine}: {@code SerialScan.examine} of each object, which
+ *     includes serializing it.</li>
+ * <li>{@code render}: {@code SEntity.toString()} of entities already
+ *     scanned.</li>
+ * <li>{@code objectInputStream}: the baseline.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({"rmiStub", "jmxConnector", "hashMap", "arrayList", "deepChain",
+            "longString", "intArray", "resets"})
+    public String payload;
+
+    private Payloads payloads;
+    private byte[] bytes;
+    private Object[] objects;
+    private SEntity[] entities;
+    private SerialScan reused;
+
+    @Setup
+    public void setUp() throws IOException {
+        payloads = new Payloads(payload);
+        bytes = payloads.bytes();
+        objects = payloads.objects();
+        SerialScan scan = new SerialScan(ByteBuffer.wrap(bytes));
+        entities = new SEntity[objects.length];
+        for (int i = 0; i < entities.length; i++)
+            entities[i] = scan.readObject();
+        reused = new SerialScan();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        payloads.close();
+    }
+
+    @Benchmark
+    public void readObject(Blackhole bh) throws IOException {
+        SerialScan scan = new SerialScan(ByteBuffer.wrap(bytes));
+        for (int i = 0; i < objects.length; i++)
+            bh.consume(scan.readObject());
+    }
+
+    @Benchmark
+    public void readObjectReused(Blackhole bh) throws IOException {
+        reused.reset(ByteBuffer.wrap(bytes));
+        for (int i = 0; i < objects.length; i++)
+            bh.consume(reused.readObject());
+    }
+
+    @Benchmark
+    public void examine(Blackhole bh) {
+        for (Object x : objects)
+            bh.consume(SerialScan.examine(x));
+    }
+
+    @Benchmark
+    public void render(Blackhole bh) {
+        for (SEntity e : entities)
+            bh.consume(e.toString());
+    }
+
+    @Benchmark
+    public void objectInputStream(Blackhole bh) throws IOException, ClassNotFoundException {
+        ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        for (int i = 0; i < objects.length; i++)
+            bh.consume(oin.readObject());
+    }
+}
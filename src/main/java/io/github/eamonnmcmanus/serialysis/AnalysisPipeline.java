@@ -0,0 +1,394 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * <p>Analyze serial streams in the background, so that the thread that
+ * produced a stream pays only for copying it. A thread that has just
+ * written a stream, for example with an {@code ObjectOutputStream} on a
+ * request path, {@linkplain #offer offers} a copy of its bytes to the
+ * pipeline. If there is room, the bytes are copied into a ring buffer that
+ * was allocated when the pipeline was made; if not, the stream is dropped
+ * and counted. Either way, {@code offer} never blocks and never
+ * allocates.</p>
+ *
+ * <p>Each worker thread has a ring buffer of its own, and producers are
+ * spread over the rings by thread, so producers on different rings never
+ * contend. A worker takes the streams from its ring in batches, adds each
+ * one to a {@link ClassHistogram}, and frees its space. Every reporting
+ * interval, the results of all the workers are combined into a
+ * {@link Report} and given to the listener, and the workers start again
+ * from zero.</p>
+ *
+ * <p>The rings hold variable-length records, each an {@code int} length
+ * followed by the bytes of a stream, aligned to 8 bytes. A producer
+ * reserves space by advancing the ring's tail with compare-and-set, copies
+ * its bytes, and then publishes the record by writing its length with
+ * release semantics. A record that would not fit before the end of the
+ * ring is preceded by a negative length that says how many bytes to skip.
+ * The worker reads each length with acquire semantics, so it sees the
+ * bytes of a record once it sees its length, and it zeroes the space of
+ * each record before giving it back, so that a length of 0 always means
+ * that the next record has not been published yet.</p>
+ */
+public final class AnalysisPipeline implements Closeable {
+    /**
+     * Make a pipeline and start its threads.
+     *
+     * @param workers the number of worker threads, each with its own ring.
+     * @param ringBytes the size of each ring, which is rounded up to a power
+     *     of 2. A stream longer than this, less 8 bytes, is always dropped.
+     * @param reportInterval how often to give the listener a report.
+     * @param unit the unit of {@code reportInterval}.
+     * @param listener what to give the reports to. It is called from a
+     *     thread of the pipeline, and should not take long.
+     */
+    public AnalysisPipeline(int workers, int ringBytes, long reportInterval,
+            TimeUnit unit, Consumer<Report> listener) {
+        if (workers <= 0 || ringBytes < 64 || ringBytes > 1 << 30 || reportInterval <= 0)
+            throw new IllegalArgumentException();
+        if (listener == null)
+            throw new NullPointerException("listener");
+        this.listener = listener;
+        this.intervalNanos = unit.toNanos(reportInterval);
+        int size = Integer.highestOneBit(ringBytes - 1) << 1;
+        this.workers = new Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Worker(new Ring(size), i);
+            this.workers[i].start();
+        }
+        this.reporter = new Thread(new Runnable() {
+            public void run() {
+                reportPeriodically();
+            }
+        }, "AnalysisPipeline-reporter");
+        this.reporter.setDaemon(true);
+        this.intervalStart = System.currentTimeMillis();
+        this.reporter.start();
+    }
+
+    /**
+     * Offer a serial stream for analysis. The bytes are copied, so the
+     * caller can reuse the array as soon as this method returns.
+     *
+     * @param bytes an array containing the serial stream.
+     * @param offset where the stream starts in the array.
+     * @param length the length of the stream.
+     * @return true if the stream will be analyzed, or false if it was
+     *     dropped because there was no room for it or the pipeline is
+     *     closed.
+     */
+    public boolean offer(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || length > bytes.length - offset)
+            throw new IndexOutOfBoundsException();
+        if (length > 0 && !closed) {
+            Worker w = workers[(int) (Thread.currentThread().getId() % workers.length)];
+            // The worker is not woken, since that could cost a system
+            // call. It looks at its ring again within a millisecond.
+            if (w.ring.offer(bytes, offset, length))
+                return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    /**
+     * Stop the pipeline after analyzing the streams that have already been
+     * offered, and give the listener a last report. A stream offered while
+     * the pipeline is closing may be lost.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        for (Worker w : workers)
+            LockSupport.unpark(w.thread);
+        for (Worker w : workers) {
+            try {
+                w.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        reporter.interrupt();
+        try {
+            reporter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report();
+    }
+
+    /**
+     * The results of analyzing the streams that were taken from the rings
+     * during one reporting interval.
+     */
+    public static final class Report {
+        Report(long startMillis, long endMillis, ClassHistogram histogram,
+                long malformed, long dropped) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.histogram = histogram;
+            this.malformed = malformed;
+            this.dropped = dropped;
+        }
+
+        /**
+         * When the interval started, in milliseconds since the epoch.
+         *
+         * @return the start of the interval.
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * When the interval ended, in milliseconds since the epoch.
+         *
+         * @return the end of the interval.
+         */
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        /**
+         * The histogram of the classes in the streams that were analyzed.
+         * Its {@linkplain ClassHistogram#getStreamCount() stream count} is
+         * the number of streams, including malformed ones.
+         *
+         * @return the histogram.
+         */
+        public ClassHistogram getHistogram() {
+            return histogram;
+        }
+
+        /**
+         * The number of streams that could not be completely analyzed
+         * because they were not valid serial streams. What could be read of
+         * them is in the histogram.
+         *
+         * @return the number of malformed streams.
+         */
+        public long getMalformed() {
+            return malformed;
+        }
+
+        /**
+         * The number of streams that were dropped, because there was no
+         * room for them in a ring or the pipeline was closed.
+         *
+         * @return the number of dropped streams.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        @Override
+        public String toString() {
+            return "Report from " + startMillis + " to " + endMillis + ": "
+                    + histogram.getStreamCount() + " streams, "
+                    + malformed + " malformed, " + dropped + " dropped\n"
+                    + histogram;
+        }
+
+        private final long startMillis;
+        private final long endMillis;
+        private final ClassHistogram histogram;
+        private final long malformed;
+        private final long dropped;
+    }
+
+    private void reportPeriodically() {
+        long next = System.nanoTime() + intervalNanos;
+        while (!closed) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            report();
+            next += intervalNanos;
+        }
+    }
+
+    /**
+     * Combine and reset the results of the workers, and give them to the
+     * listener.
+     */
+    private synchronized void report() {
+        ClassHistogram total = new ClassHistogram();
+        long malformed = 0;
+        for (Worker w : workers) {
+            synchronized (w) {
+                total.add(w.histogram);
+                w.histogram.clear();
+                malformed += w.malformed;
+                w.malformed = 0;
+            }
+        }
+        long end = System.currentTimeMillis();
+        Report report = new Report(intervalStart, end, total, malformed,
+                dropped.sumThenReset());
+        intervalStart = end;
+        listener.accept(report);
+    }
+
+    /**
+     * A ring buffer with any number of producers and one consumer.
+     */
+    private static final class Ring {
+        Ring(int size) {
+            this.buffer = new byte[size];
+            this.mask = size - 1;
+        }
+
+        boolean offer(byte[] bytes, int offset, int length) {
+            if (length > buffer.length - HEADER)
+                return false;
+            int need = align(HEADER + length);
+            long t;
+            int pos;
+            int skip;
+            while (true) {
+                t = tail.get();
+                pos = (int) (t & mask);
+                skip = (pos + need > buffer.length) ? buffer.length - pos : 0;
+                if (t + skip + need - head.get() > buffer.length)
+                    return false;
+                if (tail.compareAndSet(t, t + skip + need))
+                    break;
+            }
+            if (skip > 0) {
+                LENGTH.setRelease(buffer, pos, -skip);
+                pos = 0;
+            }
+            System.arraycopy(bytes, offset, buffer, pos + HEADER, length);
+            LENGTH.setRelease(buffer, pos, length);
+            return true;
+        }
+
+        /**
+         * Analyze up to {@code max} records, and free their space.
+         *
+         * @return the number of records analyzed.
+         */
+        int drain(Worker worker, int max) {
+            long h = head.get();
+            int n = 0;
+            while (n < max) {
+                int pos = (int) (h & mask);
+                int length = (int) LENGTH.getAcquire(buffer, pos);
+                if (length == 0)
+                    break;
+                int size;
+                if (length < 0) {
+                    size = -length;
+                } else {
+                    worker.analyze(ByteBuffer.wrap(buffer, pos + HEADER, length));
+                    size = align(HEADER + length);
+                    n++;
+                }
+                Arrays.fill(buffer, pos, pos + size, (byte) 0);
+                h += size;
+                head.lazySet(h);
+            }
+            return n;
+        }
+
+        private static int align(int n) {
+            return (n + 7) & ~7;
+        }
+
+        private static final int HEADER = 8;
+        private static final VarHandle LENGTH =
+                MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+        private final byte[] buffer;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+    }
+
+    private final class Worker implements Runnable {
+        Worker(Ring ring, int index) {
+            this.ring = ring;
+            this.thread = new Thread(this, "AnalysisPipeline-worker-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int n;
+                synchronized (this) {
+                    n = ring.drain(this, BATCH);
+                }
+                if (n == 0) {
+                    if (closed && ring.head.get() == ring.tail.get())
+                        return;
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+        }
+
+        /* Called with the lock held, from drain. */
+        void analyze(ByteBuffer stream) {
+            try {
+                histogram.add(stream);
+            } catch (IOException e) {
+                malformed++;
+            } catch (RuntimeException e) {
+                malformed++;
+            }
+        }
+
+        final Ring ring;
+        final Thread thread;
+        final ClassHistogram histogram = new ClassHistogram();
+        long malformed;
+    }
+
+    private static final int BATCH = 64;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Worker[] workers;
+    private final Thread reporter;
+    private final Consumer<Report> listener;
+    private final long intervalNanos;
+    private final LongAdder dropped = new LongAdder();
+    private long intervalStart;  // guarded by this
+    private volatile boolean closed;
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>A server on the loopback interface that analyzes serial streams for
+ * other processes on the same machine, so that they don't each need to
+ * embed a scanner and warm it up.</p>
+ *
+ * <p>A client connects with TCP and sends any number of requests on the
+ * connection, one after the other. A request is a line of ASCII text,
+ * ending with {@code \n}, that is a command and a source:</p>
+ *
+ * <pre>
+ * HISTOGRAM 1234          (followed by 1234 bytes of serial stream)
+ * VALIDATE file /tmp/session.ser
+ * JSON 56                 (followed by 56 bytes of serial stream)
+ * </pre>
+ *
+ * <p>The commands are:</p>
+ * <ul>
+ * <li>{@code HISTOGRAM}: the {@link ClassHistogram} of the stream, as a
+ *     table.</li>
+ * <li>{@code VALIDATE}: the {@link SerialValidator.Verdict Verdict} of a
+ *     {@link SerialValidator} with the server's limits, such as
+ *     {@code ACCEPTED}.</li>
+ * <li>{@code JSON}: the values of the stream as JSON, one top-level value
+ *     per line.</li>
+ * </ul>
+ *
+ * <p>A source {@code file} followed by a path is refused unless the server
+ * was {@linkplain #start(int, ScanLimits, File) started} with a directory
+ * for such requests, and the path, once symbolic links and {@code ..} are
+ * resolved, is in that directory or one of its subdirectories. A relative
+ * path is relative to the directory.</p>
+ *
+ * <p>The server does not authenticate its clients: any process on the
+ * machine can connect to the loopback interface and send it requests. So
+ * it trusts every local user with what it will do, which is to analyze the
+ * streams they send, up to the limits it was given, and the files in its
+ * directory, if any.</p>
+ *
+ * <p>Each reply is a line {@code OK} or {@code ERROR}, followed by a space,
+ * the length in bytes of the body, and {@code \n}, followed by the body in
+ * UTF-8. For {@code ERROR}, the body is a message. A request that can't be
+ * parsed gets an {@code ERROR} reply and the connection is closed, since
+ * the server can't tell where the next request starts.</p>
+ *
+ * <p>Each connection is served by a thread of its own, which is a virtual
+ * thread when the Java platform has them, so thousands of connections cost
+ * little. The scanners, with their buffers and handle tables, are shared
+ * between connections through a pool, so a request on a new connection
+ * does not have to allocate them again. (Class descriptors themselves can
+ * only be shared within a stream, since a stream refers to its descriptors
+ * by handles that it assigns itself.)</p>
+ */
+public final class AnalysisServer implements Closeable {
+    private AnalysisServer(ServerSocket serverSocket, ScanLimits limits,
+            File fileDirectory) {
+        this.serverSocket = serverSocket;
+        this.limits = limits;
+        this.fileDirectory = fileDirectory;
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = (virtual != null);
+        this.executor = virtualThreads ? virtual : Executors.newCachedThreadPool(DAEMONS);
+    }
+
+    /**
+     * Start a server listening on the given port of the loopback interface,
+     * which refuses requests for files.
+     *
+     * @param port the port, or 0 to use any free port.
+     * @param limits the limits for {@code VALIDATE} requests, and for the
+     *     streams of other requests. A request for a stream longer than
+     *     {@link ScanLimits#getMaxBytes()} is refused without reading it.
+     * @return the running server.
+     * @throws IOException if the port can't be used.
+     */
+    public static AnalysisServer start(int port, ScanLimits limits)
+            throws IOException {
+        return start(port, limits, null);
+    }
+
+    /**
+     * Start a server listening on the given port of the loopback interface,
+     * which serves requests for the files in the given directory and its
+     * subdirectories. Every local user who can connect to the server can
+     * have it read those files.
+     *
+     * @param port the port, or 0 to use any free port.
+     * @param limits the limits for {@code VALIDATE} requests, and for the
+     *     streams of other requests. A request for a stream longer than
+     *     {@link ScanLimits#getMaxBytes()} is refused without reading it.
+     * @param fileDirectory the directory, or null to refuse requests for
+     *     files.
+     * @return the running server.
+     * @throws IOException if the port can't be used, or the directory's
+     *     path can't be resolved.
+     */
+    public static AnalysisServer start(int port, ScanLimits limits, File fileDirectory)
+            throws IOException {
+        if (fileDirectory != null)
+            fileDirectory = fileDirectory.getCanonicalFile();
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                BACKLOG);
+        final AnalysisServer server =
+                new AnalysisServer(serverSocket, limits, fileDirectory);
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                server.accept();
+            }
+        }, "AnalysisServer-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    /**
+     * The port that the server is listening on.
+     *
+     * @return the port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * True if connections are served by virtual threads, which is the case
+     * when the Java platform has them.
+     *
+     * @return true if connections are served by virtual threads.
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Stop the server. Connections that are being served are closed when
+     * their current request is finished.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        executor.shutdown();
+    }
+
+    /**
+     * Run a server until the process is killed. Streams are limited to
+     * 64 megabytes and to objects nested 1000 deep, and requests for files
+     * are refused unless a directory is given for them.
+     *
+     * <pre>
+     * java -cp serialysis.jar io.github.eamonnmcmanus.serialysis.AnalysisServer [port [directory]]
+     * </pre>
+     *
+     * @param args the port, which is 7077 if it isn't given, and the
+     *     directory for file requests, if any.
+     * @throws IOException if the port can't be used.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 7077;
+        File directory = (args.length > 1) ? new File(args[1]) : null;
+        ScanLimits limits = new ScanLimits();
+        limits.setMaxBytes(DEFAULT_MAX_BYTES);
+        limits.setMaxDepth(DEFAULT_MAX_DEPTH);
+        AnalysisServer server = start(port, limits, directory);
+        System.out.println("Listening on " + server.serverSocket.getLocalSocketAddress()
+                + (server.virtualThreads ? " with virtual threads" : ""));
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            server.close();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (closed)
+                    return;
+                continue;
+            }
+            executor.execute(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            Connection connection = new Connection(in, out);
+            while (!closed && connection.serveRequest())
+                out.flush();
+            out.flush();
+        } catch (IOException e) {
+            // The client went away.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * The state of one connection: its streams and the buffer that holds
+     * the streams sent with requests.
+     */
+    private class Connection {
+        Connection(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        /**
+         * Read and answer one request.
+         *
+         * @return false if there are no more requests, either because the
+         *     client has finished or because it sent something that could
+         *     not be parsed.
+         */
+        boolean serveRequest() throws IOException {
+            String line = readLine();
+            if (line == null)
+                return false;
+            String[] words = line.split(" ", 3);
+            String command = words[0];
+            if (!command.equals("HISTOGRAM") && !command.equals("VALIDATE")
+                    && !command.equals("JSON")) {
+                reply("ERROR", "Unknown command: " + command);
+                return false;
+            }
+            if (words.length == 3 && words[1].equals("file")) {
+                File file = allowedFile(words[2]);
+                if (file == null) {
+                    reply("ERROR", "File not allowed: " + words[2]);
+                    return true;
+                }
+                if (file.length() > limits.getMaxBytes()) {
+                    reply("ERROR", "File is longer than " + limits.getMaxBytes() + " bytes");
+                    return true;
+                }
+                try (InputStream fin = new FileInputStream(file)) {
+                    analyze(command, fin);
+                } catch (IOException e) {
+                    reply("ERROR", String.valueOf(e));
+                }
+                return true;
+            }
+            long length;
+            try {
+                length = (words.length == 2) ? Long.parseLong(words[1]) : -1;
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length < 0) {
+                reply("ERROR", "Bad request: " + line);
+                return false;
+            }
+            if (length > limits.getMaxBytes()) {
+                reply("ERROR", "Stream is longer than the limit");
+                return false;
+            }
+            if (length > MAX_BUFFERED) {
+                // Read a big stream as the analyzer needs it, rather than
+                // allocating for the length that the client claims.
+                body.reset(length);
+                analyze(command, body);
+                body.skipRest();
+                return true;
+            }
+            int n = (int) length;
+            if (buffer.length < n)
+                buffer = new byte[Math.max(n, Math.min(2 * buffer.length, MAX_BUFFERED))];
+            readFully(buffer, n);
+            analyze(command, ByteBuffer.wrap(buffer, 0, n));
+            return true;
+        }
+
+        /**
+         * The file with the given path, if it is in the directory for file
+         * requests, or null.
+         */
+        private File allowedFile(String path) {
+            if (fileDirectory == null)
+                return null;
+            File file = new File(path);
+            if (!file.isAbsolute())
+                file = new File(fileDirectory, path);
+            try {
+                file = file.getCanonicalFile();
+            } catch (IOException e) {
+                return null;
+            }
+            if (!file.toPath().startsWith(fileDirectory.toPath()))
+                return null;
+            return file;
+        }
+
+        private void analyze(String command, Object source) throws IOException {
+            Analyzers analyzers = takeAnalyzers();
+            try {
+                if (command.equals("VALIDATE")) {
+                    SerialValidator.Verdict verdict = (source instanceof ByteBuffer)
+                            ? analyzers.validator.validate((ByteBuffer) source)
+                            : analyzers.validator.validate((InputStream) source);
+                    reply("OK", verdict.toString());
+                } else if (command.equals("HISTOGRAM")) {
+                    ClassHistogram histogram = analyzers.histogram;
+                    histogram.clear();
+                    if (source instanceof ByteBuffer)
+                        histogram.add((ByteBuffer) source);
+                    else
+                        histogram.add((InputStream) source);
+                    reply("OK", histogram.toString());
+                } else {
+                    StringBuilder sb = analyzers.text;
+                    sb.setLength(0);
+                    if (source instanceof ByteBuffer)
+                        analyzers.jsonScan.reset((ByteBuffer) source);
+                    else
+                        analyzers.jsonScan.reset((InputStream) source);
+                    analyzers.json.render(analyzers.jsonScan);
+                    reply("OK", sb);
+                }
+            } catch (IOException e) {
+                // The stream was bad. The rest of a big stream is skipped
+                // afterwards, so the request is still read completely.
+                reply("ERROR", String.valueOf(e));
+            } catch (RuntimeException e) {
+                // A stream that is bad in a way the analyzer doesn't report
+                // as an IOException still gets a reply, and doesn't end the
+                // connection.
+                reply("ERROR", String.valueOf(e));
+            } catch (StackOverflowError e) {
+                reply("ERROR", "Stream is nested too deeply to analyze");
+            } finally {
+                returnAnalyzers(analyzers);
+            }
+        }
+
+        private void reply(String status, CharSequence body) throws IOException {
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            out.write((status + " " + bytes.length + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(bytes);
+        }
+
+        /**
+         * Read a line of ASCII, or return null at the end of the input.
+         */
+        private String readLine() throws IOException {
+            line.setLength(0);
+            while (true) {
+                int c = in.read();
+                if (c < 0) {
+                    if (line.length() == 0)
+                        return null;
+                    throw new EOFException();
+                }
+                if (c == '\n')
+                    return line.toString();
+                if (line.length() == MAX_LINE)
+                    throw new IOException("Request line too long");
+                line.append((char) c);
+            }
+        }
+
+        private void readFully(byte[] b, int n) throws IOException {
+            int off = 0;
+            while (off < n) {
+                int k = in.read(b, off, n - off);
+                if (k < 0)
+                    throw new EOFException();
+                off += k;
+            }
+        }
+
+        /**
+         * The stream sent with a request that is too big for the buffer,
+         * which is the next {@code length} bytes of the connection.
+         */
+        private class Body extends InputStream {
+            void reset(long length) {
+                remaining = length;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (remaining == 0)
+                    return -1;
+                int c = in.read();
+                if (c < 0)
+                    throw new EOFException();
+                remaining--;
+                return c;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining == 0)
+                    return -1;
+                int k = in.read(b, off, (int) Math.min(len, remaining));
+                if (k < 0)
+                    throw new EOFException();
+                remaining -= k;
+                return k;
+            }
+
+            /**
+             * Skip what the analyzer didn't read, for example because it
+             * rejected the stream early, so that the next request can be
+             * found.
+             */
+            void skipRest() throws IOException {
+                while (remaining > 0) {
+                    long k = in.skip(remaining);
+                    if (k <= 0) {
+                        if (in.read() < 0)
+                            throw new EOFException();
+                        k = 1;
+                    }
+                    remaining -= k;
+                }
+            }
+
+            private long remaining;
+        }
+
+        private final InputStream in;
+        private final OutputStream out;
+        private final StringBuilder line = new StringBuilder();
+        private final Body body = new Body();
+        private byte[] buffer = new byte[8192];
+    }
+
+    /**
+     * The scanners that serve a request, with the buffers they keep
+     * between requests.
+     */
+    private class Analyzers {
+        Analyzers() {
+            validator = new SerialValidator(limits);
+            histogram = new ClassHistogram();
+            histogram.setLimits(limits);
+            json = new JsonRenderer(text);
+            jsonScan = new SerialScan(json);
+            jsonScan.setLimits(limits);
+        }
+
+        final SerialValidator validator;
+        final ClassHistogram histogram;
+        final StringBuilder text = new StringBuilder();
+        final JsonRenderer json;
+        final SerialScan jsonScan;
+    }
+
+    private Analyzers takeAnalyzers() {
+        Analyzers a = pool.poll();
+        return (a != null) ? a : new Analyzers();
+    }
+
+    private void returnAnalyzers(Analyzers a) {
+        if (a.text.capacity() > MAX_POOLED_TEXT)
+            return;  // don't keep a huge buffer from one big request
+        pool.offer(a);
+    }
+
+    /**
+     * Return an executor that runs each task in a new virtual thread, or
+     * null if the Java platform doesn't have virtual threads. This uses
+     * reflection since the code is compiled for a version of Java without
+     * them.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Either there is no such method, or virtual threads are a
+            // preview feature that is not enabled.
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static final ThreadFactory DAEMONS = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "AnalysisServer-connection");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final int BACKLOG = 4096;
+    private static final int MAX_LINE = 4096;
+    private static final int MAX_BUFFERED = 1 << 20;
+    private static final long DEFAULT_MAX_BYTES = 64L << 20;
+    private static final int DEFAULT_MAX_DEPTH = 1000;
+    private static final int MAX_POOLED_TEXT = 1 << 20;
+
+    private final ServerSocket serverSocket;
+    private final ScanLimits limits;
+    private final File fileDirectory;  // canonical, or null
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Queue<Analyzers> pool = new ConcurrentLinkedQueue<Analyzers>();
+    private volatile boolean closed;
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ArrayClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+
+/**
+ * <p>Count the instances of each class in one or more serial streams, and
+ * how many bytes of the streams they take up. The streams are scanned
+ * without building anything, and without copying strings or block data
+ * out of them.</p>
+ *
+ * <p>The bytes of an object are its shallow size in the stream: its type
+ * code, its primitive fields, and any block data written by its
+ * {@code writeObject} method, but not the objects it refers to, which are
+ * counted separately, nor its class descriptor. The bytes of the class
+ * descriptors of a class are counted in its
+ * {@linkplain Entry#getDescriptorBytes() descriptor bytes}, so a class
+ * that appears in many small streams shows how much the descriptors
+ * cost. Bytes that are not part of any value, such as the stream header,
+ * are counted in an entry called {@code <stream>}.</p>
+ *
+ * <p>A {@code ClassHistogram} is not thread-safe. Several threads can each
+ * fill in their own, and {@linkplain #add(ClassHistogram) add} them
+ * together.</p>
+ */
+public final class ClassHistogram {
+    /**
+     * Make an empty histogram.
+     */
+    public ClassHistogram() {
+    }
+
+    /**
+     * Add the contents of the serial stream between the position and the
+     * limit of the given buffer. The buffer's position is not changed.
+     *
+     * @param buffer the serial stream.
+     * @throws IOException if the stream is not a valid serial stream. The
+     *     values before the problem have been counted.
+     */
+    public void add(ByteBuffer buffer) throws IOException {
+        streams++;
+        scan.reset(buffer);
+        run();
+    }
+
+    /**
+     * Add the contents of the serial stream in the given part of an array.
+     *
+     * @param bytes an array containing the serial stream.
+     * @param offset where the stream starts in the array.
+     * @param length the length of the stream.
+     * @throws IOException if the stream is not a valid serial stream.
+     */
+    public void add(byte[] bytes, int offset, int length) throws IOException {
+        add(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Add the contents of the serial stream read from the given
+     * {@code InputStream}, up to its end.
+     *
+     * @param in the serial stream.
+     * @throws IOException if there is a problem reading the stream or it
+     *     is not a valid serial stream.
+     */
+    public void add(InputStream in) throws IOException {
+        streams++;
+        scan.reset(in);
+        run();
+    }
+
+    /**
+     * Add the counts of another histogram to this one.
+     *
+     * @param other the histogram to add.
+     */
+    public void add(ClassHistogram other) {
+        for (Entry e : other.entries.values()) {
+            Entry mine = entry(e.className);
+            mine.count += e.count;
+            mine.bytes += e.bytes;
+            mine.descriptorBytes += e.descriptorBytes;
+        }
+        streams += other.streams;
+        totalBytes += other.totalBytes;
+    }
+
+    /**
+     * Set the limits to apply to each stream that is added, as for
+     * {@link SerialScan#setLimits}.
+     *
+     * @param limits the limits, or null for no limits.
+     */
+    public void setLimits(ScanLimits limits) {
+        scan.setLimits(limits);
+    }
+
+    /**
+     * Forget everything that has been counted.
+     */
+    public void clear() {
+        entries.clear();
+        streams = totalBytes = 0;
+    }
+
+    /**
+     * The number of streams that have been added, including any that were
+     * not valid serial streams.
+     *
+     * @return the number of streams.
+     */
+    public long getStreamCount() {
+        return streams;
+    }
+
+    /**
+     * The total length of the streams that have been added, which is the
+     * sum of the bytes and descriptor bytes of all the entries.
+     *
+     * @return the number of bytes.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Return the entries of the histogram, in decreasing order of the
+     * bytes they account for, including descriptor bytes. The entries are
+     * a snapshot and do not change when more streams are added.
+     *
+     * @return the entries.
+     */
+    public List<Entry> getEntries() {
+        List<Entry> list = new ArrayList<Entry>(entries.size());
+        for (Entry e : entries.values())
+            list.add(new Entry(e));
+        Collections.sort(list, BY_BYTES);
+        return list;
+    }
+
+    /**
+     * The number of instances of a class and the bytes they take up.
+     */
+    public static final class Entry {
+        Entry(String className) {
+            this.className = className;
+        }
+
+        Entry(Entry e) {
+            this.className = e.className;
+            this.count = e.count;
+            this.bytes = e.bytes;
+            this.descriptorBytes = e.descriptorBytes;
+        }
+
+        /**
+         * The name of the class, as it appears in the stream, so arrays
+         * have names like {@code [I}.
+         *
+         * @return the class name.
+         */
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * The number of instances of the class. A reference to an instance
+         * that appeared earlier in the same stream is not counted again.
+         *
+         * @return the number of instances.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The total shallow size of the instances.
+         *
+         * @return the number of bytes.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * The total size of the class descriptors for the class.
+         *
+         * @return the number of bytes.
+         */
+        public long getDescriptorBytes() {
+            return descriptorBytes;
+        }
+
+        @Override
+        public String toString() {
+            return className + ": count=" + count + ", bytes=" + bytes
+                    + ", descriptorBytes=" + descriptorBytes;
+        }
+
+        private final String className;
+        long count;
+        long bytes;
+        long descriptorBytes;
+    }
+
+    /**
+     * A table of the entries, one per line, biggest first.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%12s %14s %12s  %s%n",
+                "count", "bytes", "desc bytes", "class"));
+        for (Entry e : getEntries()) {
+            sb.append(String.format("%12d %14d %12d  %s%n",
+                    e.count, e.bytes, e.descriptorBytes, e.className));
+        }
+        sb.append(String.format("%12s %14d %12s  %s%n",
+                "", totalBytes, "", "total in " + streams + " streams"));
+        return sb.toString();
+    }
+
+    private static final Comparator<Entry> BY_BYTES = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = Long.compare(b.bytes + b.descriptorBytes,
+                    a.bytes + a.descriptorBytes);
+            return (c != 0) ? c : a.className.compareTo(b.className);
+        }
+    };
+
+    private void run() throws IOException {
+        counter.start();
+        try {
+            while (scan.scanNext())
+                ;
+        } finally {
+            counter.finish();
+        }
+    }
+
+    private Entry entry(String className) {
+        Entry e = entries.get(className);
+        if (e == null) {
+            e = new Entry(className);
+            entries.put(className, e);
+        }
+        return e;
+    }
+
+    /**
+     * The handler that does the counting. It keeps a stack of the entries
+     * of the values being read, and {@code last}, the offset up to which
+     * the stream has been attributed to an entry. When a value starts, the
+     * bytes since {@code last} belong to the value that contains it, and
+     * when a value ends, the bytes since {@code last} belong to it.
+     */
+    private class Counter extends ScanHandler {
+        void start() {
+            sp = 0;
+            stack[0] = entry(STREAM);
+            descs[0] = false;
+            last = 0;
+            descDepth = 0;
+        }
+
+        void finish() {
+            long end = scan.position();
+            attribute(end);
+            totalBytes += end;
+        }
+
+        @Override
+        boolean wantsContents() {
+            return false;
+        }
+
+        @Override
+        void beginClassDesc(int handle, ObjectClassDesc desc) {
+            descDepth++;
+            open(entry(desc.getType()), true, scan.entityStart());
+        }
+
+        @Override
+        void endClassDesc() {
+            close();
+            descDepth--;
+        }
+
+        @Override
+        void string(int handle, String s) {
+            // Only the type strings in class descriptors get here, and they
+            // are part of the descriptor.
+        }
+
+        @Override
+        void skippedString(int handle, long utflen) {
+            leaf(STRING);
+        }
+
+        @Override
+        void classValue(int handle, ObjectClassDesc desc) {
+            if (descDepth == 0)
+                leaf(CLASS);
+        }
+
+        @Override
+        void beginObject(int handle, ObjectClassDesc desc) {
+            begin(desc.getType());
+        }
+
+        @Override
+        void endObject() {
+            end();
+        }
+
+        @Override
+        void beginEnum(int handle, ObjectClassDesc desc) {
+            begin(desc.getType());
+        }
+
+        @Override
+        void endEnum() {
+            end();
+        }
+
+        @Override
+        void beginArray(int handle, ArrayClassDesc desc, int length) {
+            begin(desc.getType());
+        }
+
+        @Override
+        void endArray() {
+            end();
+        }
+
+        /* Values inside class descriptors, which can only be in their
+         * annotations, are counted as part of the descriptor. */
+
+        private void begin(String className) {
+            if (descDepth == 0) {
+                Entry e = entry(className);
+                e.count++;
+                open(e, false, scan.entityStart());
+            }
+        }
+
+        private void end() {
+            if (descDepth == 0)
+                close();
+        }
+
+        private void leaf(String className) {
+            begin(className);
+            end();
+        }
+
+        private void open(Entry e, boolean desc, long start) {
+            attribute(start);
+            if (++sp == stack.length) {
+                stack = Arrays.copyOf(stack, sp * 2);
+                descs = Arrays.copyOf(descs, sp * 2);
+            }
+            stack[sp] = e;
+            descs[sp] = desc;
+        }
+
+        private void close() {
+            attribute(scan.position());
+            sp--;
+        }
+
+        /**
+         * Attribute the bytes from {@code last} to {@code offset} to the
+         * value at the top of the stack. The offset can be before
+         * {@code last}: an object's type code comes before its class
+         * descriptor, but the object is reported after the descriptor, and
+         * then the type code has already been attributed to the container.
+         */
+        private void attribute(long offset) {
+            if (offset <= last)
+                return;
+            if (descs[sp])
+                stack[sp].descriptorBytes += offset - last;
+            else
+                stack[sp].bytes += offset - last;
+            last = offset;
+        }
+
+        private Entry[] stack = new Entry[16];
+        private boolean[] descs = new boolean[16];
+        private int sp;
+        private long last;
+        private int descDepth;
+    }
+
+    private static final String STREAM = "<stream>";
+    private static final String STRING = "java.lang.String";
+    private static final String CLASS = "java.lang.Class";
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Counter counter = new Counter();
+    private final SerialScan scan = new SerialScan(counter);
+    private long streams;
+    private long totalBytes;
+}
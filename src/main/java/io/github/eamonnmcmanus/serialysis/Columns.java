@@ -0,0 +1,294 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable columns of primitive values, used by {@link SGraph}. Each column
+ * is a list of fixed-size pages allocated by a {@link GraphStorage}, so
+ * growing it never copies the values already in it, a column never needs
+ * one huge buffer, and the pages can be outside the heap.
+ */
+class Columns {
+    private Columns() {
+    }
+
+    private abstract static class Column {
+        Column(GraphStorage storage, int shift) {
+            this.storage = storage;
+            this.pageBits = storage.pageBits;
+            this.pageMask = (1 << pageBits) - 1;
+            this.shift = shift;
+        }
+
+        final ByteBuffer page(long i) {
+            int p = (int) (i >>> pageBits);
+            while (p >= npages) {
+                if (npages == pages.length)
+                    pages = Arrays.copyOf(pages, npages * 2);
+                pages[npages++] = storage.page((pageMask + 1) << shift);
+            }
+            return pages[p];
+        }
+
+        final long size() {
+            return size;
+        }
+
+        /**
+         * Add {@code n} values, which are initially zero unless the
+         * column was truncated, and return the index of the first one.
+         */
+        final long reserve(int n) {
+            long i = size;
+            if (n > 0) {
+                size += n;
+                page(size - 1);
+            }
+            return i;
+        }
+
+        /**
+         * Forget the values from index {@code size} on, keeping the pages.
+         */
+        final void truncate(long size) {
+            this.size = size;
+        }
+
+        final void clear() {
+            size = 0;
+        }
+
+        final long memoryUsage() {
+            return ((long) npages << pageBits) << shift;
+        }
+
+        private final GraphStorage storage;
+        final int pageBits;
+        final int pageMask;
+        private final int shift;  // log2 of the size of a value
+        ByteBuffer[] pages = new ByteBuffer[4];
+        private int npages;
+        long size;
+    }
+
+    static class Ints extends Column {
+        Ints(GraphStorage storage) {
+            super(storage, 2);
+        }
+
+        int add(int x) {
+            int i = (int) size++;
+            page(i).putInt((i & pageMask) << 2, x);
+            return i;
+        }
+
+        int get(long i) {
+            return pages[(int) (i >>> pageBits)].getInt(((int) i & pageMask) << 2);
+        }
+
+        void set(long i, int x) {
+            pages[(int) (i >>> pageBits)].putInt(((int) i & pageMask) << 2, x);
+        }
+    }
+
+    static class Longs extends Column {
+        Longs(GraphStorage storage) {
+            super(storage, 3);
+        }
+
+        long add(long x) {
+            long i = size++;
+            page(i).putLong(((int) i & pageMask) << 3, x);
+            return i;
+        }
+
+        long get(long i) {
+            return pages[(int) (i >>> pageBits)].getLong(((int) i & pageMask) << 3);
+        }
+
+        void set(long i, long x) {
+            pages[(int) (i >>> pageBits)].putLong(((int) i & pageMask) << 3, x);
+        }
+    }
+
+    /**
+     * A column of bytes, which also holds big-endian values of any
+     * primitive type, as they appear in the serial stream.
+     */
+    static class Bytes extends Column {
+        Bytes(GraphStorage storage) {
+            super(storage, 0);
+        }
+
+        long add(byte x) {
+            long i = size++;
+            page(i).put((int) i & pageMask, x);
+            return i;
+        }
+
+        /**
+         * Add the low-order {@code width} bytes of {@code bits}, most
+         * significant first, and return the index of the first one.
+         */
+        long add(long bits, int width) {
+            long i = size;
+            for (int shift = (width - 1) * 8; shift >= 0; shift -= 8)
+                add((byte) (bits >>> shift));
+            return i;
+        }
+
+        long add(byte[] b, int off, int len) {
+            long start = size;
+            while (len > 0) {
+                ByteBuffer page = page(size).duplicate();
+                page.position((int) size & pageMask);
+                int n = Math.min(len, page.remaining());
+                page.put(b, off, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+            return start;
+        }
+
+        byte get(long i) {
+            return pages[(int) (i >>> pageBits)].get((int) i & pageMask);
+        }
+
+        /**
+         * Return the {@code width}-byte big-endian value at index {@code i},
+         * sign-extended.
+         */
+        long get(long i, int width) {
+            long x = get(i);
+            for (int j = 1; j < width; j++)
+                x = (x << 8) | (get(i + j) & 0xff);
+            return x;
+        }
+
+        void get(long i, byte[] b, int off, int len) {
+            while (len > 0) {
+                ByteBuffer page = pages[(int) (i >>> pageBits)].duplicate();
+                page.position((int) i & pageMask);
+                int n = Math.min(len, page.remaining());
+                page.get(b, off, n);
+                i += n;
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * A pool of strings, each stored once, as UTF-16 chars so that any
+     * string survives unchanged. Finding whether a string is already in
+     * the pool uses an open-addressing hash table that is itself a column.
+     */
+    static class Strings {
+        Strings(GraphStorage storage) {
+            chars = new Bytes(storage);
+            starts = new Longs(storage);
+            lengths = new Ints(storage);
+            hashes = new Ints(storage);
+            table = new Ints(storage);
+            tableSize = 1 << 10;
+            table.reserve(tableSize);
+        }
+
+        /**
+         * Return the index of the given string in the pool, adding it
+         * if it is not there yet.
+         */
+        int intern(String s) {
+            int hash = s.hashCode();
+            int mask = tableSize - 1;
+            for (int t = hash & mask; ; t = (t + 1) & mask) {
+                int entry = table.get(t);
+                if (entry == 0)
+                    break;
+                int index = entry - 1;
+                if (hashes.get(index) == hash && equals(index, s))
+                    return index;
+            }
+            int index = (int) starts.size();
+            starts.add(chars.size());
+            lengths.add(s.length());
+            hashes.add(hash);
+            for (int i = 0; i < s.length(); i++)
+                chars.add(s.charAt(i), 2);
+            if (2 * (index + 1) > tableSize)
+                rehash();
+            else
+                insert(index, hash);
+            return index;
+        }
+
+        String get(int index) {
+            long start = starts.get(index);
+            char[] cs = new char[lengths.get(index)];
+            for (int i = 0; i < cs.length; i++)
+                cs[i] = (char) chars.get(start + 2 * i, 2);
+            return new String(cs);
+        }
+
+        int size() {
+            return (int) starts.size();
+        }
+
+        long memoryUsage() {
+            return chars.memoryUsage() + starts.memoryUsage()
+                    + lengths.memoryUsage() + hashes.memoryUsage()
+                    + table.memoryUsage();
+        }
+
+        private boolean equals(int index, String s) {
+            if (lengths.get(index) != s.length())
+                return false;
+            long start = starts.get(index);
+            for (int i = 0; i < s.length(); i++) {
+                if ((char) chars.get(start + 2 * i, 2) != s.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+
+        private void insert(int index, int hash) {
+            int mask = tableSize - 1;
+            int t = hash & mask;
+            while (table.get(t) != 0)
+                t = (t + 1) & mask;
+            table.set(t, index + 1);
+        }
+
+        private void rehash() {
+            tableSize *= 2;
+            table.clear();
+            table.reserve(tableSize);
+            for (int i = 0; i < tableSize; i++)
+                table.set(i, 0);
+            for (int i = 0, n = size(); i < n; i++)
+                insert(i, hashes.get(i));
+        }
+
+        private final Bytes chars;
+        private final Longs starts;
+        private final Ints lengths;
+        private final Ints hashes;
+        private final Ints table;
+        private int tableSize;
+    }
+}
@@ -0,0 +1,606 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ArrayClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+
+/**
+ * <p>Disassemble a serial stream from a file or the standard input, from
+ * the command line:</p>
+ *
+ * <pre>
+ * java -cp serialysis.jar io.github.eamonnmcmanus.serialysis.Disassembler [options] [file]
+ * </pre>
+ *
+ * <p>The output is written as the stream is read, one value at a time,
+ * and nothing is kept once it has been written, so a stream of any size
+ * can be disassembled in a small heap, and piped through {@code head}.
+ * The options are:</p>
+ *
+ * <dl>
+ * <dt>{@code -tree}</dt>
+ * <dd>Write each value as an indented tree, in the format of
+ *     {@link SEntity#toString()}. This is the default.</dd>
+ * <dt>{@code -json}</dt>
+ * <dd>Write each value as a line of JSON.</dd>
+ * <dt>{@code -histogram}</dt>
+ * <dd>Write only a {@link ClassHistogram} of the stream.</dd>
+ * <dt>{@code -class} <i>pattern</i></dt>
+ * <dd>Write only values whose class matches the pattern, with everything
+ *     they contain, wherever they are in the stream.</dd>
+ * <dt>{@code -path} <i>pattern</i></dt>
+ * <dd>Write only values whose path matches the pattern. The path of the
+ *     first top-level value is {@code 0}, the path of its field
+ *     {@code map} is {@code 0.map}, the path of the fourth element of that
+ *     array is {@code 0.map[3]}, and the path of the first value written by
+ *     a {@code writeObject} method of that object is {@code 0.map[3]@[0]}.
+ *     </dd>
+ * <dt>{@code -depth} <i>n</i></dt>
+ * <dd>Write the contents of objects and arrays only down to depth
+ *     <i>n</i>, where the contents of each value written are at depth
+ *     1.</dd>
+ * <dt>{@code -maxstring} <i>n</i></dt>
+ * <dd>Write only the length of strings longer than <i>n</i> bytes, default
+ *     1000, so that a huge string is never built.</dd>
+ * </dl>
+ *
+ * <p>In patterns, {@code *} matches any characters except {@code .} and
+ * {@code [}, and {@code **} matches any characters, so
+ * {@code -class 'java.util.*'} matches {@code java.util.HashMap} but not
+ * {@code java.util.concurrent.ConcurrentHashMap}. If both {@code -class}
+ * and {@code -path} are given, a value must match both. Each value that
+ * matches is written with its path.</p>
+ */
+public final class Disassembler {
+    private Disassembler() {
+    }
+
+    /**
+     * Disassemble the file named in the arguments, or the standard input.
+     *
+     * @param args the options and file name, as described above.
+     */
+    public static void main(String[] args) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+        int status = run(args, System.in, out, System.err);
+        if (status != 0)
+            System.exit(status);
+    }
+
+    /**
+     * Disassemble as for {@link #main}, and return the exit status. If the
+     * output is closed, for example because it is piped into {@code head},
+     * this stops quietly.
+     */
+    static int run(String[] args, InputStream stdin, Writer out, PrintStream err) {
+        String mode = "-tree";
+        String classPattern = null;
+        String pathPattern = null;
+        int depth = Integer.MAX_VALUE;
+        long maxString = 1000;
+        String file = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-tree") || arg.equals("-json") || arg.equals("-histogram"))
+                    mode = arg;
+                else if (arg.equals("-class"))
+                    classPattern = args[++i];
+                else if (arg.equals("-path"))
+                    pathPattern = args[++i];
+                else if (arg.equals("-depth"))
+                    depth = Integer.parseInt(args[++i]);
+                else if (arg.equals("-maxstring"))
+                    maxString = Long.parseLong(args[++i]);
+                else if (arg.startsWith("-") && !arg.equals("-"))
+                    return usage(err, "Unknown option " + arg);
+                else if (file == null)
+                    file = arg;
+                else
+                    return usage(err, "Only one file can be disassembled");
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return usage(err, "Missing value for " + args[args.length - 1]);
+        } catch (NumberFormatException e) {
+            return usage(err, "Bad number: " + e.getMessage());
+        }
+        if (mode.equals("-histogram")
+                && (classPattern != null || pathPattern != null || depth != Integer.MAX_VALUE))
+            return usage(err, "-class, -path, and -depth can't be used with -histogram");
+
+        Appendable output = new Output(out);
+        SerialScan scan = null;
+        try (InputStream in = (file == null || file.equals("-"))
+                ? stdin : new FileInputStream(file)) {
+            if (mode.equals("-histogram")) {
+                ClassHistogram histogram = new ClassHistogram();
+                histogram.add(in);
+                output.append(histogram.toString());
+            } else {
+                final JsonRenderer json;
+                final TreeRenderer tree;
+                ScanHandler handler;
+                if (mode.equals("-json")) {
+                    tree = null;
+                    handler = json = new JsonRenderer(output);
+                    json.setMaxDepth(depth);
+                    json.setMaxContentsLength(maxString);
+                } else {
+                    json = null;
+                    handler = tree = new TreeRenderer(output);
+                    tree.setMaxDepth(depth);
+                    tree.setMaxContentsLength(maxString);
+                }
+                if (classPattern != null || pathPattern != null) {
+                    handler = new Selector(handler, glob(classPattern), glob(pathPattern)) {
+                        @Override
+                        void label(CharSequence path) {
+                            if (json != null)
+                                json.setPath(path);
+                            else
+                                tree.setPath(path);
+                        }
+                    };
+                }
+                scan = new SerialScan(handler);
+                scan.reset(in);
+                while (scan.scanNext())
+                    ;
+            }
+            out.flush();
+            return 0;
+        } catch (UncheckedIOException e) {
+            // The output was closed.
+            return 0;
+        } catch (IOException e) {
+            try {
+                out.flush();
+            } catch (IOException ignored) {
+            }
+            err.println("Error" + ((scan == null) ? "" : " at byte " + scan.position())
+                    + ": " + e);
+            return 1;
+        }
+    }
+
+    private static int usage(PrintStream err, String message) {
+        err.println(message);
+        err.println("Usage: java " + Disassembler.class.getName()
+                + " [-tree|-json|-histogram] [-class pattern] [-path pattern]"
+                + " [-depth n] [-maxstring n] [file]");
+        return 2;
+    }
+
+    /**
+     * Convert a pattern where {@code *} matches anything but {@code .} and
+     * {@code [}, and {@code **} matches anything, to a regular expression.
+     */
+    static Pattern glob(String pattern) {
+        if (pattern == null)
+            return null;
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            if (pattern.charAt(i) != '*')
+                continue;
+            if (i > start)
+                sb.append(Pattern.quote(pattern.substring(start, i)));
+            if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                sb.append(".*");
+                i++;
+            } else {
+                sb.append("[^.\\[]*");
+            }
+            start = i + 1;
+        }
+        if (start < pattern.length())
+            sb.append(Pattern.quote(pattern.substring(start)));
+        return Pattern.compile(sb.toString());
+    }
+
+    /**
+     * The output, which turns an {@code IOException} into an
+     * {@code UncheckedIOException} so that it can be told apart from a
+     * problem with the input.
+     */
+    private static class Output implements Appendable {
+        Output(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            try {
+                out.append(csq);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            try {
+                out.append(csq, start, end);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            try {
+                out.append(c);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        private final Writer out;
+    }
+
+    /**
+     * <p>The handler that passes on to another handler only the values
+     * that match the patterns, and everything inside them. It keeps track
+     * of the path of each value, and of the class descriptors, fields, and
+     * annotations of the objects that contain it, but nothing else.</p>
+     *
+     * <p>Before it passes on a value, it calls {@link #label} with its
+     * path.</p>
+     */
+    abstract static class Selector extends ScanHandler {
+        Selector(ScanHandler target, Pattern classPattern, Pattern pathPattern) {
+            this.target = target;
+            this.classMatcher = (classPattern == null) ? null : classPattern.matcher("");
+            this.pathMatcher = (pathPattern == null) ? null : pathPattern.matcher("");
+        }
+
+        abstract void label(CharSequence path);
+
+        @Override
+        boolean wantsContents() {
+            return target.wantsContents();
+        }
+
+        @Override
+        long maxContentsLength() {
+            return target.maxContentsLength();
+        }
+
+        @Override
+        void beginClassDesc(int handle, ObjectClassDesc desc) throws IOException {
+            descDepth++;
+            if (selected > 0)
+                target.beginClassDesc(handle, desc);
+        }
+
+        @Override
+        void endClassDesc() throws IOException {
+            descDepth--;
+            if (selected > 0)
+                target.endClassDesc();
+        }
+
+        @Override
+        void nullValue() throws IOException {
+            if (selected > 0)
+                target.nullValue();
+            else if (leaf(null))
+                target.nullValue();
+            done();
+        }
+
+        @Override
+        void reference(int handle) throws IOException {
+            if (selected > 0)
+                target.reference(handle);
+            else if (leaf(null))
+                target.reference(handle);
+            done();
+        }
+
+        @Override
+        void primitive(char typeCode, long bits) throws IOException {
+            if (selected > 0)
+                target.primitive(typeCode, bits);
+            else if (leaf(primitiveName(typeCode)))
+                target.primitive(typeCode, bits);
+            done();
+        }
+
+        @Override
+        void string(int handle, String s) throws IOException {
+            if (selected > 0)
+                target.string(handle, s);
+            else if (leaf(STRING))
+                target.string(handle, s);
+            done();
+        }
+
+        @Override
+        void skippedString(int handle, long utflen) throws IOException {
+            if (selected > 0)
+                target.skippedString(handle, utflen);
+            else if (leaf(STRING))
+                target.skippedString(handle, utflen);
+            done();
+        }
+
+        @Override
+        void blockData(byte[] data) throws IOException {
+            if (selected > 0)
+                target.blockData(data);
+            else if (leaf(null))
+                target.blockData(data);
+            done();
+        }
+
+        @Override
+        void skippedBlockData(int length) throws IOException {
+            if (selected > 0)
+                target.skippedBlockData(length);
+            else if (leaf(null))
+                target.skippedBlockData(length);
+            done();
+        }
+
+        @Override
+        void classValue(int handle, ObjectClassDesc desc) throws IOException {
+            if (selected > 0)
+                target.classValue(handle, desc);
+            else if (leaf(CLASS))
+                target.classValue(handle, desc);
+            done();
+        }
+
+        @Override
+        void beginObject(int handle, ObjectClassDesc desc) throws IOException {
+            if (begin(desc.getType(), OBJECT))
+                target.beginObject(handle, desc);
+            else if (descDepth == 0)
+                cursors[sp].start(desc);
+        }
+
+        @Override
+        void endObject() throws IOException {
+            if (end())
+                target.endObject();
+        }
+
+        @Override
+        void beginAnnotations() throws IOException {
+            if (selected > 0) {
+                target.beginAnnotations();
+            } else if (descDepth == 0) {
+                cursors[sp].beginAnnotations();
+                push(ANNOTATIONS);
+            }
+        }
+
+        @Override
+        void endAnnotations() throws IOException {
+            if (selected > 0) {
+                target.endAnnotations();
+            } else if (descDepth == 0) {
+                pop();
+                cursors[sp].endAnnotations();
+            }
+        }
+
+        @Override
+        void beginEnum(int handle, ObjectClassDesc desc) throws IOException {
+            if (begin(desc.getType(), ENUM))
+                target.beginEnum(handle, desc);
+        }
+
+        @Override
+        void endEnum() throws IOException {
+            if (end())
+                target.endEnum();
+        }
+
+        @Override
+        void beginArray(int handle, ArrayClassDesc desc, int length)
+                throws IOException {
+            if (begin(desc.getType(), ARRAY))
+                target.beginArray(handle, desc, length);
+        }
+
+        @Override
+        void endArray() throws IOException {
+            if (end())
+                target.endArray();
+        }
+
+        @Override
+        void reset() throws IOException {
+            if (selected == 0 && sp == 0)
+                target.reset();
+        }
+
+        @Override
+        void beginException() throws IOException {
+            target.beginException();
+        }
+
+        @Override
+        String endException() throws IOException {
+            return target.endException();
+        }
+
+        /**
+         * A value that does not contain others, outside the selected
+         * values. Append its segment to the path, and return true if it
+         * matches.
+         */
+        private boolean leaf(String type) {
+            if (descDepth > 0)
+                return false;
+            mark = path.length();
+            return matches(type);
+        }
+
+        /**
+         * After a leaf value, go back to the path of its container.
+         */
+        private void done() {
+            if (selected == 0 && descDepth == 0)
+                path.setLength(mark);
+        }
+
+        /**
+         * Start an object, enum, or array.
+         *
+         * @return true if it is to be passed on.
+         */
+        private boolean begin(String type, byte mode) {
+            if (selected > 0) {
+                selected++;
+                return true;
+            }
+            if (descDepth > 0)
+                return false;
+            int start = path.length();
+            if (matches(type)) {
+                path.setLength(start);
+                selected = 1;
+                return true;
+            }
+            push(mode);
+            lengths[sp] = start;
+            return false;
+        }
+
+        /**
+         * End an object, enum, or array.
+         *
+         * @return true if it is to be passed on.
+         */
+        private boolean end() {
+            if (selected > 0) {
+                selected--;
+                return true;
+            }
+            if (descDepth == 0) {
+                path.setLength(lengths[sp]);
+                pop();
+            }
+            return false;
+        }
+
+        /**
+         * Append the segment of the next value of the current container to
+         * the path, and return true if the value matches. If it does, it
+         * is labelled with its path.
+         */
+        private boolean matches(String type) {
+            switch (modes[sp]) {
+                case ROOT:
+                    path.append(indexes[sp]++);
+                    break;
+                case OBJECT:
+                    path.append('.').append(cursors[sp].nextField());
+                    break;
+                case ARRAY:
+                    path.append('[').append(indexes[sp]++).append(']');
+                    break;
+                case ANNOTATIONS:
+                    path.append("@[").append(indexes[sp]++).append(']');
+                    break;
+                case ENUM:
+                    path.append(".<name>");
+                    break;
+                default:
+                    throw new AssertionError(modes[sp]);
+            }
+            if (classMatcher != null
+                    && (type == null || !classMatcher.reset(type).matches()))
+                return false;
+            if (pathMatcher != null && !pathMatcher.reset(path).matches())
+                return false;
+            label(path.toString());
+            return true;
+        }
+
+        private void push(byte mode) {
+            if (++sp == modes.length) {
+                modes = Arrays.copyOf(modes, sp * 2);
+                indexes = Arrays.copyOf(indexes, sp * 2);
+                lengths = Arrays.copyOf(lengths, sp * 2);
+                cursors = Arrays.copyOf(cursors, sp * 2);
+            }
+            modes[sp] = mode;
+            indexes[sp] = 0;
+            if (mode == OBJECT && cursors[sp] == null)
+                cursors[sp] = new FieldCursor();
+        }
+
+        private void pop() {
+            if (modes[sp] == OBJECT)
+                cursors[sp].clear();
+            sp--;
+        }
+
+        private static String primitiveName(char typeCode) {
+            switch (typeCode) {
+                case 'B': return "byte";
+                case 'C': return "char";
+                case 'D': return "double";
+                case 'F': return "float";
+                case 'I': return "int";
+                case 'J': return "long";
+                case 'S': return "short";
+                case 'Z': return "boolean";
+                default: return null;
+            }
+        }
+
+        private static final byte ROOT = 0, OBJECT = 1, ANNOTATIONS = 2,
+                ARRAY = 3, ENUM = 4;
+        private static final String STRING = "java.lang.String";
+        private static final String CLASS = "java.lang.Class";
+
+        private final ScanHandler target;
+        private final Matcher classMatcher;
+        private final Matcher pathMatcher;
+        private final StringBuilder path = new StringBuilder();
+        private byte[] modes = new byte[16];
+        private long[] indexes = new long[16];
+        private int[] lengths = new int[16];
+        private FieldCursor[] cursors = new FieldCursor[16];
+        private int sp;
+        private int mark;
+        private int descDepth;
+        private int selected;
+    }
+}
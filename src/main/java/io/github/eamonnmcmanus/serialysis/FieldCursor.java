@@ -0,0 +1,89 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.util.List;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.FieldDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+
+import static java.io.ObjectStreamConstants.*;
+
+/**
+ * Keeps track of which field of an object a {@link ScanHandler} is being
+ * given, for handlers that show the names of fields. The values of an
+ * object are the fields of each class in its hierarchy, from the top down,
+ * each class's fields followed by its annotations if it has any. A
+ * handler keeps one cursor for each object being read, and reuses them.
+ */
+final class FieldCursor {
+    /**
+     * Start on the first field of an object of the given class.
+     */
+    void start(ObjectClassDesc desc) {
+        hierarchy = desc.getHierarchy();
+        classIndex = 0;
+        fieldIndex = 0;
+    }
+
+    /**
+     * Return the name of the field that the next value is.
+     */
+    String nextField() {
+        while (true) {
+            ObjectClassDesc cd = hierarchy.get(classIndex);
+            FieldDesc[] fields = ((cd.getFlags() & SC_SERIALIZABLE) != 0)
+                    ? cd.getFields() : NO_FIELDS;
+            if (fieldIndex < fields.length)
+                return fields[fieldIndex++].getName();
+            classIndex++;
+            fieldIndex = 0;
+        }
+    }
+
+    /**
+     * Start the annotations, and return the class that wrote them, which
+     * is the first class, from the current one on, that writes any.
+     */
+    ObjectClassDesc beginAnnotations() {
+        while (!hasAnnotations(hierarchy.get(classIndex)))
+            classIndex++;
+        fieldIndex = 0;
+        return hierarchy.get(classIndex);
+    }
+
+    void endAnnotations() {
+        classIndex++;
+    }
+
+    /**
+     * Forget the object, so that its class descriptors can be collected.
+     */
+    void clear() {
+        hierarchy = null;
+    }
+
+    private static boolean hasAnnotations(ObjectClassDesc cd) {
+        int flags = cd.getFlags();
+        if ((flags & SC_SERIALIZABLE) != 0)
+            return (flags & SC_WRITE_METHOD) != 0;
+        return (flags & SC_EXTERNALIZABLE) != 0;
+    }
+
+    private static final FieldDesc[] NO_FIELDS = new FieldDesc[0];
+
+    private List<ObjectClassDesc> hierarchy;
+    private int classIndex;
+    private int fieldIndex;
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+
+/**
+ * <p>64-bit hashes of the contents of values in a serial stream, computed
+ * as the values are read. The hash of an object, array, or enum constant
+ * combines its class name and {@code serialVersionUID} with the hashes of
+ * the values it contains, in order, so objects with equal hashes almost
+ * certainly have the same contents all the way down. The hash depends only
+ * on the contents, not on handles or on where the value is in the stream,
+ * so it is the same for the same value in different streams and in
+ * different runs.</p>
+ *
+ * <p>A reference to an object whose contents have been read already
+ * contributes that object's hash. A reference to an object that is still
+ * being read, which is how a cycle appears in the stream, contributes
+ * instead how many levels up the object is, so the hash is still
+ * well-defined.</p>
+ *
+ * <p>The hash of a value is never 0, so 0 can mean "not finished yet".
+ * {@link TreeBuilder} and {@link GraphBuilder} both compute hashes with the
+ * methods here, and must combine them in the same order.</p>
+ */
+final class Fingerprint {
+    private Fingerprint() {
+    }
+
+    static final long NULL = finish(0x6e756c6cL);
+
+    /**
+     * What is mixed into the hash of an object before its annotations, so
+     * that data written by {@code writeObject} can't be confused with
+     * field values.
+     */
+    static final long ANNOTATIONS = 'A';
+
+    /**
+     * Start the hash of a value of the given kind, using one of the kind
+     * constants of {@link SGraph}.
+     */
+    static long start(byte kind, String className) {
+        return string(mix(SEED, kind), className);
+    }
+
+    /**
+     * Start the hash of an object, array, enum constant, or class of the
+     * given class.
+     */
+    static long start(byte kind, ObjectClassDesc desc) {
+        return mix(start(kind, desc.getType()), desc.getSerialVersionUID());
+    }
+
+    static long ofString(String s) {
+        return finish(string(start(SGraph.STRING, "java.lang.String"), s));
+    }
+
+    static long ofBlockData(byte[] data) {
+        return finish(bytes(start(SGraph.BLOCKDATA, "blockdata"), data));
+    }
+
+    static long ofClass(ObjectClassDesc desc) {
+        return finish(start(SGraph.CLASS, desc));
+    }
+
+    static long mix(long h, long x) {
+        return (h ^ fmix(x)) * 0x9e3779b97f4a7c15L + 0x632be59bd9b4e019L;
+    }
+
+    static long primitive(char typeCode, long bits) {
+        return finish(mix(mix(SEED, typeCode), bits));
+    }
+
+    static long backReference(int levels) {
+        return finish(mix(mix(SEED, 'R'), levels));
+    }
+
+    /**
+     * The hash of a reference to an object that is still being read but
+     * not by this scan, which can happen when a {@link SeekableScan} reads
+     * an object again.
+     */
+    static final long UNKNOWN_BACK_REFERENCE = backReference(-1);
+
+    static long string(long h, String s) {
+        h = mix(h, s.length());
+        int i = 0;
+        int n = s.length();
+        for (; i + 4 <= n; i += 4) {
+            h = mix(h, ((long) s.charAt(i) << 48) | ((long) s.charAt(i + 1) << 32)
+                    | ((long) s.charAt(i + 2) << 16) | s.charAt(i + 3));
+        }
+        for (; i < n; i++)
+            h = mix(h, s.charAt(i));
+        return h;
+    }
+
+    static long bytes(long h, byte[] b) {
+        h = mix(h, b.length);
+        int i = 0;
+        for (; i + 8 <= b.length; i += 8) {
+            long x = 0;
+            for (int j = 0; j < 8; j++)
+                x = (x << 8) | (b[i + j] & 0xff);
+            h = mix(h, x);
+        }
+        for (; i < b.length; i++)
+            h = mix(h, b[i]);
+        return h;
+    }
+
+    static long finish(long h) {
+        h = fmix(h);
+        return (h == 0) ? 1 : h;
+    }
+
+    /* The 64-bit finalizer of MurmurHash3. */
+    private static long fmix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final long SEED = 0x5e71a1L;
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ArrayClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.PrimitiveClassDesc;
+
+import static io.github.eamonnmcmanus.serialysis.SGraph.*;
+
+/**
+ * The {@link ScanHandler} that fills in the columns of an {@link SGraph}.
+ * Nothing is allocated in the heap per object except when a new class is
+ * seen: the handle table is a column in the graph's storage, and the
+ * nesting of the values being read is kept in arrays that are reused.
+ */
+class GraphBuilder extends ScanHandler {
+    GraphBuilder(SGraph graph) {
+        this.graph = graph;
+        this.handles = new Columns.Ints(graph.storage());
+        this.pending = new Columns.Longs(graph.storage());
+        push(ROOT, -1, 0);
+    }
+
+    /**
+     * Scan every top-level value in the stream and return the graph.
+     */
+    SGraph build(SerialScan scan) throws IOException {
+        while (scan.scanNext())
+            ;
+        return graph;
+    }
+
+    @Override
+    void beginClassDesc(int handle, ObjectClassDesc desc) {
+        newHandle(handle, -1);
+        push(DISCARD, -1, 0);
+    }
+
+    @Override
+    void endClassDesc() {
+        sp--;
+    }
+
+    @Override
+    void nullValue() {
+        add(-1);
+        fold(Fingerprint.NULL);
+    }
+
+    @Override
+    void reference(int handle) {
+        int id = handles.get(handle);
+        add(id);
+        fold(referenceHash(id));
+    }
+
+    @Override
+    void primitive(char typeCode, long bits) {
+        if (modes[sp] == PRIMITIVE_ARRAY)
+            graph.bytes.add(bits, SGraph.width(typeCode));
+        else
+            add(bits);
+        fold(Fingerprint.primitive(typeCode, bits));
+    }
+
+    @Override
+    void string(int handle, String s) {
+        int id = newEntity(STRING, -1, graph.strings.intern(s), 0);
+        long h = Fingerprint.ofString(s);
+        graph.hashes.set(id, h);
+        newHandle(handle, id);
+        add(id);
+        fold(h);
+    }
+
+    @Override
+    void blockData(byte[] data) {
+        long start = graph.bytes.add(data, 0, data.length);
+        int id = newEntity(BLOCKDATA, -1, start, data.length);
+        long h = Fingerprint.ofBlockData(data);
+        graph.hashes.set(id, h);
+        add(id);
+        fold(h);
+    }
+
+    @Override
+    void classValue(int handle, ObjectClassDesc desc) {
+        int id = newEntity(CLASS, classId(desc), 0, 0);
+        long h = Fingerprint.ofClass(desc);
+        graph.hashes.set(id, h);
+        newHandle(handle, id);
+        add(id);
+        fold(h);
+    }
+
+    @Override
+    void beginObject(int handle, ObjectClassDesc desc) {
+        int nfields = desc.getAllFields().length;
+        long start = graph.slots.reserve(nfields);
+        int id = newEntity(OBJECT, classId(desc), start, nfields);
+        newHandle(handle, id);
+        add(id);
+        push(FIELDS, id, start);
+        hashes[sp] = Fingerprint.start(OBJECT, desc);
+    }
+
+    @Override
+    void endObject() {
+        int mark = pendingMarks[sp];
+        int count = (int) (pending.size() - mark);
+        if (count > 0) {
+            int a = (int) graph.annotationStarts.size();
+            graph.annotationStarts.add(graph.slots.size());
+            graph.annotationStarts.add(graph.slots.size() + count);
+            for (int i = 0; i < count; i++)
+                graph.slots.add(pending.get(mark + i));
+            graph.annotations.set(ids[sp], a);
+            pending.truncate(mark);
+        }
+        finish();
+    }
+
+    @Override
+    void beginAnnotations() {
+        modes[sp] = ANNOTATIONS;
+        hashes[sp] = Fingerprint.mix(hashes[sp], Fingerprint.ANNOTATIONS);
+    }
+
+    @Override
+    void endAnnotations() {
+        modes[sp] = FIELDS;
+    }
+
+    @Override
+    void beginEnum(int handle, ObjectClassDesc desc) {
+        int id = newEntity(ENUM, classId(desc), -1, 0);
+        newHandle(handle, id);
+        add(id);
+        push(ENUM_NAME, id, 0);
+        hashes[sp] = Fingerprint.start(ENUM, desc);
+    }
+
+    @Override
+    void endEnum() {
+        finish();
+    }
+
+    @Override
+    void beginArray(int handle, ArrayClassDesc desc, int length) {
+        ClassDesc component = desc.getComponentClassDesc();
+        if (component instanceof PrimitiveClassDesc) {
+            int id = newEntity(ARRAY, classId(desc), graph.bytes.size(), length);
+            newHandle(handle, id);
+            add(id);
+            push(PRIMITIVE_ARRAY, id, 0);
+        } else {
+            // The elements go into pending until the end of the array, so
+            // that the slots grow with the elements that are actually in
+            // the stream rather than being reserved from its length.
+            int id = newEntity(ARRAY, classId(desc), -1, length);
+            newHandle(handle, id);
+            add(id);
+            push(ELEMENTS, id, 0);
+        }
+        hashes[sp] = Fingerprint.mix(
+                Fingerprint.start(ARRAY, desc), length);
+    }
+
+    @Override
+    void endArray() {
+        if (modes[sp] == ELEMENTS) {
+            int mark = pendingMarks[sp];
+            int count = (int) (pending.size() - mark);
+            graph.starts.set(ids[sp], graph.slots.size());
+            for (int i = 0; i < count; i++)
+                graph.slots.add(pending.get(mark + i));
+            pending.truncate(mark);
+        }
+        finish();
+    }
+
+    @Override
+    void reset() {
+        handles.clear();
+    }
+
+    @Override
+    void beginException() {
+        push(EXCEPTION, -1, 0);
+    }
+
+    @Override
+    String endException() {
+        int id = ids[sp--];
+        return String.valueOf(graph.getEntity(id));
+    }
+
+    private void add(long value) {
+        switch (modes[sp]) {
+            case ROOT:
+                graph.roots.add((int) value);
+                break;
+            case FIELDS:
+                graph.slots.set(cursors[sp]++, value);
+                break;
+            case ANNOTATIONS:
+            case ELEMENTS:
+                pending.add(value);
+                break;
+            case ENUM_NAME:
+                graph.starts.set(ids[sp], value);
+                break;
+            case EXCEPTION:
+                ids[sp] = (int) value;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Finish the hash of the entity at the top of the stack, and pop it.
+     */
+    private void finish() {
+        long h = Fingerprint.finish(hashes[sp]);
+        graph.hashes.set(ids[sp], h);
+        sp--;
+        fold(h);
+    }
+
+    /**
+     * Combine the hash of a value into the hash of its container.
+     */
+    private void fold(long h) {
+        hashes[sp] = Fingerprint.mix(hashes[sp], h);
+    }
+
+    private long referenceHash(int id) {
+        if (id < 0)
+            return Fingerprint.NULL;
+        long h = graph.hashes.get(id);
+        if (h != 0)
+            return h;
+        // The entity is still being read, so this is a cycle.
+        for (int k = sp; k >= 0; k--) {
+            if (ids[k] == id)
+                return Fingerprint.backReference(sp - k);
+        }
+        throw new AssertionError("Unfinished entity not on stack: " + id);
+    }
+
+    private int newEntity(byte kind, int classId, long start, int length) {
+        int id = (int) graph.kinds.size();
+        graph.kinds.add(kind);
+        graph.classIds.add(classId);
+        graph.starts.add(start);
+        graph.lengths.add(length);
+        graph.annotations.add(-1);
+        graph.hashes.add(0);
+        return id;
+    }
+
+    private int classId(ObjectClassDesc desc) {
+        Integer id = classIds.get(desc);
+        if (id == null) {
+            id = graph.classes.size();
+            graph.classes.add(desc);
+            classIds.put(desc, id);
+        }
+        return id;
+    }
+
+    private void newHandle(int handle, int id) {
+        assert handle == handles.size();
+        handles.add(id);
+    }
+
+    private void push(byte mode, int id, long cursor) {
+        if (++sp == modes.length) {
+            int n = modes.length * 2;
+            modes = Arrays.copyOf(modes, n);
+            ids = Arrays.copyOf(ids, n);
+            cursors = Arrays.copyOf(cursors, n);
+            hashes = Arrays.copyOf(hashes, n);
+            pendingMarks = Arrays.copyOf(pendingMarks, n);
+        }
+        modes[sp] = mode;
+        ids[sp] = id;
+        cursors[sp] = cursor;
+        hashes[sp] = 0;
+        pendingMarks[sp] = (int) pending.size();
+    }
+
+    /* What a value that is read does, depending on what contains it. */
+    private static final byte ROOT = 0, FIELDS = 1, ANNOTATIONS = 2,
+            ENUM_NAME = 3, PRIMITIVE_ARRAY = 4, EXCEPTION = 5, DISCARD = 6,
+            ELEMENTS = 7;
+
+    private final SGraph graph;
+    private final Map<ObjectClassDesc, Integer> classIds =
+            new IdentityHashMap<ObjectClassDesc, Integer>();
+    // The entity id for each handle, or -1 for a class descriptor.
+    private final Columns.Ints handles;
+    // Annotations and array elements of the containers being read, which
+    // are copied into the slots when the container ends.
+    private final Columns.Longs pending;
+
+    // The stack of containers, as parallel arrays.
+    private byte[] modes = new byte[16];
+    private int[] ids = new int[16];
+    private long[] cursors = new long[16];
+    private long[] hashes = new long[16];
+    private int[] pendingMarks = new int[16];
+    private int sp = -1;
+}
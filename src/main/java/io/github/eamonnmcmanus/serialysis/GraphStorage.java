@@ -0,0 +1,169 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Where an {@link SGraph} keeps its columns. The columns are made of
+ * fixed-size pages, and a {@code GraphStorage} allocates the pages.</p>
+ *
+ * <ul>
+ * <li>{@link #heap()} puts them in the Java heap, which is the default.</li>
+ * <li>{@link #direct()} puts them in direct {@code ByteBuffer}s outside the
+ * heap, so a large graph does not add to the work of the garbage
+ * collector.</li>
+ * <li>{@link #mappedFile(File)} puts them in a scratch file that is mapped
+ * into memory, so a graph can be bigger than physical memory, with the
+ * operating system paging it in and out as needed.</li>
+ * </ul>
+ *
+ * <p>In every case, class descriptors and the objects returned by
+ * {@link SGraph#getEntity} are in the heap, but there are only as many
+ * of those as the caller keeps.</p>
+ *
+ * <p>A {@code GraphStorage} belongs to the one graph that is built with
+ * it, and is released by {@link SGraph#close()}.</p>
+ */
+public abstract class GraphStorage {
+    GraphStorage(int pageBits) {
+        this.pageBits = pageBits;
+    }
+
+    /**
+     * Storage in the Java heap.
+     *
+     * @return a new {@code GraphStorage} for one graph.
+     */
+    public static GraphStorage heap() {
+        return new GraphStorage(12) {
+            ByteBuffer allocate(int size) {
+                return ByteBuffer.allocate(size);
+            }
+        };
+    }
+
+    /**
+     * Storage in direct {@code ByteBuffer}s.
+     *
+     * @return a new {@code GraphStorage} for one graph.
+     */
+    public static GraphStorage direct() {
+        return new GraphStorage(16) {
+            ByteBuffer allocate(int size) {
+                return ByteBuffer.allocateDirect(size);
+            }
+        };
+    }
+
+    /**
+     * Storage in a temporary file in the given directory, mapped into
+     * memory. The file is deleted when the graph is closed, or failing that
+     * when the JVM exits.
+     *
+     * @param directory the directory for the file, or null for the default
+     *     temporary-file directory.
+     * @return a new {@code GraphStorage} for one graph.
+     * @throws IOException if the file cannot be created.
+     */
+    public static GraphStorage mappedFile(File directory) throws IOException {
+        return new MappedFileStorage(directory);
+    }
+
+    /**
+     * Allocate a page of {@code size} bytes, initially zero.
+     */
+    abstract ByteBuffer allocate(int size);
+
+    /**
+     * Release everything allocated by this storage.
+     */
+    void close() throws IOException {
+    }
+
+    /**
+     * Allocate a page for a column, in native byte order.
+     */
+    final ByteBuffer page(int size) {
+        return allocate(size).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Each page holds {@code 1 << pageBits} values. Off-heap pages are
+     * bigger, because each one has a fixed overhead.
+     */
+    final int pageBits;
+
+    private static class MappedFileStorage extends GraphStorage {
+        MappedFileStorage(File directory) throws IOException {
+            super(16);
+            file = File.createTempFile("serialysis", ".graph", directory);
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+
+        /**
+         * Slice the page out of the current region of the file, mapping a
+         * new region if it doesn't fit. Each mapping uses up one of a
+         * limited number that a process can have (65530 by default on
+         * Linux), so the regions are big: they start at 4MB, so a small
+         * graph doesn't make a big file, and double up to 1GB.
+         */
+        synchronized ByteBuffer allocate(int size) {
+            if (region == null || region.remaining() < size) {
+                long regionSize = Math.max(size, nextRegionSize);
+                try {
+                    region = channel.map(FileChannel.MapMode.READ_WRITE, length, regionSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                length += regionSize;
+                nextRegionSize = Math.min(2 * nextRegionSize, MAX_REGION_SIZE);
+            }
+            int start = region.position();
+            ByteBuffer page = region.duplicate();
+            page.limit(start + size);
+            region.position(start + size);
+            return page.slice();
+        }
+
+        @Override
+        synchronized void close() throws IOException {
+            // Java has no safe way to unmap a region, so the regions remain
+            // mapped until they are garbage collected, but the file itself
+            // goes away now on most systems.
+            region = null;
+            raf.close();
+            file.delete();
+        }
+
+        private static final long MIN_REGION_SIZE = 1 << 22;
+        private static final long MAX_REGION_SIZE = 1 << 30;
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private MappedByteBuffer region;
+        private long nextRegionSize = MIN_REGION_SIZE;
+        private long length;
+    }
+}
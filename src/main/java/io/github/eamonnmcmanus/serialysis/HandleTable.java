@@ -0,0 +1,246 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A table of one {@code long} per handle, which is how a
+ * {@link SeekableScan} remembers where each object is in the stream.
+ * Handles are numbered from 0 and the table is emptied at each
+ * {@code TC_RESET}, but a stream can have a very large number of handles
+ * between resets.</p>
+ *
+ * <ul>
+ * <li>{@link #inMemory()} keeps the table in an array, using 8 bytes of
+ * heap per handle.</li>
+ * <li>{@link #spilling(File, long)} divides the table into pages and keeps
+ * only as many as fit in a given amount of memory, writing the others to
+ * a scratch file, so its memory use does not depend on the length of the
+ * stream.</li>
+ * </ul>
+ *
+ * <p>A {@code HandleTable} belongs to the one scan that it is given to,
+ * and should be closed when the scan is finished with.</p>
+ */
+public abstract class HandleTable implements Closeable {
+    HandleTable() {
+    }
+
+    /**
+     * A table in a {@code long} array.
+     *
+     * @return a new {@code HandleTable} for one scan.
+     */
+    public static HandleTable inMemory() {
+        return new ArrayTable();
+    }
+
+    /**
+     * A table that keeps at most {@code maxMemory} bytes of pages in the
+     * heap, and the rest in a temporary file in the given directory. The
+     * file is deleted when the table is closed, or failing that when the
+     * JVM exits.
+     *
+     * @param directory the directory for the file, or null for the default
+     *     temporary-file directory.
+     * @param maxMemory the maximum number of bytes of pages to keep in
+     *     memory. At least one page is always kept.
+     * @return a new {@code HandleTable} for one scan.
+     * @throws IOException if the file cannot be created.
+     */
+    public static HandleTable spilling(File directory, long maxMemory)
+            throws IOException {
+        return new SpillingTable(directory, maxMemory);
+    }
+
+    /**
+     * Set the value for a handle. Handles are set in increasing order
+     * after each {@link #clear()}.
+     */
+    abstract void set(int handle, long value);
+
+    /**
+     * Return the value that was set for a handle.
+     */
+    abstract long get(int handle);
+
+    /**
+     * Forget every handle.
+     */
+    abstract void clear();
+
+    /**
+     * Release the resources used by the table.
+     *
+     * @throws IOException if the resources cannot be released.
+     */
+    public void close() throws IOException {
+    }
+
+    private static class ArrayTable extends HandleTable {
+        void set(int handle, long value) {
+            if (handle >= values.length)
+                values = Arrays.copyOf(values, Math.max(handle + 1, values.length * 2));
+            values[handle] = value;
+        }
+
+        long get(int handle) {
+            return values[handle];
+        }
+
+        void clear() {
+            // Keep the array, since the next batch of handles probably
+            // needs as many.
+        }
+
+        private long[] values = new long[64];
+    }
+
+    private static class SpillingTable extends HandleTable {
+        SpillingTable(File directory, long maxMemory) throws IOException {
+            final int maxPages = (int) Math.max(1, Math.min(
+                    Integer.MAX_VALUE, maxMemory / (PAGE_SIZE * 8)));
+            file = File.createTempFile("serialysis", ".handles", directory);
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            resident = new LinkedHashMap<Integer, Page>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Page> e) {
+                    if (size() <= maxPages)
+                        return false;
+                    evict(e.getKey(), e.getValue());
+                    return true;
+                }
+            };
+        }
+
+        void set(int handle, long value) {
+            Page page = page(handle >>> PAGE_BITS);
+            page.values[handle & PAGE_MASK] = value;
+            page.dirty = true;
+        }
+
+        long get(int handle) {
+            return page(handle >>> PAGE_BITS).values[handle & PAGE_MASK];
+        }
+
+        void clear() {
+            resident.clear();
+            lastIndex = -1;
+            lastPage = null;
+            try {
+                channel.truncate(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            resident.clear();
+            lastPage = null;
+            raf.close();
+            file.delete();
+        }
+
+        private Page page(int index) {
+            // Consecutive accesses are usually to the same page, so that
+            // case doesn't touch the map.
+            if (index == lastIndex)
+                return lastPage;
+            Page page = resident.get(index);
+            if (page == null) {
+                page = (free != null) ? free : new Page();
+                free = null;
+                load(index, page);
+                resident.put(index, page);
+            }
+            lastIndex = index;
+            lastPage = page;
+            return page;
+        }
+
+        private void load(int index, Page page) {
+            io.clear();
+            try {
+                long position = (long) index * PAGE_SIZE * 8;
+                while (io.hasRemaining()) {
+                    int n = channel.read(io, position + io.position());
+                    if (n < 0)
+                        break;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // Any part of the page that isn't in the file is zero.
+            while (io.hasRemaining())
+                io.put((byte) 0);
+            io.flip();
+            longs.clear();
+            longs.get(page.values);
+            page.dirty = false;
+        }
+
+        private void evict(int index, Page page) {
+            if (page.dirty) {
+                longs.clear();
+                longs.put(page.values);
+                io.clear();
+                try {
+                    long position = (long) index * PAGE_SIZE * 8;
+                    while (io.hasRemaining())
+                        channel.write(io, position + io.position());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            if (page == lastPage) {
+                lastIndex = -1;
+                lastPage = null;
+            }
+            free = page;
+        }
+
+        private static class Page {
+            final long[] values = new long[PAGE_SIZE];
+            boolean dirty;
+        }
+
+        private static final int PAGE_BITS = 13;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final LinkedHashMap<Integer, Page> resident;
+        private final ByteBuffer io = ByteBuffer.allocate(PAGE_SIZE * 8);
+        private final LongBuffer longs = io.asLongBuffer();
+        private int lastIndex = -1;
+        private Page lastPage;
+        private Page free;  // the page most recently evicted, to be reused
+    }
+}
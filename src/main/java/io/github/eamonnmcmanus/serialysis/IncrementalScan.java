@@ -0,0 +1,207 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Scan a serial stream that arrives in pieces, without ever blocking.
+ * Where a {@link SerialScan} reading an {@code InputStream} waits for the
+ * bytes it needs, an {@code IncrementalScan} is given the bytes as they
+ * arrive, for example from a non-blocking {@code SocketChannel}, and
+ * {@link #feed feed} returns the top-level values that those bytes
+ * complete. So one thread can look after many streams.</p>
+ *
+ * <pre>
+ * IncrementalScan scan = new IncrementalScan();
+ * ...
+ * // when the channel is readable:
+ * buffer.clear();
+ * if (channel.read(buffer) &lt; 0) {
+ *     scan.finish();
+ * } else {
+ *     buffer.flip();
+ *     for (SEntity x : scan.feed(buffer))
+ *         ...
+ * }
+ * </pre>
+ *
+ * <p>The bytes of a value that is not yet complete are scanned as far as
+ * they go, and the scan stops at the end of the last part of the value
+ * that it could read completely, such as a field, an array element, or a
+ * class descriptor. When more bytes arrive, the scan continues from there,
+ * so each byte of a value is scanned once however many pieces the value
+ * arrives in, and only the bytes after that point are kept. The exception
+ * is a string or block data, which is scanned once all of its bytes have
+ * arrived. A stream can claim that a string or block data is very long,
+ * and the scan would then keep everything that arrives while it waits for
+ * the end of it, so a stream from an untrusted source should be scanned
+ * with {@link #setLimits limits}.</p>
+ *
+ * <p>This class is not thread-safe, but different instances can be used
+ * by different threads, or the same instance by different threads one
+ * after the other.</p>
+ */
+public final class IncrementalScan {
+    /**
+     * Make a scan that has not yet been given any bytes.
+     */
+    public IncrementalScan() {
+    }
+
+    /**
+     * Limit the size and shape of the stream, as for
+     * {@link SerialScan#setLimits}. When a limit is exceeded, {@link #feed}
+     * throws {@link LimitExceededException}.
+     *
+     * @param limits the limits, or null for no limits.
+     */
+    public void setLimits(ScanLimits limits) {
+        scan.setLimits(limits);
+    }
+
+    /**
+     * Consume the bytes between the position and the limit of the given
+     * buffer, which are the next bytes of the stream, and return the
+     * top-level values that are now complete. The buffer's position is
+     * advanced to its limit, and the buffer can be reused as soon as this
+     * method returns.
+     *
+     * @param bytes the next bytes of the stream.
+     * @return the values that the bytes complete, in the order they appear
+     *     in the stream. The list is empty if there are none.
+     * @throws IOException if the stream is not a valid serial stream or
+     *     exceeds one of the limits. After that, the scan can't be used.
+     * @throws IllegalStateException if the scan failed earlier or
+     *     {@link #finish()} has been called.
+     */
+    public List<SEntity> feed(ByteBuffer bytes) throws IOException {
+        if (failed)
+            throw new IllegalStateException("Scan failed earlier");
+        if (finished)
+            throw new IllegalStateException("Scan is finished");
+        append(bytes);
+        List<SEntity> ready = null;
+        try {
+            if (!started) {
+                if (count < HEADER_LENGTH)
+                    return Collections.emptyList();
+                scan.reset(ByteBuffer.wrap(buffer, 0, HEADER_LENGTH));
+                started = true;
+            }
+            int from = (int) (scan.position() - bufferOffset);
+            scan.resumePartial(ByteBuffer.wrap(buffer, from, count - from));
+            SEntity x;
+            while ((x = scan.readObjectIfComplete()) != null) {
+                if (ready == null)
+                    ready = new ArrayList<SEntity>();
+                ready.add(x);
+            }
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        } catch (RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+        discardConsumed();
+        if (ready == null)
+            return Collections.emptyList();
+        return ready;
+    }
+
+    /**
+     * Say that the stream has ended.
+     *
+     * @throws EOFException if the stream ends in the middle of a value, or
+     *     before the end of its header.
+     */
+    public void finish() throws IOException {
+        finished = true;
+        if (getPendingBytes() > 0 || scan.isInValue())
+            throw new EOFException("Stream ends in the middle of a value");
+    }
+
+    /**
+     * The number of bytes that have been given to {@link #feed} but not
+     * yet scanned. They are the start of a part of a value, such as a
+     * string, that is not yet complete, or of the stream header.
+     *
+     * @return the number of bytes being kept until more arrive.
+     */
+    public int getPendingBytes() {
+        return count;
+    }
+
+    /**
+     * Return statistics about the values that have been completed so far.
+     *
+     * @return a snapshot of the statistics for this scan.
+     */
+    public ScanStatistics getStatistics() {
+        return scan.getStatistics();
+    }
+
+    /**
+     * The number of bytes that were scanned more than once, because the
+     * part of a value that they began was incomplete.
+     */
+    long getAbandonedBytes() {
+        return scan.getAbandonedBytes();
+    }
+
+    private void append(ByteBuffer bytes) {
+        int n = bytes.remaining();
+        if (n > buffer.length - count) {
+            long size = Math.max(2L * buffer.length, (long) count + n);
+            if (size > Integer.MAX_VALUE)
+                throw new IllegalStateException("Incomplete value too large");
+            buffer = Arrays.copyOf(buffer, (int) size);
+        }
+        bytes.get(buffer, count, n);
+        count += n;
+    }
+
+    /**
+     * Move the bytes that have not been scanned, if any, to the start of
+     * the buffer.
+     */
+    private void discardConsumed() {
+        int consumed = (int) (scan.position() - bufferOffset);
+        if (consumed == 0)
+            return;
+        System.arraycopy(buffer, consumed, buffer, 0, count - consumed);
+        count -= consumed;
+        bufferOffset += consumed;
+        if (count == 0 && buffer.length > INITIAL_SIZE)
+            buffer = new byte[INITIAL_SIZE];
+    }
+
+    private static final int HEADER_LENGTH = 4;
+    private static final int INITIAL_SIZE = 8192;
+
+    private final SerialScan scan = new SerialScan();
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int count;          // bytes in buffer
+    private long bufferOffset;  // offset in the stream of buffer[0]
+    private boolean started;
+    private boolean failed;
+    private boolean finished;
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ArrayClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+
+/**
+ * <p>The {@link ScanHandler} that writes the values of a serial stream as
+ * JSON, as they are read, without building anything. Each top-level value
+ * is written on a line of its own, so the output is JSON Lines.</p>
+ *
+ * <p>Values are written like this:</p>
+ * <ul>
+ * <li>An object is
+ *     <code>{"class":"com.example.Foo","handle":3,"fields":{...}}</code>,
+ *     where the fields of every class in the hierarchy are in the order
+ *     they are in the stream. The data written by a class's
+ *     {@code writeObject} or {@code writeExternal} method is an array
+ *     that appears in the fields as if it were a field called
+ *     {@code @} followed by the class name.</li>
+ * <li>An array is
+ *     <code>{"class":"[I","handle":4,"elements":[...]}</code>.</li>
+ * <li>An enum constant is
+ *     <code>{"enum":"com.example.Color","handle":5,"name":"RED"}</code>.</li>
+ * <li>A {@code Class} is
+ *     <code>{"classValue":"com.example.Foo","handle":6}</code>.</li>
+ * <li>A reference to a value that appeared earlier is
+ *     <code>{"ref":3}</code>, using the earlier value's handle.</li>
+ * <li>Block data is <code>{"blockdata":"..."}</code>, in Base64.</li>
+ * <li>Strings, numbers, booleans, and null are themselves. A
+ *     {@code char} is a string of one character, and a {@code float} or
+ *     {@code double} that is not finite is a string such as
+ *     {@code "NaN"}.</li>
+ * </ul>
+ *
+ * <p>A reset of the handle table is written as a line
+ * <code>{"reset":true}</code>, since the handles of later values start
+ * again from 0.</p>
+ *
+ * <p>Objects and arrays nested more deeply than the
+ * {@linkplain #setMaxDepth maximum depth} are written without their
+ * contents, as <code>{"class":"com.example.Foo","handle":3,"elided":true}</code>.
+ * A string or block data longer than the
+ * {@linkplain #setMaxContentsLength maximum length} is written as
+ * <code>{"skippedString":100000}</code> or
+ * <code>{"skippedBlockdata":100000}</code>, giving its length in bytes of
+ * the stream.</p>
+ */
+final class JsonRenderer extends ScanHandler {
+    JsonRenderer(Appendable out) {
+        this.out = out;
+    }
+
+    /**
+     * Write every remaining top-level value of the stream.
+     */
+    void render(SerialScan scan) throws IOException {
+        sp = 0;
+        descDepth = 0;
+        depth = 0;
+        elided = 0;
+        first[0] = true;
+        while (scan.scanNext())
+            ;
+    }
+
+    void setOutput(Appendable out) {
+        this.out = out;
+    }
+
+    /**
+     * Write the contents of objects and arrays only down to the given
+     * depth, where the contents of a top-level value are at depth 1.
+     */
+    void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Skip the contents of longer strings and block data. This must be
+     * called before the scan is created.
+     */
+    void setMaxContentsLength(long maxContents) {
+        this.maxContents = maxContents;
+    }
+
+    /**
+     * Write the next top-level value as
+     * <code>{"path":"...","value":...}</code>, with the given path.
+     */
+    void setPath(CharSequence path) {
+        this.path = path;
+    }
+
+    @Override
+    long maxContentsLength() {
+        return maxContents;
+    }
+
+    @Override
+    void beginClassDesc(int handle, ObjectClassDesc desc) {
+        descDepth++;
+    }
+
+    @Override
+    void endClassDesc() {
+        descDepth--;
+    }
+
+    @Override
+    void nullValue() throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("null");
+        done();
+    }
+
+    @Override
+    void reference(int handle) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("{\"ref\":").append(Integer.toString(handle)).append('}');
+        done();
+    }
+
+    @Override
+    void primitive(char typeCode, long bits) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        switch (typeCode) {
+            case 'Z':
+                out.append((bits != 0) ? "true" : "false");
+                break;
+            case 'C':
+                string(String.valueOf((char) bits));
+                break;
+            case 'F':
+                number(Float.intBitsToFloat((int) bits));
+                break;
+            case 'D':
+                number(Double.longBitsToDouble(bits));
+                break;
+            default:
+                out.append(Long.toString(bits));
+        }
+        done();
+    }
+
+    @Override
+    void string(int handle, String s) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        string(s);
+        done();
+    }
+
+    @Override
+    void blockData(byte[] data) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("{\"blockdata\":\"")
+                .append(Base64.getEncoder().encodeToString(data)).append("\"}");
+        done();
+    }
+
+    @Override
+    void skippedString(int handle, long utflen) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("{\"skippedString\":").append(Long.toString(utflen)).append('}');
+        done();
+    }
+
+    @Override
+    void skippedBlockData(int length) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("{\"skippedBlockdata\":").append(Integer.toString(length)).append('}');
+        done();
+    }
+
+    @Override
+    void classValue(int handle, ObjectClassDesc desc) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("{\"classValue\":");
+        string(desc.getType());
+        out.append(",\"handle\":").append(Integer.toString(handle)).append('}');
+        done();
+    }
+
+    @Override
+    void beginObject(int handle, ObjectClassDesc desc) throws IOException {
+        if (descDepth > 0 || elide(handle, desc.getType()))
+            return;
+        out.append(",\"fields\":{");
+        push(OBJECT);
+        cursors[sp].start(desc);
+    }
+
+    @Override
+    void endObject() throws IOException {
+        if (descDepth > 0 || unelide())
+            return;
+        cursors[sp].clear();
+        pop();
+        out.append("}}");
+        done();
+    }
+
+    @Override
+    void beginAnnotations() throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        key("@" + cursors[sp].beginAnnotations().getType());
+        out.append('[');
+        push(ANNOTATIONS);
+    }
+
+    @Override
+    void endAnnotations() throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        pop();
+        out.append(']');
+        cursors[sp].endAnnotations();
+    }
+
+    @Override
+    void beginEnum(int handle, ObjectClassDesc desc) throws IOException {
+        if (descDepth > 0)
+            return;
+        if (elided > 0) {
+            elided++;
+            return;
+        }
+        value();
+        out.append("{\"enum\":");
+        string(desc.getType());
+        out.append(",\"handle\":").append(Integer.toString(handle))
+                .append(",\"name\":");
+        push(ENUM);
+    }
+
+    @Override
+    void endEnum() throws IOException {
+        if (descDepth > 0 || unelide())
+            return;
+        pop();
+        out.append('}');
+        done();
+    }
+
+    @Override
+    void beginArray(int handle, ArrayClassDesc desc, int length)
+            throws IOException {
+        if (descDepth > 0 || elide(handle, desc.getType()))
+            return;
+        out.append(",\"elements\":[");
+        push(ARRAY);
+    }
+
+    @Override
+    void endArray() throws IOException {
+        if (descDepth > 0 || unelide())
+            return;
+        pop();
+        out.append("]}");
+        done();
+    }
+
+    @Override
+    void reset() throws IOException {
+        if (sp == 0)
+            out.append("{\"reset\":true}\n");
+    }
+
+    /**
+     * Start an object or array, which is written without its contents if
+     * it is too deep. Either way, this writes its class and handle.
+     *
+     * @return true if its contents are not written, because it or one
+     *     that contains it is elided.
+     */
+    private boolean elide(int handle, String type) throws IOException {
+        if (elided > 0) {
+            elided++;
+            return true;
+        }
+        value();
+        out.append("{\"class\":");
+        string(type);
+        out.append(",\"handle\":").append(Integer.toString(handle));
+        if (depth < maxDepth) {
+            depth++;
+            return false;
+        }
+        out.append(",\"elided\":true}");
+        elided = 1;
+        return true;
+    }
+
+    /**
+     * End an object, enum, or array.
+     *
+     * @return true if its end is not written, because it was elided.
+     */
+    private boolean unelide() throws IOException {
+        if (elided == 0)
+            return false;
+        if (--elided == 0)
+            done();
+        return true;
+    }
+
+    /**
+     * Start a value, writing whatever has to come before it: a comma if it
+     * is not the first value of its container, and the field name if it
+     * is a field.
+     */
+    private void value() throws IOException {
+        if (modes[sp] == OBJECT)
+            key(cursors[sp].nextField());
+        else if (modes[sp] == ROOT && path != null) {
+            out.append("{\"path\":");
+            string(path);
+            out.append(",\"value\":");
+        } else if (modes[sp] != ENUM && modes[sp] != ROOT)
+            comma();
+    }
+
+    /**
+     * Finish a value, which ends the line if it is a top-level value.
+     */
+    private void done() throws IOException {
+        if (sp == 0) {
+            if (path != null) {
+                out.append('}');
+                path = null;
+            }
+            out.append('\n');
+        }
+    }
+
+    private void key(String name) throws IOException {
+        comma();
+        string(name);
+        out.append(':');
+    }
+
+    private void comma() throws IOException {
+        if (first[sp])
+            first[sp] = false;
+        else
+            out.append(',');
+    }
+
+    private void push(byte mode) {
+        if (++sp == modes.length) {
+            modes = Arrays.copyOf(modes, sp * 2);
+            first = Arrays.copyOf(first, sp * 2);
+            cursors = Arrays.copyOf(cursors, sp * 2);
+        }
+        modes[sp] = mode;
+        first[sp] = true;
+        if (mode == OBJECT && cursors[sp] == null)
+            cursors[sp] = new FieldCursor();
+    }
+
+    private void pop() {
+        if (modes[sp] != ANNOTATIONS && modes[sp] != ENUM)
+            depth--;
+        sp--;
+    }
+
+    private void string(CharSequence s) throws IOException {
+        out.append('"');
+        int start = 0;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\')
+                continue;
+            out.append(s, start, i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    out.append(String.format("\\u%04x", (int) c));
+            }
+            start = i + 1;
+        }
+        out.append(s, start, n).append('"');
+    }
+
+    private void number(double d) throws IOException {
+        if (Double.isNaN(d) || Double.isInfinite(d))
+            string(Double.toString(d));
+        else
+            out.append(Double.toString(d));
+    }
+
+    private void number(float f) throws IOException {
+        if (Float.isNaN(f) || Float.isInfinite(f))
+            string(Float.toString(f));
+        else
+            out.append(Float.toString(f));
+    }
+
+    private static final byte ROOT = 0, OBJECT = 1, ANNOTATIONS = 2,
+            ARRAY = 3, ENUM = 4;
+
+    private Appendable out;
+    private byte[] modes = new byte[16];
+    private boolean[] first = new boolean[16];
+    private FieldCursor[] cursors = new FieldCursor[16];
+    private int sp;
+    private int descDepth;
+    private int depth;
+    private int elided;
+    private int maxDepth = Integer.MAX_VALUE;
+    private long maxContents = Long.MAX_VALUE;
+    private CharSequence path;
+}
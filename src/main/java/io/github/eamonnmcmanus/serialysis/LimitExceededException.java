@@ -0,0 +1,49 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ObjectStreamException;
+
+/**
+ * Thrown by a {@link SerialScan} when the stream exceeds one of its
+ * {@link ScanLimits}.
+ */
+public class LimitExceededException extends ObjectStreamException {
+    private static final long serialVersionUID = 6263620475326393846L;
+
+    /**
+     * Construct an exception with the given message, which says which
+     * limit was exceeded.
+     *
+     * @param message the detail message.
+     */
+    public LimitExceededException(String message) {
+        this(message, null);
+    }
+
+    LimitExceededException(String message, String limit) {
+        super(message);
+        this.limit = limit;
+    }
+
+    /**
+     * The name of the {@link ScanLimits} property that was exceeded, such
+     * as {@code "maxDepth"}, or null if it is not known.
+     */
+    String getLimit() {
+        return limit;
+    }
+
+    private final String limit;
+}
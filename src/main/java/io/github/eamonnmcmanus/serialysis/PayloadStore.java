@@ -0,0 +1,566 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>A directory of serial streams, such as captured payloads, where each
+ * stream is split into chunks and each distinct chunk is stored only
+ * once. A collection of payloads that mostly contain the same class
+ * descriptors and the same objects takes up much less space this way.</p>
+ *
+ * <p>A payload is split where a {@link SerialScan} finds the start of an
+ * object or the start or end of a class descriptor, so that the same
+ * descriptor or object usually ends up in a chunk of its own in every
+ * payload that contains it. Whether a given object starts a chunk depends
+ * only on the bytes just before it, so chunks line up again after a part
+ * that differs. A payload that is not a valid serial stream is still
+ * stored, but whatever comes after the first error is a single chunk.</p>
+ *
+ * <p>Chunks, and payloads, are identified by a 128-bit prefix of their
+ * SHA-256 hash. {@link #put put} returns the key of a payload as a string
+ * of hex digits, and {@link #get get} reassembles the payload from its
+ * chunks.</p>
+ *
+ * <p>The store keeps its index in memory, and appends to three files in
+ * its directory: {@code chunks} with the contents of each chunk,
+ * {@code chunks.index} with the key, offset, and length of each chunk, and
+ * {@code payloads} with the list of chunks in each payload, as positions
+ * in {@code chunks.index}. A record that
+ * was only partly written, because the process stopped in the middle of
+ * {@code put}, is ignored when the store is opened again.</p>
+ *
+ * <p>The methods of a {@code PayloadStore} can be called from several
+ * threads, but a directory must only be open in one {@code PayloadStore}
+ * at a time.</p>
+ */
+public final class PayloadStore implements Closeable {
+    private PayloadStore(File directory) throws IOException {
+        this.directory = directory;
+        chunkData = new RandomAccessFile(new File(directory, "chunks"), "rw");
+        chunkIndex = new RandomAccessFile(new File(directory, "chunks.index"), "rw");
+        payloadData = new RandomAccessFile(new File(directory, "payloads"), "rw");
+        loadChunks();
+        loadPayloads();
+    }
+
+    /**
+     * Open the store in the given directory, creating the directory and
+     * the store if necessary.
+     *
+     * @param directory the directory of the store.
+     * @return the store.
+     * @throws IOException if the directory cannot be created or its files
+     *     cannot be read.
+     */
+    public static PayloadStore open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory " + directory);
+        return new PayloadStore(directory);
+    }
+
+    /**
+     * Add a payload to the store, unless it is there already.
+     *
+     * @param payload the bytes of the payload, which is usually a serial
+     *     stream.
+     * @return the key of the payload.
+     * @throws IOException if the files of the store cannot be written.
+     */
+    public synchronized String put(byte[] payload) throws IOException {
+        Key key = Key.of(digest(payload, 0, payload.length));
+        if (payloads.containsKey(key))
+            return key.toString();
+        List<Integer> ids = new ArrayList<Integer>();
+        int start = 0;
+        for (int cut : cuts(payload)) {
+            ids.add(putChunk(payload, start, cut - start));
+            start = cut;
+        }
+        if (start < payload.length || payload.length == 0)
+            ids.add(putChunk(payload, start, payload.length - start));
+        ByteBuffer record = ByteBuffer.allocate(PAYLOAD_HEADER + ids.size() * 4);
+        key.write(record);
+        record.putLong(payload.length);
+        record.putInt(ids.size());
+        for (int id : ids)
+            record.putInt(id);
+        record.flip();
+        long offset = append(payloadData, record);
+        payloads.put(key, offset);
+        logicalBytes += payload.length;
+        return key.toString();
+    }
+
+    /**
+     * Read a payload from the given stream, up to its end, and add it to
+     * the store unless it is there already.
+     *
+     * @param in the stream containing the payload.
+     * @return the key of the payload.
+     * @throws IOException if the stream cannot be read or the files of the
+     *     store cannot be written.
+     */
+    public String put(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            bout.write(buf, 0, n);
+        return put(bout.toByteArray());
+    }
+
+    /**
+     * Return whether the store has a payload with the given key.
+     *
+     * @param key a key returned by {@link #put put}.
+     * @return true if the store has the payload.
+     */
+    public synchronized boolean contains(String key) {
+        Key k = Key.parse(key);
+        return k != null && payloads.containsKey(k);
+    }
+
+    /**
+     * The keys of all the payloads in the store, in the order they were
+     * added.
+     *
+     * @return an unmodifiable snapshot of the keys.
+     */
+    public synchronized Set<String> keys() {
+        Set<String> keys = new LinkedHashSet<String>();
+        for (Key k : payloads.keySet())
+            keys.add(k.toString());
+        return Collections.unmodifiableSet(keys);
+    }
+
+    /**
+     * Reassemble the payload with the given key.
+     *
+     * @param key a key returned by {@link #put put}.
+     * @return the bytes of the payload.
+     * @throws IllegalArgumentException if the store has no payload with
+     *     that key.
+     * @throws IOException if the files of the store cannot be read.
+     */
+    public byte[] get(String key) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        get(key, bout);
+        return bout.toByteArray();
+    }
+
+    /**
+     * Reassemble the payload with the given key, writing it to the given
+     * stream.
+     *
+     * @param key a key returned by {@link #put put}.
+     * @param out where to write the payload.
+     * @throws IllegalArgumentException if the store has no payload with
+     *     that key.
+     * @throws IOException if the files of the store cannot be read or the
+     *     stream cannot be written.
+     */
+    public synchronized void get(String key, OutputStream out) throws IOException {
+        Key k = Key.parse(key);
+        Long offset = (k == null) ? null : payloads.get(k);
+        if (offset == null)
+            throw new IllegalArgumentException("No payload with key " + key);
+        FileChannel payloadChannel = payloadData.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(PAYLOAD_HEADER);
+        readFully(payloadChannel, header, offset);
+        int count = header.getInt(KEY_SIZE + 8);
+        ByteBuffer ids = ByteBuffer.allocate(count * 4);
+        readFully(payloadChannel, ids, offset + PAYLOAD_HEADER);
+        byte[] buf = new byte[0];
+        for (int i = 0; i < count; i++) {
+            int id = ids.getInt();
+            if (id < 0 || id >= chunkList.size())
+                throw new IOException("Missing chunk in payload " + key);
+            Chunk chunk = chunkList.get(id);
+            if (buf.length < chunk.length)
+                buf = new byte[chunk.length];
+            readFully(chunkData.getChannel(), ByteBuffer.wrap(buf, 0, chunk.length),
+                    chunk.offset);
+            out.write(buf, 0, chunk.length);
+        }
+    }
+
+    /**
+     * The number of payloads in the store.
+     *
+     * @return the number of payloads.
+     */
+    public synchronized int getPayloadCount() {
+        return payloads.size();
+    }
+
+    /**
+     * The number of distinct chunks in the store.
+     *
+     * @return the number of chunks.
+     */
+    public synchronized int getChunkCount() {
+        return chunkList.size();
+    }
+
+    /**
+     * The total size of the payloads in the store, as they were given to
+     * {@link #put put}.
+     *
+     * @return the total size in bytes.
+     */
+    public synchronized long getPayloadBytes() {
+        return logicalBytes;
+    }
+
+    /**
+     * The size of the files of the store, which is how much space the
+     * payloads actually take up.
+     *
+     * @return the total size in bytes.
+     * @throws IOException if the sizes of the files cannot be found.
+     */
+    public synchronized long getStoredBytes() throws IOException {
+        return chunkData.length() + chunkIndex.length() + payloadData.length();
+    }
+
+    /**
+     * Close the files of the store.
+     *
+     * @throws IOException if the files cannot be closed.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            chunkData.close();
+            chunkIndex.close();
+        } finally {
+            payloadData.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PayloadStore(" + directory + ")";
+    }
+
+    /**
+     * Store a chunk unless it is there already, and return its id, which
+     * is its position in the chunk index.
+     */
+    private int putChunk(byte[] payload, int start, int length) throws IOException {
+        Key key = Key.of(digest(payload, start, length));
+        Integer id = chunkIds.get(key);
+        if (id == null) {
+            // Write the data before the index entry, so that an index
+            // entry always refers to complete data.
+            long offset = append(chunkData, ByteBuffer.wrap(payload, start, length));
+            ByteBuffer record = ByteBuffer.allocate(CHUNK_RECORD);
+            key.write(record);
+            record.putLong(offset).putInt(length).flip();
+            append(chunkIndex, record);
+            id = chunkList.size();
+            chunkIds.put(key, id);
+            chunkList.add(new Chunk(offset, length));
+        }
+        return id;
+    }
+
+    private void loadChunks() throws IOException {
+        long dataLength = chunkData.length();
+        ByteBuffer all = readAll(chunkIndex, CHUNK_RECORD);
+        while (all.remaining() >= CHUNK_RECORD) {
+            Key key = Key.read(all);
+            long offset = all.getLong();
+            int length = all.getInt();
+            if (offset + length > dataLength) {
+                all.position(all.position() - CHUNK_RECORD);
+                break;
+            }
+            chunkIds.put(key, chunkList.size());
+            chunkList.add(new Chunk(offset, length));
+        }
+        chunkIndex.setLength(all.position());
+    }
+
+    private void loadPayloads() throws IOException {
+        ByteBuffer all = readAll(payloadData, 1);
+        while (all.remaining() >= PAYLOAD_HEADER) {
+            int offset = all.position();
+            Key key = Key.read(all);
+            long length = all.getLong();
+            int count = all.getInt();
+            if (count < 0 || all.remaining() < (long) count * 4) {
+                all.position(offset);
+                break;
+            }
+            all.position(all.position() + count * 4);
+            payloads.put(key, (long) offset);
+            logicalBytes += length;
+        }
+        payloadData.setLength(all.position());
+    }
+
+    /**
+     * Read a whole file, ignoring any incomplete record of the given size
+     * at the end.
+     */
+    private static ByteBuffer readAll(RandomAccessFile file, int recordSize)
+            throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Store file too large: " + length);
+        ByteBuffer all = ByteBuffer.allocate((int) (length - length % recordSize));
+        readFully(file.getChannel(), all, 0);
+        return all;
+    }
+
+    /**
+     * Fill the buffer from the given position in the file, and flip it.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new EOFException("Store file truncated");
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    private static long append(RandomAccessFile file, ByteBuffer buffer)
+            throws IOException {
+        FileChannel channel = file.getChannel();
+        long offset = channel.size();
+        long position = offset;
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        return offset;
+    }
+
+    private static byte[] digest(byte[] bytes, int start, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(bytes, start, length);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * The offsets where a payload is to be split into chunks.
+     */
+    static List<Integer> cuts(byte[] payload) {
+        Chunker chunker = new Chunker(payload);
+        try {
+            SerialScan scan = new SerialScan(chunker);
+            chunker.scan = scan;
+            scan.reset(ByteBuffer.wrap(payload));
+            while (scan.scanNext())
+                ;
+        } catch (IOException e) {
+            // Keep the cuts found before the error.
+        } catch (RuntimeException e) {
+            // Likewise, for streams that are corrupt in other ways.
+        } catch (StackOverflowError e) {
+            // Likewise, for streams that are nested too deeply.
+        }
+        return chunker.cuts;
+    }
+
+    /**
+     * Finds where to split a payload. A chunk always ends at the end of a
+     * class descriptor that is not nested inside another one, and starts
+     * at the start of the descriptor unless the previous chunk would be
+     * too small. The start of an object is a place to split if the bytes
+     * just before it hash to a value with its low bits zero, so the chunks
+     * are content-defined, again unless the chunk would be too small. A
+     * chunk that is already large is split at the next object.
+     */
+    private static class Chunker extends ScanHandler {
+        Chunker(byte[] payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        boolean wantsContents() {
+            return false;
+        }
+
+        @Override
+        void beginClassDesc(int handle, SerialScan.ObjectClassDesc desc) {
+            if (descDepth++ == 0)
+                cut((int) scan.entityStart(), false);
+        }
+
+        @Override
+        void endClassDesc() {
+            if (--descDepth == 0)
+                cut((int) scan.position(), true);
+        }
+
+        @Override
+        void beginObject(int handle, SerialScan.ObjectClassDesc desc) {
+            candidate();
+        }
+
+        @Override
+        void beginArray(int handle, SerialScan.ArrayClassDesc desc, int length) {
+            candidate();
+        }
+
+        @Override
+        void beginEnum(int handle, SerialScan.ObjectClassDesc desc) {
+            candidate();
+        }
+
+        @Override
+        void skippedString(int handle, long utflen) {
+            if (handle >= 0 && descDepth == 0)
+                candidate();
+        }
+
+        private void candidate() {
+            if (descDepth > 0)
+                return;
+            int p = (int) scan.entityStart();
+            if (p - last >= MAX_CHUNK || (windowHash(p) & CUT_MASK) == 0)
+                cut(p, false);
+        }
+
+        private long windowHash(int p) {
+            long h = 0;
+            for (int i = Math.max(0, p - WINDOW); i < p; i++)
+                h = Fingerprint.mix(h, payload[i]);
+            return Fingerprint.finish(h);
+        }
+
+        private void cut(int p, boolean always) {
+            if (p <= last || (!always && p - last < MIN_CHUNK))
+                return;
+            cuts.add(p);
+            last = p;
+        }
+
+        final List<Integer> cuts = new ArrayList<Integer>();
+        private final byte[] payload;
+        SerialScan scan;
+        private int descDepth;
+        private int last;
+    }
+
+    private static final class Key {
+        Key(long hi, long lo) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        static Key of(byte[] digest) {
+            ByteBuffer b = ByteBuffer.wrap(digest);
+            return new Key(b.getLong(), b.getLong());
+        }
+
+        static Key read(ByteBuffer b) {
+            return new Key(b.getLong(), b.getLong());
+        }
+
+        static Key parse(String s) {
+            if (s.length() != 32)
+                return null;
+            try {
+                return new Key(Long.parseUnsignedLong(s.substring(0, 16), 16),
+                        Long.parseUnsignedLong(s.substring(16), 16));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        void write(ByteBuffer b) {
+            b.putLong(hi).putLong(lo);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return k.hi == hi && k.lo == lo;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) lo;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x%016x", hi, lo);
+        }
+
+        final long hi;
+        final long lo;
+    }
+
+    private static class Chunk {
+        Chunk(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        final long offset;
+        final int length;
+    }
+
+    private static final int KEY_SIZE = 16;
+    private static final int CHUNK_RECORD = KEY_SIZE + 8 + 4;
+    private static final int PAYLOAD_HEADER = KEY_SIZE + 8 + 4;
+
+    /* Chunks are usually between MIN_CHUNK and MAX_CHUNK bytes, except for
+       class descriptors, large arrays, and the ends of payloads. */
+    static final int MIN_CHUNK = 128;
+    static final int MAX_CHUNK = 4096;
+    private static final int WINDOW = 16;
+    private static final long CUT_MASK = 3;
+
+    private final File directory;
+    private final RandomAccessFile chunkData;
+    private final RandomAccessFile chunkIndex;
+    private final RandomAccessFile payloadData;
+    private final Map<Key, Integer> chunkIds = new HashMap<Key, Integer>();
+    private final List<Chunk> chunkList = new ArrayList<Chunk>();
+    private final Map<Key, Long> payloads = new LinkedHashMap<Key, Long>();
+    private long logicalBytes;
+}
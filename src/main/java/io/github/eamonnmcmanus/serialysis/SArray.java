@@ -13,6 +13,8 @@
  */
 package io.github.eamonnmcmanus.serialysis;
 
+import java.util.Arrays;
+
 /**
  * <p>A representation of a serialized array.  The represented array can be
  * an array of objects (for example String[]) or of primitives (for example
@@ -20,15 +22,35 @@ package io.github.eamonnmcmanus.serialysis;
  */
 public class SArray extends SEntity {
 
-    private final SEntity[] array;
+    private SEntity[] array;
+    private int length;
+    private final int size;
 
+    /**
+     * Make an array that will have {@code size} elements, added with
+     * {@link #add}. The size comes from the stream, which might not really
+     * contain that many elements, so the elements are stored in an array
+     * that grows as they are added.
+     */
     SArray(String type, int size) {
         super(type);
-        this.array = new SEntity[size];
+        this.size = size;
+        this.array = new SEntity[Math.min(size, INITIAL_CAPACITY)];
+    }
+
+    /**
+     * Constructor for subclasses that override {@link #getValue()},
+     * {@link #length()}, and {@link #get(int)} to read the elements from
+     * somewhere else.
+     */
+    SArray(String type) {
+        super(type);
+        this.array = null;
+        this.size = 0;
     }
 
     public SEntity[] getValue() {
-        return array.clone();
+        return Arrays.copyOf(array, length);
     }
 
     String kind() {
@@ -38,15 +60,33 @@ public class SArray extends SEntity {
     String contents() {
         StringBuilder sb = new StringBuilder();
         sb.append("\n");
-        for (SEntity obj : array) {
+        for (int i = 0, n = length(); i < n; i++) {
             indent(sb);
-            sb.append(obj).append("\n");
+            sb.append(get(i)).append("\n");
         }
         return sb.toString();
     }
 
-    void set(int i, SEntity object) {
-        array[i] = object;
+    int length() {
+        return length;
+    }
+
+    SEntity get(int i) {
+        if (i >= length)
+            throw new ArrayIndexOutOfBoundsException(i);
+        return array[i];
     }
 
+    void add(SEntity object) {
+        if (length == array.length) {
+            int n = (int) Math.min(size, Math.max(16L, array.length * 2L));
+            if (n <= length)
+                throw new IllegalStateException("Array is full");
+            array = Arrays.copyOf(array, n);
+        }
+        array[length++] = object;
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
 }
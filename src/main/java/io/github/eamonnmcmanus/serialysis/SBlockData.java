@@ -64,6 +64,11 @@ public class SBlockData extends SEntity {
         return data.length + " byte" + (data.length == 1 ? "" : "s") +
                 " of binary data";
     }
+
+    @Override
+    long computeFingerprint() {
+        return Fingerprint.ofBlockData(data);
+    }
     
     private final byte[] data;
 }
@@ -57,6 +57,45 @@ public abstract class SEntity {
         return type;
     }
 
+    /**
+     * <p>A 64-bit hash of the contents of this entity and everything it
+     * refers to. It combines the class name and {@code serialVersionUID}
+     * of an object with the values of its fields, the data written by its
+     * {@code writeObject} method, and the fingerprints of the objects those
+     * refer to. Two entities with the same fingerprint almost certainly
+     * have the same contents, even if they come from different streams, so
+     * the fingerprint can be used as a key for the contents, or to find
+     * identical parts of two streams without looking inside them.</p>
+     *
+     * <p>Fingerprints are well-defined for cycles: where an object refers
+     * to an object that contains it, the fingerprint counts how far up the
+     * containing object is. An object that is shared contributes the same
+     * fingerprint wherever it is referenced.</p>
+     *
+     * <p>The fingerprint is never 0.</p>
+     *
+     * @return the fingerprint of this entity.
+     */
+    public long getFingerprint() {
+        if (fingerprint == 0)
+            fingerprint = computeFingerprint();
+        return fingerprint;
+    }
+
+    void setFingerprint(long fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Compute the fingerprint of an entity whose fingerprint was not set
+     * when it was read. Entities that contain other entities always have it
+     * set, so this returns 0 for them, which also means that they are still
+     * being read.
+     */
+    long computeFingerprint() {
+        return 0;
+    }
+
     static void indent(StringBuilder sb) {
         Stack<SEntity> stack = stringThings.get();
         for (int i = stack.size(); i > 0; i--)
@@ -64,6 +103,7 @@ public abstract class SEntity {
     }
 
     private final String type;
+    private long fingerprint;
     private static final ThreadLocal<Stack<SEntity>> stringThings =
             new ThreadLocal<Stack<SEntity>>() {
                 protected Stack<SEntity> initialValue() {
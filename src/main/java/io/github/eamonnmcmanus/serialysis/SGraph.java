@@ -0,0 +1,460 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ArrayClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.PrimitiveClassDesc;
+
+/**
+ * <p>A compact representation of all the objects in a serial stream.
+ * Rather than an {@link SObject} with a map of fields for every object and
+ * an {@link SPrim} for every primitive value, as {@link SerialScan#readObject()}
+ * produces, an {@code SGraph} stores the objects column by column:</p>
+ *
+ * <ul>
+ * <li>each object, array, string, enum constant, class, or chunk of block
+ * data in the stream has an <em>id</em>, which is an index into columns for
+ * its kind, its class, and where its contents are;</li>
+ * <li>the fields of an object are consecutive 64-bit slots, laid out as in
+ * the class descriptor, holding the bits of primitive values or the ids of
+ * referenced objects;</li>
+ * <li>primitive arrays and block data are stored as the bytes that appeared
+ * in the stream;</li>
+ * <li>strings are kept once each in a shared pool.</li>
+ * </ul>
+ *
+ * <p>{@link #getEntity getEntity} and {@link #getRoot getRoot} return
+ * {@link SEntity} objects that are views of the graph, created when asked
+ * for. Two views of the same object are equal, but not necessarily the
+ * same.</p>
+ *
+ * <p>An {@code SGraph} is not modified after it has been built, so it can
+ * be read by several threads at once.</p>
+ */
+public final class SGraph implements Closeable {
+    SGraph(GraphStorage storage) {
+        this.storage = storage;
+        kinds = new Columns.Bytes(storage);
+        classIds = new Columns.Ints(storage);
+        starts = new Columns.Longs(storage);
+        lengths = new Columns.Ints(storage);
+        annotations = new Columns.Ints(storage);
+        annotationStarts = new Columns.Longs(storage);
+        slots = new Columns.Longs(storage);
+        bytes = new Columns.Bytes(storage);
+        roots = new Columns.Ints(storage);
+        strings = new Columns.Strings(storage);
+        hashes = new Columns.Longs(storage);
+    }
+
+    /**
+     * Read every top-level object from the given serial stream, up to
+     * the end of the stream, into a graph in the heap.
+     *
+     * @param in the serial stream to be analyzed.
+     * @return the graph of the objects in the stream.
+     * @throws IOException if there is a problem reading the stream or it is
+     *     incorrectly formatted.
+     */
+    public static SGraph scan(InputStream in) throws IOException {
+        return scan(in, GraphStorage.heap());
+    }
+
+    /**
+     * Read every top-level object from the given serial stream, up to
+     * the end of the stream, into a graph in the given storage.
+     *
+     * @param in the serial stream to be analyzed.
+     * @param storage where to put the graph.
+     * @return the graph of the objects in the stream.
+     * @throws IOException if there is a problem reading the stream or it is
+     *     incorrectly formatted.
+     */
+    public static SGraph scan(InputStream in, GraphStorage storage)
+            throws IOException {
+        GraphBuilder builder = new GraphBuilder(new SGraph(storage));
+        SerialScan scan = new SerialScan(builder);
+        scan.reset(in);
+        return builder.build(scan);
+    }
+
+    /**
+     * Read every top-level object from the bytes between the position and
+     * the limit of the given buffer into a graph in the heap. The buffer's
+     * position is not changed.
+     *
+     * @param buffer the serial stream to be analyzed.
+     * @return the graph of the objects in the stream.
+     * @throws IOException if the stream is incorrectly formatted.
+     */
+    public static SGraph scan(ByteBuffer buffer) throws IOException {
+        return scan(buffer, GraphStorage.heap());
+    }
+
+    /**
+     * Read every top-level object from the bytes between the position and
+     * the limit of the given buffer into a graph in the given storage. The
+     * buffer's position is not changed. The buffer can be a
+     * {@code MappedByteBuffer}, so that neither the stream nor the graph
+     * need be in the heap.
+     *
+     * @param buffer the serial stream to be analyzed.
+     * @param storage where to put the graph.
+     * @return the graph of the objects in the stream.
+     * @throws IOException if the stream is incorrectly formatted.
+     */
+    public static SGraph scan(ByteBuffer buffer, GraphStorage storage)
+            throws IOException {
+        GraphBuilder builder = new GraphBuilder(new SGraph(storage));
+        SerialScan scan = new SerialScan(builder);
+        scan.reset(buffer);
+        return builder.build(scan);
+    }
+
+    /**
+     * Release the storage of the graph. The graph and its views must not be
+     * used afterwards. This is only necessary for a graph in a
+     * {@linkplain GraphStorage#mappedFile mapped file}, where it deletes the
+     * file; otherwise the storage is released when the graph is garbage
+     * collected.
+     *
+     * @throws IOException if the storage cannot be released.
+     */
+    public void close() throws IOException {
+        storage.close();
+    }
+
+    GraphStorage storage() {
+        return storage;
+    }
+
+    /**
+     * The number of top-level objects, that is, objects that
+     * {@link SerialScan#readObject()} would have returned.
+     *
+     * @return the number of top-level objects.
+     */
+    public int getRootCount() {
+        return (int) roots.size();
+    }
+
+    /**
+     * Return a view of a top-level object.
+     *
+     * @param i the index of the object, from 0 to
+     *     {@link #getRootCount()}{@code  - 1}.
+     * @return the object, or null if a null reference was written.
+     * @throws IndexOutOfBoundsException if {@code i} is out of range.
+     */
+    public SEntity getRoot(int i) {
+        if (i < 0 || i >= roots.size())
+            throw new IndexOutOfBoundsException("Bad root index: " + i);
+        return getEntity(roots.get(i));
+    }
+
+    /**
+     * The number of entities in the graph. Ids go from 0 to one less than
+     * this number.
+     *
+     * @return the number of entities.
+     */
+    public int getEntityCount() {
+        return (int) kinds.size();
+    }
+
+    /**
+     * Return a view of the entity with the given id. This is an
+     * {@link SObject} for objects, enum constants, and classes, an
+     * {@link SArray} for arrays, an {@link SString} for strings, and an
+     * {@link SBlockData} for block data.
+     *
+     * @param id the id of the entity, or -1.
+     * @return the entity, or null if {@code id} is -1.
+     * @throws IndexOutOfBoundsException if {@code id} is out of range.
+     */
+    public SEntity getEntity(int id) {
+        if (id == -1)
+            return null;
+        if (id < 0 || id >= kinds.size())
+            throw new IndexOutOfBoundsException("Bad id: " + id);
+        switch (kinds.get(id)) {
+            case OBJECT:
+            case ENUM:
+            case CLASS:
+                return new ObjectView(this, id);
+            case ARRAY:
+                return new ArrayView(this, id);
+            case STRING:
+                return new SString(strings.get((int) starts.get(id)));
+            case BLOCKDATA:
+                byte[] data = new byte[lengths.get(id)];
+                bytes.get(starts.get(id), data, 0, data.length);
+                return new SBlockData(data);
+            default:
+                throw new AssertionError(kinds.get(id));
+        }
+    }
+
+    /**
+     * The {@linkplain SEntity#getFingerprint fingerprint} of the entity
+     * with the given id, which is the same as the fingerprint of the
+     * {@code SEntity} that {@link SerialScan#readObject()} produces for it.
+     *
+     * @param id the id of the entity.
+     * @return the fingerprint.
+     * @throws IndexOutOfBoundsException if {@code id} is out of range.
+     */
+    public long getFingerprint(int id) {
+        if (id < 0 || id >= kinds.size())
+            throw new IndexOutOfBoundsException("Bad id: " + id);
+        return hashes.get(id);
+    }
+
+    /**
+     * Copy the fingerprints of a range of entities into an array, so that
+     * the fingerprints of every entity in a large graph can be processed
+     * in batches. Fingerprints are kept in a column, so this does not
+     * create any views.
+     *
+     * @param fromId the id of the first entity.
+     * @param dest the array to copy into.
+     * @param offset the index in {@code dest} of the first fingerprint.
+     * @param count the number of fingerprints to copy.
+     * @throws IndexOutOfBoundsException if the range of ids is not within
+     *     the graph or the range of indexes is not within {@code dest}.
+     */
+    public void getFingerprints(int fromId, long[] dest, int offset, int count) {
+        if (fromId < 0 || count < 0 || fromId + (long) count > kinds.size())
+            throw new IndexOutOfBoundsException("Bad id range: " + fromId + "+" + count);
+        if (offset < 0 || offset + (long) count > dest.length)
+            throw new IndexOutOfBoundsException("Bad offset: " + offset);
+        for (int i = 0; i < count; i++)
+            dest[offset + i] = hashes.get(fromId + i);
+    }
+
+    /**
+     * The memory used by the graph, in bytes, wherever it is stored, not
+     * counting class descriptors.
+     *
+     * @return the estimated memory usage.
+     */
+    public long getMemoryUsage() {
+        return kinds.memoryUsage() + classIds.memoryUsage()
+                + starts.memoryUsage() + lengths.memoryUsage()
+                + annotations.memoryUsage() + annotationStarts.memoryUsage()
+                + slots.memoryUsage() + bytes.memoryUsage()
+                + roots.memoryUsage() + strings.memoryUsage()
+                + hashes.memoryUsage();
+    }
+
+    /* Entity kinds. */
+    static final byte OBJECT = 0, ARRAY = 1, STRING = 2, ENUM = 3, CLASS = 4,
+            BLOCKDATA = 5;
+
+    /*
+     * The meaning of the start and length columns depends on the kind:
+     * OBJECT: first field slot, and number of fields
+     * ARRAY: first slot, or first byte for primitive arrays, and length
+     * STRING: index in the string pool
+     * ENUM: id of the name string
+     * CLASS: nothing; the class id is that of the class itself
+     * BLOCKDATA: first byte, and length
+     */
+    final Columns.Bytes kinds;
+    final Columns.Ints classIds;
+    final Columns.Longs starts;
+    final Columns.Ints lengths;
+    /* For each entity, -1 or an index a in annotationStarts such that its
+       annotations are the slots from annotationStarts[a] up to but not
+       including annotationStarts[a + 1]. */
+    final Columns.Ints annotations;
+    final Columns.Longs annotationStarts;
+    final Columns.Longs slots;
+    final Columns.Bytes bytes;
+    final Columns.Ints roots;
+    final Columns.Strings strings;
+    /* The Fingerprint of each entity. */
+    final Columns.Longs hashes;
+    final List<ObjectClassDesc> classes = new ArrayList<ObjectClassDesc>();
+    private final GraphStorage storage;
+
+    static int width(char typeCode) {
+        switch (typeCode) {
+            case 'B':
+            case 'Z':
+                return 1;
+            case 'C':
+            case 'S':
+                return 2;
+            case 'F':
+            case 'I':
+                return 4;
+            default:
+                return 8;
+        }
+    }
+
+    private static class ObjectView extends SObject {
+        ObjectView(SGraph graph, int id) {
+            super(typeName(graph, id));
+            this.graph = graph;
+            this.id = id;
+        }
+
+        private static String typeName(SGraph graph, int id) {
+            if (graph.kinds.get(id) == CLASS)
+                return "java.lang.Class";
+            return graph.classes.get(graph.classIds.get(id)).getType();
+        }
+
+        @Override
+        public SEntity getField(String name) {
+            switch (graph.kinds.get(id)) {
+                case ENUM:
+                    if (name.equals("<name>"))
+                        return graph.getEntity((int) graph.starts.get(id));
+                    return null;
+                case CLASS:
+                    if (name.equals("<name>"))
+                        return new SString(desc().getType());
+                    return null;
+                default:
+                    Shape shape = desc().getShape();
+                    int slot = shape.slotOf(name);
+                    if (slot < 0)
+                        return null;
+                    // The graph has a slot for every field in the stream,
+                    // including any hidden by a later field of the same name.
+                    long bits = graph.slots.get(
+                            graph.starts.get(id) + shape.fieldOfSlot(slot));
+                    char typeCode = shape.typeCodeOf(slot);
+                    if (typeCode != 0)
+                        return new SPrim(TreeBuilder.box(typeCode, bits));
+                    return graph.getEntity((int) bits);
+            }
+        }
+
+        @Override
+        public Set<String> getFieldNames() {
+            if (graph.kinds.get(id) == OBJECT)
+                return desc().getShape().names();
+            return Shape.NAME.names();
+        }
+
+        @Override
+        public List<SEntity> getAnnotations() {
+            List<SEntity> list = new ArrayList<SEntity>();
+            int a = graph.annotations.get(id);
+            if (a >= 0) {
+                long end = graph.annotationStarts.get(a + 1);
+                for (long i = graph.annotationStarts.get(a); i < end; i++)
+                    list.add(graph.getEntity((int) graph.slots.get(i)));
+            }
+            return list;
+        }
+
+        @Override
+        public long getFingerprint() {
+            return graph.hashes.get(id);
+        }
+
+        private ObjectClassDesc desc() {
+            return graph.classes.get(graph.classIds.get(id));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ObjectView))
+                return false;
+            ObjectView v = (ObjectView) o;
+            return v.graph == graph && v.id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+        private final SGraph graph;
+        private final int id;
+    }
+
+    private static class ArrayView extends SArray {
+        ArrayView(SGraph graph, int id) {
+            super(graph.classes.get(graph.classIds.get(id)).getType());
+            this.graph = graph;
+            this.id = id;
+            ClassDesc component =
+                    ((ArrayClassDesc) graph.classes.get(graph.classIds.get(id)))
+                    .getComponentClassDesc();
+            this.typeCode = (component instanceof PrimitiveClassDesc)
+                    ? ((PrimitiveClassDesc) component).typeCode : 0;
+        }
+
+        @Override
+        public SEntity[] getValue() {
+            SEntity[] array = new SEntity[length()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = get(i);
+            return array;
+        }
+
+        @Override
+        int length() {
+            return graph.lengths.get(id);
+        }
+
+        @Override
+        public long getFingerprint() {
+            return graph.hashes.get(id);
+        }
+
+        @Override
+        SEntity get(int i) {
+            long start = graph.starts.get(id);
+            if (typeCode == 0)
+                return graph.getEntity((int) graph.slots.get(start + i));
+            int width = width(typeCode);
+            long bits = graph.bytes.get(start + (long) i * width, width);
+            return new SPrim(TreeBuilder.box(typeCode, bits));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ArrayView))
+                return false;
+            ArrayView v = (ArrayView) o;
+            return v.graph == graph && v.id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+        private final SGraph graph;
+        private final int id;
+        private final char typeCode;
+    }
+}
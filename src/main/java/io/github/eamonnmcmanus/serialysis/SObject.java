@@ -14,9 +14,7 @@
 package io.github.eamonnmcmanus.serialysis;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -38,8 +36,32 @@ import java.util.Set;
  */
 public class SObject extends SEntity {
 
+    /**
+     * An object whose serial fields are laid out as in the given shape,
+     * all initially null.
+     */
+    SObject(String type, Shape shape) {
+        super(type);
+        this.shape = shape;
+        this.values = new SEntity[shape.size()];
+    }
+
+    /**
+     * Constructor for subclasses that override {@link #getField} and
+     * {@link #getAnnotations} to get the values from somewhere else.
+     */
     SObject(String type) {
         super(type);
+        this.shape = null;
+        this.values = null;
+    }
+
+    /**
+     * Change the representation of the serial field in the given slot
+     * of this object's shape.
+     */
+    void setSlot(int slot, SEntity value) {
+        values[slot] = value;
     }
 
     /**
@@ -47,10 +69,15 @@ public class SObject extends SEntity {
      * in this serialized object.
      */
     void setField(String name, SEntity value) {
-        fields.put(name, value);
+        int slot = shape.slotOf(name);
+        if (slot < 0)
+            throw new IllegalArgumentException("No such field: " + name);
+        values[slot] = value;
     }
 
     void addAnnotation(SEntity annot) {
+        if (annots == null)
+            annots = new ArrayList<SEntity>(4);
         annots.add(annot);
     }
 
@@ -62,7 +89,8 @@ public class SObject extends SEntity {
      * @return the representation of the field with the given name.
      */
     public SEntity getField(String name) {
-        return fields.get(name);
+        int slot = shape.slotOf(name);
+        return (slot < 0) ? null : values[slot];
     }
 
     /**
@@ -71,7 +99,7 @@ public class SObject extends SEntity {
      * @return the names of the serial fields.
      */
     public Set<String> getFieldNames() {
-        return fields.keySet();
+        return shape.names();
     }
 
     /**
@@ -80,9 +108,10 @@ public class SObject extends SEntity {
      *
      * @return the annotations.
      */
-    @SuppressWarnings("unchecked")
     public List<SEntity> getAnnotations() {
-        return (List<SEntity>) annots.clone();
+        if (annots == null)
+            return new ArrayList<SEntity>();
+        return new ArrayList<SEntity>(annots);
     }
 
     @Override
@@ -94,11 +123,12 @@ public class SObject extends SEntity {
     String contents() {
         StringBuilder sb = new StringBuilder();
         sb.append("\n");
-        for (Map.Entry<String, SEntity> entry : fields.entrySet()) {
+        for (String name : getFieldNames()) {
             indent(sb);
-            sb.append(entry.getKey()).append(" = ")
-            .append(entry.getValue()).append("\n");
+            sb.append(name).append(" = ")
+            .append(getField(name)).append("\n");
         }
+        List<SEntity> annots = getAnnotations();
         if (annots.size() > 0) {
             indent(sb);
             sb.append("-- data written by class's writeObject:\n");
@@ -115,6 +145,7 @@ public class SObject extends SEntity {
         return super.getType();
     }
 
-    private final Map<String, SEntity> fields = new LinkedHashMap<String, SEntity>();
-    private final ArrayList<SEntity> annots = new ArrayList<SEntity>();
+    private final Shape shape;
+    private final SEntity[] values;
+    private List<SEntity> annots;
 }
@@ -55,6 +55,33 @@ public class SPrim extends SEntity {
     public Object getValue() {
         return value;
     }
+
+    @Override
+    long computeFingerprint() {
+        // The bits are as SerialScan reads them, so this matches the
+        // fingerprint of the value when it was in a field.
+        char typeCode;
+        long bits;
+        if (value instanceof Boolean) {
+            typeCode = 'Z';
+            bits = ((Boolean) value) ? 1 : 0;
+        } else if (value instanceof Character) {
+            typeCode = 'C';
+            bits = (Character) value;
+        } else if (value instanceof Double) {
+            typeCode = 'D';
+            bits = Double.doubleToRawLongBits((Double) value);
+        } else if (value instanceof Float) {
+            typeCode = 'F';
+            bits = Float.floatToRawIntBits((Float) value);
+        } else {
+            typeCode = (value instanceof Byte) ? 'B'
+                    : (value instanceof Short) ? 'S'
+                    : (value instanceof Integer) ? 'I' : 'J';
+            bits = ((Number) value).longValue();
+        }
+        return Fingerprint.primitive(typeCode, bits);
+    }
     
     private static final Map<Class<?>, String>
             wrappedClassToPrimName = new HashMap<Class<?>, String>();
@@ -36,4 +36,9 @@ public class SString extends SEntity {
     String contents() {
         return '"' + string + '"';
     }
+
+    @Override
+    long computeFingerprint() {
+        return Fingerprint.ofString(string);
+    }
 }
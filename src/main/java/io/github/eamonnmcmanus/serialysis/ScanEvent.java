@@ -0,0 +1,50 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for one call to {@link SerialScan#readObject()}.
+ * The duration of the event is the time taken to scan the object.
+ */
+@Name("io.github.eamonnmcmanus.serialysis.Scan")
+@Label("Serial Scan")
+@Category("Serialysis")
+@Description("Scan of one top-level object from a serial stream")
+@StackTrace(false)
+class ScanEvent extends Event {
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Entities")
+    @Description("Objects, arrays, strings, enums and block data created")
+    long entities;
+
+    @Label("Class Descriptors")
+    long classDescriptors;
+
+    @Label("Max Depth")
+    int maxDepth;
+
+    @Label("Resets")
+    long resets;
+}
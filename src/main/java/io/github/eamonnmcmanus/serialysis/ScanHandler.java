@@ -0,0 +1,165 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.IOException;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ArrayClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+
+/**
+ * Receives the contents of a serial stream as {@link SerialScan} parses it.
+ * A handler decides what, if anything, to build from the stream: the
+ * {@link TreeBuilder} builds {@link SEntity} objects, while other handlers
+ * build more compact representations or just check what they see.
+ *
+ * <p>Every value in the stream is reported by exactly one of
+ * {@link #nullValue}, {@link #reference}, {@link #primitive},
+ * {@link #string}, {@link #blockData}, {@link #classValue}, or a
+ * {@code begin}/{@code end} pair for an object, enum, or array. A value
+ * belongs to the innermost object, enum, array, or annotation that is
+ * open when it is reported, or is a top-level value if none is open. The
+ * values of an object are its fields, in the order of
+ * {@link ObjectClassDesc#getAllFields()}, with annotations reported
+ * between {@link #beginAnnotations()} and {@link #endAnnotations()}.
+ * Values that are reported between {@link #beginClassDesc} and
+ * {@link #endClassDesc()} are part of a class descriptor, for example the
+ * type strings of its fields, and do not belong to any object.</p>
+ *
+ * <p>Every item that gets a handle is reported with that handle, counting
+ * from 0 after each reset, so that {@link #reference} can refer back to
+ * it.</p>
+ *
+ * <p>The methods here do nothing, so a handler need only override the ones
+ * it is interested in.</p>
+ */
+abstract class ScanHandler {
+    void beginClassDesc(int handle, ObjectClassDesc desc) throws IOException {
+    }
+
+    void endClassDesc() throws IOException {
+    }
+
+    void nullValue() throws IOException {
+    }
+
+    void reference(int handle) throws IOException {
+    }
+
+    /**
+     * A primitive value. Values of integral types, {@code char} and
+     * {@code boolean} are given as their numeric value, while
+     * {@code float} and {@code double} are given as their raw bits.
+     */
+    void primitive(char typeCode, long bits) throws IOException {
+    }
+
+    void string(int handle, String s) throws IOException {
+    }
+
+    void blockData(byte[] data) throws IOException {
+    }
+
+    /**
+     * Return false if this handler does not need the contents of strings
+     * and block data. The scan then skips over them without copying them
+     * out of the stream, and reports them with {@link #skippedString} and
+     * {@link #skippedBlockData} rather than {@link #string} and
+     * {@link #blockData}. Strings inside class descriptors are still
+     * reported with {@link #string}, since the scan needs them itself.
+     * This is called once, when the scan is created.
+     */
+    boolean wantsContents() {
+        return true;
+    }
+
+    /**
+     * Return the length, in bytes of the stream, of the longest string or
+     * block data whose contents this handler wants. Longer ones are skipped
+     * as if {@link #wantsContents()} returned false, so a handler that shows
+     * only the start of each string need not have a huge one built for it.
+     * This is called once, when the scan is created, and only if
+     * {@link #wantsContents()} returns true.
+     */
+    long maxContentsLength() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * A string whose contents were skipped, which is {@code utflen} bytes
+     * long in the stream.
+     */
+    void skippedString(int handle, long utflen) throws IOException {
+    }
+
+    /**
+     * Block data whose contents were skipped.
+     */
+    void skippedBlockData(int length) throws IOException {
+    }
+
+    void classValue(int handle, ObjectClassDesc desc) throws IOException {
+    }
+
+    void beginObject(int handle, ObjectClassDesc desc) throws IOException {
+    }
+
+    void endObject() throws IOException {
+    }
+
+    void beginAnnotations() throws IOException {
+    }
+
+    void endAnnotations() throws IOException {
+    }
+
+    /**
+     * An enum constant, whose name is reported as the one value before
+     * {@link #endEnum()}.
+     */
+    void beginEnum(int handle, ObjectClassDesc desc) throws IOException {
+    }
+
+    void endEnum() throws IOException {
+    }
+
+    void beginArray(int handle, ArrayClassDesc desc, int length)
+            throws IOException {
+    }
+
+    void endArray() throws IOException {
+    }
+
+    /**
+     * The handle table was reset, so handles start again from 0.
+     */
+    void reset() throws IOException {
+    }
+
+    /**
+     * An exception was written to the stream in place of an object. The
+     * exception object is reported as the one value before
+     * {@link #endException()}.
+     */
+    void beginException() throws IOException {
+    }
+
+    /**
+     * Return a description of the exception object, to be used in the
+     * {@code WriteAbortedException} that the scan throws.
+     */
+    String endException() throws IOException {
+        return "exception in serial stream";
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The input to a {@link SerialScan}. This does the same job as a
+ * {@code DataInputStream}, but it reads its {@code InputStream} a block at a
+ * time, it can read directly from a {@code ByteBuffer}, it keeps track of how
+ * many bytes have been consumed, and it can be reset to read from a new
+ * source while keeping its buffers.
+ */
+class ScanInput {
+    ScanInput() {
+    }
+
+    /**
+     * Read from the given stream. Unless {@code exact}, the stream is read a
+     * block at a time, so bytes after the end of the serial stream may be
+     * consumed. If {@code exact}, only the bytes that are needed are read,
+     * as with {@code DataInputStream}.
+     */
+    void reset(InputStream in, boolean exact) {
+        this.in = in;
+        this.exact = exact;
+        this.direct = null;
+        this.buf = own;
+        this.pos = this.limit = 0;
+        this.base = 0;
+        this.partial = false;
+    }
+
+    /**
+     * Read the bytes between the position and the limit of the given buffer.
+     * The buffer's position is not changed. A heap buffer is read in place
+     * without being copied.
+     */
+    void reset(ByteBuffer bb) {
+        this.in = null;
+        this.exact = false;
+        this.partial = false;
+        if (bb.hasArray()) {
+            this.direct = null;
+            this.buf = bb.array();
+            this.pos = bb.arrayOffset() + bb.position();
+            this.limit = bb.arrayOffset() + bb.limit();
+            this.base = -pos;
+        } else {
+            this.direct = bb.duplicate();
+            this.buf = own;
+            this.pos = this.limit = 0;
+            this.base = 0;
+        }
+    }
+
+    /**
+     * Continue reading from the given heap buffer, whose position is at
+     * offset {@code offset} in the stream. The buffer holds only the part of
+     * the stream that has arrived so far, so running out of bytes means that
+     * more are needed, and {@link #remaining()} doesn't know how many bytes
+     * are left.
+     */
+    void resumePartial(ByteBuffer bb, long offset) {
+        this.in = null;
+        this.exact = false;
+        this.direct = null;
+        this.buf = bb.array();
+        this.pos = bb.arrayOffset() + bb.position();
+        this.limit = bb.arrayOffset() + bb.limit();
+        this.base = offset - pos;
+        this.partial = true;
+    }
+
+    /**
+     * Go back to the given offset in the stream, after reading from a buffer
+     * that holds that offset failed with {@code EOFException}.
+     */
+    void rewind(long offset) {
+        if (buf == own)
+            throw new IllegalStateException("Can't rewind an InputStream");
+        pos = (int) (offset - base);
+    }
+
+    /**
+     * The offset in the stream just after the bytes that have arrived, when
+     * reading from a buffer given to {@link #resumePartial}.
+     */
+    long end() {
+        return base + limit;
+    }
+
+    boolean isBound() {
+        return buf != null;
+    }
+
+    /**
+     * The number of bytes consumed since the last reset.
+     */
+    long position() {
+        return base + pos;
+    }
+
+    /**
+     * The number of bytes left in the input, or -1 if that isn't known
+     * because the input is an {@code InputStream}.
+     */
+    long remaining() {
+        if (in != null || partial)
+            return -1;
+        long n = limit - pos;
+        if (direct != null)
+            n += direct.remaining();
+        return n;
+    }
+
+    /**
+     * True if there are no more bytes in the input. This may block reading
+     * from the {@code InputStream} to find out.
+     */
+    boolean atEnd() throws IOException {
+        if (pos < limit)
+            return false;
+        if (buf == null)
+            throw new IllegalStateException("No input");
+        if (buf != own)
+            return true;
+        base += pos;
+        pos = limit = 0;
+        int n;
+        if (direct != null) {
+            n = Math.min(buf.length, direct.remaining());
+            direct.get(buf, 0, n);
+        } else {
+            do {
+                n = in.read(buf, 0, exact ? 1 : buf.length);
+            } while (n == 0);
+        }
+        if (n <= 0)
+            return true;
+        limit = n;
+        return false;
+    }
+
+    byte peekByte() throws IOException {
+        if (pos == limit)
+            fill(1);
+        return buf[pos];
+    }
+
+    byte readByte() throws IOException {
+        if (pos == limit)
+            fill(1);
+        return buf[pos++];
+    }
+
+    int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    short readShort() throws IOException {
+        return (short) readUnsignedShort();
+    }
+
+    int readUnsignedShort() throws IOException {
+        ensure(2);
+        int n = ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+        pos += 2;
+        return n;
+    }
+
+    char readChar() throws IOException {
+        return (char) readUnsignedShort();
+    }
+
+    int readInt() throws IOException {
+        ensure(4);
+        int n = ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16)
+                | ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+        pos += 4;
+        return n;
+    }
+
+    long readLong() throws IOException {
+        ensure(8);
+        long hi = readInt();
+        long lo = readInt();
+        return (hi << 32) | (lo & 0xffffffffL);
+    }
+
+    float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    void readFully(byte[] b, int off, int len) throws IOException {
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        off += n;
+        len -= n;
+        if (len == 0)
+            return;
+        if (buf != own)
+            throw endOfBuffer();
+        // The buffer is empty, so read the rest directly into the caller's
+        // array rather than copying it through the buffer.
+        base += pos;
+        pos = limit = 0;
+        while (len > 0) {
+            n = readSource(b, off, len);
+            off += n;
+            len -= n;
+            base += n;
+        }
+    }
+
+    /**
+     * Skip {@code n} bytes of input.
+     */
+    void skip(long n) throws IOException {
+        while (n > 0) {
+            if (pos == limit)
+                fill((int) Math.min(n, BUFFER_SIZE));
+            int k = (int) Math.min(n, limit - pos);
+            pos += k;
+            n -= k;
+        }
+    }
+
+    /**
+     * Read a string in the modified UTF-8 format of
+     * {@link java.io.DataInput#readUTF()}, preceded by its two-byte length.
+     */
+    String readUTF() throws IOException {
+        return readUTF(readUnsignedShort());
+    }
+
+    /**
+     * Read a string in modified UTF-8 format that is {@code utflen} bytes
+     * long.
+     */
+    String readUTF(long utflen) throws IOException {
+        StringBuilder sb = null;
+        char[] cs = chars;
+        int n = 0;
+        long remaining = utflen;
+        while (remaining > 0) {
+            if (n == cs.length) {
+                if (cs.length < MAX_CHARS)
+                    cs = chars = Arrays.copyOf(cs, cs.length * 2);
+                else {
+                    if (sb == null)
+                        sb = new StringBuilder();
+                    sb.append(cs, 0, n);
+                    n = 0;
+                }
+            }
+            if (pos == limit)
+                fill((int) Math.min(remaining, BUFFER_SIZE));
+            // Fast path for ASCII.
+            int max = (int) Math.min(Math.min(remaining, limit - pos), cs.length - n);
+            int start = pos;
+            int end = pos + max;
+            int p = pos;
+            while (p < end && buf[p] >= 0)
+                cs[n++] = (char) buf[p++];
+            pos = p;
+            remaining -= p - start;
+            if (p < end) {
+                int b = buf[pos] & 0xff;
+                int c;
+                switch (b >> 4) {
+                    case 12: case 13:
+                        if (remaining < 2)
+                            throw malformed();
+                        ensure(2);
+                        int b2 = buf[pos + 1];
+                        if ((b2 & 0xc0) != 0x80)
+                            throw malformed();
+                        c = ((b & 0x1f) << 6) | (b2 & 0x3f);
+                        pos += 2;
+                        remaining -= 2;
+                        break;
+                    case 14:
+                        if (remaining < 3)
+                            throw malformed();
+                        ensure(3);
+                        b2 = buf[pos + 1];
+                        int b3 = buf[pos + 2];
+                        if ((b2 & 0xc0) != 0x80 || (b3 & 0xc0) != 0x80)
+                            throw malformed();
+                        c = ((b & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (b3 & 0x3f);
+                        pos += 3;
+                        remaining -= 3;
+                        break;
+                    default:
+                        throw malformed();
+                }
+                cs[n++] = (char) c;
+            }
+        }
+        if (sb == null)
+            return new String(cs, 0, n);
+        return sb.append(cs, 0, n).toString();
+    }
+
+    private UTFDataFormatException malformed() {
+        return new UTFDataFormatException("Malformed input at byte " + position());
+    }
+
+    private void ensure(int n) throws IOException {
+        if (limit - pos < n)
+            fill(n);
+    }
+
+    /**
+     * Make at least {@code n} bytes available in the buffer, where {@code n}
+     * is no bigger than the buffer.
+     */
+    private void fill(int n) throws IOException {
+        if (buf == null)
+            throw new IllegalStateException("No input");
+        if (buf != own)
+            throw endOfBuffer();
+        int avail = limit - pos;
+        System.arraycopy(buf, pos, buf, 0, avail);
+        base += pos;
+        pos = 0;
+        limit = avail;
+        int max = exact ? n : buf.length;
+        while (limit < n)
+            limit += readSource(buf, limit, max - limit);
+    }
+
+    private EOFException endOfBuffer() {
+        // Running out of a partial buffer is expected, and happens each time
+        // a value has not yet arrived completely.
+        return partial ? INCOMPLETE : new EOFException();
+    }
+
+    /**
+     * Thrown when the bytes of a partial buffer run out. There is only one,
+     * since it says nothing more than that, and a scan can tell it apart
+     * from the end of a complete stream.
+     */
+    private static class Incomplete extends EOFException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    static final EOFException INCOMPLETE = new Incomplete();
+
+    private int readSource(byte[] b, int off, int len) throws IOException {
+        int n;
+        if (direct != null) {
+            n = Math.min(len, direct.remaining());
+            if (n == 0)
+                throw new EOFException();
+            direct.get(b, off, n);
+        } else {
+            n = in.read(b, off, len);
+            if (n < 0)
+                throw new EOFException();
+        }
+        return n;
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_CHARS = 65536;
+
+    private final byte[] own = new byte[BUFFER_SIZE];
+    private char[] chars = new char[128];
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private long base;
+    private InputStream in;
+    private boolean exact;
+    private ByteBuffer direct;
+    private boolean partial;
+}
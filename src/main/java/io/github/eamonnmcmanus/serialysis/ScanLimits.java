@@ -0,0 +1,167 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+/**
+ * <p>Limits on the size and shape of a serial stream, for streams that
+ * might come from an untrusted source. Every limit is unlimited until it is
+ * set. A limit of 0 is allowed, and means that the stream can't contain
+ * anything of that kind at all.</p>
+ *
+ * <p>The limits are similar to those of the {@code jdk.serialFilter}
+ * system property: {@code maxdepth}, {@code maxarray}, {@code maxrefs},
+ * and {@code maxbytes}. They can be given to a {@link SerialValidator},
+ * or to a {@link SerialScan} with {@link SerialScan#setLimits setLimits},
+ * in which case the scan throws {@link LimitExceededException} as soon as
+ * a limit is exceeded, before it allocates anything because of it.</p>
+ */
+public final class ScanLimits {
+    /**
+     * Make a set of limits where nothing is limited.
+     */
+    public ScanLimits() {
+    }
+
+    /**
+     * The maximum nesting of objects, arrays, and enum constants. A
+     * top-level object that has only primitive fields has depth 1.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = check(maxDepth);
+    }
+
+    /**
+     * The maximum length of an array.
+     */
+    public int getMaxArrayLength() {
+        return maxArrayLength;
+    }
+
+    public void setMaxArrayLength(int maxArrayLength) {
+        this.maxArrayLength = check(maxArrayLength);
+    }
+
+    /**
+     * The maximum number of references in the stream, counting every
+     * object, array, string, enum constant, and class, and every
+     * back-reference to one of them.
+     */
+    public long getMaxReferences() {
+        return maxReferences;
+    }
+
+    public void setMaxReferences(long maxReferences) {
+        this.maxReferences = check(maxReferences);
+    }
+
+    /**
+     * The maximum length of a string, in bytes of modified UTF-8. This is
+     * at least the number of characters in the string.
+     */
+    public long getMaxStringLength() {
+        return maxStringLength;
+    }
+
+    public void setMaxStringLength(long maxStringLength) {
+        this.maxStringLength = check(maxStringLength);
+    }
+
+    /**
+     * The maximum length of the stream in bytes.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = check(maxBytes);
+    }
+
+    /**
+     * The maximum length of a single chunk of block data, as written for
+     * example by a {@code writeObject} method.
+     */
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    public void setMaxBlockSize(int maxBlockSize) {
+        this.maxBlockSize = check(maxBlockSize);
+    }
+
+    /**
+     * The maximum number of handles between resets, which is the number
+     * of objects, class descriptors, and other items that a later part of
+     * the stream can refer back to, and so that the scan has to keep.
+     */
+    public int getMaxHandles() {
+        return maxHandles;
+    }
+
+    public void setMaxHandles(int maxHandles) {
+        this.maxHandles = check(maxHandles);
+    }
+
+    /**
+     * The maximum total size of the values in the stream, in bytes. This
+     * is an estimate of the memory needed to represent the values, counting
+     * 8 bytes for each field and each element of a reference array, the
+     * size of each element of a primitive array, 2 bytes for each character
+     * of a string, and the size of block data.
+     */
+    public long getMaxAllocation() {
+        return maxAllocation;
+    }
+
+    public void setMaxAllocation(long maxAllocation) {
+        this.maxAllocation = check(maxAllocation);
+    }
+
+    @Override
+    public String toString() {
+        return "ScanLimits(maxDepth=" + maxDepth
+                + ", maxArrayLength=" + maxArrayLength
+                + ", maxReferences=" + maxReferences
+                + ", maxStringLength=" + maxStringLength
+                + ", maxBytes=" + maxBytes
+                + ", maxBlockSize=" + maxBlockSize
+                + ", maxHandles=" + maxHandles
+                + ", maxAllocation=" + maxAllocation + ")";
+    }
+
+    private static int check(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Negative limit: " + limit);
+        return limit;
+    }
+
+    private static long check(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Negative limit: " + limit);
+        return limit;
+    }
+
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxArrayLength = Integer.MAX_VALUE;
+    private long maxReferences = Long.MAX_VALUE;
+    private long maxStringLength = Long.MAX_VALUE;
+    private long maxBytes = Long.MAX_VALUE;
+    private int maxBlockSize = Integer.MAX_VALUE;
+    private int maxHandles = Integer.MAX_VALUE;
+    private long maxAllocation = Long.MAX_VALUE;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Cumulative metrics for all scans in the JVM, available as an MBean in the
+ * platform MBean Server once {@link #register()} has been called. Scans do
+ * not update the metrics until then.
+ */
+public class ScanMetrics implements ScanMetricsMBean {
+    /**
+     * The name under which the MBean is registered,
+     * {@value #OBJECT_NAME}.
+     */
+    public static final String OBJECT_NAME =
+            "io.github.eamonnmcmanus.serialysis:type=ScanMetrics";
+
+    private ScanMetrics() {
+    }
+
+    /**
+     * Start collecting metrics and register the MBean in the platform MBean
+     * Server. Does nothing if the MBean is already registered.
+     *
+     * @throws JMException if the MBean cannot be registered.
+     */
+    public static synchronized void register() throws JMException {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!mbs.isRegistered(name))
+            mbs.registerMBean(INSTANCE, name);
+        enabled = true;
+    }
+
+    /**
+     * Stop collecting metrics and unregister the MBean from the platform
+     * MBean Server, if it was registered.
+     *
+     * @throws JMException if the MBean cannot be unregistered.
+     */
+    public static synchronized void unregister() throws JMException {
+        enabled = false;
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (mbs.isRegistered(name))
+            mbs.unregisterMBean(name);
+    }
+
+    /**
+     * The single instance that is registered as an MBean.
+     *
+     * @return the metrics for all scans in the JVM.
+     */
+    public static ScanMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    void record(long bytes, long entities, long classDescs, long resets,
+            int depth, long nanos) {
+        scanCount.increment();
+        bytesRead.add(bytes);
+        entityCount.add(entities);
+        classDescriptorCount.add(classDescs);
+        resetCount.add(resets);
+        scanTimeNanos.add(nanos);
+        int max;
+        while ((max = maxDepth.get()) < depth && !maxDepth.compareAndSet(max, depth))
+            ;
+    }
+
+    public long getScanCount() {
+        return scanCount.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getEntityCount() {
+        return entityCount.sum();
+    }
+
+    public long getClassDescriptorCount() {
+        return classDescriptorCount.sum();
+    }
+
+    public long getResetCount() {
+        return resetCount.sum();
+    }
+
+    public long getScanTimeNanos() {
+        return scanTimeNanos.sum();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    public double getThroughput() {
+        long nanos = scanTimeNanos.sum();
+        if (nanos == 0)
+            return 0;
+        return bytesRead.sum() * 1e9 / nanos;
+    }
+
+    public void reset() {
+        scanCount.reset();
+        bytesRead.reset();
+        entityCount.reset();
+        classDescriptorCount.reset();
+        resetCount.reset();
+        scanTimeNanos.reset();
+        maxDepth.set(0);
+    }
+
+    private static final ScanMetrics INSTANCE = new ScanMetrics();
+    private static volatile boolean enabled;
+
+    private final LongAdder scanCount = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder entityCount = new LongAdder();
+    private final LongAdder classDescriptorCount = new LongAdder();
+    private final LongAdder resetCount = new LongAdder();
+    private final LongAdder scanTimeNanos = new LongAdder();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+}
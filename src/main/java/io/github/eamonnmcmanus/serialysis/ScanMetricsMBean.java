@@ -0,0 +1,83 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+/**
+ * Management interface for the cumulative metrics of all scans in the JVM.
+ *
+ * @see ScanMetrics
+ */
+public interface ScanMetricsMBean {
+    /**
+     * The number of top-level objects scanned, that is, the number of
+     * calls to {@link SerialScan#readObject()}.
+     *
+     * @return the number of objects scanned.
+     */
+    long getScanCount();
+
+    /**
+     * The number of bytes of serial stream read.
+     *
+     * @return the number of bytes read.
+     */
+    long getBytesRead();
+
+    /**
+     * The number of objects, arrays, strings, enums and block data created.
+     *
+     * @return the number of entities.
+     */
+    long getEntityCount();
+
+    /**
+     * The number of class descriptors parsed.
+     *
+     * @return the number of class descriptors.
+     */
+    long getClassDescriptorCount();
+
+    /**
+     * The number of stream resets seen.
+     *
+     * @return the number of resets.
+     */
+    long getResetCount();
+
+    /**
+     * The total time spent scanning, in nanoseconds.
+     *
+     * @return the scan time.
+     */
+    long getScanTimeNanos();
+
+    /**
+     * The deepest nesting seen in any scan.
+     *
+     * @return the maximum depth.
+     */
+    int getMaxDepth();
+
+    /**
+     * The number of bytes scanned per second of scan time.
+     *
+     * @return the throughput, or 0 if nothing has been scanned.
+     */
+    double getThroughput();
+
+    /**
+     * Set all counters back to zero.
+     */
+    void reset();
+}
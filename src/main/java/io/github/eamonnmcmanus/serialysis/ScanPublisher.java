@@ -0,0 +1,266 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Publish the top-level values of a serial stream, as a
+ * {@link SerialScan} would return them from successive calls to
+ * {@link SerialScan#readObject() readObject()}, to a
+ * {@link Flow.Subscriber}.</p>
+ *
+ * <p>The stream is read only as fast as the subscriber asks for values:
+ * after publishing as many values as were requested, the publisher stops
+ * reading until the subscriber requests more. So a slow subscriber never
+ * causes values to pile up in memory. The reading is done by tasks given
+ * to an {@code Executor}, which are blocked while they wait for the
+ * channel, so the executor should not be one whose threads are meant
+ * only for computation, such as the common {@code ForkJoinPool}.</p>
+ *
+ * <p>The channel belongs to the publisher once it has a subscriber, and
+ * is closed when the subscription ends, whether the stream was read to
+ * the end, reading it failed, or the subscriber cancelled. Closing the
+ * channel when the subscriber cancels stops a read that is in progress
+ * if the channel is {@linkplain java.nio.channels.InterruptibleChannel
+ * interruptible}, as files and sockets are. The channel must be in
+ * blocking mode.</p>
+ *
+ * <p>The stream can only be read once, so a publisher accepts only one
+ * subscriber. Any other subscriber gets {@code onError} with an
+ * {@code IllegalStateException}.</p>
+ */
+public final class ScanPublisher implements Flow.Publisher<SEntity> {
+    /**
+     * Make a publisher for the serial stream read from the given channel,
+     * which reads with a new thread for each time it has to wait for the
+     * subscriber to request more values.
+     *
+     * @param channel the serial stream, positioned at its header.
+     */
+    public ScanPublisher(ReadableByteChannel channel) {
+        this(channel, new Executor() {
+            public void execute(Runnable task) {
+                Thread t = new Thread(task, "ScanPublisher");
+                t.setDaemon(true);
+                t.start();
+            }
+        });
+    }
+
+    /**
+     * Make a publisher for the serial stream read from the given channel,
+     * reading with tasks given to the given executor.
+     *
+     * @param channel the serial stream, positioned at its header.
+     * @param executor the executor that will read the channel and call the
+     *     subscriber.
+     */
+    public ScanPublisher(ReadableByteChannel channel, Executor executor) {
+        if (channel == null || executor == null)
+            throw new NullPointerException();
+        this.channel = channel;
+        this.executor = executor;
+    }
+
+    /**
+     * Limit the size and shape of the stream, as for
+     * {@link SerialScan#setLimits}. When a limit is exceeded, the
+     * subscriber gets {@code onError} with a
+     * {@link LimitExceededException}. The limits must be set before
+     * {@link #subscribe subscribe} is called.
+     *
+     * @param limits the limits, or null for no limits.
+     */
+    public void setLimits(ScanLimits limits) {
+        this.limits = limits;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super SEntity> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException();
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException(
+                    "ScanPublisher allows only one subscriber"));
+            return;
+        }
+        Subscription subscription = new Subscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * The subscription, which also reads the stream. A task that reads is
+     * started when the subscriber requests values and no task is already
+     * running, and it keeps reading until it has published all the
+     * values requested so far. The {@code wip} counter, as in many
+     * Reactive Streams implementations, makes sure that only one task runs
+     * at a time, so the subscriber's methods are never called concurrently.
+     */
+    private class Subscription implements Flow.Subscription, Runnable {
+        Subscription(Flow.Subscriber<? super SEntity> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException(
+                        "Request must be positive: " + n);
+            } else {
+                long r, u;
+                do {
+                    r = demand.get();
+                    u = r + n;
+                    if (u < 0)
+                        u = Long.MAX_VALUE;
+                } while (!demand.compareAndSet(r, u));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                close();
+            }
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    // The executor rejected the task.
+                    wip.set(0);
+                    fail(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                if (cancelled)
+                    return;
+                if (error != null) {
+                    fail(error);
+                    return;
+                }
+                long r = demand.get();
+                long e = 0;
+                while (e != r) {
+                    if (cancelled)
+                        return;
+                    SEntity x;
+                    try {
+                        if (scan == null) {
+                            scan = new SerialScan();
+                            scan.setLimits(limits);
+                            scan.reset(Channels.newInputStream(channel));
+                        }
+                        if (scan.atEnd()) {
+                            complete();
+                            return;
+                        }
+                        x = scan.readObject();
+                    } catch (IOException ex) {
+                        fail(ex);
+                        return;
+                    } catch (RuntimeException ex) {
+                        fail(ex);
+                        return;
+                    }
+                    subscriber.onNext(x);
+                    e++;
+                }
+                // Say that the stream is complete without waiting for the
+                // subscriber to ask for a value that isn't there. This reads
+                // ahead at most one buffer of the stream.
+                try {
+                    if (scan != null && !cancelled && scan.atEnd()) {
+                        complete();
+                        return;
+                    }
+                } catch (IOException ex) {
+                    fail(ex);
+                    return;
+                }
+                if (r != Long.MAX_VALUE)
+                    demand.addAndGet(-e);
+                missed = wip.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+
+        private void complete() {
+            cancelled = true;
+            close();
+            subscriber.onComplete();
+        }
+
+        /**
+         * End the subscription with an error, unless it has already ended,
+         * in which case the error is probably the result of closing the
+         * channel when the subscriber cancelled.
+         */
+        private void fail(Throwable t) {
+            if (cancelled)
+                return;
+            cancelled = true;
+            close();
+            subscriber.onError(t);
+        }
+
+        private void close() {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // The subscription is over, so there is no one to tell.
+                }
+            }
+        }
+
+        private final Flow.Subscriber<? super SEntity> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+        private SerialScan scan;  // only used by the task that reads
+    }
+
+    private final ReadableByteChannel channel;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private volatile ScanLimits limits;
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.util.Arrays;
+
+import static java.io.ObjectStreamConstants.*;
+
+/**
+ * Statistics about what a {@link SerialScan} has read so far. An instance
+ * is a snapshot, returned by {@link SerialScan#getStatistics()}, and does
+ * not change as the scan continues.
+ */
+public class ScanStatistics {
+    ScanStatistics() {
+    }
+
+    ScanStatistics(ScanStatistics s) {
+        set(s);
+    }
+
+    void set(ScanStatistics s) {
+        this.bytesRead = s.bytesRead;
+        System.arraycopy(s.typeCodeCounts, 0, typeCodeCounts, 0, typeCodeCounts.length);
+        this.resets = s.resets;
+        this.handleTableSize = s.handleTableSize;
+        this.maxHandleTableSize = s.maxHandleTableSize;
+        this.maxDepth = s.maxDepth;
+        this.largestArray = s.largestArray;
+        this.longestString = s.longestString;
+        this.scanNanos = s.scanNanos;
+        this.descriptorNanos = s.descriptorNanos;
+    }
+
+    void clear() {
+        bytesRead = 0;
+        Arrays.fill(typeCodeCounts, 0);
+        resets = 0;
+        handleTableSize = maxHandleTableSize = 0;
+        maxDepth = largestArray = 0;
+        longestString = scanNanos = descriptorNanos = 0;
+    }
+
+    /**
+     * The number of bytes of the serial stream consumed, including the
+     * stream header.
+     *
+     * @return the number of bytes consumed.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * The number of times the given type code, for example
+     * {@link java.io.ObjectStreamConstants#TC_OBJECT TC_OBJECT}, has been
+     * seen in the stream.
+     *
+     * @param typeCode one of the {@code TC_*} constants from
+     *     {@link java.io.ObjectStreamConstants}.
+     * @return the number of times the type code has been seen.
+     * @throws IllegalArgumentException if {@code typeCode} is not a valid
+     *     type code.
+     */
+    public long getTypeCodeCount(int typeCode) {
+        if (typeCode < TC_BASE || typeCode > TC_MAX)
+            throw new IllegalArgumentException("Bad type code: " + typeCode);
+        return typeCodeCounts[typeCode - TC_BASE];
+    }
+
+    /**
+     * The number of objects, arrays, strings, enums and block data items
+     * read, not counting back-references to earlier ones.
+     *
+     * @return the number of entities.
+     */
+    public long getEntityCount() {
+        return count(TC_OBJECT) + count(TC_ARRAY) + count(TC_STRING)
+                + count(TC_LONGSTRING) + count(TC_ENUM) + count(TC_BLOCKDATA)
+                + count(TC_BLOCKDATALONG);
+    }
+
+    /**
+     * The number of class descriptors read, including proxy class
+     * descriptors.
+     *
+     * @return the number of class descriptors.
+     */
+    public long getClassDescriptorCount() {
+        return count(TC_CLASSDESC) + count(TC_PROXYCLASSDESC);
+    }
+
+    /**
+     * The number of times the handle table was reset, either because of
+     * {@code TC_RESET} or because of an exception written to the stream.
+     *
+     * @return the number of resets.
+     */
+    public long getResetCount() {
+        return resets;
+    }
+
+    /**
+     * The number of entries in the handle table, which is the number of
+     * objects that the scan must keep because the stream could refer back
+     * to them.
+     *
+     * @return the current size of the handle table.
+     */
+    public int getHandleTableSize() {
+        return handleTableSize;
+    }
+
+    /**
+     * The largest size the handle table has had.
+     *
+     * @return the maximum size of the handle table.
+     */
+    public int getMaxHandleTableSize() {
+        return maxHandleTableSize;
+    }
+
+    /**
+     * The deepest nesting of objects seen. A top-level object with no
+     * nested objects has depth 1.
+     *
+     * @return the maximum depth.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * The length of the longest array seen.
+     *
+     * @return the length of the longest array, or 0 if there were none.
+     */
+    public int getLargestArrayLength() {
+        return largestArray;
+    }
+
+    /**
+     * The length in characters of the longest string seen.
+     *
+     * @return the length of the longest string, or 0 if there were none.
+     */
+    public long getLongestStringLength() {
+        return longestString;
+    }
+
+    /**
+     * The total time spent in {@link SerialScan#readObject()}, in
+     * nanoseconds.
+     *
+     * @return the scan time.
+     */
+    public long getScanNanos() {
+        return scanNanos;
+    }
+
+    /**
+     * The part of {@link #getScanNanos()} spent parsing class descriptors.
+     *
+     * @return the descriptor parsing time.
+     */
+    public long getDescriptorNanos() {
+        return descriptorNanos;
+    }
+
+    /**
+     * The part of {@link #getScanNanos()} spent parsing everything other
+     * than class descriptors.
+     *
+     * @return the data parsing time.
+     */
+    public long getDataNanos() {
+        return scanNanos - descriptorNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanStatistics{bytes=" + bytesRead
+                + ", entities=" + getEntityCount()
+                + ", references=" + count(TC_REFERENCE)
+                + ", classDescs=" + getClassDescriptorCount()
+                + ", resets=" + resets
+                + ", handles=" + handleTableSize
+                + ", maxHandles=" + maxHandleTableSize
+                + ", maxDepth=" + maxDepth
+                + ", largestArray=" + largestArray
+                + ", longestString=" + longestString
+                + ", descriptorNanos=" + descriptorNanos
+                + ", dataNanos=" + getDataNanos() + "}";
+    }
+
+    private long count(int typeCode) {
+        return typeCodeCounts[typeCode - TC_BASE];
+    }
+
+    /*
+     * These fields are updated directly by SerialScan as it reads. Using
+     * plain fields and an array indexed by type code keeps the cost of
+     * maintaining them to a few instructions per item.
+     */
+    long bytesRead;
+    final long[] typeCodeCounts = new long[TC_MAX - TC_BASE + 1];
+    long resets;
+    int handleTableSize;
+    int maxHandleTableSize;
+    int maxDepth;
+    int largestArray;
+    long longestString;
+    long scanNanos;
+    long descriptorNanos;
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Scan a serial stream whose bytes can be read again, such as a file or
+ * a mapped buffer, in memory that does not grow with the number of objects
+ * that have been read.</p>
+ *
+ * <p>A {@link SerialScan} has to keep every object it has read, because a
+ * later object can refer back to any of them. A {@code SeekableScan} instead
+ * keeps only the offset in the stream of each object, in a
+ * {@link HandleTable}, and a cache of the objects that were read or
+ * referenced most recently. A reference to an object that is no longer in
+ * the cache is resolved by reading the object again from its offset.</p>
+ *
+ * <p>Because of this, two references to the same object in the stream
+ * produce the same {@code SEntity} only if the object stayed in the cache
+ * in between. Otherwise they produce two {@code SEntity} objects with the
+ * same contents. Their {@linkplain SEntity#getFingerprint fingerprints}
+ * are the same too, except possibly for an object in a cycle that was read
+ * again from inside the cycle.</p>
+ */
+public class SeekableScan {
+    /**
+     * Scan the bytes between the position and the limit of the given
+     * buffer, typically a {@code MappedByteBuffer}. The buffer's position
+     * is not changed.
+     *
+     * @param buffer the serial stream to be analyzed.
+     * @param cacheSize the maximum number of objects to keep in the cache.
+     * @throws IOException if the stream does not begin with the correct
+     *     sequence of bytes.
+     */
+    public SeekableScan(ByteBuffer buffer, int cacheSize) throws IOException {
+        this(buffer, cacheSize, HandleTable.inMemory());
+    }
+
+    /**
+     * Scan the bytes between the position and the limit of the given
+     * buffer, keeping the offset of each object in the given table.
+     *
+     * @param buffer the serial stream to be analyzed.
+     * @param cacheSize the maximum number of objects to keep in the cache.
+     * @param handleTable the table for the offsets, which must not be used
+     *     by any other scan.
+     * @throws IOException if the stream does not begin with the correct
+     *     sequence of bytes.
+     */
+    public SeekableScan(ByteBuffer buffer, int cacheSize,
+            HandleTable handleTable) throws IOException {
+        this(buffer.duplicate(), null, cacheSize, handleTable);
+        scan.reset(this.buffer);
+    }
+
+    /**
+     * Scan the contents of the given file from its beginning. The scan uses
+     * positional reads, so it does not change the channel's position.
+     *
+     * @param channel the serial stream to be analyzed.
+     * @param cacheSize the maximum number of objects to keep in the cache.
+     * @throws IOException if there is a problem reading the file or it does
+     *     not begin with the correct sequence of bytes.
+     */
+    public SeekableScan(FileChannel channel, int cacheSize) throws IOException {
+        this(channel, cacheSize, HandleTable.inMemory());
+    }
+
+    /**
+     * Scan the contents of the given file from its beginning, keeping the
+     * offset of each object in the given table. For a file with a very
+     * large number of objects between resets, this can be a
+     * {@linkplain HandleTable#spilling spilling} table.
+     *
+     * @param channel the serial stream to be analyzed.
+     * @param cacheSize the maximum number of objects to keep in the cache.
+     * @param handleTable the table for the offsets, which must not be used
+     *     by any other scan.
+     * @throws IOException if there is a problem reading the file or it does
+     *     not begin with the correct sequence of bytes.
+     */
+    public SeekableScan(FileChannel channel, int cacheSize,
+            HandleTable handleTable) throws IOException {
+        this(null, channel, cacheSize, handleTable);
+        scan.reset(new ChannelInputStream(channel, 0));
+    }
+
+    private SeekableScan(ByteBuffer buffer, FileChannel channel,
+            final int cacheSize, HandleTable handleTable) {
+        if (cacheSize <= 0)
+            throw new IllegalArgumentException("Bad cache size: " + cacheSize);
+        if (handleTable == null)
+            throw new NullPointerException("handleTable");
+        this.buffer = buffer;
+        this.channel = channel;
+        this.offsets = handleTable;
+        this.cache = new LinkedHashMap<Integer, SEntity>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, SEntity> e) {
+                return size() > cacheSize;
+            }
+        };
+        this.builder = new Builder();
+        this.scan = new SerialScan(builder);
+        builders.add(builder);
+    }
+
+    /**
+     * Return the representation of the next object read from the stream,
+     * as for {@link SerialScan#readObject()}.
+     *
+     * @return the representation of the object read from the stream.
+     * @throws IOException if there is an I/O exception reading the object.
+     */
+    public SEntity readObject() throws IOException {
+        return scan.readObject();
+    }
+
+    /**
+     * Return statistics about what this scan has read so far, not counting
+     * objects that were read again.
+     *
+     * @return a snapshot of the statistics for this scan.
+     */
+    public ScanStatistics getStatistics() {
+        return scan.getStatistics();
+    }
+
+    /**
+     * The number of times an object had to be read again because it was
+     * no longer in the cache.
+     *
+     * @return the number of objects that were read again.
+     */
+    public long getRereadCount() {
+        return rereads;
+    }
+
+    private void recordHandle(int handle, SEntity x) {
+        if (x instanceof SerialScan.ClassDesc) {
+            // The SerialScan keeps class descriptors itself.
+            offsets.set(handle, -1);
+        } else {
+            offsets.set(handle, scan.entityStart());
+            cache.put(handle, x);
+        }
+    }
+
+    private SEntity lookupHandle(int handle) throws IOException {
+        SEntity x = cache.get(handle);
+        if (x != null)
+            return x;
+        // An object that is still being built may have been evicted from the
+        // cache by the objects inside it. Reading it again would evict it
+        // again, forever, if it is in a cycle longer than the cache.
+        for (int i = builders.size() - 1; i >= 0; i--) {
+            x = builders.get(i).building(handle);
+            if (x != null)
+                return x;
+        }
+        long offset = offsets.get(handle);
+        if (offset < 0)
+            return null;
+        return reread(handle, offset);
+    }
+
+    private SEntity reread(int handle, long offset) throws IOException {
+        rereads++;
+        Rereader rereader = new Rereader();
+        SerialScan s = new SerialScan(rereader);
+        builders.add(rereader);
+        try {
+            if (buffer != null) {
+                ByteBuffer b = buffer.duplicate();
+                b.position(buffer.position() + (int) offset);
+                s.replay(scan, b, handle);
+            } else
+                s.replay(scan, new ChannelInputStream(channel, offset), handle);
+        } finally {
+            builders.remove(builders.size() - 1);
+        }
+        return rereader.takeRoot();
+    }
+
+    /**
+     * Builds the objects that the scan reads for the first time.
+     */
+    private class Builder extends TreeBuilder {
+        @Override
+        void newHandle(int handle, SEntity x) {
+            recordHandle(handle, x);
+        }
+
+        @Override
+        SEntity lookup(int handle) throws IOException {
+            return lookupHandle(handle);
+        }
+
+        @Override
+        void reset() {
+            cache.clear();
+            offsets.clear();
+        }
+    }
+
+    /**
+     * Builds an object that is being read again. Handles inside it have
+     * offsets already, but the objects go back into the cache.
+     */
+    private class Rereader extends TreeBuilder {
+        @Override
+        void newHandle(int handle, SEntity x) {
+            if (handle >= 0 && !(x instanceof SerialScan.ClassDesc))
+                cache.put(handle, x);
+        }
+
+        @Override
+        SEntity lookup(int handle) throws IOException {
+            return lookupHandle(handle);
+        }
+    }
+
+    /**
+     * An {@code InputStream} that reads a file from a given position using
+     * positional reads, so several of them can read the same file.
+     */
+    private static class ChannelInputStream extends InputStream {
+        ChannelInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0)
+                position += n;
+            return n;
+        }
+
+        private final FileChannel channel;
+        private long position;
+    }
+
+    private final ByteBuffer buffer;
+    private final FileChannel channel;
+    private final SerialScan scan;
+    private final Builder builder;
+    private final LinkedHashMap<Integer, SEntity> cache;
+    private final HandleTable offsets;
+    // The builder of the scan, then those of any rereads in progress.
+    private final List<TreeBuilder> builders = new ArrayList<TreeBuilder>();
+    private long rereads;
+}
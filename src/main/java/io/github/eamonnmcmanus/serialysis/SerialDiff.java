@@ -0,0 +1,456 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ArrayClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.PrimitiveClassDesc;
+
+/**
+ * <p>Compare the objects in two serial streams, for example a snapshot of
+ * some state from before and after a change, and report how they
+ * differ.</p>
+ *
+ * <p>The streams are compared structurally. The <em>n</em>th top-level
+ * object of one stream is matched with the <em>n</em>th of the other, and
+ * from there each field of an object is matched with the field of the same
+ * name in the corresponding object, each element of an array with the
+ * element at the same index, and each item of data written by a
+ * {@code writeObject} method with the item in the same position. Each
+ * difference is reported with the path to it from the top-level object, for
+ * example {@code [0].map.table[3].value}, where {@code <data>} stands for
+ * the data written by {@code writeObject}.</p>
+ *
+ * <ul>
+ * <li>A field that only the new object has, such as a field added to its
+ * class, is {@link Difference.Kind#ADDED ADDED}, and so is an array element
+ * or top-level object beyond the end of the old ones.</li>
+ * <li>Similarly, something that only the old stream has is
+ * {@link Difference.Kind#REMOVED REMOVED}.</li>
+ * <li>Two values that are both present but are not the same are
+ * {@link Difference.Kind#CHANGED CHANGED}. Objects of different classes
+ * are different values, and are not compared further.</li>
+ * <li>Two objects of the same class are also {@code CHANGED}, at the path
+ * of the objects, if the class or one of its superclasses has a different
+ * {@code serialVersionUID} in each stream. Their fields are then compared
+ * as usual.</li>
+ * </ul>
+ *
+ * <p>The streams are read into {@link SGraph}s, where every object has a
+ * {@linkplain SEntity#getFingerprint fingerprint} of its contents. Objects with the same fingerprint are
+ * assumed to be the same, so the comparison only looks inside the parts of
+ * the streams that changed. A pair of objects that has already been
+ * compared is not compared again, which means that an object that is
+ * referenced from several places, or that is part of a cycle, is reported
+ * at most once, at the first path where it was reached.</p>
+ */
+public final class SerialDiff {
+    private SerialDiff() {
+    }
+
+    /**
+     * Compare every top-level object of two serial streams, read up to
+     * the end of each stream.
+     *
+     * @param oldStream the stream to compare against.
+     * @param newStream the stream that might have changed.
+     * @return the differences, in the order they were found.
+     * @throws IOException if there is a problem reading the streams or they
+     *     are incorrectly formatted.
+     */
+    public static List<Difference> diff(InputStream oldStream,
+            InputStream newStream) throws IOException {
+        SGraph oldGraph = SGraph.scan(oldStream);
+        SGraph newGraph = SGraph.scan(newStream);
+        return diff(oldGraph, newGraph);
+    }
+
+    /**
+     * Compare every top-level object of two graphs. The graphs can be in
+     * any {@link GraphStorage}, so two streams too large for the heap can
+     * be compared in direct buffers or in mapped files.
+     *
+     * @param oldGraph the graph to compare against.
+     * @param newGraph the graph that might have changed.
+     * @return the differences, in the order they were found.
+     */
+    public static List<Difference> diff(SGraph oldGraph, SGraph newGraph) {
+        return new Comparison(oldGraph, newGraph).run();
+    }
+
+    /**
+     * One way in which two streams differ.
+     */
+    public static final class Difference {
+        /**
+         * What sort of difference it is.
+         */
+        public enum Kind {
+            /** Something in the new stream that the old one does not have. */
+            ADDED,
+            /** Something in the old stream that the new one does not have. */
+            REMOVED,
+            /** Something that is in both streams with different values. */
+            CHANGED
+        }
+
+        Difference(Kind kind, String path, SEntity oldValue, SEntity newValue) {
+            this.kind = kind;
+            this.path = path;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * The path to the value that differs, starting with the index of
+         * the top-level object, such as {@code [2].next.name}.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * The value in the old stream, or null if it was
+         * {@link Kind#ADDED ADDED} or was a null reference.
+         */
+        public SEntity getOldValue() {
+            return oldValue;
+        }
+
+        /**
+         * The value in the new stream, or null if it was
+         * {@link Kind#REMOVED REMOVED} or is a null reference.
+         */
+        public SEntity getNewValue() {
+            return newValue;
+        }
+
+        /**
+         * A one-line description of the difference, such as
+         * {@code CHANGED [0].count: 3 -> 4}. Objects are described by their
+         * class, not their contents.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(kind).append(" ").append(path).append(": ");
+            switch (kind) {
+                case ADDED:
+                    sb.append(describe(newValue));
+                    break;
+                case REMOVED:
+                    sb.append(describe(oldValue));
+                    break;
+                default:
+                    sb.append(describe(oldValue)).append(" -> ")
+                            .append(describe(newValue));
+            }
+            return sb.toString();
+        }
+
+        private static String describe(SEntity x) {
+            if (x == null)
+                return "null";
+            if (x instanceof SPrim)
+                return String.valueOf(((SPrim) x).getValue());
+            if (x instanceof SString)
+                return "\"" + ((SString) x).getValue() + "\"";
+            if (x instanceof SArray)
+                return x.kind() + "(" + x.getType() + ")[" + ((SArray) x).length() + "]";
+            return x.kind() + "(" + x.getType() + ")";
+        }
+
+        private final Kind kind;
+        private final String path;
+        private final SEntity oldValue;
+        private final SEntity newValue;
+    }
+
+    /**
+     * The state of one comparison. Pairs of entities still to be compared
+     * are on a stack rather than compared recursively, because a long
+     * linked list would otherwise overflow the thread's stack.
+     */
+    private static class Comparison {
+        Comparison(SGraph a, SGraph b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        List<Difference> run() {
+            int na = a.getRootCount();
+            int nb = b.getRootCount();
+            for (int i = 0; i < Math.min(na, nb); i++)
+                later.add(new Pair("[" + i + "]", a.roots.get(i), b.roots.get(i)));
+            flush();
+            while (!pending.isEmpty()) {
+                Pair p = pending.pop();
+                compare(p.path, p.idA, p.idB);
+                flush();
+            }
+            for (int i = nb; i < na; i++)
+                removed("[" + i + "]", a.getRoot(i));
+            for (int i = na; i < nb; i++)
+                added("[" + i + "]", b.getRoot(i));
+            return differences;
+        }
+
+        private void compare(String path, int idA, int idB) {
+            if (idA == -1 || idB == -1) {
+                if (idA != idB)
+                    changed(path, a.getEntity(idA), b.getEntity(idB));
+                return;
+            }
+            if (a.hashes.get(idA) == b.hashes.get(idB))
+                return;
+            if (!compared.add(((long) idA << 32) | (idB & 0xffffffffL)))
+                return;
+            byte kind = a.kinds.get(idA);
+            if (kind != b.kinds.get(idB) || !sameClass(kind, idA, idB)) {
+                changed(path, a.getEntity(idA), b.getEntity(idB));
+                return;
+            }
+            switch (kind) {
+                case SGraph.OBJECT:
+                    if (serialVersionUIDChanged(idA, idB))
+                        changed(path, a.getEntity(idA), b.getEntity(idB));
+                    compareObjects(path, idA, idB);
+                    break;
+                case SGraph.ARRAY:
+                    compareArrays(path, idA, idB);
+                    break;
+                default:
+                    // A string, enum constant, class, or block data, whose
+                    // fingerprint covers everything about it.
+                    changed(path, a.getEntity(idA), b.getEntity(idB));
+            }
+        }
+
+        private boolean sameClass(byte kind, int idA, int idB) {
+            switch (kind) {
+                case SGraph.OBJECT:
+                case SGraph.ARRAY:
+                case SGraph.ENUM:
+                    return desc(a, idA).getType().equals(desc(b, idB).getType());
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * True if a class that is in the hierarchies of both objects has a
+         * different {@code serialVersionUID} in each, which makes the
+         * streams incompatible even if no field changed.
+         */
+        private boolean serialVersionUIDChanged(int idA, int idB) {
+            for (ObjectClassDesc ca : desc(a, idA).getHierarchy()) {
+                for (ObjectClassDesc cb : desc(b, idB).getHierarchy()) {
+                    if (ca.getType().equals(cb.getType())
+                            && ca.getSerialVersionUID() != cb.getSerialVersionUID())
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        private void compareObjects(String path, int idA, int idB) {
+            Shape sa = desc(a, idA).getShape();
+            Shape sb = desc(b, idB).getShape();
+            long startA = a.starts.get(idA);
+            long startB = b.starts.get(idB);
+            for (String name : sa.names()) {
+                int slotA = sa.slotOf(name);
+                long bitsA = a.slots.get(startA + sa.fieldOfSlot(slotA));
+                char typeA = sa.typeCodeOf(slotA);
+                int slotB = sb.slotOf(name);
+                if (slotB < 0) {
+                    removed(path + "." + name, value(a, typeA, bitsA));
+                    continue;
+                }
+                long bitsB = b.slots.get(startB + sb.fieldOfSlot(slotB));
+                char typeB = sb.typeCodeOf(slotB);
+                if (differs(typeA, bitsA, typeB, bitsB))
+                    compareValues(path + "." + name, typeA, bitsA, typeB, bitsB);
+            }
+            for (String name : sb.names()) {
+                if (sa.slotOf(name) < 0) {
+                    int slotB = sb.slotOf(name);
+                    long bitsB = b.slots.get(startB + sb.fieldOfSlot(slotB));
+                    added(path + "." + name, value(b, sb.typeCodeOf(slotB), bitsB));
+                }
+            }
+            long[] annA = annotations(a, idA);
+            long[] annB = annotations(b, idB);
+            long lengthA = annA[1] - annA[0];
+            long lengthB = annB[1] - annB[0];
+            for (long i = 0; i < Math.max(lengthA, lengthB); i++) {
+                if (i >= lengthB) {
+                    removed(path + ".<data>[" + i + "]",
+                            a.getEntity((int) a.slots.get(annA[0] + i)));
+                } else if (i >= lengthA) {
+                    added(path + ".<data>[" + i + "]",
+                            b.getEntity((int) b.slots.get(annB[0] + i)));
+                } else {
+                    long bitsA = a.slots.get(annA[0] + i);
+                    long bitsB = b.slots.get(annB[0] + i);
+                    if (differs((char) 0, bitsA, (char) 0, bitsB)) {
+                        compareValues(path + ".<data>[" + i + "]",
+                                (char) 0, bitsA, (char) 0, bitsB);
+                    }
+                }
+            }
+        }
+
+        private void compareArrays(String path, int idA, int idB) {
+            char type = componentTypeCode(a, idA);
+            int lengthA = a.lengths.get(idA);
+            int lengthB = b.lengths.get(idB);
+            long startA = a.starts.get(idA);
+            long startB = b.starts.get(idB);
+            int width = (type == 0) ? 0 : SGraph.width(type);
+            for (int i = 0; i < Math.max(lengthA, lengthB); i++) {
+                long bitsA = 0, bitsB = 0;
+                if (i < lengthA) {
+                    bitsA = (type == 0) ? a.slots.get(startA + i)
+                            : a.bytes.get(startA + (long) i * width, width);
+                }
+                if (i < lengthB) {
+                    bitsB = (type == 0) ? b.slots.get(startB + i)
+                            : b.bytes.get(startB + (long) i * width, width);
+                }
+                if (i >= lengthB)
+                    removed(path + "[" + i + "]", value(a, type, bitsA));
+                else if (i >= lengthA)
+                    added(path + "[" + i + "]", value(b, type, bitsB));
+                else if (differs(type, bitsA, type, bitsB))
+                    compareValues(path + "[" + i + "]", type, bitsA, type, bitsB);
+            }
+        }
+
+        /**
+         * False if two values, as for {@link #compareValues}, are certainly
+         * the same: equal primitives, two nulls, or entities with the same
+         * fingerprint. Then no path is built for them, so that comparing
+         * two big arrays that differ in a few elements builds a few paths.
+         */
+        private boolean differs(char typeA, long bitsA, char typeB, long bitsB) {
+            if (typeA != typeB)
+                return true;
+            if (typeA != 0)
+                return bitsA != bitsB;
+            int idA = (int) bitsA;
+            int idB = (int) bitsB;
+            if (idA == -1 || idB == -1)
+                return idA != idB;
+            return a.hashes.get(idA) != b.hashes.get(idB);
+        }
+
+        /**
+         * Compare two field or element values, each of which is either a
+         * primitive with the given type code or, if the type code is 0, the
+         * id of an entity. Entities are compared later.
+         */
+        private void compareValues(String path, char typeA, long bitsA,
+                char typeB, long bitsB) {
+            if (typeA == 0 && typeB == 0)
+                later.add(new Pair(path, (int) bitsA, (int) bitsB));
+            else if (typeA != typeB || bitsA != bitsB)
+                changed(path, value(a, typeA, bitsA), value(b, typeB, bitsB));
+        }
+
+        /**
+         * Push the pairs found while comparing one entity onto the stack
+         * so that they are compared next, in the order they were found.
+         */
+        private void flush() {
+            for (int i = later.size() - 1; i >= 0; i--)
+                pending.push(later.get(i));
+            later.clear();
+        }
+
+        private void added(String path, SEntity x) {
+            differences.add(new Difference(Difference.Kind.ADDED, path, null, x));
+        }
+
+        private void removed(String path, SEntity x) {
+            differences.add(new Difference(Difference.Kind.REMOVED, path, x, null));
+        }
+
+        private void changed(String path, SEntity x, SEntity y) {
+            differences.add(new Difference(Difference.Kind.CHANGED, path, x, y));
+        }
+
+        private static SEntity value(SGraph graph, char typeCode, long bits) {
+            if (typeCode == 0)
+                return graph.getEntity((int) bits);
+            return new SPrim(TreeBuilder.box(typeCode, bits));
+        }
+
+        private static ObjectClassDesc desc(SGraph graph, int id) {
+            return graph.classes.get(graph.classIds.get(id));
+        }
+
+        private static char componentTypeCode(SGraph graph, int id) {
+            Object component =
+                    ((ArrayClassDesc) desc(graph, id)).getComponentClassDesc();
+            return (component instanceof PrimitiveClassDesc)
+                    ? ((PrimitiveClassDesc) component).typeCode : 0;
+        }
+
+        /**
+         * The range of slots holding the annotations of an object, which is
+         * empty if it has none.
+         */
+        private static long[] annotations(SGraph graph, int id) {
+            int i = graph.annotations.get(id);
+            if (i < 0)
+                return new long[2];
+            return new long[] {
+                graph.annotationStarts.get(i), graph.annotationStarts.get(i + 1)
+            };
+        }
+
+        private final SGraph a;
+        private final SGraph b;
+        private final Deque<Pair> pending = new ArrayDeque<Pair>();
+        private final List<Pair> later = new ArrayList<Pair>();
+        private final Set<Long> compared = new HashSet<Long>();
+        private final List<Difference> differences = new ArrayList<Difference>();
+    }
+
+    private static class Pair {
+        Pair(String path, int idA, int idB) {
+            this.path = path;
+            this.idA = idA;
+            this.idB = idB;
+        }
+
+        final String path;
+        final int idA;
+        final int idB;
+    }
+}
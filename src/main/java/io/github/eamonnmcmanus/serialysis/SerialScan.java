@@ -13,9 +13,8 @@
  */
 package io.github.eamonnmcmanus.serialysis;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;  // for javadoc
@@ -23,24 +22,25 @@ import java.io.ObjectOutputStream;
 
 import static java.io.ObjectStreamConstants.*;
 
-import java.io.SequenceInputStream;
 import java.io.StreamCorruptedException;
 import java.io.WriteAbortedException;
 import java.lang.reflect.Array;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-
-import static io.github.eamonnmcmanus.serialysis.Trace.enter;
-import static io.github.eamonnmcmanus.serialysis.Trace.exit;
-import static io.github.eamonnmcmanus.serialysis.Trace.show;
 
 /**
  * Scan a serial stream to produce a representation of each object
  * in the stream.
+ *
+ * <p>A scanner made with {@link #SerialScan(InputStream)} reads only the
+ * bytes of the values it scans, like {@link ObjectInputStream}, so other
+ * data can follow the serial stream on the same {@code InputStream}. A
+ * scanner given an {@code InputStream} with {@link #reset(InputStream)}
+ * instead reads a block at a time, which is faster but may consume bytes
+ * after the last value it scans.</p>
  */
 public class SerialScan {
 
@@ -51,16 +51,152 @@ public class SerialScan {
      * be examined to determine the object contents as serialized
      * in the serial stream.
      *
+     * <p>The scanner reads only the bytes that each value needs, so after
+     * {@code readObject()} the {@code InputStream} is positioned just after
+     * the value, and other data can follow it. Since that means many small
+     * reads, an {@code InputStream} that is not already buffered should be
+     * wrapped in a {@code BufferedInputStream}, or given to
+     * {@link #reset(InputStream)} if nothing else needs to read it.</p>
+     *
      * @param in the serial stream to be analyzed.
      * @throws IOException if there is a problem reading the
      *     {@code InputStream}, for example if it does not begin with
      *     the correct sequence of bytes.
      */
     public SerialScan(InputStream in) throws IOException {
-        this.in = in;
-        this.din = new DataInputStream(in);
-        if (din.readShort() != STREAM_MAGIC
-                || din.readShort() != STREAM_VERSION)
+        this();
+        input.reset(in, true);
+        start();
+    }
+
+    /**
+     * Scan the bytes between the position and the limit of the given
+     * {@code ByteBuffer} as a serial stream. The buffer's position is not
+     * changed.
+     *
+     * @param buffer the serial stream to be analyzed.
+     * @throws IOException if the stream does not begin with the correct
+     *     sequence of bytes.
+     */
+    public SerialScan(ByteBuffer buffer) throws IOException {
+        this();
+        reset(buffer);
+    }
+
+    /**
+     * Make a scanner that is not yet reading from anything. It must be given
+     * a serial stream with {@link #reset(InputStream)} or
+     * {@link #reset(ByteBuffer)} before it can be used.
+     *
+     * <p>A scanner that is reset for every message, for example one kept in
+     * a {@code ThreadLocal}, avoids allocating new buffers and a new handle
+     * table each time.</p>
+     */
+    public SerialScan() {
+        this(new TreeBuilder());
+    }
+
+    /**
+     * Make a scanner that reports what it reads to the given handler rather
+     * than building {@code SEntity} objects. The scanner must be given a
+     * serial stream with {@link #reset(InputStream)} or
+     * {@link #reset(ByteBuffer)}, and then {@link #scanNext()} reads each
+     * top-level value.
+     */
+    SerialScan(ScanHandler handler) {
+        this.handler = handler;
+        this.tree = (handler instanceof TreeBuilder) ? (TreeBuilder) handler : null;
+        this.maxContents = handler.wantsContents() ? handler.maxContentsLength() : -1;
+    }
+
+    /**
+     * Start scanning a new serial stream from the given {@code InputStream},
+     * forgetting everything about the previous one but keeping the buffers
+     * and handle table that were allocated for it. The statistics returned
+     * by {@link #getStatistics()} start again from zero.
+     *
+     * <p>Unlike with the {@link #SerialScan(InputStream)} constructor, the
+     * stream is read a block at a time, so the scanner may consume bytes
+     * that follow the last object it reads.</p>
+     *
+     * @param in the serial stream to be analyzed.
+     * @throws IOException if there is a problem reading the
+     *     {@code InputStream}, for example if it does not begin with
+     *     the correct sequence of bytes.
+     */
+    public void reset(InputStream in) throws IOException {
+        input.reset(in, false);
+        start();
+    }
+
+    /**
+     * Start scanning a new serial stream from the bytes between the position
+     * and the limit of the given {@code ByteBuffer}, as for
+     * {@link #reset(InputStream)}. The buffer's position is not changed.
+     *
+     * @param buffer the serial stream to be analyzed.
+     * @throws IOException if the stream does not begin with the correct
+     *     sequence of bytes.
+     */
+    public void reset(ByteBuffer buffer) throws IOException {
+        input.reset(buffer);
+        start();
+    }
+
+    /**
+     * Limit the size and shape of the streams that this scanner will read.
+     * If a stream exceeds one of the limits, the scanner throws
+     * {@link LimitExceededException} as soon as it sees that, and in
+     * particular before it allocates anything for an array, string, or
+     * block data whose length is over the limit. The limits are copied, so
+     * changing {@code limits} later has no effect unless this method is
+     * called again. They apply from the next value read.
+     *
+     * @param limits the limits, or null for no limits.
+     */
+    public void setLimits(ScanLimits limits) {
+        if (limits == null)
+            limits = new ScanLimits();
+        maxDepthLimit = limits.getMaxDepth();
+        maxArrayLength = limits.getMaxArrayLength();
+        maxReferences = limits.getMaxReferences();
+        maxStringLength = limits.getMaxStringLength();
+        maxBytes = limits.getMaxBytes();
+        maxBlockSize = limits.getMaxBlockSize();
+        maxHandles = limits.getMaxHandles();
+        maxAllocation = limits.getMaxAllocation();
+    }
+
+    /**
+     * A copy of the limits most recently given to {@link #setLimits}, or
+     * limits where nothing is limited if there were none. Changing the copy
+     * has no effect on this scanner.
+     */
+    public ScanLimits getLimits() {
+        ScanLimits limits = new ScanLimits();
+        limits.setMaxDepth(maxDepthLimit);
+        limits.setMaxArrayLength(maxArrayLength);
+        limits.setMaxReferences(maxReferences);
+        limits.setMaxStringLength(maxStringLength);
+        limits.setMaxBytes(maxBytes);
+        limits.setMaxBlockSize(maxBlockSize);
+        limits.setMaxHandles(maxHandles);
+        limits.setMaxAllocation(maxAllocation);
+        return limits;
+    }
+
+    private void start() throws IOException {
+        trace = Trace.forScan();
+        handleCount = 0;
+        references = allocation = 0;
+        extent = resumeAt = 0;
+        abort();
+        descs.clear();
+        if (tree != null)
+            tree.clear();
+        stats.clear();
+        if (input.readShort() != STREAM_MAGIC
+                || input.readShort() != STREAM_VERSION)
             throw new StreamCorruptedException("Bad stream header");
     }
 
@@ -68,215 +204,752 @@ public class SerialScan {
      * Examine the given object by serializing it and examining
      * the resultant serial stream.
      *
+     * <p>The stream is scanned in place in the buffer it was written to,
+     * without being copied. Each thread keeps that buffer and its scanner
+     * for its next call, unless the stream was bigger than a megabyte, so
+     * repeated calls allocate little more than the result.</p>
+     *
      * @param x the object to be examined.
      * @return the {@code SEntity} representing {@code x}.
      * @throws IllegalArgumentException if the object cannot be serialized or
      *     the resultant serial stream is incorrectly formatted.
      */
     public static SEntity examine(Object x) {
+        return examineAll(Collections.singletonList(x)).get(0);
+    }
+
+    /**
+     * Examine the given objects by serializing them, in order, through the
+     * same {@code ObjectOutputStream}, and scanning the resultant serial
+     * stream in one pass. Each class descriptor is written and scanned only
+     * once, so this is much faster than calling {@link #examine(Object)}
+     * for each of many objects of the same classes, such as RMI stubs.
+     * Objects of the same class share their field layout, and an object
+     * that is referenced from more than one of the given objects is the
+     * same {@code SEntity} in each of their results.
+     *
+     * @param xs the objects to be examined.
+     * @return the {@code SEntity} representing each object, in order.
+     * @throws IllegalArgumentException if an object cannot be serialized or
+     *     the resultant serial stream is incorrectly formatted.
+     */
+    public static List<SEntity> examineAll(Iterable<?> xs) {
+        Examiner examiner = examiners.get();
+        if (examiner.busy) {
+            // Called while serializing an object, for example from a
+            // writeObject method.
+            examiner = new Examiner();
+        }
+        examiner.busy = true;
         try {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bout);
-            oos.writeObject(x);
-            oos.close();
-            ByteArrayInputStream bin = new ByteArrayInputStream(bout.toByteArray());
-            SerialScan ss = new SerialScan(bin);
-            return ss.readObject();
+            return examiner.examine(xs);
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
+        } finally {
+            examiner.busy = false;
+            if (examiner.size() > MAX_RETAINED)
+                examiners.remove();
+        }
+    }
+
+    /**
+     * Examine the given objects as for {@link #examineAll(Iterable)}.
+     *
+     * @param xs the objects to be examined.
+     * @return the {@code SEntity} representing each object, in order.
+     * @throws IllegalArgumentException if an object cannot be serialized or
+     *     the resultant serial stream is incorrectly formatted.
+     */
+    public static List<SEntity> examineAll(Object... xs) {
+        return examineAll(Arrays.asList(xs));
+    }
+
+    /**
+     * The buffer and scanner that {@link #examineAll(Iterable)} uses. The
+     * buffer is a {@code ByteArrayOutputStream} so that the scanner can
+     * read its array directly.
+     */
+    private static class Examiner extends ByteArrayOutputStream {
+        List<SEntity> examine(Iterable<?> xs) throws IOException {
+            reset();
+            ObjectOutputStream oos = new ObjectOutputStream(this);
+            int n = 0;
+            for (Object x : xs) {
+                oos.writeObject(x);
+                n++;
+            }
+            oos.close();
+            try {
+                scan.reset(ByteBuffer.wrap(buf, 0, count));
+                List<SEntity> entities = new ArrayList<SEntity>(n);
+                for (int i = 0; i < n; i++)
+                    entities.add(scan.readObject());
+                return entities;
+            } finally {
+                // Don't keep the results reachable through the handle table.
+                scan.reset(ByteBuffer.wrap(EMPTY_STREAM));
+            }
         }
+
+        final SerialScan scan = new SerialScan();
+        boolean busy;
     }
 
+    private static final ThreadLocal<Examiner> examiners = new ThreadLocal<Examiner>() {
+        @Override
+        protected Examiner initialValue() {
+            return new Examiner();
+        }
+    };
+
+    private static final int MAX_RETAINED = 1 << 20;
+    private static final byte[] EMPTY_STREAM = {(byte) 0xac, (byte) 0xed, 0, 5};
+
     /**
      * Return the representation of the next object read from the serial stream.
      *
+     * <p>Each call produces a {@code io.github.eamonnmcmanus.serialysis.Scan}
+     * event for Java Flight Recorder, and updates the {@link ScanMetrics}
+     * if they have been registered.</p>
+     *
      * @return the representation of the object read from the serial stream.
      * @exception IOException if there is an I/O exception reading the object.
      */
     public SEntity readObject() throws IOException {
-        enter("readObject");
-        Object x = readObjectOrEnd();
-        if (x == END)
-            throw new StreamCorruptedException("Unexpected end-block-data");
-        if (x instanceof ClassDesc) {
-            throw new StreamCorruptedException("Unexpected classdesc");
-            // These are internal serialization objects which shouldn't
-            // escape to this level.
+        if (tree == null)
+            throw new IllegalStateException("Scanner does not build SEntity objects");
+        scanTopLevel();
+        return tree.takeRoot();
+    }
+
+    /**
+     * Continue scanning with the given heap buffer, which holds the bytes of
+     * the stream that follow those consumed so far, or as many of them as
+     * have arrived. See {@link IncrementalScan}.
+     */
+    void resumePartial(ByteBuffer buffer) {
+        input.resumePartial(buffer, input.position());
+    }
+
+    /**
+     * Read the next top-level value, or continue reading the one that an
+     * earlier call began, from the input given to {@link #resumePartial}.
+     * If the input ends first, return null and leave the position at the
+     * end of the last step that was complete, such as a field, an array
+     * element, or the header of a class descriptor. The frames of the value
+     * stay on the stack, so when the bytes from that position on are given
+     * to {@code resumePartial}, with more after them, the scan continues
+     * where it stopped. Resets before the value are consumed in either case.
+     *
+     * <p>A step that reads a string or block data needs all of it, so after
+     * such a step runs out of input, it is not tried again until the input
+     * reaches the end that the step saw. So a big string that arrives in
+     * many pieces is read one more time, not once for each piece.</p>
+     */
+    SEntity readObjectIfComplete() throws IOException {
+        if (tree == null)
+            throw new IllegalStateException("Scanner does not build SEntity objects");
+        if (sp == 0) {
+            if (atEnd())
+                return null;
+            beginTopLevel();
+        } else if (input.end() < resumeAt) {
+            return null;
+        } else {
+            resumeNanos = System.nanoTime();
+            if (timingDesc)
+                descStartNanos = resumeNanos;
         }
-        exit(x);
-        return (SEntity) x;
+        try {
+            run();
+        } catch (EOFException e) {
+            if (sp == 0)
+                throw e;
+            suspend();
+            return null;
+        }
+        endTopLevel();
+        return tree.takeRoot();
+    }
+
+    /**
+     * Stop scanning because the input of {@link #readObjectIfComplete} ran
+     * out in the middle of a step, and go back to the end of the last step
+     * that was complete.
+     */
+    private void suspend() {
+        abandonedBytes += input.position() - mark;
+        resumeAt = Math.max(extent, input.end() + 1);
+        input.rewind(mark);
+        long now = System.nanoTime();
+        valueNanos += now - resumeNanos;
+        if (timingDesc)
+            stats.descriptorNanos += now - descStartNanos;
     }
 
-    private SString readString() throws IOException {
-        enter("readString");
-        SEntity so = readObject();
-        return (SString) so;
+    /**
+     * True if {@link #readObjectIfComplete} has begun a top-level value
+     * that it has not finished.
+     */
+    boolean isInValue() {
+        return sp > 0;
+    }
+
+    /**
+     * The number of bytes that {@link #readObjectIfComplete} read in steps
+     * that ran out of input and had to be started again.
+     */
+    long getAbandonedBytes() {
+        return abandonedBytes;
     }
 
-    private SEntity readObjectOrEnd() throws IOException {
+    /**
+     * Scan the next top-level value in the stream, reporting it to the
+     * handler.
+     *
+     * @return false if the stream was already at its end, after any resets.
+     */
+    boolean scanNext() throws IOException {
+        if (atEnd())
+            return false;
+        scanTopLevel();
+        return true;
+    }
+
+    /**
+     * True if there are no more values in the stream. Any resets before the
+     * next value are consumed. This may block reading from the
+     * {@code InputStream} to find out.
+     */
+    boolean atEnd() throws IOException {
+        if (!input.isBound())
+            throw new IllegalStateException("No input");
         while (true) {
-            int code = din.readByte();
-            switch (code) {
-                case TC_OBJECT:
-                    return newObject();
-                case TC_CLASS:
-                    return newClass();
-                case TC_ARRAY:
-                    return newArray();
-                case TC_STRING:
-                    return newString();
-                case TC_LONGSTRING:
-                    return newLongString();
-                case TC_ENUM:
-                    return newEnum();
-                case TC_CLASSDESC:
-                case TC_PROXYCLASSDESC:
-                    classDesc(code); break;
-                case TC_REFERENCE:
-                    return prevObject();
-                case TC_NULL:
-                    return null;
-                case TC_EXCEPTION:
-                    exception(); break;
-                case TC_RESET:
-                    reset(); break;
-                case TC_BLOCKDATA:
-                    return blockDataShort();
-                case TC_BLOCKDATALONG:
-                    return blockDataLong();
-                case TC_ENDBLOCKDATA:
-                    return END;
-                default:
-                    throw new StreamCorruptedException("Bad type code: " + code);
-            }
+            if (input.atEnd())
+                return true;
+            if (input.peekByte() != TC_RESET)
+                return false;
+            input.readByte();
+            countTypeCode(TC_RESET);
+            resetHandles();
         }
     }
 
-    private SEntity newObject() throws IOException {
-        enter("newObject");
-        ObjectClassDesc desc = classDesc();
-        SObject t = new SObject(desc.getType());
-        newHandle(t);
-        for (ObjectClassDesc cd : desc.getHierarchy())
-            classData(t, cd);
-        exit(t);
-        return t;
+    private void scanTopLevel() throws IOException {
+        if (!input.isBound())
+            throw new IllegalStateException("No input");
+        beginTopLevel();
+        run();
+        endTopLevel();
     }
 
-    private void classData(SObject t, ObjectClassDesc cd) throws IOException {
-        int flags = cd.getFlags();
-        if ((flags & SC_SERIALIZABLE) != 0) {
-            // wrclass or nowrclass, both start with values:
-            for (FieldDesc fieldDesc : cd.getFields()) {
-                SEntity x = fieldDesc.read();
-                t.setField(fieldDesc.getName(), x);
-            }
-            if ((flags & SC_WRITE_METHOD) != 0) {
-                // wrclass has objectAnnotation, currently ignored
-                objectAnnotation(t);
+    private void beginTopLevel() {
+        event = new ScanEvent();
+        event.begin();
+        resumeNanos = System.nanoTime();
+        valueNanos = 0;
+        startBytes = input.position();
+        startEntities = stats.getEntityCount();
+        startClassDescs = stats.getClassDescriptorCount();
+        startResets = stats.resets;
+        maxDepth = 0;
+        mark = startBytes;
+        push(VALUE, startBytes, 0, false);
+    }
+
+    private void endTopLevel() {
+        long nanos = valueNanos + System.nanoTime() - resumeNanos;
+        stats.scanNanos += nanos;
+        if (maxDepth > stats.maxDepth)
+            stats.maxDepth = maxDepth;
+        long bytes = input.position() - startBytes;
+        long entities = stats.getEntityCount() - startEntities;
+        long classDescs = stats.getClassDescriptorCount() - startClassDescs;
+        long resets = stats.resets - startResets;
+        event.end();
+        if (event.shouldCommit()) {
+            event.bytesRead = bytes;
+            event.entities = entities;
+            event.classDescriptors = classDescs;
+            event.maxDepth = maxDepth;
+            event.resets = resets;
+            event.commit();
+        }
+        event = null;
+        if (ScanMetrics.isEnabled()) {
+            ScanMetrics.getInstance().record(bytes, entities, classDescs,
+                    resets, maxDepth, nanos);
+        }
+    }
+
+    /**
+     * Return statistics about what this scan has read so far.
+     *
+     * @return a snapshot of the statistics for this scan.
+     */
+    public ScanStatistics getStatistics() {
+        stats.bytesRead = input.position();
+        stats.handleTableSize = handleCount;
+        if (stats.handleTableSize > stats.maxHandleTableSize)
+            stats.maxHandleTableSize = stats.handleTableSize;
+        return new ScanStatistics(stats);
+    }
+
+    /**
+     * The number of bytes of the stream consumed so far.
+     */
+    long position() {
+        return input.position();
+    }
+
+    /*
+     * The stream is parsed with an explicit stack of frames rather than by
+     * recursive calls, so that a deeply nested stream can't overflow the
+     * Java stack, and so that an incremental scan can stop when its input
+     * runs out and continue later from the same place. Each frame reads one
+     * value or class descriptor, a step at a time. A step reads everything
+     * it needs before it changes anything, so a step that runs out of input
+     * can simply be started again.
+     */
+
+    /**
+     * Carry out the steps of the frames on the stack until there are none
+     * left. If the input of {@link #readObjectIfComplete} runs out, the
+     * frames are kept and {@code mark} is the end of the last complete
+     * step. Any other failure abandons the value.
+     */
+    private void run() throws IOException {
+        boolean failed = true;
+        try {
+            while (sp > 0) {
+                step(frames[sp - 1]);
+                mark = input.position();
             }
-        } else if ((flags & SC_EXTERNALIZABLE) != 0) {
-            if ((flags & SC_BLOCK_DATA) == 0)
-                throw new IOException("Can't handle externalContents");
-            objectAnnotation(t);
+            failed = false;
+        } catch (EOFException e) {
+            if (e == ScanInput.INCOMPLETE)
+                failed = false;
+            throw e;
+        } finally {
+            if (failed)
+                abort();
         }
     }
 
-    private void objectAnnotation(SObject t) throws IOException {
-        SEntity x;
-        while ((x = readObjectOrEnd()) != END)
-            t.addAnnotation(x);
+    private void abort() {
+        while (sp > 0)
+            pop();
+        timingDesc = false;
+        if (tree != null)
+            tree.abandon();
     }
 
-    private ClassDesc newClass() throws IOException {
-        ClassDesc desc = classDesc();
-        newHandle(desc);
-        return desc;
+    private Frame push(int kind, long start, int depth, boolean inDesc) {
+        if (sp == frames.length)
+            frames = Arrays.copyOf(frames, 2 * sp);
+        Frame f = frames[sp];
+        if (f == null)
+            f = frames[sp] = new Frame();
+        sp++;
+        f.init(kind, start, depth, inDesc);
+        return f;
     }
 
-    private ObjectClassDesc classDesc() throws IOException {
-        int code = din.readByte();
-        return classDesc(code);
+    private void pop() {
+        frames[--sp].clear();
     }
 
-    private ObjectClassDesc classDesc(int code) throws IOException {
-        enter("classDesc", code);
-        ObjectClassDesc classDesc = classDesc0(code);
-        exit(classDesc);
-        return classDesc;
+    private void step(Frame f) throws IOException {
+        switch (f.kind) {
+            case VALUE:
+                value(f); break;
+            case TC_OBJECT:
+                newObject(f); break;
+            case TC_CLASS:
+                newClass(f); break;
+            case TC_ARRAY:
+                newArray(f); break;
+            case TC_ENUM:
+                newEnum(f); break;
+            case TC_EXCEPTION:
+                exception(f); break;
+            case TC_CLASSDESC:
+                newPlainClassDesc(f); break;
+            case TC_PROXYCLASSDESC:
+                newProxyClassDesc(f); break;
+            default:
+                throw new AssertionError(f.kind);
+        }
     }
 
-    private ObjectClassDesc classDesc0(int code) throws IOException {
+    private void value(Frame f) throws IOException {
+        if (f.phase == START) {
+            if (readValue(f))
+                f.phase = END;
+        } else {
+            // The values that were read were checked against maxBytes as
+            // they began, but not the primitive fields that end them.
+            checkBytes(input.position(), 0);
+            pop();
+        }
+    }
+
+    /**
+     * Read a value that belongs to frame {@code f}, as for
+     * {@link #readValueOrEnd}, when an end-block-data marker is not allowed.
+     *
+     * @return true if a value was read or its frame pushed, or false if
+     *     something that comes before a value was read.
+     */
+    private boolean readValue(Frame f) throws IOException {
+        int got = readValueOrEnd(f);
+        if (got == GOT_END)
+            throw new StreamCorruptedException("Unexpected end-block-data");
+        return got == GOT_VALUE;
+    }
+
+    /**
+     * Read a value that belongs to frame {@code f} and report it to the
+     * handler, or read an end-block-data marker. An object, class, array,
+     * or enum gets a frame of its own, which is pushed to read the rest of
+     * it.
+     *
+     * @return {@code GOT_VALUE} if a value was read or its frame pushed,
+     *     {@code GOT_END} if an end-block-data marker was read, or
+     *     {@code GOT_OTHER} if a reset, a class descriptor, or an exception
+     *     was read, so the value is still to come.
+     */
+    private int readValueOrEnd(Frame f) throws IOException {
+        long start = input.position();
+        checkBytes(start, 1);
+        int code = input.readByte();
+        // Objects inside class descriptors don't count towards the depth.
+        int depth = f.inDesc ? f.depth : f.depth + 1;
         switch (code) {
+            case TC_OBJECT:
+            case TC_CLASS:
+            case TC_ARRAY:
+            case TC_ENUM:
+                beginValue(f, code);
+                trace.enter("readObject");
+                push(code, start, depth, f.inDesc);
+                return GOT_VALUE;
+            case TC_STRING:
+                newString(f, code, start, input.readUnsignedShort());
+                return GOT_VALUE;
+            case TC_LONGSTRING:
+                newString(f, code, start, input.readLong());
+                return GOT_VALUE;
             case TC_CLASSDESC:
-                return newPlainClassDesc();
             case TC_PROXYCLASSDESC:
-                return newProxyClassDesc();
+                beginValue(f, code);
+                pushClassDesc(f, code, start, depth);
+                return GOT_OTHER;
+            case TC_REFERENCE:
+                int h = prevHandle();
+                beginValue(f, code);
+                countReference();
+                handler.reference(h);
+                return GOT_VALUE;
             case TC_NULL:
-                return null;
+                beginValue(f, code);
+                handler.nullValue();
+                return GOT_VALUE;
+            case TC_EXCEPTION:
+                beginValue(f, code);
+                resetHandles();
+                handler.beginException();
+                push(code, start, depth, f.inDesc);
+                return GOT_OTHER;
+            case TC_RESET:
+                beginValue(f, code);
+                resetHandles();
+                return GOT_OTHER;
+            case TC_BLOCKDATA:
+                blockData(f, code, input.readUnsignedByte());
+                return GOT_VALUE;
+            case TC_BLOCKDATALONG:
+                blockData(f, code, input.readInt());
+                return GOT_VALUE;
+            case TC_ENDBLOCKDATA:
+                beginValue(f, code);
+                return GOT_END;
+            default:
+                throw new StreamCorruptedException("Bad type code: " + code);
+        }
+    }
+
+    /**
+     * Count the type code that begins what {@link #readValueOrEnd} read,
+     * and the depth it was read at.
+     */
+    private void beginValue(Frame f, int code) {
+        countTypeCode(code);
+        if (!f.inDesc && f.depth + 1 > maxDepth)
+            maxDepth = f.depth + 1;
+    }
+
+    private void endValue(int handle) {
+        trace.exit(handle);
+        trace.exit();
+        pop();
+    }
+
+    private void newObject(Frame f) throws IOException {
+        switch (f.phase) {
+            case START:
+                ObjectClassDesc desc = nonNullClassDesc(f);
+                if (desc == null)
+                    return;
+                trace.enter("newObject");
+                checkDepth(f.depth);
+                allocate(16 + 8L * desc.getAllFields().length);
+                f.desc = desc;
+                f.handle = newHandle(f.start, f.inDesc);
+                handler.beginObject(f.handle, desc);
+                f.phase = CONTENTS;
+                break;
+            case CONTENTS:
+                classData(f);
+                break;
+            case ANNOTATION:
+                if (readValueOrEnd(f) == GOT_END) {
+                    handler.endAnnotations();
+                    f.level++;
+                    f.index = 0;
+                    f.phase = CONTENTS;
+                }
+                break;
+            default:
+                throw new AssertionError(f.phase);
+        }
+    }
+
+    /**
+     * Take the next step in reading the data of an object, which has the
+     * data of each class in its hierarchy in turn.
+     */
+    private void classData(Frame f) throws IOException {
+        List<ObjectClassDesc> hierarchy = f.desc.getHierarchy();
+        while (f.level < hierarchy.size()) {
+            ObjectClassDesc cd = hierarchy.get(f.level);
+            int flags = cd.getFlags();
+            if ((flags & SC_SERIALIZABLE) != 0) {
+                // wrclass or nowrclass, both start with values:
+                FieldDesc[] fields = cd.getFields();
+                if (f.index < fields.length) {
+                    if (fields[f.index].read(this, f))
+                        f.index++;
+                    return;
+                }
+                if ((flags & SC_WRITE_METHOD) != 0) {
+                    // wrclass has objectAnnotation
+                    handler.beginAnnotations();
+                    f.phase = ANNOTATION;
+                    return;
+                }
+            } else if ((flags & SC_EXTERNALIZABLE) != 0) {
+                if ((flags & SC_BLOCK_DATA) == 0)
+                    throw new IOException("Can't handle externalContents");
+                handler.beginAnnotations();
+                f.phase = ANNOTATION;
+                return;
+            }
+            f.level++;
+            f.index = 0;
+        }
+        handler.endObject();
+        endValue(f.handle);
+    }
+
+    private void newClass(Frame f) throws IOException {
+        ObjectClassDesc desc = nonNullClassDesc(f);
+        if (desc == null)
+            return;
+        trace.enter("newClass");
+        int handle = newHandle(f.start, f.inDesc);
+        handler.classValue(handle, desc);
+        endValue(handle);
+    }
+
+    /**
+     * Return the class descriptor that frame {@code f} needs, as for
+     * {@link #readClassDesc}, or null if a frame was pushed to read it.
+     */
+    private ObjectClassDesc nonNullClassDesc(Frame f) throws IOException {
+        if (!readClassDesc(f))
+            return null;
+        if (f.received == null)
+            throw new StreamCorruptedException("Null class descriptor");
+        return f.received;
+    }
+
+    /**
+     * Read the class descriptor that frame {@code f} needs into
+     * {@code f.received}. If the descriptor is new, a frame is pushed to
+     * read it and this method returns false. When that frame is done, it
+     * sets {@code f.received}, and the next call returns true.
+     */
+    private boolean readClassDesc(Frame f) throws IOException {
+        if (f.gotDesc) {
+            f.gotDesc = false;
+            return true;
+        }
+        long start = input.position();
+        int code = input.readByte();
+        switch (code) {
+            case TC_CLASSDESC:
+            case TC_PROXYCLASSDESC:
+                countTypeCode(code);
+                pushClassDesc(f, code, start, f.depth);
+                f.wantsDesc = true;
+                return false;
+            case TC_NULL:
+                countTypeCode(code);
+                f.received = null;
+                return true;
             case TC_REFERENCE:
-                return (ObjectClassDesc) prevObject();
+                int h = prevHandle();
+                countTypeCode(code);
+                Object x = descs.get(h);
+                if (!(x instanceof ObjectClassDesc))
+                    throw new StreamCorruptedException("Bad class descriptor reference");
+                // A descriptor that refers to itself, for example as its
+                // own superclass, would make its hierarchy endless.
+                if (!((ObjectClassDesc) x).isComplete())
+                    throw new StreamCorruptedException(
+                            "Reference to a class descriptor that is not complete");
+                f.received = (ObjectClassDesc) x;
+                return true;
             default:
                 throw new StreamCorruptedException("Bad class descriptor");
         }
     }
 
-    private ObjectClassDesc newPlainClassDesc() throws IOException {
-        enter("newPlainClassDesc");
-        String className = din.readUTF();
-        show("className", className);
-        long serialVersionUID = din.readLong();
-        show("serialVersionUID", serialVersionUID);
-        // classDescInfo:
-        int flags = din.readByte();
-        show("flags", flags);
-        ObjectClassDesc desc;
-        if (className.startsWith("["))
-            desc = new ArrayClassDesc(className, flags);
-        else
-            desc = new ObjectClassDesc(className, flags);
-        newHandle(desc);
-        // fields:
-        int nfields = din.readShort();
-        show("nfields", nfields);
-        FieldDesc[] fields = new FieldDesc[nfields];
-        for (int i = 0; i < nfields; i++)
-            fields[i] = fieldDesc();
-        desc.setFields(fields);
-        classAnnotation(desc);
-        // superClassDesc:
-        ObjectClassDesc superDesc = classDesc();
-        show("superDesc", superDesc);
-        desc.setSuperClassDesc(superDesc);
-        exit(desc);
-        return desc;
+    /**
+     * Push a frame to read a class descriptor whose type code
+     * {@code code} is at offset {@code start} in the stream. Only the
+     * outermost descriptor is timed, since the time for a nested one, such
+     * as a superclass descriptor, is included in it.
+     */
+    private void pushClassDesc(Frame parent, int code, long start, int depth) {
+        trace.enter("classDesc", code);
+        Frame f = push(code, start, depth, true);
+        if (!parent.inDesc) {
+            f.timed = true;
+            timingDesc = true;
+            descStartNanos = System.nanoTime();
+        }
     }
 
-    private ObjectClassDesc newProxyClassDesc() throws IOException {
-        ObjectClassDesc desc = new ObjectClassDesc("<Proxy>", SC_SERIALIZABLE);
-        // SC_SERIALIZABLE but not SC_WRITE_METHOD
-        newHandle(desc);
-        int count = din.readInt();
-        String[] interfaces = new String[count];
-        for (int i = 0; i < count; i++)
-            interfaces[i] = din.readUTF();
-        // we don't do anything with this array for now
-        classAnnotation(desc);
-        ObjectClassDesc superDesc = classDesc();
-        desc.setSuperClassDesc(superDesc);
-        return desc;
+    private void newPlainClassDesc(Frame f) throws IOException {
+        if (f.phase == START) {
+            String className = input.readUTF();
+            long serialVersionUID = input.readLong();
+            // classDescInfo:
+            int flags = input.readByte();
+            trace.show("className", className);
+            trace.show("serialVersionUID", serialVersionUID);
+            trace.show("flags", flags);
+            ObjectClassDesc desc;
+            if (className.startsWith("["))
+                desc = new ArrayClassDesc(className, flags);
+            else
+                desc = new ObjectClassDesc(className, flags);
+            desc.setSerialVersionUID(serialVersionUID);
+            beginClassDesc(f, desc);
+            f.phase = SIZE;
+        } else if (f.phase == SIZE) {
+            // fields:
+            int nfields = input.readShort();
+            trace.show("nfields", nfields);
+            if (nfields < 0)
+                throw new StreamCorruptedException("Bad field count " + nfields);
+            f.fields = new FieldDesc[nfields];
+            f.phase = CONTENTS;
+        } else if (f.phase == CONTENTS) {
+            if (f.index < f.fields.length) {
+                FieldDesc field = fieldDesc();
+                f.fields[f.index++] = field;
+            } else {
+                f.desc.setFields(f.fields);
+                f.phase = ANNOTATION;
+            }
+        } else
+            endClassDesc(f);
+    }
+
+    private void newProxyClassDesc(Frame f) throws IOException {
+        if (f.phase == START) {
+            ObjectClassDesc desc = new ObjectClassDesc("<Proxy>", SC_SERIALIZABLE);
+            // SC_SERIALIZABLE but not SC_WRITE_METHOD
+            desc.setFields(new FieldDesc[0]);
+            beginClassDesc(f, desc);
+            f.phase = SIZE;
+        } else if (f.phase == SIZE) {
+            int count = input.readInt();
+            if (count < 0)
+                throw new StreamCorruptedException("Bad interface count " + count);
+            f.count = count;
+            f.phase = CONTENTS;
+        } else if (f.phase == CONTENTS) {
+            // We don't do anything with the interface names for now, and the
+            // count could be hostile, so don't allocate an array for them.
+            while (f.index < f.count) {
+                input.readUTF();
+                f.index++;
+                mark = input.position();
+            }
+            f.phase = ANNOTATION;
+        } else
+            endClassDesc(f);
     }
 
-    private void classAnnotation(ClassDesc desc) throws IOException {
-        // we currently throw away the annotation
-        Object x;
-        while ((x = readObjectOrEnd()) != END)
-            ;
+    private void beginClassDesc(Frame f, ObjectClassDesc desc) throws IOException {
+        int handle = newDescHandle();
+        putDesc(handle, desc);
+        entityStart = f.start;
+        handler.beginClassDesc(handle, desc);
+        f.desc = desc;
+    }
+
+    /**
+     * Take the next step in reading the end of a class descriptor, which is
+     * the same for a proxy class: the class annotation and then the
+     * superclass descriptor. When the descriptor is complete, its frame is
+     * popped and the descriptor is given to the frame below if that frame
+     * is waiting for it.
+     */
+    private void endClassDesc(Frame f) throws IOException {
+        if (f.phase == ANNOTATION) {
+            // The handler sees the annotation but it isn't part of any object.
+            if (readValueOrEnd(f) == GOT_END)
+                f.phase = SUPER;
+            return;
+        }
+        // superClassDesc:
+        if (!readClassDesc(f))
+            return;
+        ObjectClassDesc desc = f.desc;
+        trace.show("superDesc", f.received);
+        desc.setSuperClassDesc(f.received);
+        handler.endClassDesc();
+        trace.exit(desc);
+        if (f.timed) {
+            timingDesc = false;
+            stats.descriptorNanos += System.nanoTime() - descStartNanos;
+        }
+        pop();
+        Frame parent = frames[sp - 1];
+        if (parent.wantsDesc) {
+            parent.wantsDesc = false;
+            parent.gotDesc = true;
+            parent.received = desc;
+        }
     }
 
     private FieldDesc fieldDesc() throws IOException {
-        enter("fieldDesc");
-        char c = (char) din.readByte();
+        char c = (char) input.readByte();
         final boolean primitive;
         switch (c) {
             case 'B':
@@ -295,113 +968,520 @@ public class SerialScan {
             default:
                 throw new StreamCorruptedException("Bad field type " + (int) c);
         }
-        String name = din.readUTF();
+        String name = input.readUTF();
         FieldDesc desc;
         if (primitive)
             desc = new PrimitiveFieldDesc(name, c);
         else {
-            String className = readString().getValue();
+            String className = typeString();
             desc = new ReferenceFieldDesc(name, className);
         }
-        exit(desc);
+        trace.show("fieldDesc", desc);
         return desc;
     }
 
-    private SArray newArray() throws IOException {
-        enter("newArray");
-        ArrayClassDesc classDesc = (ArrayClassDesc) classDesc();
-        show("classDesc", classDesc);
-        int size = din.readInt();
-        show("size", size);
-        SArray array = new SArray(classDesc.getType(), size);
-        show("array class", array.getClass().getName());
-        newHandle(array);
+    /**
+     * Read the type string of a reference field. This is usually a new
+     * string or a reference to an earlier type string, but it could in
+     * principle be a reference to any earlier string. It is the last thing
+     * in a field descriptor, so it is reported only once it has been read.
+     */
+    private String typeString() throws IOException {
+        long start = input.position();
+        int code = input.readByte();
+        switch (code) {
+            case TC_STRING:
+            case TC_LONGSTRING:
+                long len = (code == TC_STRING) ? input.readUnsignedShort() : input.readLong();
+                String s = input.readUTF(len);
+                countTypeCode(code);
+                // This string can be referenced later as a value, so it
+                // doesn't get a descriptor handle.
+                int handle = newHandle(start, true);
+                putDesc(handle, s);
+                handler.string(handle, s);
+                countString(s.length());
+                return s;
+            case TC_REFERENCE:
+                int h = prevHandle();
+                countTypeCode(code);
+                handler.reference(h);
+                Object x = descs.get(h);
+                if (x instanceof String)
+                    return (String) x;
+                SEntity e = (tree == null) ? null : tree.getHandle(h);
+                if (e instanceof SString)
+                    return ((SString) e).getValue();
+                return "Ljava/lang/Object;";
+            default:
+                throw new StreamCorruptedException("Bad field type string");
+        }
+    }
+
+    private void newArray(Frame f) throws IOException {
+        switch (f.phase) {
+            case START:
+                ObjectClassDesc desc = nonNullClassDesc(f);
+                if (desc == null)
+                    return;
+                if (!(desc instanceof ArrayClassDesc))
+                    throw new StreamCorruptedException("Not an array class: " + desc);
+                trace.enter("newArray");
+                trace.show("classDesc", desc);
+                f.desc = desc;
+                f.phase = SIZE;
+                break;
+            case SIZE:
+                arraySize(f);
+                break;
+            case CONTENTS:
+                if (f.typeCode != 0) {
+                    char typeCode = f.typeCode;
+                    while (f.index < f.count) {
+                        handler.primitive(typeCode, readPrimitive(typeCode));
+                        f.index++;
+                        mark = input.position();
+                    }
+                } else if (f.index < f.count) {
+                    if (readValue(f))
+                        f.index++;
+                    return;
+                }
+                handler.endArray();
+                endValue(f.handle);
+                break;
+            default:
+                throw new AssertionError(f.phase);
+        }
+    }
+
+    private void arraySize(Frame f) throws IOException {
+        ArrayClassDesc classDesc = (ArrayClassDesc) f.desc;
+        int size = input.readInt();
+        trace.show("size", size);
+        if (size < 0)
+            throw new StreamCorruptedException("Bad array size " + size);
+        if (size > maxArrayLength)
+            throw limitExceeded("Array length " + size, "maxArrayLength", maxArrayLength);
+        checkDepth(f.depth);
         ClassDesc componentClassDesc = classDesc.getComponentClassDesc();
-        for (int i = 0; i < size; i++)
-            array.set(i, componentClassDesc.read());
-        exit(array);
-        return array;
+        // Every element takes at least one byte of the stream, so a size
+        // that the rest of the stream can't possibly hold is corrupt, and is
+        // rejected before the handler allocates anything for it.
+        int width = (componentClassDesc instanceof PrimitiveClassDesc)
+                ? SGraph.width(((PrimitiveClassDesc) componentClassDesc).typeCode)
+                : 1;
+        long remaining = input.remaining();
+        if (remaining >= 0 && (long) size * width > remaining)
+            throw new StreamCorruptedException("Array size " + size
+                    + " is larger than the rest of the stream");
+        checkBytes(input.position(), (long) size * width);
+        allocate((componentClassDesc instanceof PrimitiveClassDesc)
+                ? (long) size * width : 8L * size);
+        f.handle = newHandle(f.start, f.inDesc);
+        if (size > stats.largestArray)
+            stats.largestArray = size;
+        handler.beginArray(f.handle, classDesc, size);
+        f.count = size;
+        if (componentClassDesc instanceof PrimitiveClassDesc)
+            f.typeCode = ((PrimitiveClassDesc) componentClassDesc).typeCode;
+        f.phase = CONTENTS;
     }
 
-    private SString newString() throws IOException {
-        SString s = new SString(din.readUTF());
-        newHandle(s);
-        return s;
+    /**
+     * Read a string whose type code is at offset {@code start} and whose
+     * length has been read. All of the string is read before anything is
+     * reported, so if the input runs out the step can be started again.
+     */
+    private void newString(Frame f, int code, long start, long utflen)
+            throws IOException {
+        if (utflen < 0)
+            throw new StreamCorruptedException("Bad string length " + utflen);
+        if (utflen > maxStringLength)
+            throw limitExceeded("String length " + utflen, "maxStringLength", maxStringLength);
+        checkBytes(input.position(), utflen);
+        checkAllocation(2 * utflen);
+        String s = null;
+        if (utflen > maxContents)
+            input.skip(utflen);
+        else
+            s = input.readUTF(utflen);
+        beginValue(f, code);
+        allocate(2 * utflen);
+        int handle = newHandle(start, f.inDesc);
+        if (s == null) {
+            handler.skippedString(handle, utflen);
+            countString(utflen);
+        } else {
+            handler.string(handle, s);
+            countString(s.length());
+        }
     }
 
-    private SString newLongString() throws IOException {
-        /*
-         * The Java libraries don't offer a way to read a UTF8-encoded
-         * string without reading an initial two-byte length.  Serialized
-         * long strings have an eight-byte length.  So we fabricate a
-         * sequence of substreams where each but the last has a length
-         * of 65535 and the last has whatever bytes are left over.
-         */
-        long len = din.readLong();
-        StringBuilder sb = new StringBuilder();
-        while (len > 0) {
-            int slice = (int) Math.min(len, 65535);
-            byte[] blen = {(byte) (slice >> 8), (byte) slice};
-            InputStream lenis = new ByteArrayInputStream(blen);
-            InputStream seqis = new SequenceInputStream(lenis, din);
-            DataInputStream ddin = new DataInputStream(seqis);
-            String s = ddin.readUTF();
-            assert s.length() == slice;
-            sb.append(s);
-            len -= slice;
-        }
-        return new SString(sb.toString());
-    }
-
-    private SObject newEnum() throws IOException {
-        ClassDesc classDesc = classDesc();
-        SObject enumConst = new SObject(classDesc.getType());
-        newHandle(enumConst);
-        SString constName = readString();
-        enumConst.setField("<name>", constName);
-        return enumConst;
-    }
-
-    private void exception() throws IOException {
-        reset();
-        IOException exc = new IOException(readObject().toString());
-        reset();
+    private void newEnum(Frame f) throws IOException {
+        switch (f.phase) {
+            case START:
+                ObjectClassDesc classDesc = nonNullClassDesc(f);
+                if (classDesc == null)
+                    return;
+                trace.enter("newEnum");
+                checkDepth(f.depth);
+                f.handle = newHandle(f.start, f.inDesc);
+                handler.beginEnum(f.handle, classDesc);
+                f.phase = CONTENTS;
+                break;
+            case CONTENTS:
+                if (readValue(f))
+                    f.phase = END;
+                break;
+            case END:
+                handler.endEnum();
+                endValue(f.handle);
+                break;
+            default:
+                throw new AssertionError(f.phase);
+        }
+    }
+
+    private void exception(Frame f) throws IOException {
+        if (f.phase == START) {
+            if (readValue(f))
+                f.phase = END;
+            return;
+        }
+        IOException exc = new IOException(handler.endException());
+        resetHandles();
+        pop();
         throw new WriteAbortedException("Writing aborted", exc);
     }
 
-    private SBlockData blockDataShort() throws IOException {
-        int len = din.readUnsignedByte();
-        return blockData(len);
+    /**
+     * Read block data whose length has been read, as for
+     * {@link #newString}.
+     */
+    private void blockData(Frame f, int code, int len) throws IOException {
+        if (len < 0)
+            throw new StreamCorruptedException("Bad block data length " + len);
+        if (len > maxBlockSize)
+            throw limitExceeded("Block data length " + len, "maxBlockSize", maxBlockSize);
+        checkBytes(input.position(), len);
+        checkAllocation(len);
+        byte[] data = null;
+        if (len > maxContents)
+            input.skip(len);
+        else
+            data = readBlock(len);
+        beginValue(f, code);
+        allocate(len);
+        if (data == null)
+            handler.skippedBlockData(len);
+        else
+            handler.blockData(data);
+    }
+
+    /**
+     * Read {@code len} bytes of block data. The length comes from the
+     * stream, so rather than trusting it with one big allocation, a long
+     * block is read into an array that grows as the data actually arrives.
+     * A stream that claims a huge block and then ends costs no more memory
+     * than the bytes it really contains.
+     */
+    private byte[] readBlock(int len) throws IOException {
+        if (len <= BLOCK_CHUNK || input.remaining() >= len) {
+            byte[] data = new byte[len];
+            input.readFully(data);
+            return data;
+        }
+        byte[] data = new byte[BLOCK_CHUNK];
+        int n = 0;
+        while (n < len) {
+            if (n == data.length)
+                data = Arrays.copyOf(data, (int) Math.min(len, 2L * n));
+            int k = data.length - n;
+            input.readFully(data, n, k);
+            n += k;
+        }
+        return data;
+    }
+
+    private static final int BLOCK_CHUNK = 8192;
+
+    private void checkDepth(int depth) throws LimitExceededException {
+        if (depth > maxDepthLimit)
+            throw limitExceeded("Depth " + depth, "maxDepth", maxDepthLimit);
+    }
+
+    /**
+     * Check that the {@code n} bytes starting at offset {@code start} are
+     * within the maximum length of the stream, and remember that the stream
+     * is at least that long.
+     */
+    private void checkBytes(long start, long n) throws LimitExceededException {
+        if (start + n > maxBytes)
+            throw limitExceeded("Stream length " + (start + n), "maxBytes", maxBytes);
+        if (start + n > extent)
+            extent = start + n;
+    }
+
+    private void countReference() throws LimitExceededException {
+        if (++references > maxReferences)
+            throw limitExceeded("Reference count " + references, "maxReferences", maxReferences);
+    }
+
+    private void checkHandles() throws LimitExceededException {
+        if (handleCount > maxHandles)
+            throw limitExceeded("Handle count " + handleCount, "maxHandles", maxHandles);
+    }
+
+    /**
+     * Check that allocating {@code n} more bytes would not exceed the
+     * limit, before reading what they are for.
+     */
+    private void checkAllocation(long n) throws LimitExceededException {
+        if (allocation + n > maxAllocation)
+            throw limitExceeded("Allocation " + (allocation + n), "maxAllocation", maxAllocation);
+    }
+
+    private void allocate(long n) throws LimitExceededException {
+        allocation += n;
+        if (allocation > maxAllocation)
+            throw limitExceeded("Allocation " + allocation, "maxAllocation", maxAllocation);
     }
 
-    private SBlockData blockDataLong() throws IOException {
-        int len = din.readInt();
-        return blockData(len);
+    private static LimitExceededException limitExceeded(
+            String what, String limit, long value) {
+        return new LimitExceededException(
+                what + " exceeds " + limit + " " + value, limit);
     }
 
-    private SBlockData blockData(int len) throws IOException {
-        byte[] data = new byte[len];
-        din.readFully(data);
-        return new SBlockData(data);
+    /**
+     * Allocate the handle of a value whose type code is at offset
+     * {@code start} in the stream, and which is inside a class descriptor
+     * if {@code inDesc}.
+     */
+    private int newHandle(long start, boolean inDesc) throws LimitExceededException {
+        entityStart = start;
+        countReference();
+        if (replayHandle >= 0) {
+            if (inDesc)
+                return -1;  // see newDescHandle
+            // The value being replayed gets the handle it had originally.
+            int h = replayHandle;
+            replayHandle = -1;
+            handleCount = h + 1;
+            return h;
+        }
+        int h = handleCount++;
+        checkHandles();
+        return h;
     }
 
-    private void newHandle(SEntity o) {
-        handles.add(o);
+    /**
+     * Allocate the handle of a class descriptor. When replaying, the
+     * descriptors before the replayed value, and anything inside them,
+     * already have handles, and it isn't known what they are, so they
+     * get -1.
+     */
+    private int newDescHandle() throws LimitExceededException {
+        if (replayHandle >= 0)
+            return -1;
+        int h = handleCount++;
+        checkHandles();
+        return h;
     }
 
-    private SEntity prevObject() throws IOException {
-        int h = din.readInt();
+    private void putDesc(int handle, Object x) {
+        if (original == null)
+            descs.put(handle, x);
+    }
+
+    /**
+     * The offset in the stream of the type code of the value whose handle
+     * was most recently allocated. A handler can record this offset and
+     * use {@link #replay} to read the value again. During
+     * {@link ScanHandler#beginClassDesc}, it is the offset of the class
+     * descriptor's type code.
+     */
+    long entityStart() {
+        return entityStart;
+    }
+
+    /**
+     * Read again a value that the scan {@code original} has already read.
+     * The {@code source} must be positioned at the value's type code, and
+     * {@code handle} is the handle that the value has in the original scan.
+     * Values inside it are given the handles they had originally, and class
+     * descriptors are found in the original scan's table. This scan's
+     * handler sees the value as a top-level value.
+     */
+    void replay(SerialScan original, ByteBuffer source, int handle)
+            throws IOException {
+        input.reset(source);
+        replay(original, handle);
+    }
+
+    /**
+     * As {@link #replay(SerialScan, ByteBuffer, int)}, reading the value
+     * from an {@code InputStream}.
+     */
+    void replay(SerialScan original, InputStream source, int handle)
+            throws IOException {
+        input.reset(source, false);
+        replay(original, handle);
+    }
+
+    private void replay(SerialScan original, int handle) throws IOException {
+        this.original = original;
+        this.descs = original.descs;
+        this.trace = original.trace;
+        this.handleCount = original.handleCount;
+        this.replayHandle = handle;
+        push(VALUE, input.position(), 0, false);
+        run();
+    }
+
+    private int prevHandle() throws IOException {
+        int h = input.readInt();
         int i = h - baseWireHandle;
-        if (i < 0 || i > handles.size())
+        if (i < 0 || i >= handleCount)
             throw new StreamCorruptedException("Bad handle: " + h);
-        return handles.get(i);
+        return i;
+    }
+
+    private void countTypeCode(int code) {
+        if (code >= TC_BASE && code <= TC_MAX)
+            stats.typeCodeCounts[code - TC_BASE]++;
+    }
+
+    private void countString(long length) {
+        if (length > stats.longestString)
+            stats.longestString = length;
+    }
+
+    private void resetHandles() throws IOException {
+        if (handleCount > stats.maxHandleTableSize)
+            stats.maxHandleTableSize = handleCount;
+        handleCount = 0;
+        descs.clear();
+        handler.reset();
+        stats.resets++;
+    }
+
+    /**
+     * Read a primitive value in the form expected by
+     * {@link ScanHandler#primitive}.
+     */
+    private long readPrimitive(char typeCode) throws IOException {
+        switch (typeCode) {
+            case 'B':
+                return input.readByte();
+            case 'C':
+                return input.readChar();
+            case 'D':
+                return input.readLong();
+            case 'F':
+            case 'I':
+                return input.readInt();
+            case 'J':
+                return input.readLong();
+            case 'S':
+                return input.readShort();
+            case 'Z':
+                return input.readBoolean() ? 1 : 0;
+            default:
+                throw new StreamCorruptedException("Bad type code " + (int) typeCode);
+        }
     }
 
-    private void reset() {
-        handles.clear();
+    /**
+     * The state of a value or class descriptor that is being read. The
+     * frames on the stack are reused for each value.
+     */
+    private static class Frame {
+        void init(int kind, long start, int depth, boolean inDesc) {
+            this.kind = kind;
+            this.phase = START;
+            this.start = start;
+            this.depth = depth;
+            this.inDesc = inDesc;
+            this.handle = -1;
+            this.wantsDesc = this.gotDesc = this.timed = false;
+            this.level = this.index = this.count = 0;
+            this.typeCode = 0;
+        }
+
+        void clear() {
+            desc = received = null;
+            fields = null;
+        }
+
+        int kind;          // a type code, or VALUE
+        int phase;         // START, SIZE, CONTENTS, ANNOTATION, SUPER, or END
+        long start;        // offset of the type code in the stream
+        int depth;         // nesting depth, as for ScanLimits.getMaxDepth()
+        boolean inDesc;    // inside a class descriptor
+        int handle;        // of the value
+        ObjectClassDesc desc;      // the value's class, or the descriptor being read
+        ObjectClassDesc received;  // a class descriptor that was read for this frame
+        boolean wantsDesc; // the frame above is reading received
+        boolean gotDesc;   // and it has
+        boolean timed;     // the outermost descriptor, whose time is counted
+        FieldDesc[] fields;  // of a descriptor being read
+        int level;         // in the class hierarchy of an object
+        int index;         // of the next field, element, or interface name
+        int count;         // of elements or interface names
+        char typeCode;     // of the elements of a primitive array, or 0
+    }
+
+    /** The kind of a frame that reads one value, such as a top-level value. */
+    private static final int VALUE = 0;
+
+    // The phases of a frame.
+    private static final int START = 0;       // class descriptor, or descriptor header
+    private static final int SIZE = 1;        // array length, or number of fields or interfaces
+    private static final int CONTENTS = 2;    // fields, elements, or other values
+    private static final int ANNOTATION = 3;  // object or class annotation
+    private static final int SUPER = 4;       // superclass descriptor
+    private static final int END = 5;
+
+    // What readValueOrEnd read.
+    private static final int GOT_VALUE = 0;
+    private static final int GOT_END = 1;
+    private static final int GOT_OTHER = 2;
+
+    /**
+     * The class descriptors, and the strings read as part of them, indexed
+     * by handle. Since handles are allocated in increasing order, the table
+     * is a sorted array that is searched with a binary search. Nothing else
+     * is kept here, so its size depends only on the number of descriptors.
+     */
+    static class DescTable {
+        void put(int handle, Object x) {
+            if (size == handles.length) {
+                handles = Arrays.copyOf(handles, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            handles[size] = handle;
+            values[size] = x;
+            size++;
+        }
+
+        Object get(int handle) {
+            int i = Arrays.binarySearch(handles, 0, size, handle);
+            return (i < 0) ? null : values[i];
+        }
+
+        void clear() {
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+        }
+
+        private int[] handles = new int[16];
+        private Object[] values = new Object[16];
+        private int size;
     }
 
-    abstract class ClassDesc extends SEntity {
+    abstract static class ClassDesc extends SEntity {
         ClassDesc(String name) {
             super(name);
             this.name = name;
@@ -419,23 +1499,18 @@ public class SerialScan {
             throw new UnsupportedOperationException();
         }
 
-        abstract SEntity read() throws IOException;
         abstract Class<?> arrayComponentClass();
         public abstract String toString();
 
         private final String name;
     }
 
-    class ObjectClassDesc extends ClassDesc {
+    static class ObjectClassDesc extends ClassDesc {
         ObjectClassDesc(String name, int flags) {
             super(name);
             this.flags = flags;
         }
 
-        SEntity read() throws IOException {
-            return readObject();
-        }
-
         Class<?> arrayComponentClass() {
             if (getType().equals("java.lang.String"))
                 return String.class;
@@ -455,8 +1530,28 @@ public class SerialScan {
             return flags;
         }
 
+        void setSerialVersionUID(long serialVersionUID) {
+            this.serialVersionUID = serialVersionUID;
+        }
+
+        /**
+         * The {@code serialVersionUID} in the stream, or 0 for a proxy class.
+         */
+        long getSerialVersionUID() {
+            return serialVersionUID;
+        }
+
+        /**
+         * Set the superclass descriptor, which is the last part of this
+         * descriptor in the stream, so this descriptor is then complete.
+         */
         void setSuperClassDesc(ObjectClassDesc superClassDesc) {
             this.superClassDesc = superClassDesc;
+            this.complete = true;
+        }
+
+        boolean isComplete() {
+            return complete;
         }
 
         public String toString() {
@@ -466,21 +1561,52 @@ public class SerialScan {
 
         List<ObjectClassDesc> getHierarchy() {
             if (hierarchy.isEmpty()) {
-                if (superClassDesc != null)
-                    hierarchy.addAll(superClassDesc.getHierarchy());
-                hierarchy.add(this);
+                // Not recursive, since a stream can have a long chain of
+                // superclasses.
+                for (ObjectClassDesc cd = this; cd != null; cd = cd.superClassDesc)
+                    hierarchy.add(cd);
+                Collections.reverse(hierarchy);
             }
             return hierarchy;
         }
 
+        /**
+         * The fields of every class in the hierarchy whose values are in
+         * the stream, in the order they appear there.
+         */
+        FieldDesc[] getAllFields() {
+            if (allFields == null) {
+                List<FieldDesc> list = new ArrayList<FieldDesc>();
+                for (ObjectClassDesc cd : getHierarchy()) {
+                    if ((cd.flags & SC_SERIALIZABLE) != 0)
+                        list.addAll(Arrays.asList(cd.fields));
+                }
+                allFields = list.toArray(new FieldDesc[0]);
+            }
+            return allFields;
+        }
+
+        /**
+         * The shape shared by all the objects of this class in the stream.
+         */
+        Shape getShape() {
+            if (shape == null)
+                shape = Shape.forFields(getAllFields());
+            return shape;
+        }
+
         private final int flags;
+        private long serialVersionUID;
         private FieldDesc[] fields;
         private ObjectClassDesc superClassDesc;
+        private boolean complete;
         private final List<ObjectClassDesc> hierarchy =
                 new ArrayList<ObjectClassDesc>();
+        private FieldDesc[] allFields;
+        private Shape shape;
     }
 
-    class ArrayClassDesc extends ObjectClassDesc {
+    static class ArrayClassDesc extends ObjectClassDesc {
         ArrayClassDesc(String name, int flags) throws IOException {
             super(name, flags);
             String componentName = name.substring(1);
@@ -495,8 +1621,7 @@ public class SerialScan {
                 if (componentName.length() > 1)
                     throw new StreamCorruptedException("Bad array type " + name);
                 char typeCode = componentName.charAt(0);
-                componentClassDesc =
-                        primitiveClassDescFactory.forTypeCode(typeCode);
+                componentClassDesc = PrimitiveClassDesc.forTypeCode(typeCode);
             }
             componentClass = componentClassDesc.arrayComponentClass();
             arrayClass = Array.newInstance(componentClass, 0).getClass();
@@ -515,73 +1640,23 @@ public class SerialScan {
         private final Class<?> arrayClass;
     }
 
-    class PrimitiveClassDescFactory {
-        private final Map<Character, PrimitiveClassDesc> descMap =
-                new HashMap<Character, PrimitiveClassDesc>();
-
-        {
-            String primitives =
-                    "BByte CChar DDouble FFloat IInt JLong SShort ZBoolean";
-            for (String prim : primitives.split(" ")) {
-                char typeCode = prim.charAt(0);
-                String readWhat = prim.substring(1);
-                Method readMethod;
-                try {
-                    readMethod =
-                            DataInputStream.class.getMethod("read" + readWhat);
-                } catch (Exception e) {
-                    throw new RuntimeException("No read method for " + readWhat,
-                            e);
-                }
-                Class<?> componentClass;
-                try {
-                    Class<?> arrayClass = Class.forName("[" + typeCode);
-                    componentClass = arrayClass.getComponentType();
-                } catch (Exception e) {
-                    throw new RuntimeException("No array class for " + typeCode,
-                            e);
-                }
-                PrimitiveClassDesc desc =
-                        new PrimitiveClassDesc(typeCode, readMethod, componentClass);
-                descMap.put(typeCode, desc);
-            }
-        }
-
-                PrimitiveClassDesc forTypeCode(char c) throws IOException {
-                    PrimitiveClassDesc desc = descMap.get(c);
-                    if (desc == null)
-                        throw new StreamCorruptedException("Bad type code " + (int) c);
-                    return desc;
-                }
-    }
-    private final PrimitiveClassDescFactory
-            primitiveClassDescFactory = new PrimitiveClassDescFactory();
-
-    class PrimitiveClassDesc extends ClassDesc {
-        PrimitiveClassDesc(char typeCode, Method readMethod,
-                Class<?> componentClass) {
+    /*
+     * There is one PrimitiveClassDesc per primitive type, shared by all
+     * scans, so constructing a SerialScan doesn't have to build them.
+     */
+    static class PrimitiveClassDesc extends ClassDesc {
+        private PrimitiveClassDesc(char typeCode, Class<?> componentClass) {
             super(String.valueOf(typeCode));
-            this.readMethod = readMethod;
+            this.typeCode = typeCode;
             this.componentClass = componentClass;
         }
 
-        SEntity read() throws IOException {
-            try {
-                Object wrapped = readMethod.invoke(din);
-                return new SPrim(wrapped);
-            } catch (IllegalAccessException e) {
-                throw new RuntimeException("Read method invoke failed", e);
-            } catch (InvocationTargetException e) {
-                Throwable t = e.getTargetException();
-                if (t instanceof IOException)
-                    throw (IOException) t;
-                else if (t instanceof RuntimeException)
-                    throw (RuntimeException) t;
-                else if (t instanceof Error)
-                    throw (Error) t;
-                else
-                    throw new RuntimeException(t.toString(), t);
-            }
+        static PrimitiveClassDesc forTypeCode(char c) throws IOException {
+            PrimitiveClassDesc desc =
+                    (c < primitives.length) ? primitives[c] : null;
+            if (desc == null)
+                throw new StreamCorruptedException("Bad type code " + (int) c);
+            return desc;
         }
 
         Class<?> arrayComponentClass() {
@@ -592,16 +1667,36 @@ public class SerialScan {
             return componentClass.getName();
         }
 
-        private final Method readMethod;
+        final char typeCode;
         private final Class<?> componentClass;
+
+        private static final PrimitiveClassDesc[] primitives =
+                new PrimitiveClassDesc['Z' + 1];
+        static {
+            Class<?>[] classes = {
+                byte.class, char.class, double.class, float.class,
+                int.class, long.class, short.class, boolean.class,
+            };
+            String typeCodes = "BCDFIJSZ";
+            for (int i = 0; i < classes.length; i++) {
+                char c = typeCodes.charAt(i);
+                primitives[c] = new PrimitiveClassDesc(c, classes[i]);
+            }
+        }
     }
 
-    abstract class FieldDesc {
+    abstract static class FieldDesc {
         FieldDesc(String name) {
             this.name = name;
         }
 
-        abstract SEntity read() throws IOException;
+        /**
+         * Read the value of this field as a step of frame {@code f}.
+         *
+         * @return true if the value was read or its frame pushed, or false
+         *     if something that comes before the value was read.
+         */
+        abstract boolean read(SerialScan scan, Frame f) throws IOException;
         public abstract String toString();
 
         public String getName() {
@@ -611,14 +1706,14 @@ public class SerialScan {
         private final String name;
     }
 
-    class ReferenceFieldDesc extends FieldDesc {
+    static class ReferenceFieldDesc extends FieldDesc {
         ReferenceFieldDesc(String name, String className) {
             super(name);
             this.className = className;
         }
 
-        SEntity read() throws IOException {
-            return readObject();
+        boolean read(SerialScan scan, Frame f) throws IOException {
+            return scan.readValue(f);
         }
 
         public String toString() {
@@ -628,14 +1723,20 @@ public class SerialScan {
         private final String className;
     }
 
-    class PrimitiveFieldDesc extends FieldDesc {
+    static class PrimitiveFieldDesc extends FieldDesc {
         PrimitiveFieldDesc(String name, char type) throws IOException {
             super(name);
-            classDesc = primitiveClassDescFactory.forTypeCode(type);
+            classDesc = PrimitiveClassDesc.forTypeCode(type);
+        }
+
+        boolean read(SerialScan scan, Frame f) throws IOException {
+            char typeCode = classDesc.typeCode;
+            scan.handler.primitive(typeCode, scan.readPrimitive(typeCode));
+            return true;
         }
 
-        SEntity read() throws IOException {
-            return classDesc.read();
+        char getTypeCode() {
+            return classDesc.typeCode;
         }
 
         public String toString() {
@@ -645,8 +1746,43 @@ public class SerialScan {
         private final PrimitiveClassDesc classDesc;
     }
 
-    private static final SEntity END = new SString("END");
-    private final InputStream in;
-    private final DataInputStream din;
-    private final List<SEntity> handles = new ArrayList<SEntity>();
+    private final ScanHandler handler;
+    private final long maxContents;
+    private final TreeBuilder tree;  // same as handler, or null
+    private final ScanInput input = new ScanInput();
+    private DescTable descs = new DescTable();
+    private int handleCount;
+    private long entityStart;
+    private SerialScan original;  // when replaying
+    private int replayHandle = -1;
+    private Trace trace;
+
+    private final ScanStatistics stats = new ScanStatistics();
+    private int maxDepth;  // during the current readObject()
+    private int maxDepthLimit = Integer.MAX_VALUE;
+    private int maxArrayLength = Integer.MAX_VALUE;
+    private long maxReferences = Long.MAX_VALUE;
+    private long maxStringLength = Long.MAX_VALUE;
+    private long maxBytes = Long.MAX_VALUE;
+    private int maxBlockSize = Integer.MAX_VALUE;
+    private int maxHandles = Integer.MAX_VALUE;
+    private long maxAllocation = Long.MAX_VALUE;
+    private long references;  // since the start of the stream
+    private long allocation;  // since the start of the stream
+    private long extent;      // the stream is at least this long
+    private long resumeAt;    // don't resume an incomplete step until here
+    private long abandonedBytes;  // read by steps that were started again
+
+    private Frame[] frames = new Frame[16];
+    private int sp;           // number of frames on the stack
+    private long mark;        // the end of the last complete step
+    private boolean timingDesc;   // an outermost class descriptor is being read
+    private long descStartNanos;  // when it began, or reading resumed
+    private ScanEvent event;      // for the current top-level value
+    private long resumeNanos;     // when it began, or reading resumed
+    private long valueNanos;      // spent on it before resumeNanos
+    private long startBytes;
+    private long startEntities;
+    private long startClassDescs;
+    private long startResets;
 }
@@ -0,0 +1,571 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ArrayClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+
+/**
+ * <p>Check a serial stream against a list of allowed and denied classes and
+ * a set of {@link ScanLimits}, before it is given to an
+ * {@code ObjectInputStream}. The validator scans the stream without
+ * building anything from it: strings and block data are skipped rather
+ * than read, and values other than class descriptors cost no memory once
+ * its buffers are big enough. Each stream starts without any handles, so
+ * the class descriptors in it are read and allocated again for every
+ * stream, which for a small {@code HashMap} is about a kilobyte and a
+ * half. So it can check a large number of small messages quickly.</p>
+ *
+ * <p>Classes are matched against patterns, with the same syntax as the
+ * {@code jdk.serialFilter} system property:</p>
+ *
+ * <ul>
+ * <li>{@code com.example.Foo} matches that class;</li>
+ * <li>{@code com.example.*} matches every class in the package
+ * {@code com.example};</li>
+ * <li>{@code com.example.**} matches every class in {@code com.example}
+ * and its subpackages;</li>
+ * <li>{@code com.example.Foo*} matches every class whose name starts with
+ * {@code com.example.Foo}.</li>
+ * </ul>
+ *
+ * <p>A class is rejected if it matches a {@linkplain #denyClass denied}
+ * pattern, or if there are {@linkplain #allowClass allowed} patterns and it
+ * does not match any of them. Every class in a stream is checked, including
+ * superclasses and classes of enum constants; for an array class, it is the
+ * element class that is checked, and arrays of primitives are always
+ * allowed. A dynamic proxy class is checked with the name
+ * {@code <Proxy>}.</p>
+ *
+ * <p>A {@code SerialValidator} is not thread-safe. It keeps the buffers of
+ * its scan between calls, so it is best to keep one for each thread, for
+ * example in a {@code ThreadLocal}.</p>
+ */
+public final class SerialValidator {
+    /**
+     * Make a validator with the given limits. Changes to the limits
+     * afterwards apply to later calls to {@code validate}.
+     *
+     * @param limits the limits to enforce.
+     */
+    public SerialValidator(ScanLimits limits) {
+        if (limits == null)
+            throw new NullPointerException("limits");
+        this.limits = limits;
+        this.checker = new Checker();
+        this.scan = new SerialScan(checker);
+    }
+
+    /**
+     * Allow classes that match the given pattern. Once any pattern is
+     * allowed, classes that do not match an allowed pattern are rejected.
+     *
+     * @param pattern a class name or pattern, as described above.
+     */
+    public void allowClass(String pattern) {
+        allowed.add(Pattern.parse(pattern));
+    }
+
+    /**
+     * Reject classes that match the given pattern, even if they also match
+     * an allowed pattern.
+     *
+     * @param pattern a class name or pattern, as described above.
+     */
+    public void denyClass(String pattern) {
+        denied.add(Pattern.parse(pattern));
+    }
+
+    /**
+     * Check the bytes between the position and the limit of the given
+     * buffer, which must contain a complete serial stream. The buffer's
+     * position is not changed.
+     *
+     * @param buffer the serial stream to check.
+     * @return the verdict.
+     */
+    public Verdict validate(ByteBuffer buffer) {
+        if (buffer.remaining() > limits.getMaxBytes())
+            return new Verdict(Violation.BYTES, "", limits.getMaxBytes(),
+                    "Stream has " + buffer.remaining() + " bytes");
+        scan.setLimits(limits);
+        try {
+            scan.reset(buffer);
+        } catch (IOException e) {
+            return new Verdict(Violation.MALFORMED, "", 0, e.getMessage());
+        }
+        return run();
+    }
+
+    /**
+     * Check the given bytes, which must contain a complete serial stream.
+     *
+     * @param bytes an array containing the serial stream.
+     * @param offset where the stream starts in the array.
+     * @param length the length of the stream.
+     * @return the verdict.
+     */
+    public Verdict validate(byte[] bytes, int offset, int length) {
+        return validate(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Check the serial stream that the given {@code InputStream} contains,
+     * reading it up to its end, or until the stream is rejected.
+     *
+     * @param in the serial stream to check.
+     * @return the verdict.
+     * @throws IOException if there is a problem reading the
+     *     {@code InputStream}. A stream that can be read but is not a
+     *     correct serial stream produces a {@link Violation#MALFORMED
+     *     MALFORMED} verdict instead.
+     */
+    public Verdict validate(InputStream in) throws IOException {
+        scan.setLimits(limits);
+        try {
+            scan.reset(in);
+        } catch (IOException e) {
+            return new Verdict(Violation.MALFORMED, "", 0, e.getMessage());
+        }
+        return run();
+    }
+
+    private Verdict run() {
+        checker.start();
+        try {
+            while (scan.scanNext())
+                checker.roots++;
+            return ACCEPTED;
+        } catch (Rejection r) {
+            return new Verdict(checker.violation, checker.path(), scan.position(),
+                    checker.message);
+        } catch (LimitExceededException e) {
+            // The scan checks its limits before it reports the value that
+            // exceeds them.
+            checker.next = true;
+            return new Verdict(violation(e), checker.path(), scan.position(),
+                    e.getMessage());
+        } catch (IOException e) {
+            return new Verdict(Violation.MALFORMED, checker.path(), scan.position(),
+                    String.valueOf(e.getMessage()));
+        } catch (RuntimeException e) {
+            // For example an array whose class descriptor is not an array
+            // class, found too late to be a StreamCorruptedException.
+            return new Verdict(Violation.MALFORMED, checker.path(), scan.position(),
+                    e.toString());
+        } catch (StackOverflowError e) {
+            // The scan keeps its own stack, however deep the stream, but
+            // a verdict is still better than an error if something else
+            // recurses on what it reads.
+            return new Verdict(Violation.DEPTH, checker.path(), scan.position(),
+                    "Stream is nested too deeply to check");
+        }
+    }
+
+    private static Violation violation(LimitExceededException e) {
+        String limit = String.valueOf(e.getLimit());
+        if (limit.equals("maxDepth"))
+            return Violation.DEPTH;
+        if (limit.equals("maxArrayLength"))
+            return Violation.ARRAY_LENGTH;
+        if (limit.equals("maxReferences"))
+            return Violation.REFERENCES;
+        if (limit.equals("maxStringLength"))
+            return Violation.STRING_LENGTH;
+        if (limit.equals("maxBytes"))
+            return Violation.BYTES;
+        if (limit.equals("maxBlockSize"))
+            return Violation.BLOCK_SIZE;
+        if (limit.equals("maxHandles"))
+            return Violation.HANDLES;
+        if (limit.equals("maxAllocation"))
+            return Violation.ALLOCATION;
+        throw new IllegalArgumentException("Unknown limit: " + limit);
+    }
+
+    /**
+     * Why a stream was rejected.
+     */
+    public enum Violation {
+        /** A class that is denied, or not allowed. */
+        CLASS,
+        /** Objects nested more deeply than {@link ScanLimits#getMaxDepth()}. */
+        DEPTH,
+        /** An array longer than {@link ScanLimits#getMaxArrayLength()}. */
+        ARRAY_LENGTH,
+        /** More than {@link ScanLimits#getMaxReferences()} references. */
+        REFERENCES,
+        /** A string longer than {@link ScanLimits#getMaxStringLength()}. */
+        STRING_LENGTH,
+        /** A stream longer than {@link ScanLimits#getMaxBytes()}. */
+        BYTES,
+        /** Block data longer than {@link ScanLimits#getMaxBlockSize()}. */
+        BLOCK_SIZE,
+        /** More than {@link ScanLimits#getMaxHandles()} handles. */
+        HANDLES,
+        /**
+         * Arrays, strings, and block data whose total size is more than
+         * {@link ScanLimits#getMaxAllocation()}.
+         */
+        ALLOCATION,
+        /** Something that is not a correct serial stream. */
+        MALFORMED
+    }
+
+    /**
+     * The result of checking a stream.
+     */
+    public static final class Verdict {
+        Verdict(Violation violation, String path, long offset, String message) {
+            this.violation = violation;
+            this.path = path;
+            this.offset = offset;
+            this.message = message;
+        }
+
+        /**
+         * True if the stream passed every check.
+         */
+        public boolean isAccepted() {
+            return violation == null;
+        }
+
+        /**
+         * Why the stream was rejected, or null if it was accepted.
+         */
+        public Violation getViolation() {
+            return violation;
+        }
+
+        /**
+         * The path to the value that was rejected, in the form used by
+         * {@link SerialDiff}, such as {@code [0].items[12]}, or an empty
+         * string if the stream was accepted or the problem was not in any
+         * value. If the value's class was rejected, this is the path of the
+         * value, even if the class that was rejected is one of its
+         * superclasses.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * How far into the stream the problem was found, in bytes.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * A description of the problem, or null if the stream was
+         * accepted.
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            if (violation == null)
+                return "ACCEPTED";
+            return violation + " at " + (path.isEmpty() ? "" : path + ", ")
+                    + "offset " + offset + ": " + message;
+        }
+
+        private final Violation violation;
+        private final String path;
+        private final long offset;
+        private final String message;
+    }
+
+    private static final Verdict ACCEPTED = new Verdict(null, "", 0, null);
+
+    private boolean classAllowed(String name) {
+        if (name.startsWith("[")) {
+            // Check the element class of an array, as "[[Lcom.example.Foo;".
+            int dims = 0;
+            while (dims < name.length() && name.charAt(dims) == '[')
+                dims++;
+            if (dims == name.length() || name.charAt(dims) != 'L')
+                return true;
+            return classAllowed(name, dims + 1, name.length() - 1);
+        }
+        return classAllowed(name, 0, name.length());
+    }
+
+    private boolean classAllowed(String name, int start, int end) {
+        for (int i = 0; i < denied.size(); i++) {
+            if (denied.get(i).matches(name, start, end))
+                return false;
+        }
+        if (allowed.isEmpty())
+            return true;
+        for (int i = 0; i < allowed.size(); i++) {
+            if (allowed.get(i).matches(name, start, end))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A class name pattern. Matching compares regions of the name in place,
+     * so it does not allocate.
+     */
+    private static class Pattern {
+        private Pattern(String prefix, int kind) {
+            this.prefix = prefix;
+            this.kind = kind;
+        }
+
+        static Pattern parse(String pattern) {
+            if (pattern.endsWith(".**"))
+                return new Pattern(pattern.substring(0, pattern.length() - 2), SUBPACKAGES);
+            if (pattern.endsWith(".*"))
+                return new Pattern(pattern.substring(0, pattern.length() - 1), PACKAGE);
+            if (pattern.endsWith("*"))
+                return new Pattern(pattern.substring(0, pattern.length() - 1), PREFIX);
+            if (pattern.isEmpty())
+                throw new IllegalArgumentException("Empty pattern");
+            return new Pattern(pattern, EXACT);
+        }
+
+        /**
+         * True if the part of {@code name} from {@code start} to
+         * {@code end} matches.
+         */
+        boolean matches(String name, int start, int end) {
+            int n = prefix.length();
+            if (end - start < n || !name.regionMatches(start, prefix, 0, n))
+                return false;
+            switch (kind) {
+                case EXACT:
+                    return end - start == n;
+                case PACKAGE:
+                    return name.lastIndexOf('.', end - 1) == start + n - 1;
+                default:
+                    return true;
+            }
+        }
+
+        private static final int EXACT = 0, PACKAGE = 1, SUBPACKAGES = 2, PREFIX = 3;
+
+        // For PACKAGE and SUBPACKAGES, the package name followed by ".".
+        private final String prefix;
+        private final int kind;
+    }
+
+    /**
+     * Thrown by the checker to stop the scan when it finds a violation.
+     * There is only one, since its details are in the checker.
+     */
+    private static class Rejection extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * The handler that checks classes, and keeps track of where it is so
+     * that it can say where a violation is. The limits are checked by the
+     * scan itself.
+     */
+    private class Checker extends ScanHandler {
+        void start() {
+            sp = -1;
+            descDepth = 0;
+            next = false;
+            roots = 0;
+        }
+
+        @Override
+        boolean wantsContents() {
+            return false;
+        }
+
+        @Override
+        void beginClassDesc(int handle, ObjectClassDesc desc) throws IOException {
+            descDepth++;
+            if (!classAllowed(desc.getType())) {
+                // The descriptor comes before the value it describes has
+                // been reported.
+                next = true;
+                reject(Violation.CLASS, "Class not allowed: " + desc.getType());
+            }
+        }
+
+        @Override
+        void endClassDesc() {
+            descDepth--;
+        }
+
+        @Override
+        void nullValue() {
+            value();
+        }
+
+        @Override
+        void reference(int handle) {
+            value();
+        }
+
+        @Override
+        void primitive(char typeCode, long bits) {
+            value();
+        }
+
+        @Override
+        void skippedString(int handle, long utflen) {
+            value();
+        }
+
+        @Override
+        void skippedBlockData(int length) {
+            value();
+        }
+
+        @Override
+        void classValue(int handle, ObjectClassDesc desc) {
+            value();
+        }
+
+        @Override
+        void beginObject(int handle, ObjectClassDesc desc) {
+            begin(OBJECT, desc);
+        }
+
+        @Override
+        void endObject() {
+            sp--;
+        }
+
+        @Override
+        void beginAnnotations() {
+            kinds[sp] = ANNOTATIONS;
+            counters[sp] = 0;
+        }
+
+        @Override
+        void beginEnum(int handle, ObjectClassDesc desc) {
+            begin(ENUM, desc);
+        }
+
+        @Override
+        void endEnum() {
+            sp--;
+        }
+
+        @Override
+        void beginArray(int handle, ArrayClassDesc desc, int length) {
+            begin(ARRAY, desc);
+        }
+
+        @Override
+        void endArray() {
+            sp--;
+        }
+
+        private void begin(int kind, ObjectClassDesc desc) {
+            value();
+            if (++sp == kinds.length) {
+                int n = sp * 2;
+                kinds = Arrays.copyOf(kinds, n);
+                counters = Arrays.copyOf(counters, n);
+                descs = Arrays.copyOf(descs, n);
+            }
+            kinds[sp] = kind;
+            counters[sp] = 0;
+            descs[sp] = desc;
+        }
+
+        /**
+         * Count a value in the object, array, or annotations that it is in.
+         * Values in class descriptors are not counted, since they are not
+         * part of any object.
+         */
+        private void value() {
+            if (descDepth > 0)
+                return;
+            if (sp >= 0)
+                counters[sp]++;
+        }
+
+        private void reject(Violation violation, String message) throws Rejection {
+            this.violation = violation;
+            this.message = message;
+            throw REJECTION;
+        }
+
+        /**
+         * The path of the value being read, or of the next value if it has
+         * not been reported yet.
+         */
+        String path() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('[').append(roots).append(']');
+            if (sp < 0)
+                return sb.toString();
+            for (int i = 0; i <= sp; i++) {
+                int index = (next && i == sp) ? counters[i] : counters[i] - 1;
+                if (i == sp && index < 0)
+                    break;
+                switch (kinds[i]) {
+                    case OBJECT:
+                        SerialScan.FieldDesc[] fields = descs[i].getAllFields();
+                        if (index >= 0 && index < fields.length)
+                            sb.append('.').append(fields[index].getName());
+                        break;
+                    case ENUM:
+                        sb.append(".<name>");
+                        break;
+                    case ARRAY:
+                        sb.append('[').append(index).append(']');
+                        break;
+                    default:
+                        sb.append(".<data>[").append(index).append(']');
+                }
+            }
+            return sb.toString();
+        }
+
+        private static final int OBJECT = 0, ENUM = 1, ARRAY = 2, ANNOTATIONS = 3;
+
+        private int[] kinds = new int[16];
+        private int[] counters = new int[16];
+        private ObjectClassDesc[] descs = new ObjectClassDesc[16];
+        private int sp;
+        private int descDepth;
+        boolean next;  // the path is of the next value, not yet reported
+        int roots;
+        Violation violation;
+        String message;
+    }
+
+    private static final Rejection REJECTION = new Rejection();
+
+    private final ScanLimits limits;
+    private final List<Pattern> allowed = new ArrayList<Pattern>();
+    private final List<Pattern> denied = new ArrayList<Pattern>();
+    private final Checker checker;
+    private final SerialScan scan;
+}
@@ -0,0 +1,598 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.instrument.Instrumentation;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+/**
+ * <p>A Java agent that samples the serialization traffic of a running JVM
+ * and periodically writes a report about it to a file.</p>
+ *
+ * <pre>
+ * java -javaagent:serialysis.jar=rate=0.01,interval=60,file=/tmp/serial.txt ...
+ * </pre>
+ *
+ * <p>The agent rewrites {@code ObjectOutputStream.writeObject} and
+ * {@code ObjectInputStream.readObject} so that they tell it about each
+ * object they write or read. A fraction {@code rate} of the outermost
+ * calls, the ones not made by the {@code writeObject} or {@code readObject}
+ * method of a class in the stream, are sampled. For each sample, the agent
+ * finds the code that made the call and serializes the object again into
+ * an array, so the report says how many bytes each call site writes or
+ * reads, and the classes of the objects. The copy is a stream of its own,
+ * so an object that the application's stream had already written and only
+ * refers to is written in full, and the {@code writeObject} methods of the
+ * classes in it are called a second time. Only sampled calls pay for the
+ * copy and for walking the stack.</p>
+ *
+ * <p>Code that has the bytes of a stream in hand, such as a session
+ * replication layer that serializes into an array, can also give them to
+ * {@link #sample sample}, and a fraction {@code rate} of those are
+ * sampled. The sampled streams, up to {@code budget} bytes in each
+ * interval, are copied into an {@link AnalysisPipeline}, and the report
+ * includes the {@link ClassHistogram} of all the streams sampled so far,
+ * with the bytes that each class accounts for.</p>
+ *
+ * <p>The rewriting needs the {@code Instrumentation} that the JVM gives to
+ * {@link #premain premain} and {@link #agentmain agentmain}, and a JVM that
+ * can retransform classes. The agent jar says
+ * {@code Can-Retransform-Classes: true} in its manifest, and has ASM
+ * shaded into it to do the rewriting. If the JVM can't retransform
+ * {@code java.io} classes, the agent says so on {@code System.err}, and
+ * only sees the streams given to {@code sample}.</p>
+ *
+ * <p>With the option {@code filter=true}, the agent also samples
+ * deserialization, through a JVM-wide {@link ObjectInputFilter} that is
+ * told about every class and array that an {@code ObjectInputStream}
+ * reads. A fraction {@code rate} of these are sampled, and for each sample
+ * the agent finds the code that called {@code readObject}, so the report
+ * says which classes each call site reads. Only sampled events pay for
+ * walking the stack. The filter does not reject anything, and it can't
+ * see the bytes of the stream. Streams that have a filter of their own are
+ * not seen.</p>
+ *
+ * <p><b>There can only be one JVM-wide serial filter, and it can only be
+ * set once.</b> So with {@code filter=true}, an application that calls
+ * {@code ObjectInputFilter.Config.setSerialFilter} itself, for example in
+ * its {@code main} method, gets an {@code IllegalStateException} there.
+ * Only use {@code filter=true} with applications that don't set a filter.
+ * If the JVM already has a serial filter when the agent starts, for
+ * example from the {@code jdk.serialFilter} system property, the agent
+ * can't install its own, and says so on {@code System.err}.</p>
+ *
+ * <p>The options, separated by commas, are:</p>
+ * <ul>
+ * <li>{@code instrument}: {@code false} to leave {@code writeObject} and
+ *     {@code readObject} alone, default {@code true}.</li>
+ * <li>{@code filter}: {@code true} to sample deserialization with a
+ *     JVM-wide serial filter, as described above, default
+ *     {@code false}.</li>
+ * <li>{@code rate}: the fraction of events and streams to sample, default
+ *     0.01.</li>
+ * <li>{@code budget}: the most bytes of streams to copy in each interval,
+ *     default 1048576.</li>
+ * <li>{@code interval}: how often to write the report, in seconds, default
+ *     60.</li>
+ * <li>{@code file}: the report file, which is replaced each time, default
+ *     {@code serialysis-agent.txt} in the temporary directory.</li>
+ * </ul>
+ */
+public final class SerializationAgent {
+    private SerializationAgent(double rate, long budget, long intervalSeconds, File file) {
+        this.rate = rate;
+        this.budget = budget;
+        this.file = file;
+        this.remaining.set(budget);
+        this.pipeline = new AnalysisPipeline(1, RING_BYTES, intervalSeconds, TimeUnit.SECONDS,
+                new Consumer<AnalysisPipeline.Report>() {
+                    public void accept(AnalysisPipeline.Report report) {
+                        interval(report);
+                    }
+                });
+    }
+
+    /**
+     * The entry point when the agent is given with {@code -javaagent}.
+     *
+     * @param options the options, as described above.
+     * @param inst the means to rewrite {@code writeObject} and
+     *     {@code readObject}.
+     */
+    public static void premain(String options, Instrumentation inst) {
+        install(options, inst);
+    }
+
+    /**
+     * The entry point when the agent is loaded into a running JVM.
+     *
+     * @param options the options, as described above.
+     * @param inst the means to rewrite {@code writeObject} and
+     *     {@code readObject}.
+     */
+    public static void agentmain(String options, Instrumentation inst) {
+        install(options, inst);
+    }
+
+    /**
+     * Offer the bytes of a serial stream to the agent, if it is running.
+     * The stream is copied if it is chosen as a sample and the budget for
+     * the current interval is not used up. This never blocks.
+     *
+     * @param bytes an array containing the serial stream.
+     * @param offset where the stream starts in the array.
+     * @param length the length of the stream.
+     * @return true if the stream was copied for analysis.
+     */
+    public static boolean sample(byte[] bytes, int offset, int length) {
+        SerializationAgent agent = instance;
+        if (agent == null || ThreadLocalRandom.current().nextDouble() >= agent.rate)
+            return false;
+        return agent.offer(bytes, offset, length);
+    }
+
+    private boolean offer(byte[] bytes, int offset, int length) {
+        if (remaining.addAndGet(-length) < 0)
+            return false;
+        return pipeline.offer(bytes, offset, length);
+    }
+
+    /**
+     * Start the agent with the given options, or return the agent that is
+     * already running. Without an {@code Instrumentation}, the agent only
+     * sees {@code writeObject} and {@code readObject} calls if an earlier
+     * agent in this JVM rewrote them.
+     */
+    static SerializationAgent install(String options) {
+        return install(options, null);
+    }
+
+    private static synchronized SerializationAgent install(String options, Instrumentation inst) {
+        if (instance != null)
+            return instance;
+        boolean instrument = true;
+        boolean filter = false;
+        double rate = 0.01;
+        long budget = 1 << 20;
+        long interval = 60;
+        File file = new File(System.getProperty("java.io.tmpdir"), "serialysis-agent.txt");
+        if (options != null && !options.isEmpty()) {
+            for (String option : options.split(",")) {
+                int eq = option.indexOf('=');
+                String name = (eq < 0) ? option : option.substring(0, eq);
+                String value = (eq < 0) ? "" : option.substring(eq + 1);
+                if (name.equals("instrument")) {
+                    if (!value.equals("true") && !value.equals("false"))
+                        throw new IllegalArgumentException("Bad serialysis agent option: " + option);
+                    instrument = value.equals("true");
+                } else if (name.equals("filter")) {
+                    if (!value.equals("true") && !value.equals("false"))
+                        throw new IllegalArgumentException("Bad serialysis agent option: " + option);
+                    filter = value.equals("true");
+                } else if (name.equals("rate"))
+                    rate = Double.parseDouble(value);
+                else if (name.equals("budget"))
+                    budget = Long.parseLong(value);
+                else if (name.equals("interval"))
+                    interval = Long.parseLong(value);
+                else if (name.equals("file"))
+                    file = new File(value);
+                else
+                    throw new IllegalArgumentException("Unknown serialysis agent option: " + option);
+            }
+        }
+        if (rate < 0 || rate > 1 || budget < 0 || interval <= 0)
+            throw new IllegalArgumentException("Bad serialysis agent options: " + options);
+        SerializationAgent agent = new SerializationAgent(rate, budget, interval, file);
+        agent.instrumentWanted = instrument;
+        if (instrument && inst != null)
+            instrument(inst);
+        if (filter)
+            agent.installFilter();
+        instance = agent;
+        return agent;
+    }
+
+    /**
+     * Stop the agent, writing a last report. The JVM-wide filter can't be
+     * removed, but it stops sampling.
+     */
+    void stop() {
+        // Not synchronized, since closing the pipeline waits for a thread
+        // that calls interval.
+        synchronized (SerializationAgent.class) {
+            if (instance == this)
+                instance = null;
+        }
+        stopped = true;
+        pipeline.close();
+    }
+
+    File getReportFile() {
+        return file;
+    }
+
+    /**
+     * Rewrite {@code writeObject} and {@code readObject} to call the hooks,
+     * unless an earlier agent in this JVM already did. The hooks refer to
+     * whichever agent is running.
+     */
+    private static void instrument(Instrumentation inst) {
+        if (instrumented)
+            return;
+        if (!inst.isRetransformClassesSupported()) {
+            System.err.println("serialysis agent: the JVM can't retransform classes, "
+                    + "so writeObject and readObject will not be sampled");
+            return;
+        }
+        try {
+            Class<?> hooks = bootstrapHooks(inst);
+            // The rewritten java.base classes must be able to see the hooks.
+            inst.redefineModule(Object.class.getModule(),
+                    Collections.singleton(hooks.getModule()),
+                    Collections.<String, Set<Module>>emptyMap(),
+                    Collections.<String, Set<Module>>emptyMap(),
+                    Collections.<Class<?>>emptySet(),
+                    Collections.<Class<?>, List<Class<?>>>emptyMap());
+            hooks.getField("writeHook").set(null, WRITE_HOOK);
+            hooks.getField("readHook").set(null, READ_HOOK);
+            inst.addTransformer(new SerializationTransformer(), true);
+            inst.retransformClasses(ObjectOutputStream.class, ObjectInputStream.class);
+            instrumented = true;
+        } catch (Exception e) {
+            System.err.println("serialysis agent: can't rewrite serialization, "
+                    + "so writeObject and readObject will not be sampled: " + e);
+        }
+    }
+
+    /**
+     * Load {@link SerializationHooks} with the bootstrap class loader, which
+     * is the one that {@code ObjectOutputStream} and {@code ObjectInputStream}
+     * see, by putting it in a jar of its own. The agent's own copy of the
+     * class is a different class, so this one is only used by reflection.
+     */
+    private static Class<?> bootstrapHooks(Instrumentation inst)
+            throws IOException, ClassNotFoundException {
+        String entry = SerializationTransformer.HOOKS + ".class";
+        File jar = File.createTempFile("serialysis-hooks", ".jar");
+        jar.deleteOnExit();
+        try (InputStream in = SerializationAgent.class.getResourceAsStream("SerializationHooks.class");
+                JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            if (in == null)
+                throw new IOException("Can't find " + entry);
+            out.putNextEntry(new JarEntry(entry));
+            out.write(in.readAllBytes());
+        }
+        inst.appendToBootstrapClassLoaderSearch(new JarFile(jar));
+        return Class.forName(SerializationTransformer.HOOKS.replace('/', '.'), true, null);
+    }
+
+    static final BiConsumer<Object, Object> WRITE_HOOK = new BiConsumer<Object, Object>() {
+        public void accept(Object stream, Object obj) {
+            SerializationAgent agent = instance;
+            if (agent != null && agent.instrumentWanted && obj != null
+                    && ThreadLocalRandom.current().nextDouble() < agent.rate)
+                agent.sampleCall(WRITE_SITE, agent.writeSites, obj);
+        }
+    };
+
+    static final BiConsumer<Object, Object> READ_HOOK = new BiConsumer<Object, Object>() {
+        public void accept(Object stream, Object obj) {
+            SerializationAgent agent = instance;
+            if (agent != null && agent.instrumentWanted && obj != null
+                    && ThreadLocalRandom.current().nextDouble() < agent.rate)
+                agent.sampleCall(READ_SITE, agent.readSites, obj);
+        }
+    };
+
+    /**
+     * Sample a call of {@code writeObject} or {@code readObject} that wrote
+     * or read the given object, unless it was made inside another one, or
+     * the budget is used up, or the call is the agent copying an object.
+     */
+    private void sampleCall(CallSiteFinder finder, Map<String, CallSite> sites, Object obj) {
+        if (remaining.get() <= 0 || COPYING.get() != null)
+            return;
+        String site = StackWalker.getInstance().walk(finder);
+        if (site == null)
+            return;
+        byte[] bytes;
+        COPYING.set(Boolean.TRUE);
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(bout);
+            oout.writeObject(obj);
+            oout.close();
+            bytes = bout.toByteArray();
+        } catch (IOException e) {
+            // The object can be read but not written, for example because
+            // a field that was set by readObject is not serializable.
+            return;
+        } catch (RuntimeException e) {
+            return;
+        } catch (StackOverflowError e) {
+            return;
+        } finally {
+            COPYING.remove();
+        }
+        record(sites, site, obj.getClass(), bytes.length).bytes.add(bytes.length);
+        offer(bytes, 0, bytes.length);
+    }
+
+    private void installFilter() {
+        filterWanted = true;
+        if (ObjectInputFilter.Config.getSerialFilter() instanceof SamplingFilter) {
+            // An earlier agent in this JVM installed it.
+            filtering = true;
+            return;
+        }
+        try {
+            ObjectInputFilter.Config.setSerialFilter(new SamplingFilter());
+            filtering = true;
+        } catch (IllegalStateException e) {
+            // There is already a JVM-wide filter, and there can only be one.
+            System.err.println("serialysis agent: a serial filter is already set, "
+                    + "so deserialization will not be sampled");
+        }
+    }
+
+    /**
+     * The filter that samples deserialization events. It is installed at
+     * most once per JVM, and it refers to whichever agent is running.
+     */
+    private static class SamplingFilter implements ObjectInputFilter {
+        @Override
+        public Status checkInput(FilterInfo info) {
+            SerializationAgent agent = instance;
+            Class<?> c = info.serialClass();
+            if (agent != null && agent.filtering && c != null
+                    && ThreadLocalRandom.current().nextDouble() < agent.rate)
+                record(agent.sites, StackWalker.getInstance().walk(FILTER_SITE), c,
+                        info.streamBytes());
+            return Status.UNDECIDED;
+        }
+    }
+
+    private static CallSite record(Map<String, CallSite> sites, String site, Class<?> c,
+            long streamBytes) {
+        CallSite cs = sites.get(site);
+        if (cs == null) {
+            sites.putIfAbsent(site, new CallSite(site));
+            cs = sites.get(site);
+        }
+        cs.samples.increment();
+        long max;
+        while (streamBytes > (max = cs.maxStreamBytes.get())
+                && !cs.maxStreamBytes.compareAndSet(max, streamBytes))
+            ;
+        String name = c.getName();
+        LongAdder count = cs.classes.get(name);
+        if (count == null) {
+            cs.classes.putIfAbsent(name, new LongAdder());
+            count = cs.classes.get(name);
+        }
+        count.increment();
+        return cs;
+    }
+
+    private static final CallSiteFinder FILTER_SITE = new CallSiteFinder(
+            "java.io.ObjectInputStream", null, false, "readObject", "readUnshared");
+    private static final CallSiteFinder WRITE_SITE = new CallSiteFinder(
+            "java.io.ObjectOutputStream", "(Ljava/lang/Object;)V", true, "writeObject");
+    private static final CallSiteFinder READ_SITE = new CallSiteFinder(
+            "java.io.ObjectInputStream", "()Ljava/lang/Object;", true, "readObject");
+
+    /**
+     * Finds the method that called the outermost of the given methods of
+     * the stream class, as {@code com.example.Foo.bar:123}. Frames between
+     * that and the current one are the writing or reading of the stream,
+     * including the {@code writeObject} or {@code readObject} methods of the
+     * classes in it. If {@code outermostOnly}, the result is null when the
+     * current frame is inside more than one call of the given methods.
+     */
+    private static class CallSiteFinder
+            implements Function<Stream<StackWalker.StackFrame>, String> {
+        CallSiteFinder(String streamClass, String descriptor, boolean outermostOnly,
+                String... methods) {
+            this.streamClass = streamClass;
+            this.descriptor = descriptor;
+            this.outermostOnly = outermostOnly;
+            this.methods = Arrays.asList(methods);
+        }
+
+        public String apply(Stream<StackWalker.StackFrame> frames) {
+            String site = "<unknown>";
+            boolean afterCall = false;
+            int calls = 0;
+            Iterator<StackWalker.StackFrame> it = frames.iterator();
+            while (it.hasNext()) {
+                StackWalker.StackFrame f = it.next();
+                String cls = f.getClassName();
+                if (cls.equals(streamClass)) {
+                    if (methods.contains(f.getMethodName())
+                            && (descriptor == null || descriptor.equals(f.getDescriptor()))) {
+                        afterCall = true;
+                        calls++;
+                    }
+                } else if (afterCall && !cls.startsWith("java.io.")) {
+                    site = cls + "." + f.getMethodName() + ":" + f.getLineNumber();
+                    afterCall = false;
+                }
+            }
+            return (outermostOnly && calls > 1) ? null : site;
+        }
+
+        private final String streamClass;
+        private final String descriptor;
+        private final boolean outermostOnly;
+        private final List<String> methods;
+    }
+
+    private static class CallSite {
+        CallSite(String name) {
+            this.name = name;
+        }
+
+        final String name;
+        final LongAdder samples = new LongAdder();
+        final AtomicLong maxStreamBytes = new AtomicLong();
+        final LongAdder bytes = new LongAdder();
+        final Map<String, LongAdder> classes = new ConcurrentHashMap<String, LongAdder>();
+    }
+
+    /**
+     * Called by the pipeline at the end of each interval, and when it is
+     * closed.
+     */
+    private synchronized void interval(AnalysisPipeline.Report report) {
+        streams.add(report.getHistogram());
+        dropped += report.getDropped();
+        remaining.set(budget);
+        try {
+            writeReport();
+        } catch (IOException e) {
+            System.err.println("serialysis agent: can't write " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Write the report to a temporary file and rename it, so that a reader
+     * never sees a partial report.
+     */
+    private void writeReport() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            writeReport(out);
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("Can't rename " + tmp);
+        }
+    }
+
+    void writeReport(PrintWriter out) {
+        out.println("serialysis agent report, " + new Date()
+                + (stopped ? " (final)" : ""));
+        out.println("Sampling rate " + rate + ", budget " + budget + " bytes per interval");
+        out.println();
+        if (!instrumentWanted) {
+            out.println("writeObject and readObject are not sampled, "
+                    + "since the agent was started with instrument=false.");
+        } else {
+            if (!instrumented) {
+                out.println("writeObject and readObject are not sampled, "
+                        + "since the agent could not rewrite them.");
+            }
+            out.println("Serialization by call site"
+                    + " (sampled writeObject calls, with the size of each object written on its own):");
+            writeSites(out, writeSites, true);
+            out.println();
+            out.println("Deserialization by call site"
+                    + " (sampled readObject calls, with the size of each object written on its own):");
+            writeSites(out, readSites, true);
+        }
+        out.println();
+        if (filtering) {
+            out.println("Deserialization filter events by call site"
+                    + " (sampled classes and arrays; divide by the rate to estimate totals):");
+            writeSites(out, sites, false);
+        } else if (filterWanted) {
+            out.println("Deserialization is not sampled, since another serial filter is set.");
+        } else {
+            out.println("Deserialization is not sampled, since the agent was not started with filter=true.");
+        }
+        out.println();
+        out.println("Streams sampled from writeObject, readObject, and SerializationAgent.sample ("
+                + dropped + " dropped for lack of room):");
+        out.print(streams);
+    }
+
+    private static void writeSites(PrintWriter out, Map<String, CallSite> sites,
+            boolean sizes) {
+        List<CallSite> list = new ArrayList<CallSite>(sites.values());
+        Collections.sort(list, new Comparator<CallSite>() {
+            public int compare(CallSite a, CallSite b) {
+                return Long.compare(b.samples.sum(), a.samples.sum());
+            }
+        });
+        for (CallSite cs : list) {
+            if (sizes) {
+                out.println("  " + cs.name + ": " + cs.samples.sum() + " samples, "
+                        + cs.bytes.sum() + " bytes, largest " + cs.maxStreamBytes.get()
+                        + " bytes");
+            } else {
+                out.println("  " + cs.name + ": " + cs.samples.sum()
+                        + " samples, largest stream at least " + cs.maxStreamBytes.get()
+                        + " bytes");
+            }
+            for (Map.Entry<String, LongAdder> e : cs.classes.entrySet())
+                out.println(String.format("    %10d  %s", e.getValue().sum(), e.getKey()));
+        }
+    }
+
+    private static final int RING_BYTES = 1 << 22;
+
+    private static final ThreadLocal<Boolean> COPYING = new ThreadLocal<Boolean>();
+
+    private static volatile SerializationAgent instance;
+    private static volatile boolean instrumented;
+
+    private final double rate;
+    private final long budget;
+    private final File file;
+    private final AnalysisPipeline pipeline;
+    private final AtomicLong remaining = new AtomicLong();
+    private final Map<String, CallSite> sites = new ConcurrentHashMap<String, CallSite>();
+    private final Map<String, CallSite> writeSites = new ConcurrentHashMap<String, CallSite>();
+    private final Map<String, CallSite> readSites = new ConcurrentHashMap<String, CallSite>();
+    private final ClassHistogram streams = new ClassHistogram();  // guarded by this
+    private long dropped;  // guarded by this
+    private volatile boolean instrumentWanted;
+    private volatile boolean filterWanted;
+    private volatile boolean filtering;
+    private volatile boolean stopped;
+}
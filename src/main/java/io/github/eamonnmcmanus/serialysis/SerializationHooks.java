@@ -0,0 +1,58 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.util.function.BiConsumer;
+
+/**
+ * <p>The methods that {@link SerializationAgent} makes
+ * {@code ObjectOutputStream.writeObject} and
+ * {@code ObjectInputStream.readObject} call when they return. Those classes
+ * are loaded by the bootstrap class loader, so the agent loads this class
+ * there too, from a jar of its own, and sets the hooks with reflection.
+ * This class must not refer to any other class of this package, which
+ * would be a different class from the one the agent uses.</p>
+ *
+ * <p>This class is public only so that the bootstrap class loader's copy
+ * can be called from {@code java.base}. It is not meant to be used
+ * otherwise.</p>
+ */
+public final class SerializationHooks {
+    private SerializationHooks() {
+    }
+
+    /**
+     * Called with the stream and the object when {@code writeObject}
+     * returns normally, or null.
+     */
+    public static volatile BiConsumer<Object, Object> writeHook;
+
+    /**
+     * Called with the stream and the object when {@code readObject}
+     * returns normally, or null.
+     */
+    public static volatile BiConsumer<Object, Object> readHook;
+
+    public static void wrote(Object stream, Object obj) {
+        BiConsumer<Object, Object> hook = writeHook;
+        if (hook != null)
+            hook.accept(stream, obj);
+    }
+
+    public static void read(Object stream, Object obj) {
+        BiConsumer<Object, Object> hook = readHook;
+        if (hook != null)
+            hook.accept(stream, obj);
+    }
+}
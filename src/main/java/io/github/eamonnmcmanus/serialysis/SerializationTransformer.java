@@ -0,0 +1,101 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Rewrites {@code ObjectOutputStream.writeObject(Object)} and
+ * {@code ObjectInputStream.readObject()} so that, just before they return
+ * normally, they call {@link SerializationHooks} with the stream and the
+ * object written or read. Nothing else about the classes changes, so they
+ * can be retransformed after they are loaded.
+ */
+class SerializationTransformer implements ClassFileTransformer {
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if ("java/io/ObjectOutputStream".equals(className))
+            return instrument(classfileBuffer, "writeObject", "(Ljava/lang/Object;)V", "wrote");
+        if ("java/io/ObjectInputStream".equals(className))
+            return instrument(classfileBuffer, "readObject", "()Ljava/lang/Object;", "read");
+        return null;
+    }
+
+    /**
+     * Return the given class file with a call to the given method of
+     * {@link SerializationHooks} before each return from the instance
+     * method with the given name and descriptor. For a method that returns
+     * void, the object is its first parameter, and otherwise it is the
+     * value returned.
+     */
+    static byte[] instrument(byte[] classFile, final String name, final String descriptor,
+            final String hook) {
+        ClassReader reader = new ClassReader(classFile);
+        // The added code has no branches and leaves the stack as it found
+        // it, so the stack map frames are still right.
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String methodName, String methodDescriptor,
+                    String signature, String[] exceptions) {
+                MethodVisitor mv = super.visitMethod(
+                        access, methodName, methodDescriptor, signature, exceptions);
+                if ((access & Opcodes.ACC_STATIC) != 0 || !methodName.equals(name)
+                        || !methodDescriptor.equals(descriptor))
+                    return mv;
+                return new HookCall(mv, hook);
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    private static class HookCall extends MethodVisitor {
+        HookCall(MethodVisitor mv, String hook) {
+            super(Opcodes.ASM9, mv);
+            this.hook = hook;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode == Opcodes.RETURN) {
+                super.visitVarInsn(Opcodes.ALOAD, 0);
+                super.visitVarInsn(Opcodes.ALOAD, 1);
+                callHook();
+            } else if (opcode == Opcodes.ARETURN) {
+                super.visitInsn(Opcodes.DUP);
+                super.visitVarInsn(Opcodes.ALOAD, 0);
+                super.visitInsn(Opcodes.SWAP);
+                callHook();
+            }
+            super.visitInsn(opcode);
+        }
+
+        private void callHook() {
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, HOOKS, hook,
+                    "(Ljava/lang/Object;Ljava/lang/Object;)V", false);
+        }
+
+        private final String hook;
+    }
+
+    static final String HOOKS = "io/github/eamonnmcmanus/serialysis/SerializationHooks";
+}
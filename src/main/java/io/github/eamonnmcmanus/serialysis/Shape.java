@@ -0,0 +1,133 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.FieldDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.PrimitiveFieldDesc;
+
+/**
+ * The layout of the serial fields of every {@link SObject} of a class: the
+ * field names in order, the slot where each one's value is, and whether it
+ * is primitive. There is one shape per class descriptor, shared by all the
+ * objects described by it, and it never changes.
+ *
+ * <p>The fields of a class and its ancestors are in the stream in the order
+ * of {@link SerialScan.ObjectClassDesc#getAllFields()}. If two classes in
+ * the hierarchy have a field with the same name, the object has just one
+ * field of that name, which has the value of the later one, as it would if
+ * the fields were put into a map one after the other.</p>
+ */
+final class Shape {
+    private Shape(String[] names, int[] fieldSlots, char[] typeCodes) {
+        this.names = names;
+        this.fieldSlots = fieldSlots;
+        this.typeCodes = typeCodes;
+        this.slotFields = new int[names.length];
+        for (int i = 0; i < fieldSlots.length; i++)
+            slotFields[fieldSlots[i]] = i;
+        this.slots = new HashMap<String, Integer>(names.length * 2);
+        for (int i = 0; i < names.length; i++)
+            slots.put(names[i], i);
+        this.nameSet = Collections.unmodifiableSet(
+                new LinkedHashSet<String>(Arrays.asList(names)));
+    }
+
+    /**
+     * The shape of objects with the given fields, in stream order.
+     */
+    static Shape forFields(FieldDesc[] fields) {
+        Map<String, Integer> slots = new HashMap<String, Integer>();
+        String[] names = new String[fields.length];
+        char[] typeCodes = new char[fields.length];
+        int[] fieldSlots = new int[fields.length];
+        int n = 0;
+        for (int i = 0; i < fields.length; i++) {
+            String name = fields[i].getName();
+            Integer slot = slots.get(name);
+            if (slot == null) {
+                slot = n++;
+                slots.put(name, slot);
+                names[slot] = name;
+            }
+            fieldSlots[i] = slot;
+            typeCodes[slot] = (fields[i] instanceof PrimitiveFieldDesc)
+                    ? ((PrimitiveFieldDesc) fields[i]).getTypeCode() : 0;
+        }
+        return new Shape(Arrays.copyOf(names, n), fieldSlots,
+                Arrays.copyOf(typeCodes, n));
+    }
+
+    /**
+     * The shape of an enum constant or a class, which has a single synthetic
+     * field called {@code "<name>"}.
+     */
+    static final Shape NAME =
+            new Shape(new String[] {"<name>"}, new int[] {0}, new char[1]);
+
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * The slot of the field with the given name, or -1 if there is none.
+     */
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return (slot == null) ? -1 : slot;
+    }
+
+    /**
+     * The slot for the value of the {@code i}th field in stream order.
+     */
+    int slotOfField(int i) {
+        return fieldSlots[i];
+    }
+
+    /**
+     * The index in stream order of the field whose value is in the given
+     * slot. This is the last field with that slot's name.
+     */
+    int fieldOfSlot(int slot) {
+        return slotFields[slot];
+    }
+
+    /**
+     * The type code of the primitive field in the given slot, or 0 if it
+     * is a reference field.
+     */
+    char typeCodeOf(int slot) {
+        return typeCodes[slot];
+    }
+
+    /**
+     * The field names in slot order, as an unmodifiable set.
+     */
+    Set<String> names() {
+        return nameSet;
+    }
+
+    private final String[] names;
+    private final int[] fieldSlots;
+    private final int[] slotFields;
+    private final char[] typeCodes;
+    private final Map<String, Integer> slots;
+    private final Set<String> nameSet;
+}
@@ -0,0 +1,647 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static java.io.ObjectStreamConstants.*;
+
+/**
+ * <p>Write synthetic serial streams of a chosen shape and size, for
+ * benchmarks and scale tests. The streams are written directly in the
+ * serialization grammar, so the classes in them are made up and need not
+ * exist anywhere; they are called {@code synthetic.C0}, {@code synthetic.C1},
+ * and so on. A stream is written as it is generated, keeping only what is
+ * needed to refer back to earlier values, so a stream of many gigabytes
+ * can be written quickly. The same settings and seed always give the same
+ * bytes.</p>
+ *
+ * <p>Each top-level value is an object of one of the synthetic classes.
+ * Each class has some scalar fields, each a primitive or a
+ * {@code String}, and {@linkplain #setWidth width} fields of type
+ * {@code Object}. Some classes have a superclass that is another
+ * synthetic class, and some have a {@code writeObject} method that writes
+ * block data and a value. The value of an {@code Object} field is a
+ * reference to an earlier value, with probability
+ * {@linkplain #setSharing sharing}, or else a new value: an object, an
+ * array, an enum constant, or an instance of a proxy class, down to the
+ * {@linkplain #setDepth depth}, below which it is a string, enum constant,
+ * or null.</p>
+ *
+ * <p>From the command line, with options named like the setters:</p>
+ *
+ * <pre>
+ * java -cp serialysis.jar io.github.eamonnmcmanus.serialysis.StreamGenerator \
+ *     -seed 42 -width 8 -depth 6 -resetInterval 1000 out.ser 5000000000
+ * </pre>
+ */
+public final class StreamGenerator {
+    /**
+     * Make a generator with the default settings and a seed of 0.
+     */
+    public StreamGenerator() {
+    }
+
+    /**
+     * The seed of the random numbers that determine the contents of the
+     * stream, default 0.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * The number of {@code Object} fields of each class, which is also the
+     * length of each {@code Object[]} array, default 4.
+     */
+    public void setWidth(int width) {
+        this.width = check(width, 0, 1000);
+    }
+
+    /**
+     * The greatest nesting of objects and arrays, default 4. A top-level
+     * object is at depth 1.
+     */
+    public void setDepth(int depth) {
+        this.depth = check(depth, 1, 1000);
+    }
+
+    /**
+     * The probability that an {@code Object} field refers to a value that
+     * was written earlier, since the last reset, default 0.1.
+     */
+    public void setSharing(double sharing) {
+        this.sharing = check(sharing);
+    }
+
+    /**
+     * The number of synthetic classes, default 16.
+     */
+    public void setClassCount(int classCount) {
+        this.classCount = check(classCount, 1, 1 << 16);
+    }
+
+    /**
+     * The number of scalar fields of each class, default 4.
+     */
+    public void setScalarFields(int scalarFields) {
+        this.scalarFields = check(scalarFields, 0, 1000);
+    }
+
+    /**
+     * The fraction of scalar fields that are strings rather than
+     * primitives, default 0.25.
+     */
+    public void setStringFraction(double stringFraction) {
+        this.stringFraction = check(stringFraction);
+    }
+
+    /**
+     * The longest string, default 32. Strings are between 1 and this many
+     * printable ASCII characters long.
+     */
+    public void setMaxStringLength(int maxStringLength) {
+        this.maxStringLength = check(maxStringLength, 1, 65535);
+    }
+
+    /**
+     * The fraction of classes that have a {@code writeObject} method that
+     * writes block data after their fields, default 0.25.
+     */
+    public void setBlockDataFraction(double blockDataFraction) {
+        this.blockDataFraction = check(blockDataFraction);
+    }
+
+    /**
+     * The probability that a new value in an {@code Object} field is an
+     * array, default 0.1. Half of the arrays are {@code int[]}.
+     */
+    public void setArrayFraction(double arrayFraction) {
+        this.arrayFraction = check(arrayFraction);
+    }
+
+    /**
+     * The probability that a new value in an {@code Object} field is an
+     * enum constant, default 0.05.
+     */
+    public void setEnumFraction(double enumFraction) {
+        this.enumFraction = check(enumFraction);
+    }
+
+    /**
+     * The probability that a new value in an {@code Object} field is an
+     * instance of a proxy class, default 0.01.
+     */
+    public void setProxyFraction(double proxyFraction) {
+        this.proxyFraction = check(proxyFraction);
+    }
+
+    /**
+     * Reset the stream after this many top-level objects, or never if 0,
+     * which is the default.
+     */
+    public void setResetInterval(int resetInterval) {
+        this.resetInterval = check(resetInterval, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Write a stream of at least the given number of bytes, and of no more
+     * than that plus the size of one top-level value. The stream is not
+     * closed.
+     *
+     * @param out where to write the stream.
+     * @param bytes the size of the stream.
+     * @return the number of top-level values in the stream.
+     * @throws IOException if there is a problem writing the stream.
+     */
+    public long write(OutputStream out, long bytes) throws IOException {
+        Writer w = new Writer(out);
+        long count = 0;
+        while (w.counter.count < bytes) {
+            if (resetInterval > 0 && count > 0 && count % resetInterval == 0)
+                w.reset();
+            w.object(1);
+            count++;
+        }
+        w.out.flush();
+        return count;
+    }
+
+    /**
+     * Write a stream to a file, from the command line.
+     *
+     * @param args options like {@code -width 8}, then the file name and
+     *     the size of the stream in bytes.
+     * @throws IOException if there is a problem writing the file.
+     */
+    public static void main(String[] args) throws IOException {
+        StreamGenerator g = new StreamGenerator();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            if (i + 1 == args.length)
+                usage("Missing value for " + args[i]);
+            String name = args[i].substring(1);
+            String value = args[i + 1];
+            if (name.equals("seed"))
+                g.setSeed(Long.parseLong(value));
+            else if (name.equals("width"))
+                g.setWidth(Integer.parseInt(value));
+            else if (name.equals("depth"))
+                g.setDepth(Integer.parseInt(value));
+            else if (name.equals("sharing"))
+                g.setSharing(Double.parseDouble(value));
+            else if (name.equals("classCount"))
+                g.setClassCount(Integer.parseInt(value));
+            else if (name.equals("scalarFields"))
+                g.setScalarFields(Integer.parseInt(value));
+            else if (name.equals("stringFraction"))
+                g.setStringFraction(Double.parseDouble(value));
+            else if (name.equals("maxStringLength"))
+                g.setMaxStringLength(Integer.parseInt(value));
+            else if (name.equals("blockDataFraction"))
+                g.setBlockDataFraction(Double.parseDouble(value));
+            else if (name.equals("arrayFraction"))
+                g.setArrayFraction(Double.parseDouble(value));
+            else if (name.equals("enumFraction"))
+                g.setEnumFraction(Double.parseDouble(value));
+            else if (name.equals("proxyFraction"))
+                g.setProxyFraction(Double.parseDouble(value));
+            else if (name.equals("resetInterval"))
+                g.setResetInterval(Integer.parseInt(value));
+            else
+                usage("Unknown option " + args[i]);
+        }
+        if (args.length - i != 2)
+            usage("Expected a file name and a size");
+        try (OutputStream out = new FileOutputStream(args[i])) {
+            long count = g.write(out, Long.parseLong(args[i + 1]));
+            System.out.println("Wrote " + count + " objects to " + args[i]);
+        }
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: java " + StreamGenerator.class.getName()
+                + " [-option value ...] file bytes");
+        System.exit(2);
+    }
+
+    private static int check(int value, int min, int max) {
+        if (value < min || value > max)
+            throw new IllegalArgumentException("Must be between " + min + " and " + max
+                    + ": " + value);
+        return value;
+    }
+
+    private static double check(double value) {
+        if (!(value >= 0 && value <= 1))
+            throw new IllegalArgumentException("Must be between 0 and 1: " + value);
+        return value;
+    }
+
+    /**
+     * The made-up description of a synthetic class.
+     */
+    private static class SyntheticClass {
+        String name;
+        long serialVersionUID;
+        int superclass = -1;
+        boolean writeMethod;
+        char[] scalarTypes;
+    }
+
+    /**
+     * The state of writing one stream. Handles are assigned exactly as an
+     * {@code ObjectOutputStream} would assign them, counting from
+     * {@code baseWireHandle} since the last reset.
+     */
+    private class Writer {
+        Writer(OutputStream out) throws IOException {
+            this.random = new SplittableRandom(seed);
+            this.counter = new Counter(new BufferedOutputStream(out, 1 << 16));
+            this.out = new DataOutputStream(counter);
+            this.classes = new SyntheticClass[classCount];
+            for (int i = 0; i < classCount; i++) {
+                SyntheticClass c = new SyntheticClass();
+                c.name = "synthetic.C" + i;
+                c.serialVersionUID = random.nextLong();
+                if (i > 0 && random.nextInt(4) == 0)
+                    c.superclass = random.nextInt(i);
+                c.writeMethod = random.nextDouble() < blockDataFraction;
+                // Like ObjectStreamClass, put the primitive fields first.
+                c.scalarTypes = new char[scalarFields];
+                int primitives = 0;
+                for (int j = 0; j < scalarFields; j++) {
+                    if (random.nextDouble() >= stringFraction) {
+                        c.scalarTypes[primitives++] =
+                                PRIMITIVES.charAt(random.nextInt(PRIMITIVES.length()));
+                    }
+                }
+                Arrays.sort(c.scalarTypes, 0, primitives);
+                Arrays.fill(c.scalarTypes, primitives, scalarFields, 'L');
+                classes[i] = c;
+            }
+            this.descHandles = new int[classCount];
+            this.enumDescHandles = new int[ENUMS];
+            this.out.writeShort(STREAM_MAGIC);
+            this.out.writeShort(STREAM_VERSION);
+            clearHandles();
+        }
+
+        void reset() throws IOException {
+            out.writeByte(TC_RESET);
+            clearHandles();
+        }
+
+        private void clearHandles() {
+            nextHandle = baseWireHandle;
+            Arrays.fill(descHandles, -1);
+            Arrays.fill(enumDescHandles, -1);
+            typeStrings.clear();
+            enumDescHandle = objectArrayDescHandle = intArrayDescHandle = -1;
+            proxyDescHandle = proxySuperDescHandle = -1;
+            shared = 0;
+        }
+
+        private int newHandle() {
+            return nextHandle++;
+        }
+
+        /**
+         * Write a new object of a random synthetic class.
+         */
+        void object(int level) throws IOException {
+            int c = random.nextInt(classCount);
+            out.writeByte(TC_OBJECT);
+            classDesc(c);
+            share(newHandle());
+            classData(c, level);
+        }
+
+        private void classData(int c, int level) throws IOException {
+            SyntheticClass sc = classes[c];
+            if (sc.superclass >= 0)
+                classData(sc.superclass, level);
+            for (char type : sc.scalarTypes) {
+                if (type == 'L')
+                    string();
+                else
+                    primitive(type);
+            }
+            for (int i = 0; i < width; i++)
+                value(level + 1);
+            if (sc.writeMethod) {
+                int length = 1 + random.nextInt(64);
+                out.writeByte(TC_BLOCKDATA);
+                out.writeByte(length);
+                for (int i = 0; i < length; i++)
+                    scratch[i] = (byte) random.nextInt();
+                out.write(scratch, 0, length);
+                value(level + 1);
+                out.writeByte(TC_ENDBLOCKDATA);
+            }
+        }
+
+        private void classDesc(int c) throws IOException {
+            if (descHandles[c] >= 0) {
+                reference(descHandles[c]);
+                return;
+            }
+            SyntheticClass sc = classes[c];
+            out.writeByte(TC_CLASSDESC);
+            out.writeUTF(sc.name);
+            out.writeLong(sc.serialVersionUID);
+            descHandles[c] = newHandle();
+            out.writeByte(SC_SERIALIZABLE | (sc.writeMethod ? SC_WRITE_METHOD : 0));
+            out.writeShort(sc.scalarTypes.length + width);
+            for (int i = 0; i < sc.scalarTypes.length; i++) {
+                char type = sc.scalarTypes[i];
+                out.writeByte(type);
+                out.writeUTF("f" + i);
+                if (type == 'L')
+                    typeString("Ljava/lang/String;");
+            }
+            for (int i = 0; i < width; i++) {
+                out.writeByte('L');
+                out.writeUTF("r" + i);
+                typeString("Ljava/lang/Object;");
+            }
+            out.writeByte(TC_ENDBLOCKDATA);
+            if (sc.superclass >= 0)
+                classDesc(sc.superclass);
+            else
+                out.writeByte(TC_NULL);
+        }
+
+        private void typeString(String s) throws IOException {
+            Integer h = typeStrings.get(s);
+            if (h != null) {
+                reference(h);
+            } else {
+                out.writeByte(TC_STRING);
+                out.writeUTF(s);
+                typeStrings.put(s, newHandle());
+            }
+        }
+
+        /**
+         * Write the value of an {@code Object} field, array element, or
+         * annotation at the given level.
+         */
+        private void value(int level) throws IOException {
+            double r = random.nextDouble();
+            if (shared > 0 && r < sharing) {
+                reference(sharedHandles[random.nextInt(Math.min(shared, SHARED))]);
+                return;
+            }
+            r = random.nextDouble();
+            if (r < enumFraction) {
+                enumConstant();
+            } else if (level > depth) {
+                if (random.nextInt(8) == 0)
+                    out.writeByte(TC_NULL);
+                else
+                    string();
+            } else if ((r -= enumFraction) < proxyFraction) {
+                proxy(level);
+            } else if ((r -= proxyFraction) < arrayFraction) {
+                array(level);
+            } else {
+                object(level);
+            }
+        }
+
+        private void string() throws IOException {
+            int length = 1 + random.nextInt(maxStringLength);
+            out.writeByte(TC_STRING);
+            share(newHandle());
+            out.writeShort(length);
+            // Each random long gives 10 characters between '0' and 'o'.
+            long bits = 0;
+            for (int i = 0; i < length; i++) {
+                if (i % 10 == 0)
+                    bits = random.nextLong();
+                scratch[i] = (byte) ('0' + (bits & 63));
+                bits >>>= 6;
+            }
+            out.write(scratch, 0, length);
+        }
+
+        private void primitive(char type) throws IOException {
+            switch (type) {
+                case 'B': out.writeByte(random.nextInt()); break;
+                case 'C': out.writeChar('a' + random.nextInt(26)); break;
+                case 'D': out.writeDouble(random.nextDouble()); break;
+                case 'F': out.writeFloat((float) random.nextDouble()); break;
+                case 'I': out.writeInt(random.nextInt()); break;
+                case 'J': out.writeLong(random.nextLong()); break;
+                case 'S': out.writeShort(random.nextInt()); break;
+                case 'Z': out.writeBoolean(random.nextBoolean()); break;
+                default: throw new AssertionError(type);
+            }
+        }
+
+        private void array(int level) throws IOException {
+            out.writeByte(TC_ARRAY);
+            if (random.nextBoolean()) {
+                intArrayDescHandle = arrayDesc(intArrayDescHandle, "[I", INT_ARRAY_UID);
+                share(newHandle());
+                int length = random.nextInt(8 * width + 1);
+                out.writeInt(length);
+                for (int i = 0; i < length; i++)
+                    out.writeInt(random.nextInt());
+            } else {
+                objectArrayDescHandle = arrayDesc(objectArrayDescHandle,
+                        "[Ljava.lang.Object;", OBJECT_ARRAY_UID);
+                share(newHandle());
+                out.writeInt(width);
+                for (int i = 0; i < width; i++)
+                    value(level + 1);
+            }
+        }
+
+        private int arrayDesc(int handle, String name, long uid) throws IOException {
+            if (handle >= 0) {
+                reference(handle);
+                return handle;
+            }
+            out.writeByte(TC_CLASSDESC);
+            out.writeUTF(name);
+            out.writeLong(uid);
+            handle = newHandle();
+            out.writeByte(SC_SERIALIZABLE);
+            out.writeShort(0);
+            out.writeByte(TC_ENDBLOCKDATA);
+            out.writeByte(TC_NULL);
+            return handle;
+        }
+
+        private void enumConstant() throws IOException {
+            int e = random.nextInt(ENUMS);
+            out.writeByte(TC_ENUM);
+            if (enumDescHandles[e] >= 0) {
+                reference(enumDescHandles[e]);
+            } else {
+                out.writeByte(TC_CLASSDESC);
+                out.writeUTF("synthetic.E" + e);
+                out.writeLong(0);
+                enumDescHandles[e] = newHandle();
+                out.writeByte(SC_SERIALIZABLE | SC_ENUM);
+                out.writeShort(0);
+                out.writeByte(TC_ENDBLOCKDATA);
+                if (enumDescHandle >= 0) {
+                    reference(enumDescHandle);
+                } else {
+                    out.writeByte(TC_CLASSDESC);
+                    out.writeUTF("java.lang.Enum");
+                    out.writeLong(0);
+                    enumDescHandle = newHandle();
+                    out.writeByte(SC_SERIALIZABLE | SC_ENUM);
+                    out.writeShort(0);
+                    out.writeByte(TC_ENDBLOCKDATA);
+                    out.writeByte(TC_NULL);
+                }
+            }
+            share(newHandle());
+            // The constant's name is a string like any other, but there are
+            // only a few of them.
+            typeString("V" + random.nextInt(8));
+        }
+
+        /**
+         * Write an instance of a proxy class, whose only field is the
+         * {@code h} field of {@code java.lang.reflect.Proxy}, here an
+         * object of a synthetic class.
+         */
+        private void proxy(int level) throws IOException {
+            out.writeByte(TC_OBJECT);
+            if (proxyDescHandle >= 0) {
+                reference(proxyDescHandle);
+            } else {
+                out.writeByte(TC_PROXYCLASSDESC);
+                proxyDescHandle = newHandle();
+                out.writeInt(2);
+                out.writeUTF("synthetic.I0");
+                out.writeUTF("synthetic.I1");
+                out.writeByte(TC_ENDBLOCKDATA);
+                if (proxySuperDescHandle >= 0) {
+                    reference(proxySuperDescHandle);
+                } else {
+                    out.writeByte(TC_CLASSDESC);
+                    out.writeUTF("java.lang.reflect.Proxy");
+                    out.writeLong(PROXY_UID);
+                    proxySuperDescHandle = newHandle();
+                    out.writeByte(SC_SERIALIZABLE);
+                    out.writeShort(1);
+                    out.writeByte('L');
+                    out.writeUTF("h");
+                    typeString("Ljava/lang/reflect/InvocationHandler;");
+                    out.writeByte(TC_ENDBLOCKDATA);
+                    out.writeByte(TC_NULL);
+                }
+            }
+            share(newHandle());
+            object(level + 1);
+        }
+
+        private void reference(int handle) throws IOException {
+            out.writeByte(TC_REFERENCE);
+            out.writeInt(handle);
+        }
+
+        /**
+         * Remember a value that later fields can refer to. Only the most
+         * recent ones are remembered.
+         */
+        private void share(int handle) {
+            sharedHandles[shared++ % SHARED] = handle;
+        }
+
+        final SplittableRandom random;
+        final Counter counter;
+        final DataOutputStream out;
+        private final SyntheticClass[] classes;
+        private final int[] descHandles;
+        private final int[] enumDescHandles;
+        private final Map<String, Integer> typeStrings = new HashMap<String, Integer>();
+        private final int[] sharedHandles = new int[SHARED];
+        private final byte[] scratch = new byte[65535];
+        private int shared;
+        private int nextHandle;
+        private int enumDescHandle;
+        private int objectArrayDescHandle;
+        private int intArrayDescHandle;
+        private int proxyDescHandle;
+        private int proxySuperDescHandle;
+    }
+
+    /**
+     * Counts the bytes written, which can be more than
+     * {@code DataOutputStream.size()} can count.
+     */
+    private static class Counter extends FilterOutputStream {
+        Counter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long count;
+    }
+
+    private static final String PRIMITIVES = "BCDFIJSZ";
+    private static final int ENUMS = 4;
+    private static final int SHARED = 4096;
+    private static final long INT_ARRAY_UID =
+            ObjectStreamClass.lookup(int[].class).getSerialVersionUID();
+    private static final long OBJECT_ARRAY_UID =
+            ObjectStreamClass.lookup(Object[].class).getSerialVersionUID();
+    private static final long PROXY_UID =
+            ObjectStreamClass.lookup(Proxy.class).getSerialVersionUID();
+
+    private long seed;
+    private int width = 4;
+    private int depth = 4;
+    private double sharing = 0.1;
+    private int classCount = 16;
+    private int scalarFields = 4;
+    private double stringFraction = 0.25;
+    private int maxStringLength = 32;
+    private double blockDataFraction = 0.25;
+    private double arrayFraction = 0.1;
+    private double enumFraction = 0.05;
+    private double proxyFraction = 0.01;
+    private int resetInterval;
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+/**
+ * Static tracing methods for the debugging streams, which are not tied to
+ * any one scan. Each thread has its own nesting state.
+ */
+class ThreadTrace {
+    private ThreadTrace() {
+    }
+
+    static void enter(String what, Object... args) {
+        Trace.forThread().enter(what, args);
+    }
+
+    static void show(String what) {
+        Trace.forThread().show(what);
+    }
+
+    static void show(String what, Object x) {
+        Trace.forThread().show(what, x);
+    }
+
+    static void show(String what, byte[] bytes, int off, int len) {
+        Trace.forThread().show(what, bytes, off, len);
+    }
+
+    static void exit() {
+        Trace.forThread().exit();
+    }
+
+    static void exit(Object ret) {
+        Trace.forThread().exit(ret);
+    }
+}
@@ -13,22 +13,156 @@
  */
 package io.github.eamonnmcmanus.serialysis;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Stack;
-import javax.management.Query;
-import javax.management.QueryExp;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-class Trace {
-    static final boolean TRACE = false;
+/**
+ * Tracing of the progress of a {@link SerialScan} through a serial stream.
+ *
+ * <p>Tracing is off by default and can be switched on and off at any time
+ * with {@link #enable(int)} and {@link #disable()}, or at startup by setting
+ * the system property {@code io.github.eamonnmcmanus.serialysis.trace} to
+ * the sampling interval. Only one scan in every <em>N</em> is traced, where
+ * <em>N</em> is the sampling interval. Each traced scan has its own nesting
+ * state, so concurrent scans do not interfere with each other, and its output
+ * lines are prefixed with a scan number so they can be told apart.</p>
+ *
+ * <p>Trace output is queued in a bounded buffer and written by a background
+ * thread, so a scan never blocks on the output. If the buffer is full, lines
+ * are dropped, and {@link #getDroppedLineCount()} says how many.</p>
+ *
+ * <p>When tracing is off, or when a scan is not sampled, the cost of tracing
+ * is one check of a field per trace point.</p>
+ */
+public final class Trace {
+    private Trace(Sink sink, String prefix) {
+        this.sink = sink;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Trace every {@code sampleInterval}th scan, writing the output to
+     * {@code System.err}.
+     *
+     * @param sampleInterval 1 to trace every scan, 2 to trace every second
+     *     scan, and so on.
+     * @throws IllegalArgumentException if {@code sampleInterval} is not
+     *     positive.
+     */
+    public static void enable(int sampleInterval) {
+        enable(sampleInterval, System.err, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Trace every {@code sampleInterval}th scan, writing the output to the
+     * given {@code PrintStream}. If tracing was already enabled, the previous
+     * output is flushed and replaced.
+     *
+     * @param sampleInterval 1 to trace every scan, 2 to trace every second
+     *     scan, and so on.
+     * @param out where the trace output goes.
+     * @param bufferSize how many lines of output can be waiting to be written
+     *     before further lines are dropped.
+     * @throws IllegalArgumentException if {@code sampleInterval} or
+     *     {@code bufferSize} is not positive.
+     */
+    public static synchronized void enable(
+            int sampleInterval, PrintStream out, int bufferSize) {
+        if (sampleInterval <= 0)
+            throw new IllegalArgumentException("Bad sample interval: " + sampleInterval);
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Bad buffer size: " + bufferSize);
+        if (out == null)
+            throw new NullPointerException("out");
+        Config old = config;
+        config = new Config(sampleInterval, new Sink(out, bufferSize));
+        if (old != null)
+            old.sink.close();
+    }
+
+    /**
+     * Stop tracing. Scans that are already being traced stop producing
+     * output, and output that is still buffered is written.
+     */
+    public static synchronized void disable() {
+        Config old = config;
+        config = null;
+        if (old != null)
+            old.sink.close();
+    }
+
+    /**
+     * Whether tracing is currently enabled.
+     *
+     * @return true if tracing is enabled.
+     */
+    public static boolean isEnabled() {
+        return config != null;
+    }
+
+    /**
+     * The number of lines of trace output that have been dropped because
+     * the output buffer was full.
+     *
+     * @return the number of dropped lines since the class was loaded.
+     */
+    public static long getDroppedLineCount() {
+        return droppedLines.get();
+    }
+
+    /**
+     * Return the {@code Trace} to be used by a new scan. This is a shared
+     * inactive instance unless tracing is enabled and this scan is sampled.
+     */
+    static Trace forScan() {
+        Config c = config;
+        if (c == null)
+            return OFF;
+        long n = scanCount.getAndIncrement();
+        if (n % c.sampleInterval != 0)
+            return OFF;
+        return new Trace(c.sink, "[scan " + n + "] ");
+    }
+
+    /**
+     * Return the {@code Trace} for the current thread, for code that is not
+     * tied to a particular scan. Sampling does not apply here.
+     */
+    static Trace forThread() {
+        Config c = config;
+        if (c == null)
+            return OFF;
+        Trace t = threadTraces.get();
+        if (t == null || t.sink != c.sink) {
+            t = new Trace(c.sink, "[" + Thread.currentThread().getName() + "] ");
+            threadTraces.set(t);
+        }
+        return t;
+    }
+
+    boolean isOn() {
+        return sink != null && !sink.closed;
+    }
+
+    void enter(String what) {
+        if (!isOn()) return;
+        line(what + "()");
+        stack.add(what);
+    }
+
+    void enter(String what, Object arg) {
+        if (!isOn()) return;
+        line(what + "(" + toString(arg) + ")");
+        stack.add(what);
+    }
 
-    static void enter(String what, Object...args) {
-        if (!TRACE) return;
-        indent();
+    void enter(String what, Object... args) {
+        if (!isOn()) return;
         StringBuilder sb = new StringBuilder(what).append("(");
         String sep = "";
         for (Object arg : args) {
@@ -36,44 +170,55 @@ class Trace {
             sep = ", ";
         }
         sb.append(")");
-        System.out.println(sb);
-        stack.push(what);
+        line(sb.toString());
+        stack.add(what);
+    }
+
+    void show(String what) {
+        if (!isOn()) return;
+        line(what);
     }
 
-    static void show(String what) {
-        if (!TRACE) return;
-        indent();
-        System.out.println(what);
+    void show(String what, long x) {
+        if (!isOn()) return;
+        line(what + ": " + x);
     }
 
-    static void show(String what, Object x) {
-        if (!TRACE) return;
+    void show(String what, Object x) {
+        if (!isOn()) return;
         if (x instanceof byte[])
             show(what, (byte[]) x, 0, ((byte[]) x).length);
-        else {
-            indent();
-            System.out.println(what + ": " + toString(x));
-        }
+        else
+            line(what + ": " + toString(x));
     }
 
-    static void show(String what, byte[] bytes, int off, int len) {
-        if (!TRACE) return;
-        indent();
-        System.out.print(what + ": ");
+    void show(String what, byte[] bytes, int off, int len) {
+        if (!isOn()) return;
+        StringBuilder sb = new StringBuilder(what).append(": ");
         for (int i = 0; i < len; i++)
-            System.out.printf(" %02x", bytes[off + i] & 255);
-        System.out.println();
+            sb.append(String.format(" %02x", bytes[off + i] & 255));
+        line(sb.toString());
     }
 
-    static void exit() {
+    void exit() {
         exit("");
     }
 
-    static void exit(Object ret) {
-        if (!TRACE) return;
-        String what = stack.pop();
-        indent();
-        System.out.println(what + " returns " + toString(ret));
+    void exit(Object ret) {
+        if (!isOn()) return;
+        // If tracing was switched on in the middle of a call, there may be
+        // no matching enter.
+        if (stack.isEmpty())
+            return;
+        String what = stack.remove(stack.size() - 1);
+        line(what + " returns " + toString(ret));
+    }
+
+    private void line(String s) {
+        StringBuilder sb = new StringBuilder(prefix);
+        for (int i = 0; i < stack.size(); i++)
+            sb.append("| ");
+        sink.log(sb.append(s).toString());
     }
 
     private static String toString(Object x) {
@@ -83,10 +228,88 @@ class Trace {
         return s.substring(1, s.length() - 1);
     }
 
-    private static void indent() {
-        for (int i = 0; i < stack.size(); i++)
-            System.out.print("| ");
+    private static class Config {
+        Config(int sampleInterval, Sink sink) {
+            this.sampleInterval = sampleInterval;
+            this.sink = sink;
+        }
+
+        final int sampleInterval;
+        final Sink sink;
+    }
+
+    /**
+     * A bounded ring buffer of trace lines, drained by a daemon thread.
+     */
+    private static class Sink implements Runnable {
+        Sink(PrintStream out, int capacity) {
+            this.out = out;
+            this.queue = new ArrayBlockingQueue<String>(capacity);
+            Thread t = new Thread(this, "serialysis-trace");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void log(String line) {
+            if (!queue.offer(line))
+                droppedLines.incrementAndGet();
+        }
+
+        void close() {
+            closed = true;
+        }
+
+        public void run() {
+            List<String> batch = new ArrayList<String>();
+            try {
+                while (true) {
+                    String first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (closed)
+                            break;
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    for (String line : batch)
+                        out.println(line);
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // Just exit.
+            }
+        }
+
+        private final PrintStream out;
+        private final ArrayBlockingQueue<String> queue;
+        private volatile boolean closed;
+    }
+
+    static final String TRACE_PROPERTY = "io.github.eamonnmcmanus.serialysis.trace";
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final Trace OFF = new Trace(null, "");
+    private static volatile Config config;
+    private static final AtomicLong scanCount = new AtomicLong();
+    private static final AtomicLong droppedLines = new AtomicLong();
+    private static final ThreadLocal<Trace> threadTraces = new ThreadLocal<Trace>();
+
+    static {
+        enableFromProperty();
+    }
+
+    /**
+     * Enable tracing if the system property
+     * {@code io.github.eamonnmcmanus.serialysis.trace} is set to a
+     * positive sampling interval. This is done when the class is loaded.
+     */
+    static void enableFromProperty() {
+        Integer interval = Integer.getInteger(TRACE_PROPERTY);
+        if (interval != null && interval > 0)
+            enable(interval);
     }
 
-    private static Stack<String> stack = new Stack<String>();
+    private final Sink sink;
+    private final String prefix;
+    private final List<String> stack = new ArrayList<String>();
 }
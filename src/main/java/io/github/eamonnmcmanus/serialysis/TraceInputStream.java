@@ -16,9 +16,9 @@ package io.github.eamonnmcmanus.serialysis;
 import java.io.IOException;
 import java.io.InputStream;
 
-import static io.github.eamonnmcmanus.serialysis.Trace.enter;
-import static io.github.eamonnmcmanus.serialysis.Trace.exit;
-import static io.github.eamonnmcmanus.serialysis.Trace.show;
+import static io.github.eamonnmcmanus.serialysis.ThreadTrace.enter;
+import static io.github.eamonnmcmanus.serialysis.ThreadTrace.exit;
+import static io.github.eamonnmcmanus.serialysis.ThreadTrace.show;
 
 class TraceInputStream extends InputStream {
     TraceInputStream(InputStream in) {
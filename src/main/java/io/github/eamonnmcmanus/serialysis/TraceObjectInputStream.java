@@ -18,9 +18,9 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.util.Arrays;
 
-import static io.github.eamonnmcmanus.serialysis.Trace.enter;
-import static io.github.eamonnmcmanus.serialysis.Trace.exit;
-import static io.github.eamonnmcmanus.serialysis.Trace.show;
+import static io.github.eamonnmcmanus.serialysis.ThreadTrace.enter;
+import static io.github.eamonnmcmanus.serialysis.ThreadTrace.exit;
+import static io.github.eamonnmcmanus.serialysis.ThreadTrace.show;
 
 class TraceObjectInputStream extends ObjectInputStream {
     public TraceObjectInputStream(InputStream is) throws IOException {
@@ -18,8 +18,8 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
 
-import static io.github.eamonnmcmanus.serialysis.Trace.enter;
-import static io.github.eamonnmcmanus.serialysis.Trace.exit;
+import static io.github.eamonnmcmanus.serialysis.ThreadTrace.enter;
+import static io.github.eamonnmcmanus.serialysis.ThreadTrace.exit;
 
 class TraceObjectOutputStream extends ObjectOutputStream {
     public TraceObjectOutputStream(OutputStream os) throws IOException {
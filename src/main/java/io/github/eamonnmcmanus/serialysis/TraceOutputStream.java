@@ -17,8 +17,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
 
-import static io.github.eamonnmcmanus.serialysis.Trace.enter;
-import static io.github.eamonnmcmanus.serialysis.Trace.exit;
+import static io.github.eamonnmcmanus.serialysis.ThreadTrace.enter;
+import static io.github.eamonnmcmanus.serialysis.ThreadTrace.exit;
 
 class TraceOutputStream extends OutputStream {
 
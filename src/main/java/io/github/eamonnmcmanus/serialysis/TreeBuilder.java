@@ -0,0 +1,379 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ArrayClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+
+/**
+ * The {@link ScanHandler} that builds an {@link SEntity} for each value in
+ * the stream. This is what {@link SerialScan#readObject()} uses. It also
+ * computes the {@linkplain SEntity#getFingerprint fingerprint} of each
+ * entity as it goes.
+ */
+class TreeBuilder extends ScanHandler {
+    TreeBuilder() {
+        stack.add(root);
+    }
+
+    /**
+     * Return the top-level value that was read, and forget it.
+     */
+    SEntity takeRoot() {
+        SEntity x = root.value;
+        root.value = null;
+        return x;
+    }
+
+    /**
+     * Forget any partly-built value after a scan failed in the middle of it,
+     * but keep the handles, since the stream may still be readable after
+     * the failure, as it is after {@code TC_EXCEPTION}.
+     */
+    void abandon() {
+        stack.clear();
+        stack.add(root);
+        root.value = null;
+    }
+
+    /**
+     * Forget everything, before scanning a new stream.
+     */
+    void clear() {
+        reset();
+        stack.clear();
+        stack.add(root);
+        root.value = null;
+    }
+
+    /**
+     * Return the object, enum, or array with the given handle if it is
+     * still being built, because the value being scanned is inside it, or
+     * else null.
+     */
+    SEntity building(int handle) {
+        for (int k = stack.size() - 1; k > 0; k--) {
+            Frame frame = stack.get(k);
+            if (frame.handle == handle && frame.entity != null)
+                return frame.entity;
+        }
+        return null;
+    }
+
+    /**
+     * Return the entity with the given handle, or null if it is a class
+     * descriptor or out of range.
+     */
+    SEntity getHandle(int handle) throws IOException {
+        SEntity x = lookup(handle);
+        return (x instanceof SerialScan.ClassDesc) ? null : x;
+    }
+
+    @Override
+    void beginClassDesc(int handle, ObjectClassDesc desc) {
+        newHandle(handle, desc);
+        stack.add(DISCARD);
+    }
+
+    @Override
+    void endClassDesc() {
+        pop();
+    }
+
+    @Override
+    void nullValue() throws IOException {
+        top().add(null);
+        fold(Fingerprint.NULL);
+    }
+
+    @Override
+    void reference(int handle) throws IOException {
+        SEntity x = lookup(handle);
+        top().add(x);
+        fold(referenceHash(x));
+    }
+
+    @Override
+    void primitive(char typeCode, long bits) throws IOException {
+        SPrim x = new SPrim(box(typeCode, bits));
+        long h = Fingerprint.primitive(typeCode, bits);
+        x.setFingerprint(h);
+        top().add(x);
+        fold(h);
+    }
+
+    static Object box(char typeCode, long bits) {
+        switch (typeCode) {
+            case 'B':
+                return (byte) bits;
+            case 'C':
+                return (char) bits;
+            case 'D':
+                return Double.longBitsToDouble(bits);
+            case 'F':
+                return Float.intBitsToFloat((int) bits);
+            case 'I':
+                return (int) bits;
+            case 'J':
+                return bits;
+            case 'S':
+                return (short) bits;
+            case 'Z':
+                return bits != 0;
+            default:
+                throw new IllegalArgumentException("Bad type code " + typeCode);
+        }
+    }
+
+    @Override
+    void string(int handle, String s) throws IOException {
+        SString x = new SString(s);
+        long h = Fingerprint.ofString(s);
+        x.setFingerprint(h);
+        newHandle(handle, x);
+        top().add(x);
+        fold(h);
+    }
+
+    @Override
+    void blockData(byte[] data) throws IOException {
+        SBlockData x = new SBlockData(data);
+        long h = Fingerprint.ofBlockData(data);
+        x.setFingerprint(h);
+        top().add(x);
+        fold(h);
+    }
+
+    @Override
+    void classValue(int handle, ObjectClassDesc desc) throws IOException {
+        SObject x = new SObject("java.lang.Class", Shape.NAME);
+        x.setSlot(0, new SString(desc.getType()));
+        long h = Fingerprint.ofClass(desc);
+        x.setFingerprint(h);
+        newHandle(handle, x);
+        top().add(x);
+        fold(h);
+    }
+
+    @Override
+    void beginObject(int handle, ObjectClassDesc desc) throws IOException {
+        Shape shape = desc.getShape();
+        SObject x = new SObject(desc.getType(), shape);
+        newHandle(handle, x);
+        top().add(x);
+        stack.add(new ObjectFrame(x, shape));
+        top().handle = handle;
+        top().hash = Fingerprint.start(SGraph.OBJECT, desc);
+    }
+
+    @Override
+    void endObject() {
+        finish();
+    }
+
+    @Override
+    void beginAnnotations() {
+        ((ObjectFrame) top()).annotations = true;
+        fold(Fingerprint.ANNOTATIONS);
+    }
+
+    @Override
+    void endAnnotations() {
+        ((ObjectFrame) top()).annotations = false;
+    }
+
+    @Override
+    void beginEnum(int handle, ObjectClassDesc desc) throws IOException {
+        SObject x = new SObject(desc.getType(), Shape.NAME);
+        newHandle(handle, x);
+        top().add(x);
+        stack.add(new EnumFrame(x));
+        top().handle = handle;
+        top().hash = Fingerprint.start(SGraph.ENUM, desc);
+    }
+
+    @Override
+    void endEnum() {
+        finish();
+    }
+
+    @Override
+    void beginArray(int handle, ArrayClassDesc desc, int length)
+            throws IOException {
+        SArray x = new SArray(desc.getType(), length);
+        newHandle(handle, x);
+        top().add(x);
+        stack.add(new ArrayFrame(x));
+        top().handle = handle;
+        top().hash = Fingerprint.mix(Fingerprint.start(SGraph.ARRAY, desc), length);
+    }
+
+    @Override
+    void endArray() {
+        finish();
+    }
+
+    @Override
+    void reset() {
+        handles.clear();
+    }
+
+    @Override
+    void beginException() {
+        stack.add(new ValueFrame());
+    }
+
+    @Override
+    String endException() {
+        ValueFrame frame = (ValueFrame) pop();
+        return String.valueOf(frame.value);
+    }
+
+    /**
+     * Record the entity or class descriptor that has the given handle.
+     * Subclasses can keep the handle table differently by overriding this,
+     * {@link #lookup}, and {@link #reset()}.
+     */
+    void newHandle(int handle, SEntity x) {
+        assert handle == handles.size();
+        handles.add(x);
+    }
+
+    /**
+     * Return the entity or class descriptor with the given handle.
+     *
+     * @throws IOException if a subclass has to read the entity again and
+     *     can't.
+     */
+    SEntity lookup(int handle) throws IOException {
+        return handles.get(handle);
+    }
+
+    /**
+     * Pop the entity at the top of the stack, which is complete, and set
+     * its fingerprint.
+     */
+    private void finish() {
+        Frame frame = pop();
+        long h = Fingerprint.finish(frame.hash);
+        frame.entity.setFingerprint(h);
+        fold(h);
+    }
+
+    /**
+     * Combine the fingerprint of a value into that of its container.
+     */
+    private void fold(long h) {
+        Frame frame = top();
+        if (frame != DISCARD)
+            frame.hash = Fingerprint.mix(frame.hash, h);
+    }
+
+    private long referenceHash(SEntity x) {
+        if (x == null)
+            return Fingerprint.NULL;
+        long h = x.getFingerprint();
+        if (h != 0)
+            return h;
+        // The entity is still being read, so this is a cycle.
+        for (int k = stack.size() - 1; k >= 0; k--) {
+            if (stack.get(k).entity == x)
+                return Fingerprint.backReference(stack.size() - 1 - k);
+        }
+        return Fingerprint.UNKNOWN_BACK_REFERENCE;
+    }
+
+    private Frame top() {
+        return stack.get(stack.size() - 1);
+    }
+
+    private Frame pop() {
+        return stack.remove(stack.size() - 1);
+    }
+
+    private abstract static class Frame {
+        abstract void add(SEntity x) throws IOException;
+
+        SEntity entity;  // the entity being built, if any
+        int handle = -1; // its handle
+        long hash;       // its fingerprint so far
+    }
+
+    private static class ValueFrame extends Frame {
+        void add(SEntity x) {
+            value = x;
+        }
+
+        SEntity value;
+    }
+
+    private static class ObjectFrame extends Frame {
+        ObjectFrame(SObject object, Shape shape) {
+            this.entity = object;
+            this.object = object;
+            this.shape = shape;
+        }
+
+        void add(SEntity x) {
+            if (annotations)
+                object.addAnnotation(x);
+            else
+                object.setSlot(shape.slotOfField(next++), x);
+        }
+
+        private final SObject object;
+        private final Shape shape;
+        private int next;
+        boolean annotations;
+    }
+
+    private static class EnumFrame extends Frame {
+        EnumFrame(SObject object) {
+            this.entity = object;
+            this.object = object;
+        }
+
+        void add(SEntity x) {
+            object.setSlot(0, x);
+        }
+
+        private final SObject object;
+    }
+
+    private static class ArrayFrame extends Frame {
+        ArrayFrame(SArray array) {
+            this.entity = array;
+            this.array = array;
+        }
+
+        void add(SEntity x) {
+            array.add(x);
+        }
+
+        private final SArray array;
+    }
+
+    private static final Frame DISCARD = new Frame() {
+        void add(SEntity x) {
+        }
+    };
+
+    private final List<SEntity> handles = new ArrayList<SEntity>();
+    private final List<Frame> stack = new ArrayList<Frame>();
+    private final ValueFrame root = new ValueFrame();
+}
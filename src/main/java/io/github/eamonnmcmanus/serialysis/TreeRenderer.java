@@ -0,0 +1,366 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import io.github.eamonnmcmanus.serialysis.SerialScan.ArrayClassDesc;
+import io.github.eamonnmcmanus.serialysis.SerialScan.ObjectClassDesc;
+
+/**
+ * <p>The {@link ScanHandler} that writes the values of a serial stream as
+ * an indented tree, as they are read, without building anything. The
+ * format is that of {@link SEntity#toString()}, except that each object,
+ * array, and string is followed by {@code @} and its handle, and a
+ * reference to a value that appeared earlier is written as
+ * {@code ref @3} rather than as another copy of the value:</p>
+ *
+ * <pre>
+ * SObject(java.util.ArrayList)@2{
+ *   size = SPrim(int){2}
+ *   -- data written by class's writeObject:
+ *   SBlockData(blockdata){4 bytes of binary data}
+ *   SString(String)@3{"a"}
+ *   ref @3
+ * }
+ * </pre>
+ *
+ * <p>Objects and arrays nested more deeply than the
+ * {@linkplain #setMaxDepth maximum depth} are written as
+ * {@code SObject(com.example.Foo)@4{...}}, and a string longer than the
+ * {@linkplain #setMaxContentsLength maximum length} is written as
+ * {@code SString(String)@5{100000 bytes}}.</p>
+ */
+final class TreeRenderer extends ScanHandler {
+    TreeRenderer(Appendable out) {
+        this.out = out;
+    }
+
+    /**
+     * Write every remaining top-level value of the stream.
+     */
+    void render(SerialScan scan) throws IOException {
+        sp = 0;
+        descDepth = 0;
+        depth = 0;
+        elided = 0;
+        while (scan.scanNext())
+            ;
+    }
+
+    /**
+     * Write the contents of objects and arrays only down to the given
+     * depth, where the contents of a top-level value are at depth 1.
+     */
+    void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Skip the contents of longer strings. This must be called before the
+     * scan is created.
+     */
+    void setMaxContentsLength(long maxContents) {
+        this.maxContents = maxContents;
+    }
+
+    /**
+     * Write the next top-level value as {@code path = value}.
+     */
+    void setPath(CharSequence path) {
+        this.path = path;
+    }
+
+    @Override
+    long maxContentsLength() {
+        return maxContents;
+    }
+
+    @Override
+    void beginClassDesc(int handle, ObjectClassDesc desc) {
+        descDepth++;
+    }
+
+    @Override
+    void endClassDesc() {
+        descDepth--;
+    }
+
+    @Override
+    void nullValue() throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("null");
+        done();
+    }
+
+    @Override
+    void reference(int handle) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("ref @").append(Integer.toString(handle));
+        done();
+    }
+
+    @Override
+    void primitive(char typeCode, long bits) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("SPrim(");
+        switch (typeCode) {
+            case 'B': out.append("byte){").append(Long.toString(bits)); break;
+            case 'S': out.append("short){").append(Long.toString(bits)); break;
+            case 'I': out.append("int){").append(Long.toString(bits)); break;
+            case 'J': out.append("long){").append(Long.toString(bits)); break;
+            case 'Z': out.append("boolean){").append((bits != 0) ? "true" : "false"); break;
+            case 'C': out.append("char){").append((char) bits); break;
+            case 'F':
+                out.append("float){").append(Float.toString(Float.intBitsToFloat((int) bits)));
+                break;
+            case 'D':
+                out.append("double){").append(Double.toString(Double.longBitsToDouble(bits)));
+                break;
+            default:
+                throw new IllegalArgumentException("Bad type code " + typeCode);
+        }
+        out.append('}');
+        done();
+    }
+
+    @Override
+    void string(int handle, String s) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("SString(String)@").append(Integer.toString(handle))
+                .append("{\"").append(s).append("\"}");
+        done();
+    }
+
+    @Override
+    void skippedString(int handle, long utflen) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("SString(String)@").append(Integer.toString(handle))
+                .append('{').append(Long.toString(utflen))
+                .append((utflen == 1) ? " byte}" : " bytes}");
+        done();
+    }
+
+    @Override
+    void blockData(byte[] data) throws IOException {
+        skippedBlockData(data.length);
+    }
+
+    @Override
+    void skippedBlockData(int length) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("SBlockData(blockdata){").append(Integer.toString(length))
+                .append((length == 1) ? " byte" : " bytes").append(" of binary data}");
+        done();
+    }
+
+    @Override
+    void classValue(int handle, ObjectClassDesc desc) throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        value();
+        out.append("SObject(java.lang.Class)@").append(Integer.toString(handle))
+                .append('{').append(desc.getType()).append('}');
+        done();
+    }
+
+    @Override
+    void beginObject(int handle, ObjectClassDesc desc) throws IOException {
+        if (descDepth > 0 || begin("SObject(", handle, desc.getType()))
+            return;
+        push(OBJECT);
+        cursors[sp].start(desc);
+    }
+
+    @Override
+    void endObject() throws IOException {
+        if (descDepth > 0 || unelide())
+            return;
+        cursors[sp].clear();
+        end();
+    }
+
+    @Override
+    void beginAnnotations() throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        cursors[sp].beginAnnotations();
+        indent();
+        out.append("-- data written by class's writeObject:\n");
+        push(ANNOTATIONS);
+    }
+
+    @Override
+    void endAnnotations() throws IOException {
+        if (descDepth > 0 || elided > 0)
+            return;
+        sp--;
+        cursors[sp].endAnnotations();
+    }
+
+    @Override
+    void beginEnum(int handle, ObjectClassDesc desc) throws IOException {
+        if (descDepth > 0)
+            return;
+        if (elided > 0) {
+            elided++;
+            return;
+        }
+        value();
+        out.append("SObject(").append(desc.getType()).append(")@")
+                .append(Integer.toString(handle)).append("{\n");
+        push(ENUM);
+    }
+
+    @Override
+    void endEnum() throws IOException {
+        if (descDepth > 0 || unelide())
+            return;
+        end();
+    }
+
+    @Override
+    void beginArray(int handle, ArrayClassDesc desc, int length)
+            throws IOException {
+        if (descDepth > 0 || begin("SArray(", handle, desc.getType()))
+            return;
+        push(ARRAY);
+    }
+
+    @Override
+    void endArray() throws IOException {
+        if (descDepth > 0 || unelide())
+            return;
+        end();
+    }
+
+    @Override
+    void reset() throws IOException {
+        if (sp == 0)
+            out.append("-- reset\n");
+    }
+
+    /**
+     * Start an object or array, which is written as {@code {...}} if it is
+     * too deep.
+     *
+     * @return true if its contents are not written, because it or one
+     *     that contains it is elided.
+     */
+    private boolean begin(String kind, int handle, String type) throws IOException {
+        if (elided > 0) {
+            elided++;
+            return true;
+        }
+        value();
+        out.append(kind).append(type).append(")@").append(Integer.toString(handle));
+        if (depth < maxDepth) {
+            depth++;
+            out.append("{\n");
+            return false;
+        }
+        out.append("{...}");
+        elided = 1;
+        return true;
+    }
+
+    /**
+     * End an object, enum, or array.
+     *
+     * @return true if its end is not written, because it was elided.
+     */
+    private boolean unelide() throws IOException {
+        if (elided == 0)
+            return false;
+        if (--elided == 0)
+            done();
+        return true;
+    }
+
+    private void end() throws IOException {
+        if (modes[sp] != ENUM)
+            depth--;
+        sp--;
+        indent();
+        out.append('}');
+        done();
+    }
+
+    /**
+     * Start a value on a new line, with the field name if it is a field.
+     */
+    private void value() throws IOException {
+        indent();
+        if (modes[sp] == OBJECT)
+            out.append(cursors[sp].nextField()).append(" = ");
+        else if (modes[sp] == ENUM)
+            out.append("<name> = ");
+        else if (sp == 0 && path != null) {
+            out.append(path).append(" = ");
+            path = null;
+        }
+    }
+
+    private void done() throws IOException {
+        out.append('\n');
+    }
+
+    /**
+     * Indent a line by the number of objects, enums, and arrays that
+     * contain it. Annotations are at the same level as fields.
+     */
+    private void indent() throws IOException {
+        for (int i = 1; i <= sp; i++) {
+            if (modes[i] != ANNOTATIONS)
+                out.append("  ");
+        }
+    }
+
+    private void push(byte mode) {
+        if (++sp == modes.length) {
+            modes = Arrays.copyOf(modes, sp * 2);
+            cursors = Arrays.copyOf(cursors, sp * 2);
+        }
+        modes[sp] = mode;
+        if (mode == OBJECT && cursors[sp] == null)
+            cursors[sp] = new FieldCursor();
+    }
+
+    private static final byte ROOT = 0, OBJECT = 1, ANNOTATIONS = 2,
+            ARRAY = 3, ENUM = 4;
+
+    private final Appendable out;
+    private byte[] modes = new byte[16];
+    private FieldCursor[] cursors = new FieldCursor[16];
+    private int sp;
+    private int descDepth;
+    private int depth;
+    private int elided;
+    private int maxDepth = Integer.MAX_VALUE;
+    private long maxContents = Long.MAX_VALUE;
+    private CharSequence path;
+}
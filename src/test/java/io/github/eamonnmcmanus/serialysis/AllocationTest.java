@@ -0,0 +1,267 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import junit.framework.*;
+
+import io.github.eamonnmcmanus.serialysis.SerialValidator.Verdict;
+
+/**
+ * <p>Guard against regressions in how much the scanner allocates. Each test
+ * scans a fixed corpus repeatedly on this thread, and measures the bytes
+ * allocated with {@code com.sun.management.ThreadMXBean}, which counts
+ * exactly what the thread allocates, unlike the heap as a whole. The limits
+ * are about twice what was measured when they were set, so that they catch
+ * a change like boxing every primitive again, but not differences between
+ * JVMs and JIT compilation.</p>
+ *
+ * <p>If the JVM cannot count allocations, the tests pass without checking
+ * anything.</p>
+ */
+public class AllocationTest extends TestCase {
+
+    public AllocationTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Building the tree of {@code SEntity} objects allocates at most this
+     * much per byte of a corpus of JDK objects, and per entity in it.
+     */
+    public void testReadObjectJdk() throws Exception {
+        check(new Scan(jdkCorpus(), true), 30, 450);
+    }
+
+    /**
+     * The same, for a synthetic corpus with many classes, resets, and
+     * {@code writeObject} data.
+     */
+    public void testReadObjectSynthetic() throws Exception {
+        check(new Scan(syntheticCorpus(), true), 15, 300);
+    }
+
+    /**
+     * Scanning without building anything allocates little beyond the
+     * class descriptors and strings.
+     */
+    public void testScanOnly() throws Exception {
+        check(new Scan(syntheticCorpus(), false), 6, 120);
+    }
+
+    /**
+     * Validating a stream with no class descriptors allocates almost
+     * nothing, and one with descriptors allocates only for them.
+     */
+    public void testValidate() throws Exception {
+        SerialValidator validator = new SerialValidator(new ScanLimits());
+        check(new Validate(validator, serialize("noddy")), 250);
+        check(new Validate(validator, serialize(jdkMap())), 8000);
+    }
+
+    /**
+     * Examining an object reuses the thread's buffer and scanner, so it
+     * allocates what serializing and building the tree need, and no copy
+     * of the stream. This limit is tighter than the others, because the
+     * copies it guards against were only about 40% of the total.
+     */
+    public void testExamine() throws Exception {
+        check(new Task() {
+            public long run() {
+                SerialScan.examine(MAP);
+                return 1;
+            }
+        }, 32000);
+    }
+
+    /**
+     * Comparing two big arrays that differ in one element builds a path
+     * only for that element, not for every element.
+     */
+    public void testDiff() throws Exception {
+        int[] ints = new int[100000];
+        Integer[] boxed = new Integer[10000];
+        for (int i = 0; i < boxed.length; i++)
+            boxed[i] = i;
+        final SGraph oldGraph =
+                SGraph.scan(ByteBuffer.wrap(serialize(new Object[] {ints, boxed})));
+        ints[500] = 1;
+        boxed[500] = -1;
+        final SGraph newGraph =
+                SGraph.scan(ByteBuffer.wrap(serialize(new Object[] {ints, boxed})));
+        check(new Task() {
+            public long run() {
+                assertEquals(2, SerialDiff.diff(oldGraph, newGraph).size());
+                return 1;
+            }
+        }, 8000);
+    }
+
+    private interface Task {
+        /**
+         * Do the work being measured once.
+         *
+         * @return the number of entities it scanned.
+         */
+        long run() throws Exception;
+    }
+
+    private static class Scan implements Task {
+        Scan(byte[] corpus, boolean tree) throws Exception {
+            this.corpus = corpus;
+            this.tree = tree;
+            this.scan = tree ? new SerialScan() : new SerialScan(new ScanHandler() {});
+        }
+
+        public long run() throws Exception {
+            scan.reset(ByteBuffer.wrap(corpus));
+            if (tree) {
+                while (!scan.atEnd())
+                    scan.readObject();
+            } else {
+                while (scan.scanNext())
+                    ;
+            }
+            return scan.getStatistics().getEntityCount();
+        }
+
+        final byte[] corpus;
+        final boolean tree;
+        final SerialScan scan;
+    }
+
+    private static class Validate implements Task {
+        Validate(SerialValidator validator, byte[] stream) {
+            this.validator = validator;
+            this.stream = stream;
+        }
+
+        public long run() {
+            Verdict verdict = validator.validate(stream, 0, stream.length);
+            assertTrue(verdict.toString(), verdict.isAccepted());
+            return 1;
+        }
+
+        final SerialValidator validator;
+        final byte[] stream;
+    }
+
+    private static void check(Scan scan, double maxPerByte, double maxPerEntity)
+            throws Exception {
+        double[] perRun = allocated(scan);
+        if (perRun == null)
+            return;
+        double perByte = perRun[0] / scan.corpus.length;
+        double perEntity = perRun[0] / perRun[1];
+        String what = String.format("%.1f bytes allocated per byte scanned and "
+                + "%.1f per entity", perByte, perEntity);
+        assertTrue(what, perByte <= maxPerByte);
+        assertTrue(what, perEntity <= maxPerEntity);
+    }
+
+    private static void check(Task task, double maxPerCall) throws Exception {
+        double[] perRun = allocated(task);
+        if (perRun == null)
+            return;
+        assertTrue(perRun[0] + " bytes allocated per call", perRun[0] <= maxPerCall);
+    }
+
+    /**
+     * Run the task until it is warmed up, then measure the bytes allocated
+     * by one run, as the least of several measurements so that anything
+     * else the JVM does on this thread, like class loading, is unlikely to
+     * be counted.
+     *
+     * @return the bytes allocated and the entities scanned in one run, or
+     *     null if the JVM cannot count allocations.
+     */
+    private static double[] allocated(Task task) throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported())
+            return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP; i++)
+            task.run();
+        long least = Long.MAX_VALUE;
+        long entities = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long before = threads.getThreadAllocatedBytes(id);
+            entities = task.run();
+            least = Math.min(least, threads.getThreadAllocatedBytes(id) - before);
+        }
+        return new double[] {least, entities};
+    }
+
+    private static byte[] jdkCorpus() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (int i = 0; i < 20; i++) {
+            oout.writeObject(jdkMap());
+            List<Object> list = new ArrayList<Object>();
+            for (int j = 0; j < 50; j++)
+                list.add((j % 2 == 0) ? (Object) (long) j : "element" + j);
+            oout.writeObject(list);
+            oout.writeObject(new int[100]);
+            oout.writeObject(new Date(1181606400000L + i));
+            oout.writeObject(TimeUnit.values());
+            oout.reset();
+        }
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static Map<String, Object> jdkMap() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < 50; i++)
+            map.put("key" + i, (i % 2 == 0) ? (Object) i : (Object) (i * 0.5));
+        return map;
+    }
+
+    private static byte[] syntheticCorpus() throws Exception {
+        StreamGenerator g = new StreamGenerator();
+        g.setSeed(20070612L);
+        g.setResetInterval(20);
+        g.setEnumFraction(0.1);
+        g.setProxyFraction(0.05);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        g.write(bout, 100000);
+        return bout.toByteArray();
+    }
+
+    private static byte[] serialize(Object x) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static final Map<String, Object> MAP = jdkMap();
+
+    private static final int WARMUP = 100;
+    private static final int ROUNDS = 5;
+}
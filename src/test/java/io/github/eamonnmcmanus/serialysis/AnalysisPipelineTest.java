@@ -0,0 +1,103 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import junit.framework.*;
+
+import io.github.eamonnmcmanus.serialysis.AnalysisPipeline.Report;
+
+public class AnalysisPipelineTest extends TestCase {
+
+    public AnalysisPipelineTest(String testName) {
+        super(testName);
+    }
+
+    private final List<Report> reports = new CopyOnWriteArrayList<Report>();
+    private final Consumer<Report> listener = new Consumer<Report>() {
+        public void accept(Report report) {
+            reports.add(report);
+        }
+    };
+
+    public void testAnalysis() throws Exception {
+        final byte[] bytes = serialize(new ArrayList<String>(Arrays.asList("a", "b")));
+        final AnalysisPipeline pipeline =
+                new AnalysisPipeline(2, 1 << 16, 50, TimeUnit.MILLISECONDS, listener);
+        final AtomicLong accepted = new AtomicLong();
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 5000; j++) {
+                        if (pipeline.offer(bytes, 0, bytes.length))
+                            accepted.incrementAndGet();
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (Thread t : producers)
+            t.join();
+        // The pipeline has had time to catch up, so there is room for a
+        // stream that is not a serial stream.
+        Thread.sleep(100);
+        assertTrue(pipeline.offer(new byte[] {1, 2, 3}, 0, 3));
+        pipeline.close();
+
+        long streams = 0, dropped = 0, malformed = 0, lists = 0;
+        for (Report r : reports) {
+            streams += r.getHistogram().getStreamCount();
+            dropped += r.getDropped();
+            malformed += r.getMalformed();
+            for (ClassHistogram.Entry e : r.getHistogram().getEntries()) {
+                if (e.getClassName().equals("java.util.ArrayList"))
+                    lists += e.getCount();
+            }
+        }
+        // Every stream offered was either analyzed or dropped.
+        assertEquals(accepted.get() + 1, streams);
+        assertEquals(4 * 5000 + 1, streams + dropped);
+        assertEquals(1, malformed);
+        assertEquals(accepted.get(), lists);
+        assertFalse(pipeline.offer(bytes, 0, bytes.length));
+    }
+
+    public void testDropWhenFull() throws Exception {
+        AnalysisPipeline pipeline =
+                new AnalysisPipeline(1, 64, 1, TimeUnit.HOURS, listener);
+        byte[] big = new byte[100];
+        assertFalse(pipeline.offer(big, 0, big.length));
+        pipeline.close();
+        assertEquals(1, reports.size());
+        assertEquals(1, reports.get(0).getDropped());
+        assertEquals(0, reports.get(0).getHistogram().getStreamCount());
+    }
+
+    private static byte[] serialize(Object x) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+}
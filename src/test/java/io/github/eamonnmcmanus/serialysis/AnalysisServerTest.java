@@ -0,0 +1,288 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import junit.framework.*;
+
+import static java.io.ObjectStreamConstants.*;
+
+public class AnalysisServerTest extends TestCase {
+
+    public AnalysisServerTest(String testName) {
+        super(testName);
+    }
+
+    private AnalysisServer server;
+
+    @Override
+    protected void setUp() throws IOException {
+        ScanLimits limits = new ScanLimits();
+        limits.setMaxDepth(3);
+        server = AnalysisServer.start(0, limits);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        server.close();
+    }
+
+    public void testRequests() throws Exception {
+        Client client = new Client();
+        byte[] bytes = serialize(new Point(1, 2), "hello");
+
+        String histogram = client.request("HISTOGRAM " + bytes.length, bytes);
+        assertTrue(histogram, histogram.startsWith("OK "));
+        assertTrue(histogram, histogram.contains(Point.class.getName()));
+        assertTrue(histogram, histogram.contains("java.lang.String"));
+
+        // The connection can be used for more requests.
+        assertEquals("OK 8\nACCEPTED", client.request("VALIDATE " + bytes.length, bytes));
+        byte[] deep = serialize(new Point(1, new Point(2, new Point(3, new Point(4, 5)))));
+        String verdict = client.request("VALIDATE " + deep.length, deep);
+        assertTrue(verdict, verdict.contains("DEPTH"));
+
+        String json = client.request("JSON " + bytes.length, bytes);
+        String expected = "{\"class\":\"" + Point.class.getName() + "\",\"handle\":2,"
+                + "\"fields\":{\"x\":1,\"y\":{\"class\":\"java.lang.Integer\",\"handle\":5,"
+                + "\"fields\":{\"value\":2}}}}\n\"hello\"\n";
+        assertEquals("OK " + expected.length() + "\n" + expected, json);
+        client.close();
+    }
+
+    public void testJson() throws Exception {
+        Client client = new Client();
+        List<Object> list = new ArrayList<Object>();
+        list.add(Thread.State.NEW);
+        list.add(new double[] {Double.NaN, 0.5});
+        list.add(list.get(0));
+        list.add("tab\t\"quote\"");
+        byte[] bytes = serialize(list);
+        String json = client.request("JSON " + bytes.length, bytes);
+        json = json.substring(json.indexOf('\n') + 1);
+        String expected = "{\"class\":\"java.util.ArrayList\",\"handle\":1,\"fields\":{"
+                + "\"size\":4,\"@java.util.ArrayList\":[{\"blockdata\":\"AAAABA==\"},"
+                + "{\"enum\":\"java.lang.Thread$State\",\"handle\":4,\"name\":\"NEW\"},"
+                + "{\"class\":\"[D\",\"handle\":7,\"elements\":[\"NaN\",0.5]},"
+                + "{\"ref\":4},\"tab\\t\\\"quote\\\"\"]}}\n";
+        assertEquals(expected, json);
+        client.close();
+    }
+
+    public void testFile() throws Exception {
+        File dir = Files.createTempDirectory("analysis").toFile();
+        File file = new File(dir, "point.ser");
+        File outside = File.createTempFile("analysis", ".ser");
+        try {
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(serialize(new Point(1, 2)));
+            }
+            // The server from setUp has no directory for files.
+            Client client = new Client();
+            String reply = client.request("HISTOGRAM file " + file.getPath(), null);
+            assertTrue(reply, reply.startsWith("ERROR "));
+            client.close();
+
+            server.close();
+            server = AnalysisServer.start(0, new ScanLimits(), dir);
+            client = new Client();
+            reply = client.request("HISTOGRAM file " + file.getPath(), null);
+            assertTrue(reply, reply.startsWith("OK ") && reply.contains(Point.class.getName()));
+            reply = client.request("JSON file point.ser", null);
+            assertTrue(reply, reply.startsWith("OK ") && reply.contains(Point.class.getName()));
+            reply = client.request("VALIDATE file " + file.getPath() + ".missing", null);
+            assertTrue(reply, reply.startsWith("ERROR "));
+            reply = client.request("VALIDATE file " + outside.getPath(), null);
+            assertTrue(reply, reply.startsWith("ERROR "));
+            reply = client.request("VALIDATE file ../" + outside.getName(), null);
+            assertTrue(reply, reply.startsWith("ERROR "));
+            client.close();
+        } finally {
+            file.delete();
+            dir.delete();
+            outside.delete();
+        }
+    }
+
+    public void testBigStream() throws Exception {
+        // A stream too big for a connection's buffer is read as it is
+        // analyzed, and the connection can still be used after it, even if
+        // the stream was rejected before it was all read.
+        byte[] big = serialize(new Object[] {new byte[3 << 19]});
+        byte[] deep = serialize(new Point(1, new Point(2, new Point(3, new Point(4, 5)))),
+                new byte[3 << 19]);
+        byte[] bytes = serialize(new Point(1, 2));
+        Client client = new Client();
+        assertEquals("OK 8\nACCEPTED", client.request("VALIDATE " + big.length, big));
+        String verdict = client.request("VALIDATE " + deep.length, deep);
+        assertTrue(verdict, verdict.contains("DEPTH"));
+        String reply = client.request("HISTOGRAM " + big.length, big);
+        assertTrue(reply, reply.startsWith("OK ") && reply.contains("[B"));
+        assertEquals("OK 8\nACCEPTED", client.request("VALIDATE " + bytes.length, bytes));
+        client.close();
+    }
+
+    public void testBadRequests() throws Exception {
+        Client client = new Client();
+        byte[] junk = {1, 2, 3, 4};
+        String reply = client.request("HISTOGRAM 4", junk);
+        assertTrue(reply, reply.startsWith("ERROR "));
+        reply = client.request("VALIDATE 4", junk);
+        assertTrue(reply, reply.contains("MALFORMED"));
+        reply = client.request("FROBNICATE 4", junk);
+        assertTrue(reply, reply.startsWith("ERROR "));
+        client.close();
+    }
+
+    public void testUnexpectedFailure() throws Exception {
+        // An array class with more dimensions than Java allows makes the
+        // scan fail with an IllegalArgumentException rather than an
+        // IOException. The client still gets a reply, and the connection
+        // can still be used.
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeShort(STREAM_MAGIC);
+        out.writeShort(STREAM_VERSION);
+        out.writeByte(TC_ARRAY);
+        out.writeByte(TC_CLASSDESC);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 300; i++)
+            name.append('[');
+        out.writeUTF(name.append('I').toString());
+        out.writeLong(1);
+        out.writeByte(SC_SERIALIZABLE);
+        out.writeShort(0);
+        out.writeByte(TC_ENDBLOCKDATA);
+        out.writeByte(TC_NULL);
+        out.writeInt(0);
+        out.close();
+        byte[] bad = bout.toByteArray();
+        byte[] bytes = serialize(new Point(1, 2));
+        Client client = new Client();
+        String reply = client.request("HISTOGRAM " + bad.length, bad);
+        assertTrue(reply, reply.startsWith("ERROR "));
+        reply = client.request("JSON " + bad.length, bad);
+        assertTrue(reply, reply.startsWith("ERROR "));
+        assertEquals("OK 8\nACCEPTED", client.request("VALIDATE " + bytes.length, bytes));
+        client.close();
+    }
+
+    public void testConcurrentClients() throws Exception {
+        final byte[] bytes = serialize(new Point(1, 2));
+        ExecutorService executor = Executors.newFixedThreadPool(50);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        Client client = new Client();
+                        int ok = 0;
+                        for (int j = 0; j < 5; j++) {
+                            if (client.request("VALIDATE " + bytes.length, bytes)
+                                    .equals("OK 8\nACCEPTED"))
+                                ok++;
+                        }
+                        client.close();
+                        return ok;
+                    }
+                }));
+            }
+            for (Future<Integer> f : futures)
+                assertEquals(5, f.get().intValue());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private class Client {
+        Client() throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        String request(String line, byte[] bytes) throws IOException {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            bout.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+            if (bytes != null)
+                bout.write(bytes);
+            out.write(bout.toByteArray());
+            out.flush();
+            String status = readLine(in);
+            int length = Integer.parseInt(status.substring(status.indexOf(' ') + 1));
+            byte[] body = new byte[length];
+            in.readFully(body);
+            return status + "\n" + new String(body, StandardCharsets.UTF_8);
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                throw new IOException("Connection closed");
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] serialize(Object... objects) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : objects)
+            oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static class Point implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        Point(int x, Object y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        private final int x;
+        private final Object y;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.*;
+
+import io.github.eamonnmcmanus.serialysis.ClassHistogram.Entry;
+
+public class ClassHistogramTest extends TestCase {
+
+    public ClassHistogramTest(String testName) {
+        super(testName);
+    }
+
+    public void testCounts() throws Exception {
+        List<Object> list = new ArrayList<Object>(Arrays.asList("a", "b", 5, new int[100]));
+        list.add(list.get(2));
+        byte[] bytes = serialize(list);
+        ClassHistogram h = new ClassHistogram();
+        h.add(bytes, 0, bytes.length);
+        Map<String, Entry> entries = entries(h);
+        assertEquals(1, entries.get("java.util.ArrayList").getCount());
+        assertEquals(2, entries.get("java.lang.String").getCount());
+        // The second reference to the Integer is not another instance.
+        assertEquals(1, entries.get("java.lang.Integer").getCount());
+        Entry ints = entries.get("[I");
+        assertEquals(1, ints.getCount());
+        assertTrue(ints.toString(), ints.getBytes() >= 400);
+        assertTrue(ints.toString(), ints.getDescriptorBytes() > 0);
+        assertEquals(0, entries.get("java.lang.Number").getCount());
+        assertTrue(entries.get("java.lang.Number").getDescriptorBytes() > 0);
+        assertEquals("[I", h.getEntries().get(0).getClassName());
+
+        // Every byte of the stream is attributed to exactly one entry.
+        assertEquals(bytes.length, h.getTotalBytes());
+        long sum = 0;
+        for (Entry e : h.getEntries())
+            sum += e.getBytes() + e.getDescriptorBytes();
+        assertEquals(bytes.length, sum);
+    }
+
+    public void testAdd() throws Exception {
+        byte[] bytes = serialize(new HashMap<String, String>());
+        ClassHistogram a = new ClassHistogram();
+        a.add(bytes, 0, bytes.length);
+        ClassHistogram b = new ClassHistogram();
+        b.add(new ByteArrayInputStream(bytes));
+        b.add(bytes, 0, bytes.length);
+        a.add(b);
+        assertEquals(3, a.getStreamCount());
+        assertEquals(3L * bytes.length, a.getTotalBytes());
+        assertEquals(3, entries(a).get("java.util.HashMap").getCount());
+        assertTrue(a.toString(), a.toString().contains("java.util.HashMap"));
+        a.clear();
+        assertEquals(0, a.getEntries().size());
+    }
+
+    private static Map<String, Entry> entries(ClassHistogram h) {
+        Map<String, Entry> map = new HashMap<String, Entry>();
+        for (Entry e : h.getEntries())
+            map.put(e.getClassName(), e);
+        return map;
+    }
+
+    private static byte[] serialize(Object x) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+}
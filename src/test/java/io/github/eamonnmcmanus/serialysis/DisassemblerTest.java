@@ -0,0 +1,148 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.*;
+
+public class DisassemblerTest extends TestCase {
+
+    public DisassemblerTest(String testName) {
+        super(testName);
+    }
+
+    public static class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        Node(String name, Node next) {
+            this.name = name;
+            this.next = next;
+        }
+
+        String name;
+        Node next;
+    }
+
+    private static final String NODE = Node.class.getName();
+
+    public void testTree() throws Exception {
+        byte[] bytes = serialize(new Node("a", new Node("b", null)), "c");
+        assertEquals(
+                "SObject(" + NODE + ")@3{\n"
+                + "  name = SString(String)@4{\"a\"}\n"
+                + "  next = SObject(" + NODE + ")@5{\n"
+                + "    name = SString(String)@6{\"b\"}\n"
+                + "    next = null\n"
+                + "  }\n"
+                + "}\n"
+                + "SString(String)@7{\"c\"}\n",
+                run(bytes));
+        assertEquals(
+                "SObject(" + NODE + ")@3{\n"
+                + "  name = SString(String)@4{1 byte}\n"
+                + "  next = SObject(" + NODE + ")@5{...}\n"
+                + "}\n"
+                + "SString(String)@7{1 byte}\n",
+                run(bytes, "-depth", "1", "-maxstring", "0"));
+    }
+
+    public void testFilters() throws Exception {
+        byte[] bytes = serialize(new Node("a", new Node("b", null)), "c");
+        assertEquals(
+                "0.next = SObject(" + NODE + ")@5{\n"
+                + "  name = SString(String)@6{\"b\"}\n"
+                + "  next = null\n"
+                + "}\n",
+                run(bytes, "-path", "*.next"));
+        assertEquals(
+                "0.name = SString(String)@4{\"a\"}\n"
+                + "0.next.name = SString(String)@6{\"b\"}\n"
+                + "1 = SString(String)@7{\"c\"}\n",
+                run(bytes, "-class", "java.lang.String"));
+        assertEquals(
+                "{\"path\":\"0.next.name\",\"value\":\"b\"}\n",
+                run(bytes, "-json", "-class", "java.lang.String", "-path", "**.next.*"));
+    }
+
+    public void testJson() throws Exception {
+        byte[] bytes = serialize(new ArrayList<Node>(Arrays.asList(new Node("a", null))));
+        String json = run(bytes, "-json", "-depth", "1");
+        assertEquals(
+                "{\"class\":\"java.util.ArrayList\",\"handle\":1,\"fields\":{\"size\":1,"
+                + "\"@java.util.ArrayList\":[{\"blockdata\":\"AAAAAQ==\"},"
+                + "{\"class\":\"" + NODE + "\",\"handle\":5,\"elided\":true}]}}\n",
+                json);
+    }
+
+    public void testHistogram() throws Exception {
+        byte[] bytes = serialize(new Node("a", null));
+        String histogram = run(bytes, "-histogram");
+        assertTrue(histogram, histogram.contains(NODE));
+        assertTrue(histogram, histogram.contains("total in 1 streams"));
+    }
+
+    public void testClosedOutput() throws Exception {
+        byte[] bytes = serialize(new Node("a", null));
+        Writer closed = new Writer() {
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+            public void flush() {
+            }
+            public void close() {
+            }
+        };
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertEquals(0, Disassembler.run(new String[0], new ByteArrayInputStream(bytes),
+                closed, new PrintStream(err)));
+        assertEquals(0, err.size());
+    }
+
+    public void testErrors() throws Exception {
+        byte[] bytes = serialize(new Node("a", null));
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertEquals(2, Disassembler.run(new String[] {"-bogus"},
+                new ByteArrayInputStream(bytes), new StringWriter(), new PrintStream(err)));
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 3);
+        assertEquals(1, Disassembler.run(new String[0],
+                new ByteArrayInputStream(truncated), new StringWriter(), new PrintStream(err)));
+    }
+
+    private static String run(byte[] bytes, String... args) {
+        StringWriter out = new StringWriter();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = Disassembler.run(args, new ByteArrayInputStream(bytes), out,
+                new PrintStream(err));
+        assertEquals(err.toString(), 0, status);
+        return out.toString();
+    }
+
+    private static byte[] serialize(Object... objects) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : objects)
+            oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+}
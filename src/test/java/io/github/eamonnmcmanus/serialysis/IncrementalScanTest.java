@@ -0,0 +1,222 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import junit.framework.*;
+
+public class IncrementalScanTest extends TestCase {
+
+    public IncrementalScanTest(String testName) {
+        super(testName);
+    }
+
+    public void testChunks() throws Exception {
+        byte[] bytes = stream();
+        List<SEntity> expected = new ArrayList<SEntity>();
+        SerialScan scan = new SerialScan(new ByteArrayInputStream(bytes));
+        for (int i = 0; i < 5; i++)
+            expected.add(scan.readObject());
+
+        for (int chunk : new int[] {3, 1000, bytes.length}) {
+            IncrementalScan inc = new IncrementalScan();
+            List<SEntity> actual = new ArrayList<SEntity>();
+            for (int i = 0; i < bytes.length; i += chunk) {
+                int n = Math.min(chunk, bytes.length - i);
+                actual.addAll(inc.feed(ByteBuffer.wrap(bytes, i, n)));
+            }
+            inc.finish();
+            assertSame(expected, actual);
+            assertEquals(bytes.length, inc.getStatistics().getBytesRead());
+            // Values that were scanned more than once are only counted once.
+            ScanStatistics stats = inc.getStatistics();
+            assertEquals(scan.getStatistics().getEntityCount(), stats.getEntityCount());
+            assertEquals(scan.getStatistics().getClassDescriptorCount(),
+                    stats.getClassDescriptorCount());
+            assertEquals(1, stats.getResetCount());
+        }
+
+        Random random = new Random(1234);
+        IncrementalScan inc = new IncrementalScan();
+        List<SEntity> actual = new ArrayList<SEntity>();
+        for (int i = 0; i < bytes.length; ) {
+            int n = Math.min(1 + random.nextInt(50), bytes.length - i);
+            actual.addAll(inc.feed(ByteBuffer.wrap(bytes, i, n)));
+            i += n;
+        }
+        assertSame(expected, actual);
+        assertEquals(0, inc.getPendingBytes());
+    }
+
+    public void testBigValueInSmallPieces() throws Exception {
+        // The elements of a big array are scanned as they arrive, and a big
+        // string is scanned again once when all of it has arrived, not once
+        // for each piece, so the work is linear in the size of the value.
+        char[] chars = new char[20000];
+        Arrays.fill(chars, 'x');
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(new Object[] {new long[50000], new String(chars), new int[1000]});
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+
+        IncrementalScan inc = new IncrementalScan();
+        List<SEntity> actual = new ArrayList<SEntity>();
+        int chunk = 1460;
+        for (int i = 0; i < bytes.length; i += chunk) {
+            int n = Math.min(chunk, bytes.length - i);
+            actual.addAll(inc.feed(ByteBuffer.wrap(bytes, i, n)));
+        }
+        inc.finish();
+        assertEquals(1, actual.size());
+        SerialScan scan = new SerialScan(new ByteArrayInputStream(bytes));
+        assertEquals(scan.readObject().getFingerprint(), actual.get(0).getFingerprint());
+        long abandoned = inc.getAbandonedBytes();
+        assertTrue("Scanned " + abandoned + " bytes of " + bytes.length + " again",
+                abandoned < 2L * bytes.length);
+    }
+
+    public void testCollectionInSmallPieces() throws Exception {
+        // A big collection of small objects is scanned as far as its bytes
+        // go, so it is never scanned again from the start, and only the
+        // bytes of the object that is incomplete are kept.
+        List<java.util.Date> dates = new ArrayList<java.util.Date>();
+        for (int i = 0; i < 80000; i++)
+            dates.add(new java.util.Date(i));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(dates);
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+
+        IncrementalScan inc = new IncrementalScan();
+        List<SEntity> actual = new ArrayList<SEntity>();
+        int chunk = 4096;
+        int maxPending = 0;
+        for (int i = 0; i < bytes.length; i += chunk) {
+            int n = Math.min(chunk, bytes.length - i);
+            actual.addAll(inc.feed(ByteBuffer.wrap(bytes, i, n)));
+            maxPending = Math.max(maxPending, inc.getPendingBytes());
+        }
+        inc.finish();
+        assertEquals(1, actual.size());
+        SerialScan scan = new SerialScan(new ByteArrayInputStream(bytes));
+        assertEquals(scan.readObject().getFingerprint(), actual.get(0).getFingerprint());
+        long abandoned = inc.getAbandonedBytes();
+        assertTrue("Scanned " + abandoned + " bytes of " + bytes.length + " again",
+                abandoned < bytes.length / 100);
+        assertTrue("Kept " + maxPending + " bytes", maxPending < 100);
+    }
+
+    public void testFinishInValue() throws Exception {
+        // The bytes of a value that has been scanned as far as they go are
+        // not pending, but the stream still can't end there.
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(new int[] {1, 2, 3});
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        IncrementalScan inc = new IncrementalScan();
+        assertEquals(0, inc.feed(ByteBuffer.wrap(bytes, 0, bytes.length - 4)).size());
+        assertEquals(0, inc.getPendingBytes());
+        try {
+            inc.finish();
+            fail("Stream ending in a value accepted");
+        } catch (EOFException e) {
+            // OK
+        }
+    }
+
+    public void testTruncated() throws Exception {
+        byte[] bytes = stream();
+        IncrementalScan inc = new IncrementalScan();
+        List<SEntity> values = inc.feed(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+        assertEquals(4, values.size());
+        assertTrue(inc.getPendingBytes() > 0);
+        try {
+            inc.finish();
+            fail("Truncated stream accepted");
+        } catch (EOFException e) {
+            // OK
+        }
+    }
+
+    public void testBadStream() throws Exception {
+        IncrementalScan inc = new IncrementalScan();
+        try {
+            inc.feed(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5}));
+            fail("Bad header accepted");
+        } catch (StreamCorruptedException e) {
+            // OK
+        }
+        try {
+            inc.feed(ByteBuffer.wrap(new byte[] {6}));
+            fail("Failed scan reused");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+    }
+
+    public void testLimits() throws Exception {
+        // A stream that claims a huge block of data is rejected as soon as
+        // the claim arrives, not buffered while waiting for the data.
+        ScanLimits limits = new ScanLimits();
+        limits.setMaxBytes(1000);
+        IncrementalScan inc = new IncrementalScan();
+        inc.setLimits(limits);
+        inc.feed(ByteBuffer.wrap(new byte[] {(byte) 0xac, (byte) 0xed, 0, 5, 0x7a}));
+        try {
+            inc.feed(ByteBuffer.wrap(new byte[] {0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff}));
+            fail("Huge block accepted");
+        } catch (LimitExceededException e) {
+            // OK
+        }
+    }
+
+    /* A stream with a back-reference from one top-level value to another,
+     * a reset, block data, and a value longer than the initial buffer. */
+    private static byte[] stream() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("list", Arrays.asList("a", "b", "c"));
+        oout.writeObject(map);
+        oout.writeObject(map.get("list"));
+        oout.reset();
+        oout.writeObject(new java.util.Date(0));
+        oout.writeObject(new long[2000]);
+        oout.writeObject("end");
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static void assertSame(List<SEntity> expected, List<SEntity> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+            assertEquals(expected.get(i).getFingerprint(), actual.get(i).getFingerprint());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import junit.framework.*;
+
+import static java.io.ObjectStreamConstants.*;
+
+public class PayloadStoreTest extends TestCase {
+
+    public PayloadStoreTest(String testName) {
+        super(testName);
+    }
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("payloads", "");
+        dir.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    public void testRoundTripAndDedup() throws Exception {
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        for (int i = 0; i < 50; i++)
+            payloads.add(payload(i));
+        List<String> keys = new ArrayList<String>();
+        PayloadStore store = PayloadStore.open(dir);
+        try {
+            for (byte[] p : payloads)
+                keys.add(store.put(p));
+            // Adding a payload again changes nothing.
+            long stored = store.getStoredBytes();
+            assertEquals(keys.get(3), store.put(payloads.get(3)));
+            assertEquals(stored, store.getStoredBytes());
+            assertEquals(50, store.getPayloadCount());
+            for (int i = 0; i < payloads.size(); i++)
+                assertTrue(Arrays.equals(payloads.get(i), store.get(keys.get(i))));
+            // The payloads are mostly the same, so they take much less room.
+            assertTrue(store.getStoredBytes() + " vs " + store.getPayloadBytes(),
+                    store.getStoredBytes() * 3 < store.getPayloadBytes());
+        } finally {
+            store.close();
+        }
+
+        store = PayloadStore.open(dir);
+        try {
+            assertEquals(new ArrayList<String>(keys),
+                    new ArrayList<String>(store.keys()));
+            assertTrue(Arrays.equals(payloads.get(7), store.get(keys.get(7))));
+            assertTrue(store.contains(keys.get(0)));
+            assertFalse(store.contains("0123"));
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testNotASerialStream() throws Exception {
+        byte[] garbage = new byte[1000];
+        for (int i = 0; i < garbage.length; i++)
+            garbage[i] = (byte) (i * 31);
+        byte[] truncated = Arrays.copyOf(payload(1), 300);
+        PayloadStore store = PayloadStore.open(dir);
+        try {
+            String k1 = store.put(garbage);
+            String k2 = store.put(truncated);
+            String k3 = store.put(new byte[0]);
+            assertTrue(Arrays.equals(garbage, store.get(k1)));
+            assertTrue(Arrays.equals(truncated, store.get(k2)));
+            assertEquals(0, store.get(k3).length);
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testCuts() throws Exception {
+        byte[] p = payload(0);
+        List<Integer> cuts = PayloadStore.cuts(p);
+        assertFalse(cuts.isEmpty());
+        int last = 0;
+        for (int cut : cuts) {
+            assertTrue(cut > last);
+            assertTrue(cut < p.length);
+            last = cut;
+        }
+    }
+
+    public void testCutsOfDeepPayload() throws Exception {
+        // Arrays nested far more deeply than a recursive scan could follow.
+        // The payload is still cut at its class descriptor.
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeShort(STREAM_MAGIC);
+        out.writeShort(STREAM_VERSION);
+        int depth = 200000;
+        for (int i = 0; i < depth; i++) {
+            out.writeByte(TC_ARRAY);
+            if (i == 0) {
+                ObjectStreamClass desc = ObjectStreamClass.lookup(Object[].class);
+                out.writeByte(TC_CLASSDESC);
+                out.writeUTF(desc.getName());
+                out.writeLong(desc.getSerialVersionUID());
+                out.writeByte(SC_SERIALIZABLE);
+                out.writeShort(0);
+                out.writeByte(TC_ENDBLOCKDATA);
+                out.writeByte(TC_NULL);
+            } else {
+                out.writeByte(TC_REFERENCE);
+                out.writeInt(baseWireHandle);
+            }
+            out.writeInt(1);
+        }
+        out.writeByte(TC_NULL);
+        out.close();
+        byte[] p = bout.toByteArray();
+        List<Integer> cuts = PayloadStore.cuts(p);
+        assertFalse(cuts.isEmpty());
+        assertTrue(cuts.get(cuts.size() - 1) < p.length);
+    }
+
+    /**
+     * A payload like a captured session: the same classes every time,
+     * with a few values that vary.
+     */
+    private static byte[] payload(int i) throws Exception {
+        Map<String, Object> session = new TreeMap<String, Object>();
+        session.put("user", "user" + i);
+        session.put("id", i);
+        Map<String, Object> prefs = new HashMap<String, Object>();
+        for (int j = 0; j < 20; j++)
+            prefs.put("pref" + j, "value of preference " + j);
+        session.put("prefs", prefs);
+        List<Object> history = new ArrayList<Object>();
+        for (int j = 0; j < 20; j++)
+            history.add(new java.util.Date(1000000L * j));
+        session.put("history", history);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(session);
+        oout.close();
+        return bout.toByteArray();
+    }
+}
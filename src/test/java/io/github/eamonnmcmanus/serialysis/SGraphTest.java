@@ -0,0 +1,220 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.annotation.ElementType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.ObjectName;
+import junit.framework.*;
+
+public class SGraphTest extends TestCase {
+
+    public SGraphTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Check that the views in the graph look the same as the SEntity
+     * objects that readObject() produces, for a variety of objects.
+     */
+    public void testSameAsReadObject() throws Exception {
+        checkSameAsReadObject(GraphStorage.heap());
+    }
+
+    public void testDirect() throws Exception {
+        checkSameAsReadObject(GraphStorage.direct());
+    }
+
+    public void testMappedFile() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        int before = scratchFiles(dir);
+        checkSameAsReadObject(GraphStorage.mappedFile(dir));
+        assertEquals(before, scratchFiles(dir));
+    }
+
+    /**
+     * Pages are slices of a few large mapped regions, which must not
+     * overlap, including pages that don't fit in what is left of a region.
+     */
+    public void testMappedPages() throws Exception {
+        GraphStorage storage = GraphStorage.mappedFile(null);
+        try {
+            List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+            for (int i = 0; i < 200; i++) {
+                ByteBuffer page = storage.page((i % 3 == 0) ? 1 << 19 : 1 << 16);
+                assertEquals(0, page.getLong(page.capacity() - 8));
+                page.putLong(0, i);
+                page.putLong(page.capacity() - 8, i);
+                pages.add(page);
+            }
+            for (int i = 0; i < pages.size(); i++) {
+                ByteBuffer page = pages.get(i);
+                assertEquals(i, page.getLong(0));
+                assertEquals(i, page.getLong(page.capacity() - 8));
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    private static int scratchFiles(File dir) {
+        int n = 0;
+        for (String name : dir.list()) {
+            if (name.startsWith("serialysis") && name.endsWith(".graph"))
+                n++;
+        }
+        return n;
+    }
+
+    private void checkSameAsReadObject(GraphStorage storage) throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("un", 1);
+        map.put("deux", new double[] {2.0, -2.5});
+        map.put("trois", ElementType.FIELD);
+        List<Object> list = new ArrayList<Object>();
+        list.add(list);
+        list.add(map);
+        Object[] objects = {
+            5, "noddy", new int[] {1, -2, 3}, new char[] {'é', 'x'},
+            new long[] {Long.MIN_VALUE}, new boolean[] {true, false},
+            new Integer[] {5, null, 5}, map, list, null,
+            new ObjectName("d:k=v"), String.class, ElementType.TYPE,
+        };
+        byte[] bytes = serialize(objects);
+        SGraph graph = SGraph.scan(new ByteArrayInputStream(bytes), storage);
+        try {
+            assertEquals(objects.length, graph.getRootCount());
+            SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+            for (int i = 0; i < objects.length; i++) {
+                SEntity expected = ss.readObject();
+                SEntity actual = graph.getRoot(i);
+                assertEquals(String.valueOf(expected), String.valueOf(actual));
+                if (expected != null)
+                    assertEquals(expected.getFingerprint(), actual.getFingerprint());
+            }
+        } finally {
+            graph.close();
+        }
+    }
+
+    public void testSharedAndCyclic() throws Exception {
+        Holder h = new Holder();
+        Object[] shared = {h};
+        h.held = new Object[] {shared, shared};
+        SGraph graph = SGraph.scan(ByteBuffer.wrap(serialize(new Object[] {h})));
+        SObject root = (SObject) graph.getRoot(0);
+        SArray held = (SArray) root.getField("held");
+        SEntity[] a = held.getValue();
+        assertEquals(a[0], a[1]);
+        SArray s = (SArray) a[0];
+        assertEquals(root, s.getValue()[0]);
+        assertEquals(root.hashCode(), s.getValue()[0].hashCode());
+        // Make sure toString() doesn't get into infinite recursion
+        assertTrue(root.toString().contains("{...}"));
+    }
+
+    public void testFingerprints() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        list.add("x");
+        list.add(list);
+        Holder h = new Holder();
+        h.held = list;
+        // The same contents at different places in different streams.
+        SGraph g1 = SGraph.scan(ByteBuffer.wrap(serialize(new Object[] {h})));
+        SGraph g2 = SGraph.scan(ByteBuffer.wrap(serialize(new Object[] {"y", 5, h})));
+        assertEquals(g1.getRoot(0).getFingerprint(), g2.getRoot(2).getFingerprint());
+        // Different contents.
+        list.set(0, "z");
+        SGraph g3 = SGraph.scan(ByteBuffer.wrap(serialize(new Object[] {h})));
+        assertFalse(g1.getRoot(0).getFingerprint() == g3.getRoot(0).getFingerprint());
+        // Leaf values have the same fingerprint whether they are views or not.
+        SObject root = (SObject) g1.getRoot(0);
+        SEntity held = root.getField("held");
+        SEntity size = ((SObject) held).getField("size");
+        assertEquals(new SPrim(2).getFingerprint(), size.getFingerprint());
+        long[] all = new long[g2.getEntityCount()];
+        g2.getFingerprints(0, all, 0, all.length);
+        for (int i = 0; i < all.length; i++) {
+            assertEquals(g2.getFingerprint(i), all[i]);
+            assertTrue(all[i] != 0);
+        }
+    }
+
+    public void testResetAndStrings() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(new String[] {"a", "b", "a"});
+        oout.reset();
+        oout.writeObject("a");
+        oout.reset();
+        oout.close();
+        SGraph graph = SGraph.scan(new ByteArrayInputStream(bout.toByteArray()));
+        assertEquals(2, graph.getRootCount());
+        assertEquals("a", ((SString) graph.getRoot(1)).getValue());
+        // The strings are stored once each, however often they appear.
+        assertEquals(2, graph.strings.size());
+    }
+
+    public void testAnnotations() throws Exception {
+        List<Object> list = new ArrayList<Object>(Arrays.asList("x", 23));
+        SGraph graph = SGraph.scan(ByteBuffer.wrap(serialize(new Object[] {list})));
+        SObject so = (SObject) graph.getRoot(0);
+        List<SEntity> annots = so.getAnnotations();
+        assertEquals(3, annots.size());
+        assertTrue(annots.get(0) instanceof SBlockData);
+        assertEquals("x", ((SString) annots.get(1)).getValue());
+        SObject n = (SObject) annots.get(2);
+        assertEquals(23, ((SPrim) n.getField("value")).getValue());
+        assertEquals(2, ((SPrim) so.getField("size")).getValue());
+    }
+
+    public void testSmallerThanTree() throws Exception {
+        int[] ints = new int[100000];
+        Integer[] boxed = new Integer[10000];
+        for (int i = 0; i < boxed.length; i++)
+            boxed[i] = i + 1000;
+        byte[] bytes = serialize(new Object[] {ints, boxed});
+        SGraph graph = SGraph.scan(ByteBuffer.wrap(bytes));
+        // 4 bytes per int, and a few columns plus one slot per Integer,
+        // rounded up to whole pages.
+        assertTrue(graph.getMemoryUsage() < 2 * bytes.length);
+        assertEquals(10000 + 2, graph.getEntityCount());
+    }
+
+    private static byte[] serialize(Object[] xs) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : xs)
+            oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static class Holder implements Serializable {
+        private static final long serialVersionUID = 6922605819566649377L;
+
+        Object held;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import junit.framework.*;
+
+public class ScanLimitsTest extends TestCase {
+
+    public ScanLimitsTest(String testName) {
+        super(testName);
+    }
+
+    /* An int[] whose length claims to be Integer.MAX_VALUE. */
+    private static final byte[] HUGE_ARRAY = {
+        (byte) 0xac, (byte) 0xed, 0x00, 0x05,
+        0x75,                                   // TC_ARRAY
+        0x72, 0x00, 0x02, '[', 'I',             // TC_CLASSDESC "[I"
+        0x4d, (byte) 0xba, 0x60, 0x26, 0x76, (byte) 0xea, (byte) 0xb2, (byte) 0xa5,
+        0x02, 0x00, 0x00,                       // SC_SERIALIZABLE, no fields
+        0x78, 0x70,                             // TC_ENDBLOCKDATA, TC_NULL
+        0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+    };
+
+    /* Block data whose length claims to be Integer.MAX_VALUE. */
+    private static final byte[] HUGE_BLOCK = {
+        (byte) 0xac, (byte) 0xed, 0x00, 0x05,
+        0x7a, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1, 2, 3,
+    };
+
+    public void testHostileLengthsWithoutLimits() throws Exception {
+        // Without any limits the scan still doesn't allocate what the
+        // stream claims: it fails when the data runs out.
+        try {
+            new SerialScan(ByteBuffer.wrap(HUGE_ARRAY)).readObject();
+            fail("Huge array accepted");
+        } catch (StreamCorruptedException e) {
+            // OK
+        }
+        try {
+            new SerialScan(new ByteArrayInputStream(HUGE_ARRAY)).readObject();
+            fail("Huge array accepted");
+        } catch (EOFException e) {
+            // OK
+        }
+        try {
+            new SerialScan(new ByteArrayInputStream(HUGE_BLOCK)).readObject();
+            fail("Huge block accepted");
+        } catch (EOFException e) {
+            // OK
+        }
+        try {
+            SGraph.scan(new ByteArrayInputStream(HUGE_ARRAY));
+            fail("Huge array accepted");
+        } catch (EOFException e) {
+            // OK
+        }
+    }
+
+    public void testHostileLengthsWithLimits() throws Exception {
+        ScanLimits limits = new ScanLimits();
+        limits.setMaxArrayLength(1000);
+        limits.setMaxBlockSize(1000);
+        assertLimitExceeded(HUGE_ARRAY, limits, "maxArrayLength");
+        assertLimitExceeded(HUGE_BLOCK, limits, "maxBlockSize");
+    }
+
+    public void testLimits() throws Exception {
+        byte[] bytes = serialize(new Node("a", new Node("b", new int[100])));
+        ScanLimits limits = new ScanLimits();
+        limits.setMaxDepth(3);
+        limits.setMaxArrayLength(100);
+        limits.setMaxHandles(10);
+        limits.setMaxBytes(bytes.length);
+        SerialScan scan = new SerialScan();
+        scan.setLimits(limits);
+        scan.reset(ByteBuffer.wrap(bytes));
+        SObject top = (SObject) scan.readObject();
+        assertEquals("a", ((SString) top.getField("name")).getValue());
+        assertEquals(limits.toString(), scan.getLimits().toString());
+        // The scan has its own copy of the limits.
+        limits.setMaxDepth(1);
+        scan.getLimits().setMaxDepth(1);
+        assertEquals(3, scan.getLimits().getMaxDepth());
+
+        limits = new ScanLimits();
+        limits.setMaxDepth(2);
+        assertLimitExceeded(bytes, limits, "maxDepth");
+        limits = new ScanLimits();
+        limits.setMaxArrayLength(99);
+        assertLimitExceeded(bytes, limits, "maxArrayLength");
+        limits = new ScanLimits();
+        limits.setMaxHandles(3);
+        assertLimitExceeded(bytes, limits, "maxHandles");
+        limits = new ScanLimits();
+        limits.setMaxReferences(2);
+        assertLimitExceeded(bytes, limits, "maxReferences");
+        limits = new ScanLimits();
+        limits.setMaxStringLength(0);
+        assertLimitExceeded(bytes, limits, "maxStringLength");
+        limits = new ScanLimits();
+        limits.setMaxBytes(bytes.length - 1);
+        assertLimitExceeded(bytes, limits, "maxBytes");
+        limits = new ScanLimits();
+        limits.setMaxAllocation(399);
+        assertLimitExceeded(bytes, limits, "maxAllocation");
+    }
+
+    private static void assertLimitExceeded(byte[] bytes, ScanLimits limits, String limit)
+            throws Exception {
+        SerialScan scan = new SerialScan();
+        scan.setLimits(limits);
+        scan.reset(new ByteArrayInputStream(bytes));
+        try {
+            scan.readObject();
+            fail("Limit not enforced: " + limit);
+        } catch (LimitExceededException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(limit));
+        }
+    }
+
+    private static byte[] serialize(Object x) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        Node(String name, Object next) {
+            this.name = name;
+            this.next = next;
+        }
+
+        private final String name;
+        private final Object next;
+    }
+}
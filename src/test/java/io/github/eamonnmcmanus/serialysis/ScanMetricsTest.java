@@ -0,0 +1,85 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.*;
+
+public class ScanMetricsTest extends TestCase {
+
+    public ScanMetricsTest(String testName) {
+        super(testName);
+    }
+
+    public void testMBean() throws Exception {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ScanMetrics.OBJECT_NAME);
+        ScanMetrics.register();
+        try {
+            assertTrue(mbs.isRegistered(name));
+            ScanMetrics.getInstance().reset();
+            SerialScan.examine(new int[][] {{1, 2}, {3}});
+            SerialScan.examine("noddy");
+            assertEquals(2L, mbs.getAttribute(name, "ScanCount"));
+            assertTrue((Long) mbs.getAttribute(name, "BytesRead") > 0);
+            // The outer array, the two inner arrays, and the string.
+            assertEquals(4L, mbs.getAttribute(name, "EntityCount"));
+            // [[I and [I
+            assertEquals(2L, mbs.getAttribute(name, "ClassDescriptorCount"));
+            assertTrue((Integer) mbs.getAttribute(name, "MaxDepth") >= 2);
+        } finally {
+            ScanMetrics.unregister();
+        }
+        assertFalse(mbs.isRegistered(name));
+        long count = ScanMetrics.getInstance().getScanCount();
+        SerialScan.examine("noddy");
+        assertEquals(count, ScanMetrics.getInstance().getScanCount());
+    }
+
+    public void testFlightRecorderEvent() throws Exception {
+        File file = File.createTempFile("serialysis", ".jfr");
+        try {
+            Recording recording = new Recording();
+            recording.enable("io.github.eamonnmcmanus.serialysis.Scan");
+            recording.start();
+            SerialScan.examine(new Integer[] {1, 2, 3});
+            recording.stop();
+            recording.dump(file.toPath());
+            recording.close();
+
+            List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+            for (RecordedEvent e : RecordingFile.readAllEvents(file.toPath())) {
+                if (e.getEventType().getName().equals(
+                        "io.github.eamonnmcmanus.serialysis.Scan"))
+                    events.add(e);
+            }
+            assertEquals(1, events.size());
+            RecordedEvent e = events.get(0);
+            assertTrue(e.getLong("bytesRead") > 0);
+            assertEquals(4, e.getLong("entities"));
+            // [Ljava.lang.Integer;, java.lang.Integer, java.lang.Number
+            assertEquals(3, e.getLong("classDescriptors"));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.*;
+
+public class ScanPublisherTest extends TestCase {
+
+    public ScanPublisherTest(String testName) {
+        super(testName);
+    }
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    protected void tearDown() {
+        executor.shutdownNow();
+    }
+
+    public void testPublish() throws Exception {
+        Object[] objects = {5, new int[] {5}, new Integer[] {5}, "noddy", null};
+        CountingChannel channel = new CountingChannel(serialize(objects));
+        ScanPublisher publisher = new ScanPublisher(channel, executor);
+        Recorder recorder = new Recorder(1);
+        publisher.subscribe(recorder);
+        assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+        assertNull(recorder.error);
+        assertEquals(objects.length, recorder.values.size());
+        assertEquals("noddy", ((SString) recorder.values.get(3)).getValue());
+        assertNull(recorder.values.get(4));
+        assertFalse(channel.isOpen());
+
+        Recorder second = new Recorder(1);
+        publisher.subscribe(second);
+        assertTrue(second.done.await(10, TimeUnit.SECONDS));
+        assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    public void testBackpressure() throws Exception {
+        Object[] objects = new Object[100];
+        for (int i = 0; i < objects.length; i++)
+            objects[i] = new long[1000];
+        byte[] bytes = serialize(objects);
+        CountingChannel channel = new CountingChannel(bytes);
+        Recorder recorder = new Recorder(0);
+        new ScanPublisher(channel, executor).subscribe(recorder);
+        recorder.subscription.request(2);
+        recorder.await(2);
+        Thread.sleep(100);
+        // Only about two values' worth of the stream has been read.
+        assertEquals(2, recorder.values.size());
+        assertTrue(channel.count.get() + " of " + bytes.length,
+                channel.count.get() < bytes.length / 10);
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+        assertNull(recorder.error);
+        assertEquals(objects.length, recorder.values.size());
+        assertEquals(bytes.length, channel.count.get());
+    }
+
+    public void testCancel() throws Exception {
+        Object[] objects = {"a", "b", "c"};
+        CountingChannel channel = new CountingChannel(serialize(objects));
+        Recorder recorder = new Recorder(0);
+        new ScanPublisher(channel, executor).subscribe(recorder);
+        recorder.subscription.request(1);
+        recorder.await(1);
+        recorder.subscription.cancel();
+        assertFalse(channel.isOpen());
+        recorder.subscription.request(1);
+        Thread.sleep(100);
+        assertEquals(1, recorder.values.size());
+        assertEquals(1, recorder.done.getCount());
+    }
+
+    public void testBadRequest() throws Exception {
+        Recorder recorder = new Recorder(0);
+        new ScanPublisher(new CountingChannel(serialize("a")), executor).subscribe(recorder);
+        recorder.subscription.request(0);
+        assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+        assertTrue(recorder.error instanceof IllegalArgumentException);
+    }
+
+    private static byte[] serialize(Object... objects) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : objects)
+            oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    /* A channel that counts the bytes that have been read from it. */
+    private static class CountingChannel implements ReadableByteChannel {
+        CountingChannel(byte[] bytes) {
+            this.channel = Channels.newChannel(new ByteArrayInputStream(bytes));
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            int n = channel.read(dst);
+            if (n > 0)
+                count.addAndGet(n);
+            return n;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private final ReadableByteChannel channel;
+        final AtomicLong count = new AtomicLong();
+    }
+
+    /* A subscriber that records what it gets, and requests another value
+     * after each one if {@code batch} is positive. */
+    private static class Recorder implements Flow.Subscriber<SEntity> {
+        Recorder(int batch) {
+            this.batch = batch;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (batch > 0)
+                subscription.request(batch);
+        }
+
+        public void onNext(SEntity item) {
+            values.add(item);
+            if (batch > 0)
+                subscription.request(batch);
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        public void onComplete() {
+            done.countDown();
+        }
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (values.size() < count && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+        }
+
+        private final int batch;
+        volatile Flow.Subscription subscription;
+        final List<SEntity> values = new CopyOnWriteArrayList<SEntity>();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Throwable error;
+    }
+}
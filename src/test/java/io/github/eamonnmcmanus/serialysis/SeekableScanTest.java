@@ -0,0 +1,213 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import junit.framework.*;
+
+public class SeekableScanTest extends TestCase {
+
+    public SeekableScanTest(String testName) {
+        super(testName);
+    }
+
+    public void testBuffer() throws Exception {
+        byte[] bytes = makeStream();
+        // Start the stream somewhere other than the start of the buffer.
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 10);
+        buffer.position(10);
+        buffer.put(bytes).position(10);
+        check(bytes, new SeekableScan(buffer, 2));
+        assertEquals(10, buffer.position());
+    }
+
+    public void testFile() throws Exception {
+        byte[] bytes = makeStream();
+        File file = File.createTempFile("seekable", ".ser");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(bytes);
+            out.close();
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                check(bytes, new SeekableScan(channel, 2));
+            } finally {
+                channel.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A problem reading an object again is an IOException from readObject.
+     */
+    public void testRereadFails() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        java.util.Date first = new java.util.Date(0);
+        oout.writeObject(first);
+        oout.writeObject(new java.util.Date(1));
+        oout.writeObject(new java.util.Date(2));
+        oout.writeObject(first);
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        File file = File.createTempFile("seekable", ".ser");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(bytes);
+            out.close();
+            FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                SeekableScan seekable = new SeekableScan(channel, 1);
+                for (int i = 0; i < 3; i++)
+                    seekable.readObject();
+                // The scan has already buffered what is left of the stream,
+                // but the first object has to be read again from the file.
+                channel.truncate(4);
+                try {
+                    seekable.readObject();
+                    fail("Reread of a truncated file succeeded");
+                } catch (IOException e) {
+                    // OK
+                }
+            } finally {
+                channel.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A cycle longer than the cache, whose first object is evicted while it
+     * is still being read.
+     */
+    public void testLongCycle() throws Exception {
+        Link x = new Link();
+        Link y = new Link();
+        Link z = new Link();
+        x.next = y;
+        y.next = z;
+        z.next = x;
+        x.value = "x";
+        y.value = "y";
+        z.value = "z";
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(x);
+        oout.writeObject(z);
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        SeekableScan seekable = new SeekableScan(ByteBuffer.wrap(bytes), 2);
+        SObject sx = (SObject) seekable.readObject();
+        SObject sz = (SObject) ((SObject) sx.getField("next")).getField("next");
+        assertSame(sx, sz.getField("next"));
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+        assertEquals(ss.readObject().getFingerprint(), sx.getFingerprint());
+        // The second z is read again. It is a copy, and so is the x that it
+        // refers to, which contains another copy of z, but the values around
+        // the cycle are the same.
+        SObject link = (SObject) seekable.readObject();
+        for (int i = 0; i < 6; i++) {
+            assertEquals("zxy".substring(i % 3, i % 3 + 1),
+                    ((SString) link.getField("value")).getValue());
+            link = (SObject) link.getField("next");
+        }
+        assertTrue(seekable.getRereadCount() > 0);
+    }
+
+    public void testSpillingHandleTable() throws Exception {
+        byte[] bytes = makeStream();
+        HandleTable table = HandleTable.spilling(null, 0);
+        try {
+            check(bytes, new SeekableScan(ByteBuffer.wrap(bytes), 2, table));
+        } finally {
+            table.close();
+        }
+    }
+
+    public void testHandleTablePages() throws Exception {
+        // One page in memory, so almost every access here goes to the file.
+        HandleTable table = HandleTable.spilling(null, 1);
+        try {
+            int n = 100000;
+            for (int i = 0; i < n; i++)
+                table.set(i, i * 3L);
+            for (int i = n - 1; i >= 0; i -= 7)
+                assertEquals(i * 3L, table.get(i));
+            table.clear();
+            table.set(0, 5);
+            assertEquals(5, table.get(0));
+            // Values that were set before the clear are gone.
+            table.set(1, 6);
+            assertEquals(0, table.get(50000));
+        } finally {
+            table.close();
+        }
+    }
+
+    private static void check(byte[] bytes, SeekableScan seekable)
+            throws Exception {
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+        for (int i = 0; i < COUNT + 1; i++) {
+            String expected = ss.readObject().toString();
+            assertEquals(expected, seekable.readObject().toString());
+        }
+        assertTrue(seekable.getRereadCount() > 0);
+        assertEquals(bytes.length, seekable.getStatistics().getBytesRead());
+    }
+
+    /**
+     * A stream where every object refers back to the first one, which is
+     * cyclic, and to the one before it.
+     */
+    private static byte[] makeStream() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        Link first = new Link();
+        first.value = "first";
+        first.next = first;
+        oout.writeObject(first);
+        Link previous = first;
+        for (int i = 0; i < COUNT; i++) {
+            Link link = new Link();
+            link.value = new Object[] {first, i};
+            link.next = previous;
+            oout.writeObject(link);
+            previous = link;
+        }
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static final int COUNT = 20;
+
+    private static class Link implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        Object value;
+        Link next;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.*;
+
+public class SerialDiffTest extends TestCase {
+
+    public SerialDiffTest(String testName) {
+        super(testName);
+    }
+
+    public void testIdentical() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("a", new int[] {1, 2, 3});
+        map.put("b", "bee");
+        assertEquals(0, diff(new Object[] {map, 5}, new Object[] {map, 5}).size());
+    }
+
+    public void testFieldsAndElements() throws Exception {
+        Node a = new Node("same", 1, new long[] {1, 2});
+        Node b = new Node("same", 2, new long[] {1, 3, 4});
+        List<SerialDiff.Difference> diffs = diff(new Object[] {a}, new Object[] {b});
+        assertEquals("[CHANGED [0].count: 1 -> 2, "
+                + "CHANGED [0].values[1]: 2 -> 3, "
+                + "ADDED [0].values[2]: 4]", diffs.toString());
+    }
+
+    public void testNestedAndRoots() throws Exception {
+        Node a = new Node("x", 0, null);
+        a.next = new Node("inner", 0, null);
+        Node b = new Node("x", 0, null);
+        b.next = new Node("changed", 0, null);
+        List<SerialDiff.Difference> diffs =
+                diff(new Object[] {a, "extra"}, new Object[] {b});
+        assertEquals("[CHANGED [0].next.name: \"inner\" -> \"changed\", "
+                + "REMOVED [1]: \"extra\"]", diffs.toString());
+        SerialDiff.Difference d = diffs.get(0);
+        assertEquals(SerialDiff.Difference.Kind.CHANGED, d.getKind());
+        assertEquals("[0].next.name", d.getPath());
+        assertEquals("inner", ((SString) d.getOldValue()).getValue());
+    }
+
+    public void testClassChanged() throws Exception {
+        List<SerialDiff.Difference> diffs =
+                diff(new Object[] {new ArrayList<Object>()}, new Object[] {5});
+        assertEquals(1, diffs.size());
+        assertEquals("[0]", diffs.get(0).getPath());
+    }
+
+    public void testSerialVersionUIDChanged() throws Exception {
+        Object[] objects = {new Node("a", 1, null)};
+        byte[] bytes = serialize(objects);
+        byte[] changed = bytes.clone();
+        // The serialVersionUID follows the class name in the descriptor.
+        byte[] name = Node.class.getName().getBytes("UTF-8");
+        int i = indexOf(changed, name) + name.length;
+        assertEquals(1, changed[i + 7]);
+        changed[i + 7] = 2;
+        List<SerialDiff.Difference> diffs = SerialDiff.diff(
+                new ByteArrayInputStream(bytes), new ByteArrayInputStream(changed));
+        assertEquals(diffs.toString(), 1, diffs.size());
+        assertEquals(SerialDiff.Difference.Kind.CHANGED, diffs.get(0).getKind());
+        assertEquals("[0]", diffs.get(0).getPath());
+    }
+
+    public void testCycles() throws Exception {
+        // Two rings of nodes, differing in one node. The difference is
+        // found once, even though every node can be reached from itself.
+        Node a = ring(10, -1);
+        Node b = ring(10, 7);
+        List<SerialDiff.Difference> diffs = diff(new Object[] {a}, new Object[] {b});
+        assertEquals(1, diffs.size());
+        assertEquals("[0].next.next.next.next.next.next.next.count",
+                diffs.get(0).getPath());
+        // Rings that are the same have the same fingerprint although they
+        // are cyclic.
+        assertEquals(0, diff(new Object[] {ring(10, 3)}, new Object[] {ring(10, 3)}).size());
+    }
+
+    public void testSharedReferences() throws Exception {
+        Node shared1 = new Node("shared", 1, null);
+        Node shared2 = new Node("shared", 2, null);
+        Object[] a = {shared1, shared1};
+        Object[] b = {shared2, shared2};
+        List<SerialDiff.Difference> diffs = diff(new Object[] {a}, new Object[] {b});
+        assertEquals("[CHANGED [0][0].count: 1 -> 2]", diffs.toString());
+    }
+
+    public void testAnnotations() throws Exception {
+        List<Object> a = new ArrayList<Object>();
+        a.add("one");
+        List<Object> b = new ArrayList<Object>(a);
+        b.add("two");
+        List<SerialDiff.Difference> diffs = diff(new Object[] {a}, new Object[] {b});
+        // ArrayList.writeObject writes the size as block data, then the
+        // elements. Differences inside an object are found after those
+        // that are visible from the object itself.
+        assertEquals("[CHANGED [0].size: 1 -> 2, "
+                + "ADDED [0].<data>[2]: \"two\", "
+                + "CHANGED [0].<data>[0]: SBlockData(blockdata) -> SBlockData(blockdata)]",
+                diffs.toString());
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target) {
+        outer:
+        for (int i = 0; i <= bytes.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (bytes[i + j] != target[j])
+                    continue outer;
+            }
+            return i;
+        }
+        throw new AssertionError("Not found");
+    }
+
+    private static Node ring(int n, int odd) {
+        Node first = new Node("n0", 0, null);
+        Node node = first;
+        for (int i = 1; i < n; i++) {
+            node.next = new Node("n" + i, (i == odd) ? 1 : 0, null);
+            node = node.next;
+        }
+        node.next = first;
+        return first;
+    }
+
+    private static List<SerialDiff.Difference> diff(Object[] a, Object[] b)
+            throws Exception {
+        return SerialDiff.diff(new ByteArrayInputStream(serialize(a)),
+                new ByteArrayInputStream(serialize(b)));
+    }
+
+    private static byte[] serialize(Object[] objects) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : objects)
+            oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        Node(String name, int count, long[] values) {
+            this.name = name;
+            this.count = count;
+            this.values = values;
+        }
+
+        String name;
+        int count;
+        long[] values;
+        Node next;
+    }
+}
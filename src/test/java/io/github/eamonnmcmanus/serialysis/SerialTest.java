@@ -19,7 +19,14 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.annotation.ElementType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+
+import static java.io.ObjectStreamConstants.*;
+
 import junit.framework.*;
 import io.github.eamonnmcmanus.serialysis.SArray;
 import io.github.eamonnmcmanus.serialysis.SObject;
@@ -134,12 +141,183 @@ public class SerialTest extends TestCase {
         assertEquals("noddy", noddy.getValue());
     }
 
+    public void testStatistics() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        Holder h = new Holder();
+        String longest = "seacht, ocht, naoi, deich";
+        h.held = new Object[] {longest, "ocht", new int[1000], h};
+        oout.writeObject(h);
+        oout.reset();
+        oout.writeObject("naoi");
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+        ss.readObject();
+        ss.readObject();
+        ScanStatistics stats = ss.getStatistics();
+        assertEquals(bytes.length, stats.getBytesRead());
+        assertEquals(1, stats.getTypeCodeCount(TC_OBJECT));
+        assertEquals(2, stats.getTypeCodeCount(TC_ARRAY));
+        // Three string values plus the type of the field "held".
+        assertEquals(4, stats.getTypeCodeCount(TC_STRING));
+        assertEquals(1, stats.getTypeCodeCount(TC_REFERENCE));
+        assertEquals(1, stats.getTypeCodeCount(TC_RESET));
+        assertEquals(1, stats.getResetCount());
+        // The Holder object, the Object[] and its contents.
+        assertEquals(3, stats.getMaxDepth());
+        assertEquals(1000, stats.getLargestArrayLength());
+        assertEquals(longest.length(), stats.getLongestStringLength());
+        // After the reset, only "naoi" is in the handle table.
+        assertEquals(1, stats.getHandleTableSize());
+        assertTrue(stats.getMaxHandleTableSize() > 5);
+        assertEquals(stats.getScanNanos(),
+                stats.getDescriptorNanos() + stats.getDataNanos());
+    }
+
+    public void testReset() throws Exception {
+        SerialScan ss = new SerialScan();
+        for (int i = 0; i < 3; i++) {
+            byte[] bytes = serialize(new Object[] {"noddy", i});
+            switch (i) {
+                case 0:
+                    ss.reset(new ByteArrayInputStream(bytes));
+                    break;
+                case 1:
+                    ss.reset(ByteBuffer.wrap(bytes));
+                    break;
+                default:
+                    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+                    direct.put(bytes).flip();
+                    ss.reset(direct);
+                    break;
+            }
+            SString s = (SString) ss.readObject();
+            assertEquals("noddy", s.getValue());
+            SObject n = (SObject) ss.readObject();
+            assertEquals(i, ((SPrim) n.getField("value")).getValue());
+            assertEquals(bytes.length, ss.getStatistics().getBytesRead());
+        }
+    }
+
+    public void testExactReads() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+            sb.append("noddy");
+        List<Object> list = new ArrayList<Object>(Arrays.asList(sb.toString(), 5));
+        byte[] bytes = serialize(new Object[] {list, new byte[10000]});
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(bytes);
+        bout.write("tail".getBytes("US-ASCII"));
+        ByteArrayInputStream in = new ByteArrayInputStream(bout.toByteArray());
+        SerialScan ss = new SerialScan(in);
+        assertEquals("java.util.ArrayList", ((SObject) ss.readObject()).getType());
+        assertTrue(ss.readObject() instanceof SArray);
+        byte[] tail = new byte[10];
+        assertEquals(4, in.read(tail));
+        assertEquals("tail", new String(tail, 0, 4, "US-ASCII"));
+    }
+
+    public void testReferenceAfterLongString() throws Exception {
+        StringBuilder sb = new StringBuilder("\u00e9");
+        for (int i = 0; i < 16; i++)
+            sb.append(sb);
+        String s = sb.toString();
+        SArray so = (SArray) scan(new Object[] {s, "x", "x"});
+        SEntity[] a = so.getValue();
+        assertEquals(s, ((SString) a[0]).getValue());
+        assertSame(a[1], a[2]);
+    }
+
+    public void testHiddenField() throws Exception {
+        Sub sub = new Sub();
+        ((Holder) sub).held = "super";
+        sub.held = "sub";
+        SEntity[] sos = scanMultiple(new Object[] {sub, new Sub()});
+        SObject so = (SObject) sos[0];
+        assertEquals(Collections.singleton("held"), so.getFieldNames());
+        assertEquals("sub", ((SString) so.getField("held")).getValue());
+        assertNull(so.getField("nonexistent"));
+        // Objects of the same class share their field layout.
+        assertSame(so.getFieldNames(), ((SObject) sos[1]).getFieldNames());
+    }
+
+    public void testExamineReuse() throws Exception {
+        SArray first = (SArray) SerialScan.examine(new Object[] {"noddy", new byte[] {1, 2, 3}});
+        String before = first.toString();
+        // A stream big enough that its buffer isn't kept, and one examined
+        // from inside the serialization of another.
+        SerialScan.examine(new byte[2 << 20]);
+        SObject outer = (SObject) SerialScan.examine(new Examining());
+        assertEquals(before, first.toString());
+        SObject inner = (SObject) outer.getField("held");
+        assertEquals("noddy", ((SString) inner.getField("held")).getValue());
+        SArray again = (SArray) SerialScan.examine(new Object[] {"noddy", new byte[] {1, 2, 3}});
+        assertEquals(before, again.toString());
+    }
+
+    public void testExamineAll() throws Exception {
+        Holder shared = new Holder();
+        shared.held = "noddy";
+        Holder a = new Holder();
+        a.held = shared;
+        Holder b = new Holder();
+        b.held = shared;
+        List<SEntity> entities = SerialScan.examineAll(a, b, null, 5);
+        assertEquals(4, entities.size());
+        SObject sa = (SObject) entities.get(0);
+        SObject sb = (SObject) entities.get(1);
+        assertSame(sa.getField("held"), sb.getField("held"));
+        assertSame(sa.getFieldNames(), sb.getFieldNames());
+        assertNull(entities.get(2));
+        assertEquals(5, ((SPrim) ((SObject) entities.get(3)).getField("value")).getValue());
+        assertEquals(0, SerialScan.examineAll(Collections.emptyList()).size());
+        try {
+            SerialScan.examineAll(a, new Object());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static byte[] serialize(Object[] xs) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : xs)
+            oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+
     private static class Holder implements Serializable {
         private static final long serialVersionUID = 6922605819566649377L;
 
         Object held;
     }
 
+    /**
+     * Examines another object while it is being serialized.
+     */
+    private static class Examining extends Holder {
+        private static final long serialVersionUID = 1L;
+
+        Examining() {
+            Holder h = new Holder();
+            h.held = "noddy";
+            held = h;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            assertTrue(SerialScan.examine(held) instanceof SObject);
+            out.defaultWriteObject();
+        }
+    }
+
+    private static class Sub extends Holder {
+        private static final long serialVersionUID = 1L;
+
+        Object held;
+    }
+
     private SEntity scan(Object x) throws IOException {
         return scanMultiple(new Object[] {x})[0];
     }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.*;
+
+import io.github.eamonnmcmanus.serialysis.SerialValidator.Verdict;
+import io.github.eamonnmcmanus.serialysis.SerialValidator.Violation;
+
+import static java.io.ObjectStreamConstants.*;
+
+public class SerialValidatorTest extends TestCase {
+
+    public SerialValidatorTest(String testName) {
+        super(testName);
+    }
+
+    public void testAccepted() throws Exception {
+        SerialValidator v = new SerialValidator(new ScanLimits());
+        byte[] bytes = serialize(new Node("a", new Node("b", null)), "x", new int[5]);
+        Verdict verdict = v.validate(bytes, 0, bytes.length);
+        assertTrue(verdict.toString(), verdict.isAccepted());
+        assertTrue(v.validate(new ByteArrayInputStream(bytes)).isAccepted());
+        // The validator can be reused.
+        assertTrue(v.validate(bytes, 0, bytes.length).isAccepted());
+    }
+
+    public void testDeniedClass() throws Exception {
+        SerialValidator v = new SerialValidator(new ScanLimits());
+        v.denyClass("java.util.*");
+        byte[] bytes = serialize("ok", new Node("a", new Node("b", new ArrayList<Object>())));
+        Verdict verdict = v.validate(bytes, 0, bytes.length);
+        assertEquals(Violation.CLASS, verdict.getViolation());
+        assertEquals("[1].next.value", verdict.getPath());
+        assertTrue(verdict.getMessage(), verdict.getMessage().contains("java.util.ArrayList"));
+    }
+
+    public void testAllowedClasses() throws Exception {
+        SerialValidator v = new SerialValidator(new ScanLimits());
+        v.allowClass(Node.class.getName());
+        v.allowClass("java.lang.**");
+        byte[] ok = serialize(new Node("a", 5), new Node[] {new Node("b", null)});
+        assertTrue(v.validate(ok, 0, ok.length).toString(), v.validate(ok, 0, ok.length).isAccepted());
+        byte[] bad = serialize(new Node("a", new java.util.Date()));
+        Verdict verdict = v.validate(bad, 0, bad.length);
+        assertEquals(Violation.CLASS, verdict.getViolation());
+        assertEquals("[0].value", verdict.getPath());
+        // Arrays are checked by their element class.
+        byte[] array = serialize((Object) new java.util.Date[0]);
+        assertEquals(Violation.CLASS, v.validate(array, 0, array.length).getViolation());
+    }
+
+    public void testDepth() throws Exception {
+        ScanLimits limits = new ScanLimits();
+        limits.setMaxDepth(2);
+        SerialValidator v = new SerialValidator(limits);
+        byte[] shallow = serialize(new Node("a", new Node("b", null)));
+        assertTrue(v.validate(shallow, 0, shallow.length).isAccepted());
+        byte[] deep = serialize(new Node("a", new Node("b", new Node("c", null))));
+        Verdict verdict = v.validate(deep, 0, deep.length);
+        assertEquals(Violation.DEPTH, verdict.getViolation());
+        assertEquals("[0].next.next", verdict.getPath());
+    }
+
+    public void testOtherLimits() throws Exception {
+        ScanLimits limits = new ScanLimits();
+        SerialValidator v = new SerialValidator(limits);
+        byte[] bytes = serialize(new Node("abcdef", new Object[] {new long[100]}));
+
+        limits.setMaxArrayLength(50);
+        Verdict verdict = v.validate(bytes, 0, bytes.length);
+        assertEquals(Violation.ARRAY_LENGTH, verdict.getViolation());
+        assertEquals("[0].value[0]", verdict.getPath());
+        limits.setMaxArrayLength(100);
+
+        limits.setMaxStringLength(5);
+        verdict = v.validate(bytes, 0, bytes.length);
+        assertEquals(Violation.STRING_LENGTH, verdict.getViolation());
+        assertEquals("[0].name", verdict.getPath());
+        limits.setMaxStringLength(6);
+
+        limits.setMaxReferences(3);
+        assertEquals(Violation.REFERENCES, v.validate(bytes, 0, bytes.length).getViolation());
+        limits.setMaxReferences(100);
+
+        limits.setMaxBytes(bytes.length - 1);
+        assertEquals(Violation.BYTES, v.validate(bytes, 0, bytes.length).getViolation());
+        assertEquals(Violation.BYTES,
+                v.validate(new ByteArrayInputStream(bytes)).getViolation());
+        limits.setMaxBytes(bytes.length);
+
+        limits.setMaxHandles(3);
+        verdict = v.validate(bytes, 0, bytes.length);
+        assertEquals(Violation.HANDLES, verdict.getViolation());
+        assertTrue(verdict.getMessage(), verdict.getMessage().contains("maxHandles"));
+        limits.setMaxHandles(100);
+
+        assertTrue(v.validate(bytes, 0, bytes.length).isAccepted());
+    }
+
+    public void testMalformed() throws Exception {
+        SerialValidator v = new SerialValidator(new ScanLimits());
+        byte[] bytes = serialize(new Node("a", null));
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 3);
+        assertEquals(Violation.MALFORMED, v.validate(truncated, 0, truncated.length).getViolation());
+        assertEquals(Violation.MALFORMED, v.validate(new byte[] {1, 2, 3, 4}, 0, 4).getViolation());
+        assertTrue(v.validate(bytes, 0, bytes.length).isAccepted());
+    }
+
+    public void testDeepNesting() throws Exception {
+        // Nesting is only limited if there is a limit.
+        byte[] bytes = nestedArrays(200000);
+        SerialValidator v = new SerialValidator(new ScanLimits());
+        Verdict verdict = v.validate(bytes, 0, bytes.length);
+        assertTrue(verdict.toString(), verdict.isAccepted());
+
+        ScanLimits limits = new ScanLimits();
+        limits.setMaxDepth(1000);
+        verdict = new SerialValidator(limits).validate(bytes, 0, bytes.length);
+        assertEquals(Violation.DEPTH, verdict.getViolation());
+    }
+
+    public void testDescriptorCycle() throws Exception {
+        // A class descriptor that is its own superclass.
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeShort(STREAM_MAGIC);
+        out.writeShort(STREAM_VERSION);
+        out.writeByte(TC_OBJECT);
+        out.writeByte(TC_CLASSDESC);
+        out.writeUTF("Foo");
+        out.writeLong(1);
+        out.writeByte(SC_SERIALIZABLE);
+        out.writeShort(0);
+        out.writeByte(TC_ENDBLOCKDATA);
+        out.writeByte(TC_REFERENCE);
+        out.writeInt(baseWireHandle);
+        out.close();
+        byte[] bytes = bout.toByteArray();
+        SerialValidator v = new SerialValidator(new ScanLimits());
+        assertEquals(Violation.MALFORMED, v.validate(bytes, 0, bytes.length).getViolation());
+    }
+
+    /* A stream of an Object[] nested n deep, which is too deep for
+     * ObjectOutputStream itself to write. */
+    private static byte[] nestedArrays(int n) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeShort(STREAM_MAGIC);
+        out.writeShort(STREAM_VERSION);
+        for (int i = 0; i < n; i++) {
+            out.writeByte(TC_ARRAY);
+            if (i == 0) {
+                out.writeByte(TC_CLASSDESC);
+                out.writeUTF("[Ljava.lang.Object;");
+                out.writeLong(ObjectStreamClass.lookup(Object[].class).getSerialVersionUID());
+                out.writeByte(SC_SERIALIZABLE);
+                out.writeShort(0);
+                out.writeByte(TC_ENDBLOCKDATA);
+                out.writeByte(TC_NULL);
+            } else {
+                out.writeByte(TC_REFERENCE);
+                out.writeInt(baseWireHandle);
+            }
+            out.writeInt(1);
+        }
+        out.writeByte(TC_NULL);
+        out.close();
+        return bout.toByteArray();
+    }
+
+    private static byte[] serialize(Object... objects) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : objects)
+            oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        Node(String name, Object value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        String name;
+        Object value;
+        Node next;
+
+        Node(String name, Node next) {
+            this(name, (Object) null);
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import junit.framework.*;
+
+public class SerializationAgentTest extends TestCase {
+
+    public SerializationAgentTest(String testName) {
+        super(testName);
+    }
+
+    public void testReport() throws Exception {
+        File file = File.createTempFile("serialysis-agent", ".txt");
+        file.deleteOnExit();
+        SerializationAgent agent = SerializationAgent.install(
+                "filter=true,rate=1,interval=3600,budget=100000,file=" + file.getPath());
+        try {
+            byte[] bytes = serialize(new ArrayList<String>(Arrays.asList("a", "b")));
+            ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            assertEquals(Arrays.asList("a", "b"), oin.readObject());
+            assertTrue(SerializationAgent.sample(bytes, 0, bytes.length));
+            // Over budget.
+            assertFalse(SerializationAgent.sample(new byte[200000], 0, 200000));
+        } finally {
+            agent.stop();
+        }
+        assertFalse(SerializationAgent.sample(new byte[10], 0, 10));
+
+        String report = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(report, report.contains("(final)"));
+        // The call site is this method, and what it read includes the list.
+        assertTrue(report, report.contains(
+                SerializationAgentTest.class.getName() + ".testReport:"));
+        assertTrue(report, report.contains("java.util.ArrayList"));
+        assertTrue(report, report.contains("total in 1 streams"));
+    }
+
+    public void testNoFilter() throws Exception {
+        // Without filter=true, deserialization is not sampled, even if an
+        // earlier agent in this JVM installed the filter.
+        File file = File.createTempFile("serialysis-agent", ".txt");
+        file.deleteOnExit();
+        SerializationAgent agent = SerializationAgent.install(
+                "rate=1,interval=3600,file=" + file.getPath());
+        try {
+            byte[] bytes = serialize(new ArrayList<String>(Arrays.asList("a", "b")));
+            ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            assertEquals(Arrays.asList("a", "b"), oin.readObject());
+            assertTrue(SerializationAgent.sample(bytes, 0, bytes.length));
+        } finally {
+            agent.stop();
+        }
+
+        String report = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(report, report.contains("filter=true"));
+        assertFalse(report, report.contains(
+                SerializationAgentTest.class.getName() + ".testNoFilter:"));
+        assertTrue(report, report.contains("total in 1 streams"));
+    }
+
+    public void testInstrumentation() throws Exception {
+        // Run Traffic in a JVM of its own, with the agent given by
+        // -javaagent. The agent jar has only a manifest, and its classes
+        // come from the class path.
+        File jar = File.createTempFile("serialysis-agent", ".jar");
+        jar.deleteOnExit();
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Premain-Class", SerializationAgent.class.getName());
+        attributes.putValue("Can-Retransform-Classes", "true");
+        new JarOutputStream(new FileOutputStream(jar), manifest).close();
+        File file = File.createTempFile("serialysis-agent", ".txt");
+        file.deleteOnExit();
+        File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+        Process process = new ProcessBuilder(java.getPath(),
+                "-javaagent:" + jar.getPath()
+                        + "=rate=1,interval=3600,budget=100000,file=" + file.getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                Traffic.class.getName())
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(output, 0, process.exitValue());
+
+        String report = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertFalse(report, report.contains("could not rewrite"));
+        // Each map is written and read by Traffic.main, and the lists and
+        // strings written inside the maps are not calls of their own.
+        String site = Traffic.class.getName() + ".main:";
+        int write = report.indexOf("Serialization by call site");
+        int read = report.indexOf("Deserialization by call site");
+        assertTrue(report, write >= 0 && read > write);
+        assertTrue(report, report.indexOf(site) > write);
+        assertTrue(report, report.indexOf(site) < read);
+        assertTrue(report, report.indexOf(site, read) > read);
+        assertTrue(report, report.contains("3 samples"));
+        int streams = report.indexOf("Streams sampled");
+        assertFalse(report, report.substring(write, streams).contains("java.util.ArrayList"));
+        assertTrue(report, report.contains("total in 6 streams"));
+    }
+
+    /**
+     * The application that {@link #testInstrumentation} runs.
+     */
+    public static class Traffic {
+        public static void main(String[] args) throws Exception {
+            for (int i = 0; i < 3; i++) {
+                HashMap<String, Object> map = new HashMap<String, Object>();
+                map.put("key" + i, new ArrayList<String>(Arrays.asList("a", "b")));
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                ObjectOutputStream oout = new ObjectOutputStream(bout);
+                oout.writeObject(map);
+                oout.close();
+                ObjectInputStream oin = new ObjectInputStream(
+                        new ByteArrayInputStream(bout.toByteArray()));
+                if (!map.equals(oin.readObject()))
+                    throw new AssertionError();
+            }
+            // Write the final report.
+            SerializationAgent.install(null).stop();
+        }
+    }
+
+    public void testBadOptions() {
+        try {
+            SerializationAgent.install("rate=2");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            SerializationAgent.install("filter=yes");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            SerializationAgent.install("instrument=maybe");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            SerializationAgent.install("frequency=1");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static byte[] serialize(Object x) throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+}
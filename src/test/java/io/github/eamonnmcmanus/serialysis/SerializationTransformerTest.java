@@ -0,0 +1,142 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import junit.framework.*;
+
+public class SerializationTransformerTest extends TestCase {
+
+    public SerializationTransformerTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void tearDown() {
+        SerializationHooks.writeHook = null;
+        SerializationHooks.readHook = null;
+    }
+
+    /**
+     * Stands in for {@code ObjectOutputStream}, with more than one return.
+     */
+    public static class Writer {
+        public final void writeObject(Object obj) {
+            if (obj == null)
+                return;
+            written++;
+        }
+
+        public void writeObject(Object obj, boolean unshared) {
+        }
+
+        public int written;
+    }
+
+    /**
+     * Stands in for {@code ObjectInputStream}.
+     */
+    public static class Reader {
+        public final Object readObject() {
+            return "read";
+        }
+    }
+
+    public void testWriteObject() throws Exception {
+        final List<Object> calls = new ArrayList<Object>();
+        SerializationHooks.writeHook = new BiConsumer<Object, Object>() {
+            public void accept(Object stream, Object obj) {
+                calls.add(stream);
+                calls.add(obj);
+            }
+        };
+        Class<?> c = load(Writer.class, "writeObject", "(Ljava/lang/Object;)V", "wrote");
+        Object writer = c.getConstructor().newInstance();
+        c.getMethod("writeObject", Object.class).invoke(writer, "x");
+        c.getMethod("writeObject", Object.class).invoke(writer, (Object) null);
+        // Only the method with the given descriptor is changed.
+        c.getMethod("writeObject", Object.class, boolean.class).invoke(writer, "y", true);
+        assertEquals(1, c.getField("written").getInt(writer));
+        assertEquals(4, calls.size());
+        assertSame(writer, calls.get(0));
+        assertEquals("x", calls.get(1));
+        assertSame(writer, calls.get(2));
+        assertNull(calls.get(3));
+    }
+
+    public void testReadObject() throws Exception {
+        final List<Object> calls = new ArrayList<Object>();
+        SerializationHooks.readHook = new BiConsumer<Object, Object>() {
+            public void accept(Object stream, Object obj) {
+                calls.add(stream);
+                calls.add(obj);
+            }
+        };
+        Class<?> c = load(Reader.class, "readObject", "()Ljava/lang/Object;", "read");
+        Object reader = c.getConstructor().newInstance();
+        assertEquals("read", c.getMethod("readObject").invoke(reader));
+        assertEquals(2, calls.size());
+        assertSame(reader, calls.get(0));
+        assertEquals("read", calls.get(1));
+    }
+
+    public void testOnlySerializationClasses() throws Exception {
+        SerializationTransformer t = new SerializationTransformer();
+        byte[] bytes = classFile(Writer.class);
+        assertNull(t.transform(null, "java/util/HashMap", null, null, bytes));
+        assertNull(t.transform(null, null, null, null, bytes));
+        byte[] oos = classFile(java.io.ObjectOutputStream.class);
+        byte[] changed = t.transform(null, "java/io/ObjectOutputStream", null, null, oos);
+        assertNotNull(changed);
+        assertTrue(changed.length > oos.length);
+    }
+
+    /**
+     * Load the given class again, with the given method rewritten, in a
+     * class loader of its own. The rewritten class calls the same
+     * {@code SerializationHooks} as this test.
+     */
+    private static Class<?> load(Class<?> c, String name, String descriptor, String hook)
+            throws Exception {
+        final byte[] bytes = SerializationTransformer.instrument(
+                classFile(c), name, descriptor, hook);
+        final String className = c.getName();
+        ClassLoader loader = new ClassLoader(SerializationTransformerTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String n, boolean resolve) throws ClassNotFoundException {
+                if (!n.equals(className))
+                    return super.loadClass(n, resolve);
+                synchronized (getClassLoadingLock(n)) {
+                    Class<?> loaded = findLoadedClass(n);
+                    if (loaded == null)
+                        loaded = defineClass(n, bytes, 0, bytes.length);
+                    return loaded;
+                }
+            }
+        };
+        Class<?> loaded = loader.loadClass(className);
+        assertNotSame(c, loaded);
+        return loaded;
+    }
+
+    private static byte[] classFile(Class<?> c) throws Exception {
+        String name = "/" + c.getName().replace('.', '/') + ".class";
+        try (InputStream in = c.getResourceAsStream(name)) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import junit.framework.*;
+
+import io.github.eamonnmcmanus.serialysis.ClassHistogram.Entry;
+
+public class StreamGeneratorTest extends TestCase {
+
+    public StreamGeneratorTest(String testName) {
+        super(testName);
+    }
+
+    public void testScan() throws Exception {
+        StreamGenerator g = new StreamGenerator();
+        g.setSeed(42);
+        g.setWidth(3);
+        g.setDepth(5);
+        g.setSharing(0.3);
+        g.setEnumFraction(0.1);
+        g.setProxyFraction(0.1);
+        g.setArrayFraction(0.2);
+        g.setBlockDataFraction(0.5);
+        g.setResetInterval(10);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        long count = g.write(bout, 200000);
+        byte[] bytes = bout.toByteArray();
+        assertTrue(bytes.length >= 200000);
+        assertTrue(count > 10);
+
+        SerialScan scan = new SerialScan(ByteBuffer.wrap(bytes));
+        for (long i = 0; i < count; i++)
+            assertTrue(scan.readObject() instanceof SObject);
+        assertTrue(scan.atEnd());
+
+        ClassHistogram h = new ClassHistogram();
+        h.add(bytes, 0, bytes.length);
+        assertEquals(bytes.length, h.getTotalBytes());
+        boolean enums = false, proxies = false, arrays = false;
+        for (Entry e : h.getEntries()) {
+            String name = e.getClassName();
+            enums |= name.startsWith("synthetic.E") && e.getCount() > 0;
+            proxies |= name.equals("<Proxy>") && e.getCount() > 0;
+            arrays |= name.equals("[I") && e.getCount() > 0;
+        }
+        assertTrue(h.toString(), enums && proxies && arrays);
+    }
+
+    public void testReproducible() throws Exception {
+        assertTrue(Arrays.equals(generate(1), generate(1)));
+        assertFalse(Arrays.equals(generate(1), generate(2)));
+    }
+
+    public void testBadSettings() {
+        StreamGenerator g = new StreamGenerator();
+        try {
+            g.setSharing(1.5);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            g.setDepth(0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static byte[] generate(long seed) throws Exception {
+        StreamGenerator g = new StreamGenerator();
+        g.setSeed(seed);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        g.write(bout, 50000);
+        return bout.toByteArray();
+    }
+}
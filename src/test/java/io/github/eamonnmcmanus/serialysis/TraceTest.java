@@ -0,0 +1,154 @@
+/*
+ * Copyright 2007 Éamonn McManus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.eamonnmcmanus.serialysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import junit.framework.*;
+
+public class TraceTest extends TestCase {
+
+    public TraceTest(String testName) {
+        super(testName);
+    }
+
+    public void testConcurrentTracedScans() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bout, true);
+        Trace.enable(1, out, 100000);
+        try {
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 4; i++) {
+                Thread t = new Thread() {
+                    public void run() {
+                        for (int j = 0; j < 10; j++)
+                            SerialScan.examine(new Integer[] {j});
+                    }
+                };
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads)
+                t.join();
+        } finally {
+            Trace.disable();
+        }
+        assertFalse(Trace.isEnabled());
+
+        String output = "";
+        for (int i = 0; i < 100 && !output.contains("readObject returns"); i++) {
+            Thread.sleep(50);
+            output = bout.toString("UTF-8");
+        }
+        assertTrue(output.contains("[scan "));
+        // Every line of a scan's output is indented according to that scan's
+        // own nesting, so no line can be more deeply indented than the
+        // deepest nesting in a single scan.
+        for (String line : output.split("\n"))
+            assertFalse(line, line.contains("| | | | | | | | | |"));
+    }
+
+    public void testSampling() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bout, true);
+        Trace.enable(3, out, 100000);
+        try {
+            for (int i = 0; i < 9; i++)
+                SerialScan.examine(new Integer[] {i});
+        } finally {
+            Trace.disable();
+        }
+        awaitSinks();
+        Set<String> scans = new HashSet<String>();
+        for (String line : bout.toString("UTF-8").split("\n")) {
+            if (line.startsWith("[scan "))
+                scans.add(line.substring(0, line.indexOf(']') + 1));
+        }
+        assertEquals(scans.toString(), 3, scans.size());
+    }
+
+    public void testFullBufferDropsLines() throws Exception {
+        // The output blocks until the end of the test, so the one line that
+        // fits in the buffer is never taken out of it, or is stuck being
+        // written, and the rest are dropped rather than blocking the scans.
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream blocked = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        long dropped = Trace.getDroppedLineCount();
+        Trace.enable(1, new PrintStream(blocked, true), 1);
+        try {
+            Thread scans = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10; i++)
+                        SerialScan.examine(new Integer[] {i});
+                }
+            };
+            scans.start();
+            scans.join(10000);
+            assertFalse("Scans blocked on trace output", scans.isAlive());
+            assertTrue(Trace.getDroppedLineCount() > dropped);
+        } finally {
+            Trace.disable();
+            release.countDown();
+        }
+        awaitSinks();
+    }
+
+    public void testSystemProperty() throws Exception {
+        assertFalse(Trace.isEnabled());
+        System.setProperty(Trace.TRACE_PROPERTY, "0");
+        try {
+            Trace.enableFromProperty();
+            assertFalse(Trace.isEnabled());
+            System.setProperty(Trace.TRACE_PROPERTY, "5");
+            Trace.enableFromProperty();
+            assertTrue(Trace.isEnabled());
+        } finally {
+            System.clearProperty(Trace.TRACE_PROPERTY);
+            Trace.disable();
+        }
+        awaitSinks();
+    }
+
+    public void testDisabledScanIsNotTraced() throws Exception {
+        assertFalse(Trace.isEnabled());
+        assertFalse(Trace.forScan().isOn());
+    }
+
+    /**
+     * Wait for the threads that write trace output to write what they have
+     * and exit, which they do once tracing is disabled.
+     */
+    private static void awaitSinks() throws InterruptedException {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("serialysis-trace"))
+                t.join(10000);
+        }
+    }
+}